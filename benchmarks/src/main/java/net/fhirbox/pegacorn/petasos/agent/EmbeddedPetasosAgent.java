@@ -0,0 +1,68 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.manager.DefaultCacheManager;
+
+import net.fhirbox.pegacorn.petasos.metrics.JMXMeterRegistry;
+import net.fhirbox.pegacorn.petasos.metrics.ParcelLifecycleLatency;
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
+import net.fhirbox.pegacorn.petasos.node.PetasosNode;
+
+/**
+ * Wires a PetasosAgent to a cache manager without a CDI container, for the benchmarks
+ * and the cluster harness. The node isn't started, so there is no journal, heartbeat
+ * or site replication, only the agent's own cache work.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class EmbeddedPetasosAgent {
+
+    private static AtomicInteger embeddedAgentCount = new AtomicInteger();
+
+    public static PetasosAgent createAgent(DefaultCacheManager cacheManager, boolean criticalWrite) {
+        PetasosAgent agent = new PetasosAgent();
+        agent.petasosCacheManager = cacheManager;
+        agent.node = new PetasosNode();
+        // the agent runs its status flush on the node's executor, daemon threads so a
+        // benchmark fork can exit without stopping the agent
+        agent.node.setBlockingTaskExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread taskThread = new Thread(runnable, "embedded-petasos-task");
+            taskThread.setDaemon(true);
+            return taskThread;
+        }));
+        // each agent gets its own JMX scope as there can be several in the JVM
+        agent.metrics = new PetasosMetrics();
+        String scope = "embedded-" + embeddedAgentCount.incrementAndGet();
+        agent.metrics.setMeterRegistry(new JMXMeterRegistry(scope));
+        agent.lifecycleLatency = new ParcelLifecycleLatency();
+        agent.lifecycleLatency.registerMBean(scope);
+        agent.setCriticalWrite(criticalWrite);
+        agent.start();
+        return agent;
+    }
+}
@@ -0,0 +1,127 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.fhirbox.pegacorn.petasos.benchmarks.PetasosBenchmarkPayloads;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+
+/**
+ * A full parcel lifecycle through the PetasosAgent (registerActivity, startActivity,
+ * finishActivity, finaliseActivity) against a local mode cache manager, so the cost
+ * measured is the agent's own work (JSON, FDNs, cache operations) without the network.
+ *
+ * The agent is wired by EmbeddedPetasosAgent, so there is no journal and no site
+ * replication, leaving the cache write as the only critical write acknowledgement.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PetasosAgentLifecycleBenchmark {
+    private static final String PARCEL_CACHE_NAME = "petasos-parcel-cache";
+
+    @Param({"1", "16"})
+    public int payloadKB;
+
+    @Param({"false", "true"})
+    public boolean criticalWrite;
+
+    private DefaultCacheManager cacheManager;
+    private PetasosAgent agent;
+    private FDN wupFDN;
+    private FDN functionFDN;
+    private Set<String> ingressContent;
+    private Set<String> egressContent;
+    private AtomicLong uowCount = new AtomicLong();
+
+    @Setup
+    public void startAgent() {
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration(PARCEL_CACHE_NAME, localCache.build());
+        cacheManager.defineConfiguration("petasos-watchdog-cache", localCache.build());
+
+        agent = EmbeddedPetasosAgent.createAgent(cacheManager, criticalWrite);
+
+        wupFDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.node=PetasosNode.wup=transform-wup");
+        functionFDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.node=PetasosNode.function=transform");
+        ingressContent = new HashSet<>();
+        ingressContent.add(PetasosBenchmarkPayloads.payload(0, payloadKB * 1024));
+        egressContent = new HashSet<>();
+        egressContent.add(PetasosBenchmarkPayloads.payload(1, payloadKB * 1024));
+    }
+
+    // finalised parcels are never removed by the agent, so clear them between iterations
+    @TearDown(Level.Iteration)
+    public void clearParcels() {
+        cacheManager.getCache(PARCEL_CACHE_NAME).clear();
+    }
+
+    @TearDown
+    public void stopAgent() {
+        cacheManager.stop();
+    }
+
+    @Benchmark
+    public void parcelLifecycle(Blackhole blackhole) {
+        UoW uow = new UoW(functionFDN, Long.toString(uowCount.incrementAndGet()), ingressContent);
+        PetasosParcel parcel = agent.registerActivity(wupFDN, functionFDN, uow, null);
+        FDN parcelFDN = parcel.getParcelRegistration().getParcelFDN();
+        blackhole.consume(agent.startActivity(parcelFDN));
+        UoW finishedUoW = new UoW(uow);
+        finishedUoW.setUowEgressContent(egressContent);
+        blackhole.consume(agent.finishActivity(parcelFDN, finishedUoW));
+        blackhole.consume(agent.finaliseActivity(parcelFDN, finishedUoW));
+    }
+}
@@ -0,0 +1,112 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fhirbox.pegacorn.petasos.node.PetasosTaskExecutor;
+
+/**
+ * A burst of blocking node tasks (each standing in for a blocking cache call or a
+ * journal force) on a fixed pool the size of a typical managed executor, against
+ * virtual threads. On a runtime without virtual threads the virtual case falls back
+ * to the pool, as the node does, and says so.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockingTaskExecutorBenchmark {
+    // the WildFly default managed executor's maximum threads
+    private static final int MANAGED_POOL_THREADS = 32;
+    private static final long TASK_BLOCKING_MILLIS = 5;
+
+    @Param({"managed", "virtual"})
+    public String executorMode;
+
+    @Param({"100", "2000"})
+    public int concurrentTasks;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (PetasosTaskExecutor.EXECUTOR_MODE_VIRTUAL.equals(executorMode)) {
+            executor = PetasosTaskExecutor.createVirtualThreadExecutor();
+            if (executor == null) {
+                System.out.println("Virtual threads not supported by this runtime, falling back to the managed pool");
+            }
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(MANAGED_POOL_THREADS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int blockingTasks() throws InterruptedException, ExecutionException {
+        List<Future<Integer>> tasks = new ArrayList<>(concurrentTasks);
+        for (int i = 0; i < concurrentTasks; i++) {
+            final int task = i;
+            tasks.add(executor.submit(() -> {
+                Thread.sleep(TASK_BLOCKING_MILLIS);
+                return task;
+            }));
+        }
+        int completed = 0;
+        for (Future<Integer> task : tasks) {
+            task.get();
+            completed++;
+        }
+        return completed;
+    }
+}
@@ -0,0 +1,99 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.RDN;
+
+/**
+ * FDN and RDN handling, which every agent call does several times over (the parcel,
+ * UoW, WUP and function FDNs are all rebuilt from their qualified strings when a
+ * parcel comes off the cache).
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FDNBenchmark {
+    // the shape of a parcel FDN as created by PetasosParcelRegistration
+    private static final String PARCEL_QUALIFIED_FDN = "deployment=aether.site=site-a.pod=pegacorn-communicate-0.node=PetasosNode"
+            + ".function=transform.UoW=0.InstanceQualifier=123456789.ParcelQualifier=2b1f5bb6-3c4e-4d6a-9a52-70d8c4c1a3f1";
+    private static final String QUALIFIED_RDN = "ParcelQualifier=2b1f5bb6-3c4e-4d6a-9a52-70d8c4c1a3f1";
+
+    private FDN parcelFDN;
+
+    @Setup
+    public void createFDN() {
+        parcelFDN = new FDN(PARCEL_QUALIFIED_FDN);
+    }
+
+    @Benchmark
+    public FDN parseFDN() {
+        return new FDN(PARCEL_QUALIFIED_FDN);
+    }
+
+    @Benchmark
+    public FDN copyFDN() {
+        return new FDN(parcelFDN);
+    }
+
+    @Benchmark
+    public FDN appendRDN() {
+        FDN childFDN = new FDN(parcelFDN);
+        childFDN.appendRDN(new RDN("ParcelQualifier", "2b1f5bb6-3c4e-4d6a-9a52-70d8c4c1a3f2"));
+        return childFDN;
+    }
+
+    @Benchmark
+    public String getQualifiedFDN() {
+        return parcelFDN.getQualifiedFDN();
+    }
+
+    @Benchmark
+    public String roundTripFDN() {
+        return new FDN(PARCEL_QUALIFIED_FDN).getQualifiedFDN();
+    }
+
+    @Benchmark
+    public RDN parseRDN() {
+        return new RDN(QUALIFIED_RDN);
+    }
+}
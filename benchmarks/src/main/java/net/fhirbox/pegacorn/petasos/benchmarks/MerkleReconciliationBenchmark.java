@@ -0,0 +1,194 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.benchmarks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import net.fhirbox.pegacorn.petasos.replication.MerkleReconciler;
+import net.fhirbox.pegacorn.petasos.replication.ParcelMerkleTree;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationBatchCodec;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationUpdate;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationUpdateTypeEnum;
+
+/**
+ * Bytes needed for two sites to re-converge by Merkle anti-entropy, against the
+ * percentage of parcels that differ between them. Each invocation starts from two
+ * copies of the same parcel cache with divergencePercent of the parcels modified or
+ * missing at site B, then runs the reconciliation message exchange in-process through
+ * the same codec the transport uses.
+ *
+ * The bytesTransferred counter is the encoded size of every frame exchanged, and
+ * fullCopyBytes is what sending the whole cache would have cost, for comparison.
+ * The counters are reset per invocation so they report a single reconciliation.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MerkleReconciliationBenchmark {
+    private static final String CACHE_NAME = "petasos-parcel-cache";
+
+    @Param({"10000"})
+    public int parcelCount;
+
+    @Param({"0", "0.1", "1", "5", "25"})
+    public double divergencePercent;
+
+    private SiteReplicationBatchCodec codec = new SiteReplicationBatchCodec(true, SiteReplicationBatchCodec.DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+    private Site siteA;
+    private Site siteB;
+    private long fullCopyBytes;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class TransferCounters {
+        public long bytesTransferred;
+        public long fullCopyBytes;
+        public long messageFrames;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            bytesTransferred = 0;
+            fullCopyBytes = 0;
+            messageFrames = 0;
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createDivergentSites() {
+        Random random = new Random(parcelCount);
+        siteA = new Site();
+        siteB = new Site();
+        int divergentParcels = (int) (parcelCount * divergencePercent / 100.0);
+        for (int count = 0; count < parcelCount; count++) {
+            String parcelFDN = "deployment=aether.site=site-a.function=transform.UoW=" + count + ".ParcelQualifier=" + count;
+            String parcelJSON = parcelJSON(parcelFDN, 1000L + count, random);
+            siteA.put(parcelFDN, parcelJSON);
+            if (count < divergentParcels) {
+                // half of the divergent parcels are newer at A, half never reached B
+                if (count % 2 == 0) {
+                    siteB.put(parcelFDN, parcelJSON(parcelFDN, 500L + count, random));
+                }
+            } else {
+                siteB.put(parcelFDN, parcelJSON);
+            }
+        }
+        fullCopyBytes = 0;
+        siteA.cache.forEach((parcelFDN, parcelJSON) -> {
+            ByteBuf frame = codec.encode(UnpooledByteBufAllocator.DEFAULT,
+                    Collections.singletonList(new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL, parcelFDN, parcelJSON)));
+            fullCopyBytes += frame.readableBytes();
+            frame.release();
+        });
+    }
+
+    @Benchmark
+    public long reconcile(TransferCounters counters) {
+        // frames in flight, alternating between the sites as the real connection would
+        ArrayDeque<Object[]> inFlight = new ArrayDeque<>();
+        inFlight.add(new Object[] {siteB, siteA.reconciler.createRootDigests()});
+        while (!inFlight.isEmpty()) {
+            Object[] frame = inFlight.poll();
+            Site receiver = (Site) frame[0];
+            @SuppressWarnings("unchecked")
+            List<SiteReplicationUpdate> updates = (List<SiteReplicationUpdate>) frame[1];
+            ByteBuf encoded = codec.encode(UnpooledByteBufAllocator.DEFAULT, updates);
+            counters.bytesTransferred += encoded.readableBytes();
+            counters.messageFrames++;
+            List<SiteReplicationUpdate> received = codec.decode(encoded);
+            encoded.release();
+
+            List<SiteReplicationUpdate> replies = new ArrayList<>();
+            for (SiteReplicationUpdate update : received) {
+                if (update.getUpdateType() == SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL) {
+                    receiver.put(update.getKey(), update.getValue());
+                } else {
+                    replies.addAll(receiver.reconciler.onMessage(update));
+                }
+            }
+            if (!replies.isEmpty()) {
+                inFlight.add(new Object[] {receiver == siteA ? siteB : siteA, replies});
+            }
+        }
+        counters.fullCopyBytes = fullCopyBytes;
+        if (siteA.tree.getRootHash() != siteB.tree.getRootHash()) {
+            throw new IllegalStateException("Sites did not converge");
+        }
+        return counters.bytesTransferred;
+    }
+
+    private static String parcelJSON(String parcelFDN, long lastStatusUpdate, Random random) {
+        byte[] content = new byte[256];
+        random.nextBytes(content);
+        return new JSONObject().put("parcelStatus", "PARCEL_STATUS_FINISHED")
+                .put("parcelRegistration", new JSONObject().put("parcelFDN", parcelFDN))
+                .put("uow", new JSONObject().put("ingressContent", Base64.getEncoder().encodeToString(content)))
+                .put("watchdogStatus", new JSONObject().put("lastStatusUpdate", lastStatusUpdate))
+                .toString();
+    }
+
+    private static class Site {
+        private final ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<>();
+        private final ParcelMerkleTree tree = new ParcelMerkleTree(CACHE_NAME);
+        private final MerkleReconciler reconciler = new MerkleReconciler();
+
+        Site() {
+            reconciler.addCache(tree, cache::get, parcelJSON -> new JSONObject(parcelJSON).getJSONObject("watchdogStatus").getLong("lastStatusUpdate"),
+                    SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL);
+        }
+
+        void put(String parcelFDN, String parcelJSON) {
+            cache.put(parcelFDN, parcelJSON);
+            tree.update(parcelFDN, parcelJSON);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.benchmarks;
+
+import org.json.JSONObject;
+
+/**
+ * Builds the JSON ingress/egress payloads used by the benchmarks. UoW content has to be
+ * a JSON object as PetasosParcelJSON embeds it in the parcel rather than as a string.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosBenchmarkPayloads {
+
+    /**
+     * @return a JSON object of roughly payloadBytes once serialised
+     */
+    public static String payload(int payloadIndex, int payloadBytes) {
+        StringBuilder content = new StringBuilder(payloadBytes);
+        // repeatable but not trivially compressible content
+        long seed = payloadIndex * 6364136223846793005L + 1442695040888963407L;
+        while (content.length() < payloadBytes) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            content.append(Long.toHexString(seed));
+        }
+        content.setLength(Math.max(0, payloadBytes - 64));
+        return new JSONObject().put("resourceType", "Bundle").put("id", "payload-" + payloadIndex)
+                .put("content", content.toString()).toString();
+    }
+}
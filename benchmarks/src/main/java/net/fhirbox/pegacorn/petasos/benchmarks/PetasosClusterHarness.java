@@ -0,0 +1,366 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirbox.pegacorn.petasos.agent.EmbeddedPetasosAgent;
+import net.fhirbox.pegacorn.petasos.agent.PetasosAgent;
+import net.fhirbox.pegacorn.petasos.cache.PetasosCacheManager;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosWUPActionSuggestionEnum;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+
+/**
+ * Starts a cluster of N Petasos cache managers in one JVM, configured by
+ * PetasosCacheManager (so DIST_SYNC, passivation and memory eviction as in production)
+ * but over a loopback JGroups stack, and drives WUP workloads through a PetasosAgent
+ * on each node. For each node count and payload size it reports parcels/sec and the
+ * latency percentiles of each lifecycle call.
+ *
+ * Unlike the JMH benchmarks this is a throughput harness: every WUP runs parcels back
+ * to back for the measurement period, and latencies are recorded into a HdrHistogram
+ * per WUP (no sharing between threads) which are merged for the report.
+ *
+ * Run with java -cp target/petasos-benchmarks.jar net.fhirbox.pegacorn.petasos.benchmarks.PetasosClusterHarness
+ * and configure with system properties:
+ *  - petasos.harness.nodes          node counts to run, default 1,2,3
+ *  - petasos.harness.payloadKB      ingress/egress payload sizes, default 1,16,64
+ *  - petasos.harness.wupsPerNode    concurrent WUPs on each node, default 4
+ *  - petasos.harness.warmupSeconds  default 10
+ *  - petasos.harness.measureSeconds default 30
+ *  - petasos.harness.criticalWrite  default false
+ *  - petasos.harness.cacheSizeBytes per node cache size, default 256MB
+ *  - petasos.harness.resultFile     optional CSV of the results
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosClusterHarness {
+    private static final Logger LOG = LoggerFactory.getLogger(PetasosClusterHarness.class);
+
+    private static final String CLUSTER_NAME = "petasos-harness-cluster";
+    private static final String JGROUPS_CONFIGURATION_FILE = "jgroups-petasos-local.xml";
+    private static final long CLUSTER_FORMATION_TIMEOUT_MILLIS = 60000L;
+
+    // the lifecycle calls reported, plus the whole lifecycle
+    static final String[] LIFECYCLE_CALLS = {"registerActivity", "startActivity", "finishActivity", "finaliseActivity", "parcelLifecycle"};
+    private static final int REGISTER = 0;
+    private static final int START = 1;
+    private static final int FINISH = 2;
+    private static final int FINALISE = 3;
+    private static final int LIFECYCLE = 4;
+
+    private int wupsPerNode = Integer.getInteger("petasos.harness.wupsPerNode", 4);
+    private long warmupSeconds = Long.getLong("petasos.harness.warmupSeconds", 10L);
+    private long measureSeconds = Long.getLong("petasos.harness.measureSeconds", 30L);
+    private boolean criticalWrite = Boolean.getBoolean("petasos.harness.criticalWrite");
+    private long cacheSizeBytes = Long.getLong("petasos.harness.cacheSizeBytes", 256L * 1024 * 1024);
+
+    private List<DefaultCacheManager> cacheManagers = new ArrayList<>();
+    private List<PetasosAgent> agents = new ArrayList<>();
+
+    // set by the harness thread, read by the WUPs
+    private volatile boolean running;
+    private volatile boolean measuring;
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> nodeCounts = parseList(System.getProperty("petasos.harness.nodes", "1,2,3"));
+        List<Integer> payloadSizes = parseList(System.getProperty("petasos.harness.payloadKB", "1,16,64"));
+        String resultFile = System.getProperty("petasos.harness.resultFile");
+
+        List<HarnessResult> results = new ArrayList<>();
+        for (int nodeCount : nodeCounts) {
+            PetasosClusterHarness harness = new PetasosClusterHarness();
+            try {
+                harness.startCluster(nodeCount);
+                for (int payloadKB : payloadSizes) {
+                    HarnessResult result = harness.run(payloadKB);
+                    result.print(System.out);
+                    results.add(result);
+                }
+            } finally {
+                harness.stopCluster();
+            }
+        }
+        if (resultFile != null) {
+            writeResults(Paths.get(resultFile), results);
+        }
+        System.exit(0);
+    }
+
+    public void startCluster(int nodeCount) throws IOException, InterruptedException {
+        LOG.info("Starting a " + nodeCount + " node cluster");
+        for (int nodeIndex = 0; nodeIndex < nodeCount; nodeIndex++) {
+            String nodeName = "petasos-node-" + nodeIndex;
+            GlobalConfigurationBuilder global = PetasosCacheManager.createGlobalConfiguration(CLUSTER_NAME, JGROUPS_CONFIGURATION_FILE);
+            // each node needs its own name and JMX domain in the one JVM
+            global.transport().nodeName(nodeName);
+            global.jmx().domain("org.infinispan." + nodeName);
+            Path overflowDirectory = Files.createTempDirectory("petasos-harness-" + nodeName);
+            Configuration local = PetasosCacheManager.createCacheConfiguration(overflowDirectory.toString(), cacheSizeBytes);
+
+            DefaultCacheManager cacheManager = new DefaultCacheManager(global.build());
+            PetasosCacheManager.defineCaches(cacheManager, local);
+            cacheManagers.add(cacheManager);
+        }
+        waitForClusterView(nodeCount);
+        // starting the agents gets the caches, which waits for each node to join them
+        cacheManagers.forEach(cacheManager -> agents.add(EmbeddedPetasosAgent.createAgent(cacheManager, criticalWrite)));
+    }
+
+    private void waitForClusterView(int nodeCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CLUSTER_FORMATION_TIMEOUT_MILLIS;
+        for (DefaultCacheManager cacheManager : cacheManagers) {
+            while (cacheManager.getMembers() == null || cacheManager.getMembers().size() < nodeCount) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Cluster of " + nodeCount + " nodes did not form within " + CLUSTER_FORMATION_TIMEOUT_MILLIS + "ms");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    public void stopCluster() {
+        // stop in reverse so the coordinator goes last
+        for (int nodeIndex = cacheManagers.size() - 1; nodeIndex >= 0; nodeIndex--) {
+            cacheManagers.get(nodeIndex).stop();
+        }
+        cacheManagers.clear();
+        agents.clear();
+    }
+
+    public HarnessResult run(int payloadKB) throws Exception {
+        Set<String> ingressContent = new HashSet<>();
+        ingressContent.add(PetasosBenchmarkPayloads.payload(0, payloadKB * 1024));
+        Set<String> egressContent = new HashSet<>();
+        egressContent.add(PetasosBenchmarkPayloads.payload(1, payloadKB * 1024));
+
+        ExecutorService wupExecutor = Executors.newFixedThreadPool(agents.size() * wupsPerNode);
+        List<WUPWorkload> workloads = new ArrayList<>();
+        List<Future<Integer>> workloadOutcomes = new ArrayList<>();
+        running = true;
+        measuring = false;
+        for (int nodeIndex = 0; nodeIndex < agents.size(); nodeIndex++) {
+            for (int wupIndex = 0; wupIndex < wupsPerNode; wupIndex++) {
+                WUPWorkload workload = new WUPWorkload(agents.get(nodeIndex), nodeIndex, wupIndex, ingressContent, egressContent);
+                workloads.add(workload);
+                workloadOutcomes.add(wupExecutor.submit(workload));
+            }
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        long measureStartNanos = System.nanoTime();
+        measuring = true;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(measureSeconds));
+        measuring = false;
+        long measureNanos = System.nanoTime() - measureStartNanos;
+        running = false;
+        for (Future<Integer> outcome : workloadOutcomes) {
+            outcome.get();
+        }
+        wupExecutor.shutdown();
+
+        HarnessResult result = new HarnessResult(agents.size(), payloadKB, wupsPerNode, measureNanos);
+        workloads.forEach(workload -> result.add(workload));
+
+        // finalised parcels are never removed by the agent, don't carry them into the next run
+        cacheManagers.get(0).getCache("petasos-parcel-cache").clear();
+        return result;
+    }
+
+    // A WUP running parcels through the agent back to back
+    class WUPWorkload implements Callable<Integer> {
+        private PetasosAgent agent;
+        private FDN wupFDN;
+        private FDN functionFDN;
+        private Set<String> ingressContent;
+        private Set<String> egressContent;
+        private Histogram[] latencies = new Histogram[LIFECYCLE_CALLS.length];
+        private long completedParcels;
+        private long failedParcels;
+
+        WUPWorkload(PetasosAgent agent, int nodeIndex, int wupIndex, Set<String> ingressContent, Set<String> egressContent) {
+            this.agent = agent;
+            this.functionFDN = new FDN("deployment=aether.site=site-a.pod=petasos-node-" + nodeIndex + ".node=PetasosNode.function=transform");
+            this.wupFDN = new FDN("deployment=aether.site=site-a.pod=petasos-node-" + nodeIndex + ".node=PetasosNode.wup=transform-wup-" + wupIndex);
+            this.ingressContent = ingressContent;
+            this.egressContent = egressContent;
+            for (int call = 0; call < latencies.length; call++) {
+                // auto resizing so an outlier can't throw
+                latencies[call] = new Histogram(3);
+            }
+        }
+
+        @Override
+        public Integer call() {
+            long uowCount = 0;
+            try {
+                while (running) {
+                    boolean record = measuring;
+                    long lifecycleStart = System.nanoTime();
+                    UoW uow = new UoW(functionFDN, wupFDN.getRDNValue("wup") + "-" + (uowCount++), ingressContent);
+
+                    long callStart = System.nanoTime();
+                    PetasosParcel parcel = agent.registerActivity(wupFDN, functionFDN, uow, null);
+                    long callEnd = System.nanoTime();
+                    if (parcel == null) {
+                        failedParcels += record ? 1 : 0;
+                        continue;
+                    }
+                    recordCall(record, REGISTER, callStart, callEnd);
+                    FDN parcelFDN = parcel.getParcelRegistration().getParcelFDN();
+
+                    callStart = callEnd;
+                    PetasosWUPActionSuggestionEnum startSuggestion = agent.startActivity(parcelFDN);
+                    callEnd = System.nanoTime();
+                    recordCall(record, START, callStart, callEnd);
+                    if (startSuggestion != PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE) {
+                        failedParcels += record ? 1 : 0;
+                        continue;
+                    }
+
+                    UoW finishedUoW = new UoW(uow);
+                    finishedUoW.setUowEgressContent(egressContent);
+                    callStart = System.nanoTime();
+                    agent.finishActivity(parcelFDN, finishedUoW);
+                    callEnd = System.nanoTime();
+                    recordCall(record, FINISH, callStart, callEnd);
+
+                    callStart = callEnd;
+                    agent.finaliseActivity(parcelFDN, finishedUoW);
+                    callEnd = System.nanoTime();
+                    recordCall(record, FINALISE, callStart, callEnd);
+                    recordCall(record, LIFECYCLE, lifecycleStart, callEnd);
+                    if (record) {
+                        completedParcels++;
+                    }
+                }
+            } catch (Exception ex) {
+                LOG.error("WUP " + wupFDN.getQualifiedFDN() + " workload failed", ex);
+                return new Integer(1);
+            }
+            return new Integer(0);
+        }
+
+        private void recordCall(boolean record, int call, long callStart, long callEnd) {
+            if (record) {
+                latencies[call].recordValue(callEnd - callStart);
+            }
+        }
+    }
+
+    static class HarnessResult {
+        private int nodeCount;
+        private int payloadKB;
+        private int wupsPerNode;
+        private long measureNanos;
+        private long completedParcels;
+        private long failedParcels;
+        private Histogram[] latencies = new Histogram[LIFECYCLE_CALLS.length];
+
+        HarnessResult(int nodeCount, int payloadKB, int wupsPerNode, long measureNanos) {
+            this.nodeCount = nodeCount;
+            this.payloadKB = payloadKB;
+            this.wupsPerNode = wupsPerNode;
+            this.measureNanos = measureNanos;
+            for (int call = 0; call < latencies.length; call++) {
+                latencies[call] = new Histogram(3);
+            }
+        }
+
+        void add(WUPWorkload workload) {
+            completedParcels += workload.completedParcels;
+            failedParcels += workload.failedParcels;
+            for (int call = 0; call < latencies.length; call++) {
+                latencies[call].add(workload.latencies[call]);
+            }
+        }
+
+        double getParcelsPerSecond() {
+            return completedParcels / (measureNanos / 1000000000.0);
+        }
+
+        void print(java.io.PrintStream out) {
+            out.println(String.format("nodes=%d payloadKB=%d wupsPerNode=%d parcels/sec=%.1f failed=%d",
+                    nodeCount, payloadKB, wupsPerNode, getParcelsPerSecond(), failedParcels));
+            out.println(String.format("  %-18s %10s %10s %10s %10s %10s (us)", "call", "p50", "p90", "p99", "p99.9", "max"));
+            for (int call = 0; call < LIFECYCLE_CALLS.length; call++) {
+                Histogram histogram = latencies[call];
+                out.println(String.format("  %-18s %10.1f %10.1f %10.1f %10.1f %10.1f", LIFECYCLE_CALLS[call],
+                        micros(histogram.getValueAtPercentile(50.0)), micros(histogram.getValueAtPercentile(90.0)),
+                        micros(histogram.getValueAtPercentile(99.0)), micros(histogram.getValueAtPercentile(99.9)),
+                        micros(histogram.getMaxValue())));
+            }
+        }
+
+        private static double micros(long nanos) {
+            return nanos / 1000.0;
+        }
+    }
+
+    private static void writeResults(Path resultFile, List<HarnessResult> results) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(resultFile))) {
+            writer.println("nodes,payloadKB,wupsPerNode,parcelsPerSecond,failedParcels,call,p50us,p90us,p99us,p999us,maxus");
+            for (HarnessResult result : results) {
+                for (int call = 0; call < LIFECYCLE_CALLS.length; call++) {
+                    Histogram histogram = result.latencies[call];
+                    writer.println(String.format("%d,%d,%d,%.1f,%d,%s,%.1f,%.1f,%.1f,%.1f,%.1f", result.nodeCount, result.payloadKB,
+                            result.wupsPerNode, result.getParcelsPerSecond(), result.failedParcels, LIFECYCLE_CALLS[call],
+                            HarnessResult.micros(histogram.getValueAtPercentile(50.0)), HarnessResult.micros(histogram.getValueAtPercentile(90.0)),
+                            HarnessResult.micros(histogram.getValueAtPercentile(99.0)), HarnessResult.micros(histogram.getValueAtPercentile(99.9)),
+                            HarnessResult.micros(histogram.getMaxValue())));
+                }
+            }
+        }
+    }
+
+    private static List<Integer> parseList(String values) {
+        List<Integer> parsed = new ArrayList<>();
+        for (String value : values.split(",")) {
+            parsed.add(Integer.parseInt(value.trim()));
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,132 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.benchmarks;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSONWriter;
+import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadCompression;
+
+/**
+ * The parcel to/from JSON conversions done on every agent call, across the size of
+ * the UoW payload carried in the parcel. The parcel has both ingress and egress
+ * content of payloadKB each, as it would after finishActivity.
+ *
+ * Run with -prof gc (as the run-benchmarks profile does) for the bytes allocated per
+ * parcel (gc.alloc.rate.norm), e.g. serialise against streamingSerialise.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PetasosParcelJSONBenchmark {
+    @Param({"1", "16", "128"})
+    public int payloadKB;
+
+    private PetasosParcel parcel;
+    private String parcelJSONString;
+
+    @Setup
+    public void createParcel() {
+        // the streaming writer compresses large content and the JSONObject tree doesn't,
+        // compression off so both measure just the encoding
+        PetasosPayloadCompression.setCompressionThreshold(0);
+        FDN functionFDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.node=PetasosNode.function=transform");
+        FDN wupFDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.node=PetasosNode.wup=transform-wup");
+        Set<String> ingressContent = new HashSet<>();
+        ingressContent.add(PetasosBenchmarkPayloads.payload(0, payloadKB * 1024));
+        UoW uow = new UoW(functionFDN, "0", ingressContent);
+        Set<String> egressContent = new HashSet<>();
+        egressContent.add(PetasosBenchmarkPayloads.payload(1, payloadKB * 1024));
+        uow.setUowEgressContent(egressContent);
+
+        parcel = new PetasosParcel(new PetasosParcelRegistration(wupFDN, uow.getUoWFDN(), functionFDN, Instant.now()));
+        parcel.setUoW(uow);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+        parcel.setTaskProcessorState(new PetasosWUPWatchdogState(wupFDN, ComponentStatusEnum.COMPONENT_STATUS_IDLE, Instant.now()));
+        parcel.setPrecursorParcel(new FDN(functionFDN.getQualifiedFDN() + ".UoW=precursor.ParcelQualifier=0"));
+        parcelJSONString = new PetasosParcelJSON(parcel).toJSONString();
+    }
+
+    @Benchmark
+    public String serialise() {
+        return new PetasosParcelJSON(parcel).toJSONString();
+    }
+
+    @Benchmark
+    public String streamingSerialise() {
+        return PetasosParcelJSONWriter.get().toJSONString(parcel);
+    }
+
+    @Benchmark
+    public PetasosParcelJSON deserialise() {
+        return new PetasosParcelJSON(parcelJSONString);
+    }
+
+    @Benchmark
+    public PetasosParcel deserialiseToParcel() {
+        return new PetasosParcelJSON(parcelJSONString).createParcel();
+    }
+
+    // the UoW content is only decoded when asked for, so this is the cost on top of deserialiseToParcel
+    @Benchmark
+    public Set<String> deserialiseToParcelContent() {
+        return new PetasosParcelJSON(parcelJSONString).createParcel().getContainedUoW().getUowIngressContent();
+    }
+
+    // what startActivity/finishActivity do: read, change the status, write back
+    @Benchmark
+    public String updateStatus() {
+        PetasosParcelJSON parcelJSON = new PetasosParcelJSON(parcelJSONString);
+        parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+        return parcelJSON.toJSONString();
+    }
+}
@@ -0,0 +1,107 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationBatchCodec;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationUpdate;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationUpdateTypeEnum;
+
+/**
+ * Encoding and decoding a batch of forwarded parcels for another site, with and without
+ * compression. Run with -prof gc, the encode allocation (gc.alloc.rate.norm) divided by
+ * batchSize is the allocation per forwarded parcel, the frame itself is pooled.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SiteReplicationBatchCodecBenchmark {
+    @Param({"1", "32"})
+    public int batchSize;
+
+    @Param({"1", "16"})
+    public int payloadKB;
+
+    @Param({"false", "true"})
+    public boolean compressionEnabled;
+
+    private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private SiteReplicationBatchCodec codec;
+    private List<SiteReplicationUpdate> batch;
+    private ByteBuf encodedBatch;
+
+    @Setup
+    public void createBatch() {
+        codec = new SiteReplicationBatchCodec(compressionEnabled, SiteReplicationBatchCodec.DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+        batch = new ArrayList<>(batchSize);
+        for (int index = 0; index < batchSize; index++) {
+            String parcelFDN = "deployment=aether.site=site-a.function=transform.UoW=" + index + ".ParcelQualifier=" + index;
+            batch.add(new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL, parcelFDN,
+                    PetasosBenchmarkPayloads.payload(index, payloadKB * 1024)));
+        }
+        encodedBatch = codec.encode(allocator, batch);
+    }
+
+    @TearDown
+    public void releaseBatch() {
+        encodedBatch.release();
+    }
+
+    @Benchmark
+    public int encode() {
+        ByteBuf frame = codec.encode(allocator, batch);
+        int frameLength = frame.readableBytes();
+        frame.release();
+        return frameLength;
+    }
+
+    @Benchmark
+    public List<SiteReplicationUpdate> decode() {
+        return codec.decode(encodedBatch.duplicate());
+    }
+}
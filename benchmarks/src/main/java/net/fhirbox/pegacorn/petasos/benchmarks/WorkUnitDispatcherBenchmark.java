@@ -0,0 +1,110 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.benchmarks;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.dispatch.WorkUnitDispatcher;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+
+/**
+ * Dispatching parcels to, and taking them from, the WUPs of one function with a WUP
+ * per benchmark thread. Run with -t to see how it scales with the number of WUPs.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class WorkUnitDispatcherBenchmark {
+    private static final FDN FUNCTION_FDN = new FDN("function=benchmark");
+
+    private DefaultCacheManager cacheManager;
+    private WorkUnitDispatcher dispatcher;
+    private PetasosParcelJSON registeredParcel;
+    private AtomicInteger wupCount = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class WUP {
+        FDN wupFDN;
+
+        @Setup(Level.Trial)
+        public void setUp(WorkUnitDispatcherBenchmark benchmark) {
+            wupFDN = new FDN("wup=" + benchmark.wupCount.incrementAndGet());
+            benchmark.dispatcher.registerWUP(wupFDN, FUNCTION_FDN);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // a local cache, so every parcel is locally owned
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("petasos-parcel-cache", new ConfigurationBuilder().build());
+        dispatcher = new WorkUnitDispatcher(cacheManager.getCache("petasos-parcel-cache"));
+        UoW uow = new UoW(FUNCTION_FDN, Collections.singleton(PetasosBenchmarkPayloads.payload(0, 256)));
+        PetasosParcel parcel = new PetasosParcel(new PetasosParcelRegistration(new FDN("wup=0"), uow.getUoWFDN(), FUNCTION_FDN, Instant.now()));
+        parcel.setUoW(uow);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED);
+        registeredParcel = new PetasosParcelJSON(new PetasosParcelJSON(parcel).toJSONString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cacheManager.stop();
+    }
+
+    @Benchmark
+    public String dispatchAndTake(WUP wup) {
+        dispatcher.dispatch("parcel", registeredParcel);
+        return dispatcher.takeWork(wup.wupFDN);
+    }
+}
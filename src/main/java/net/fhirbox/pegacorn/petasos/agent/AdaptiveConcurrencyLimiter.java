@@ -0,0 +1,253 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many agent calls can be in the parcel cache at once, with the limit
+ * following the cache's latency, so when the cluster slows down WUPs are told to pause
+ * rather than piling up blocked in cache calls until the pods time out.
+ *
+ * The limit is adjusted by a latency gradient: a long term average of the call latency
+ * is the baseline, and each call's latency against it says whether the cache is keeping
+ * up. While calls take about the baseline the limit grows by a small allowance for
+ * queueing, as they take longer it shrinks in proportion, by up to half. A call over
+ * the limit waits up to the queue wait for a slot (by default it doesn't wait) and is
+ * shed if none comes free.
+ *
+ * The latency averages are sampled rather than locked: a call that releases while
+ * another is adjusting the limit leaves its latency out, so the release path never
+ * waits on a lock. At the call rates where that happens often the averages still see
+ * plenty of calls.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class AdaptiveConcurrencyLimiter {
+    public static final int DEFAULT_INITIAL_LIMIT = 32;
+    public static final int DEFAULT_MIN_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 512;
+    // latency up to this multiple of the baseline doesn't shrink the limit
+    private static final double LATENCY_TOLERANCE = 1.5;
+    // weight of each call in the baseline, so it averages roughly the last 500 calls
+    private static final double BASELINE_WEIGHT = 1.0 / 500.0;
+    // weight of each call in the recent latency, roughly the last 10 calls, so one slow
+    // call doesn't halve the limit
+    private static final double RECENT_WEIGHT = 1.0 / 10.0;
+    // calls allowed to queue in the cache on top of what the latency says it can take
+    private static final double QUEUE_ALLOWANCE = 4.0;
+    // how far each call moves the limit towards where the gradient puts it
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    private volatile boolean enabled = true;
+    private volatile int minLimit;
+    private volatile int maxLimit;
+    private volatile long maxQueueWaitNanos = 0;
+    private volatile double limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong shedCalls = new AtomicLong();
+
+    // set while a release is adjusting the limit, and guarding the averages below
+    private final AtomicBoolean adjusting = new AtomicBoolean();
+    // volatile for getBaselineLatencyMillis()
+    private volatile double baselineNanos = -1;
+    private volatile double recentNanos = -1;
+
+    public AdaptiveConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+    }
+
+    /**
+     * Admits a call, waiting up to the queue wait if the limit has been reached.
+     *
+     * @return when the call was admitted, to pass to release() once it is out of the
+     * cache, or -1 if the call was shed, in which case there is nothing to release
+     */
+    public long acquire() {
+        if (tryAcquire()) {
+            return System.nanoTime();
+        }
+        long waitNanos = maxQueueWaitNanos;
+        if (waitNanos > 0) {
+            long deadline = System.nanoTime() + waitNanos;
+            waiting.incrementAndGet();
+            try {
+                synchronized (this) {
+                    // a release only takes the monitor to notify once it sees this call
+                    // waiting, so a slot freed before then is checked for here
+                    long remainingNanos = waitNanos;
+                    while (remainingNanos > 0) {
+                        if (tryAcquire()) {
+                            return System.nanoTime();
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                        remainingNanos = deadline - System.nanoTime();
+                    }
+                    if (tryAcquire()) {
+                        return System.nanoTime();
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+        shedCalls.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * Releases the slot of an admitted call and adjusts the limit by how long it took.
+     *
+     * @param admittedNanos as returned by acquire(), a shed call (-1) is ignored
+     */
+    public void release(long admittedNanos) {
+        if (admittedNanos < 0) {
+            return;
+        }
+        long latencyNanos = Math.max(1L, System.nanoTime() - admittedNanos);
+        int callsInFlight = inFlight.getAndDecrement();
+        if (adjusting.compareAndSet(false, true)) {
+            try {
+                adjustLimit(latencyNanos, callsInFlight);
+            } finally {
+                adjusting.set(false);
+            }
+        }
+        // only calls queued for a slot need the monitor
+        if (waiting.get() > 0) {
+            synchronized (this) {
+                notify();
+            }
+        }
+    }
+
+    /**
+     * Releases the slot of an admitted call that didn't go to the cache after all, so
+     * its latency says nothing about the cache and the limit is left as it is.
+     */
+    public void cancel(long admittedNanos) {
+        if (admittedNanos < 0) {
+            return;
+        }
+        inFlight.decrementAndGet();
+        if (waiting.get() > 0) {
+            synchronized (this) {
+                notify();
+            }
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (enabled && current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // only called by the release holding the adjusting flag
+    private void adjustLimit(long latencyNanos, int callsInFlight) {
+        if (baselineNanos < 0) {
+            baselineNanos = latencyNanos;
+            recentNanos = latencyNanos;
+            return;
+        }
+        baselineNanos += (latencyNanos - baselineNanos) * BASELINE_WEIGHT;
+        recentNanos += (latencyNanos - recentNanos) * RECENT_WEIGHT;
+        // after a slow spell the baseline is left high, which would let the limit grow
+        // back before the cache has recovered, so it's pulled down faster while calls
+        // are well under it
+        if (baselineNanos > 2 * recentNanos) {
+            baselineNanos *= 0.95;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * baselineNanos / recentNanos));
+        // with only a few calls in flight the latency says nothing about a higher limit,
+        // so don't grow it, else a quiet period leaves it at the maximum
+        if (gradient >= 1.0 && callsInFlight < limit / 2) {
+            return;
+        }
+        // the growth is spread over the calls in a round of the limit, else at thousands
+        // of calls a second the limit would overshoot before the latency caught up
+        double newLimit = limit * (1 - LIMIT_SMOOTHING) + limit * gradient * LIMIT_SMOOTHING + QUEUE_ALLOWANCE / limit;
+        limit = Math.max(minLimit, Math.min(newLimit, maxLimit));
+    }
+
+    /**
+     * @param enabled false admits every call, the latency is still tracked
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setLimits(int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = Math.max(minLimit, Math.min(limit, maxLimit));
+    }
+
+    /**
+     * @param maxQueueWaitMillis how long a call over the limit waits for a slot before
+     * it is shed, 0 sheds it straight away
+     */
+    public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getShedCalls() {
+        return shedCalls.get();
+    }
+
+    public double getBaselineLatencyMillis() {
+        double currentBaselineNanos = baselineNanos;
+        return currentBaselineNanos < 0 ? 0 : currentBaselineNanos / 1000000.0;
+    }
+}
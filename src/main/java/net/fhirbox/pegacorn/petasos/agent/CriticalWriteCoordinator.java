@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for a parcel transition to be acknowledged by enough durable copies before
+ * a critical write is allowed to return to the WUP.
+ *
+ * The acknowledgements are all started before any of them is waited on, so the
+ * latency of a critical write is the slowest acknowledgement needed for the quorum
+ * rather than the sum of them. The possible acknowledgements are:
+ *  - the cache owners (a DIST_SYNC write completes once every owner has it)
+ *  - the local parcel journal (completes on the group commit that forces the record)
+ *  - Hestia, once there is a connection to it
+ *
+ * The wait ends as soon as the quorum is reached, or as soon as enough of the
+ * acknowledgements have failed that it can no longer be reached.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class CriticalWriteCoordinator {
+    private static final Logger LOG = LoggerFactory.getLogger(CriticalWriteCoordinator.class);
+
+    public static final int DEFAULT_QUORUM = 2;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000L;
+
+    private int quorum = DEFAULT_QUORUM;
+    // durable copies this node can provide, the quorum is capped at this
+    private int availableCopies = DEFAULT_QUORUM;
+    private volatile int effectiveQuorum = DEFAULT_QUORUM;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    // keyed by agent method name (registerActivity, startActivity, finishActivity)
+    private ConcurrentHashMap<String, LatencyReservoir> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * Waits until the quorum of the supplied acknowledgements have completed
+     * successfully. Null acknowledgements (e.g. no journal on this node) are ignored.
+     * An acknowledgement completing exceptionally counts against the quorum.
+     *
+     * @return true if the quorum was reached within the timeout, false if it timed
+     * out or too many acknowledgements failed for it to be reached
+     */
+    public boolean awaitQuorum(String method, long startNanos, CompletableFuture<?>... acknowledgements) {
+        List<CompletableFuture<?>> availableAcknowledgements = new ArrayList<>();
+        Arrays.stream(acknowledgements).filter(ack -> ack != null).forEach(availableAcknowledgements::add);
+        // already checked against the copies this node provides when configured, so this
+        // only catches a copy going away since (e.g. the journal failing)
+        int requiredAcknowledgements = Math.min(effectiveQuorum, availableAcknowledgements.size());
+        int tolerableFailures = availableAcknowledgements.size() - requiredAcknowledgements;
+
+        CompletableFuture<Boolean> quorumOutcome = new CompletableFuture<>();
+        if (requiredAcknowledgements == 0) {
+            quorumOutcome.complete(Boolean.TRUE);
+        }
+        AtomicInteger acknowledged = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        availableAcknowledgements.forEach(ack -> ack.whenComplete((result, error) -> {
+            if (error == null) {
+                if (acknowledged.incrementAndGet() == requiredAcknowledgements) {
+                    quorumOutcome.complete(Boolean.TRUE);
+                }
+            } else {
+                LOG.warn("Critical write acknowledgement failed for " + method, error);
+                if (failed.incrementAndGet() > tolerableFailures) {
+                    quorumOutcome.complete(Boolean.FALSE);
+                }
+            }
+        }));
+
+        boolean quorumReached;
+        try {
+            quorumReached = quorumOutcome.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (!quorumReached) {
+                LOG.error("Critical write quorum not reached for " + method + ", " + failed.get() + " of "
+                        + availableAcknowledgements.size() + " acknowledgements failed");
+            }
+        } catch (TimeoutException te) {
+            LOG.error("Critical write quorum not reached for " + method + " within " + timeoutMillis + "ms");
+            quorumReached = false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            quorumReached = false;
+        } catch (ExecutionException ee) {
+            // never completed exceptionally
+            quorumReached = false;
+        }
+        latencies.computeIfAbsent(method, key -> new LatencyReservoir()).record(System.nanoTime() - startNanos);
+        return quorumReached;
+    }
+
+    /**
+     * @return the given percentile (e.g. 50.0, 99.0) of recent critical write latencies
+     * for the agent method in milliseconds, or 0 if there have been none
+     */
+    public double getLatencyPercentileMillis(String method, double percentile) {
+        LatencyReservoir reservoir = latencies.get(method);
+        if (reservoir == null) {
+            return 0;
+        }
+        return reservoir.getPercentileNanos(percentile) / 1000000.0;
+    }
+
+    public String getLatencySummary() {
+        StringBuilder summary = new StringBuilder();
+        latencies.keySet().forEach(method -> {
+            summary.append(method).append(": p50=").append(getLatencyPercentileMillis(method, 50.0))
+                    .append("ms p99=").append(getLatencyPercentileMillis(method, 99.0)).append("ms; ");
+        });
+        return summary.toString();
+    }
+
+    public void setQuorum(int quorum) {
+        this.quorum = quorum;
+        updateEffectiveQuorum();
+    }
+
+    /**
+     * @param availableCopies the number of durable copies this node can provide for
+     * a critical write (the cache owners, plus the journal if it opened)
+     */
+    public void setAvailableCopies(int availableCopies) {
+        this.availableCopies = availableCopies;
+        updateEffectiveQuorum();
+    }
+
+    // checked once as the quorum or copies are configured rather than on every write
+    private synchronized void updateEffectiveQuorum() {
+        if (quorum > availableCopies) {
+            LOG.warn("Critical write quorum of " + quorum + " cannot be met with " + availableCopies
+                    + " durable copies, waiting for all of them");
+            effectiveQuorum = availableCopies;
+        } else {
+            effectiveQuorum = quorum;
+        }
+    }
+
+    public int getQuorum() {
+        return quorum;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // Keeps the most recent samples only, plenty for p50/p99 and no locking on record().
+    // Samples written concurrently with a percentile read may be missed, which is fine
+    // for reporting.
+    static class LatencyReservoir {
+        private static final int RESERVOIR_SIZE = 1024;
+        private final long[] samples = new long[RESERVOIR_SIZE];
+        private final AtomicLong sampleCount = new AtomicLong();
+
+        void record(long latencyNanos) {
+            samples[(int) (sampleCount.getAndIncrement() % RESERVOIR_SIZE)] = latencyNanos;
+        }
+
+        long getPercentileNanos(double percentile) {
+            int available = (int) Math.min(sampleCount.get(), RESERVOIR_SIZE);
+            if (available == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, available);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * available) - 1;
+            return sorted[Math.max(0, Math.min(index, available - 1))];
+        }
+    }
+}
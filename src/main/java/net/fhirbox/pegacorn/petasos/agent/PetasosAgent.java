@@ -25,8 +25,14 @@ package net.fhirbox.pegacorn.petasos.agent;
 
 import java.time.Instant;
 import java.util.Collection;
-import java.util.concurrent.Callable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.enterprise.concurrent.ManagedExecutorService;
@@ -37,8 +43,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.fhirbox.pegacorn.deploymentproperties.PetasosProperties;
+import net.fhirbox.pegacorn.petasos.cache.ParcelAffinity;
 import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSONWriter;
+import net.fhirbox.pegacorn.petasos.metrics.ParcelLifecycleLatency;
+import net.fhirbox.pegacorn.petasos.metrics.ParcelLifecycleTransitionEnum;
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
 import net.fhirbox.pegacorn.petasos.common.PetasosWUPWatchdogStateJSON;
+import net.fhirbox.pegacorn.petasos.jfr.PetasosFlightRecorder;
 import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
 import net.fhirbox.pegacorn.petasos.model.FDN;
 import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
@@ -49,6 +61,7 @@ import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
 import net.fhirbox.pegacorn.petasos.model.UoW;
 import net.fhirbox.pegacorn.petasos.model.UoWProcessingOutcomeEnum;
 import net.fhirbox.pegacorn.petasos.node.PetasosNode;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadStore;
 
 /**
  *
@@ -59,6 +72,11 @@ public class PetasosAgent implements PetasosAgentInterface{
     private static final Logger LOG = LoggerFactory.getLogger(PetasosAgent.class);    
     
     private boolean criticalWrite = false;
+    private CriticalWriteCoordinator criticalWriteCoordinator = new CriticalWriteCoordinator();
+    // keeps WUP threads out of the parcel cache when it's overloaded
+    private AdaptiveConcurrencyLimiter concurrencyLimiter = new AdaptiveConcurrencyLimiter();
+    // only the latest of the frequent WUP status reports goes to the cache
+    private StatusUpdateCoalescer statusCoalescer;
 
     // see https://docs.wildfly.org/18/Developer_Guide.html#managed-executor-service
     // see https://www.javacodegeeks.com/2014/07/java-ee-concurrency-api-tutorial.html
@@ -70,198 +88,438 @@ public class PetasosAgent implements PetasosAgentInterface{
 
     @Inject
     PetasosNode node;
+
+    @Inject
+    PetasosMetrics metrics;
+
+    @Inject
+    ParcelLifecycleLatency lifecycleLatency;
     
     // The clustered cache
     private Cache<String, String> petasosParcelCache;
     private Cache<String, String> petasosWatchdogCache;
+    // so the parcels registered here are owned here
+    private ParcelAffinity parcelAffinity;
 
     @PostConstruct
     public void start() {
         // get or create the clustered cache which will hold the transactions (aka Units of Work)
         petasosParcelCache = petasosCacheManager.getCache("petasos-parcel-cache", true);
         petasosWatchdogCache = petasosCacheManager.getCache("petasos-watchdog-cache", true);
+        metrics.registerCacheHitRatio(petasosParcelCache);
+        metrics.registerCacheHitRatio(petasosWatchdogCache);
+        parcelAffinity = new ParcelAffinity(petasosParcelCache);
+        // the cache owners count as one copy, the journal as another if the node has one
+        criticalWriteCoordinator.setAvailableCopies(node.getParcelJournal() == null ? 1 : 2);
+        configureConcurrencyLimiter();
+        metrics.registerGauge("agent.concurrencyLimit", () -> concurrencyLimiter.getLimit());
+        metrics.registerGauge("agent.inFlight", () -> concurrencyLimiter.getInFlight());
+        metrics.registerGauge("agent.shed", () -> concurrencyLimiter.getShedCalls());
+        startStatusCoalescer();
+    }
+
+    @PreDestroy
+    public void stop() {
+        statusCoalescer.close();
+    }
+
+    // PETASOS_STATUS_FLUSH_MILLIS is how often buffered status updates are written
+    private void startStatusCoalescer() {
+        statusCoalescer = new StatusUpdateCoalescer(petasosParcelCache, petasosWatchdogCache, node);
+        String flushMillis = System.getenv("PETASOS_STATUS_FLUSH_MILLIS");
+        if (flushMillis != null) {
+            try {
+                statusCoalescer.setFlushIntervalMillis(Long.parseLong(flushMillis.trim()));
+            } catch (NumberFormatException badFlushInterval) {
+                LOG.warn("Invalid PETASOS_STATUS_FLUSH_MILLIS " + flushMillis + ", using the default");
+            }
+        }
+        node.getBlockingTaskExecutor().submit(statusCoalescer.new FlushTask());
+        metrics.registerGauge("statusUpdates.pending", () -> statusCoalescer.getPendingCount());
+        metrics.registerGauge("statusUpdates.coalesced", () -> statusCoalescer.getCoalescedCount());
+        metrics.registerGauge("statusUpdates.written", () -> statusCoalescer.getWrittenCount());
+    }
+
+    // PETASOS_AGENT_MAX_CONCURRENCY caps the adaptive limit, 0 turns the limiter off,
+    // PETASOS_AGENT_QUEUE_WAIT_MILLIS is how long a call over the limit waits before
+    // the WUP is told to pause
+    private void configureConcurrencyLimiter() {
+        String maxConcurrency = System.getenv("PETASOS_AGENT_MAX_CONCURRENCY");
+        if (maxConcurrency != null) {
+            try {
+                int maxLimit = Integer.parseInt(maxConcurrency.trim());
+                if (maxLimit <= 0) {
+                    concurrencyLimiter.setEnabled(false);
+                } else {
+                    concurrencyLimiter.setLimits(Math.min(AdaptiveConcurrencyLimiter.DEFAULT_MIN_LIMIT, maxLimit), maxLimit);
+                }
+            } catch (NumberFormatException badMaxConcurrency) {
+                LOG.warn("Invalid PETASOS_AGENT_MAX_CONCURRENCY " + maxConcurrency + ", using the default");
+            }
+        }
+        String queueWaitMillis = System.getenv("PETASOS_AGENT_QUEUE_WAIT_MILLIS");
+        if (queueWaitMillis != null) {
+            try {
+                concurrencyLimiter.setMaxQueueWaitMillis(Long.parseLong(queueWaitMillis.trim()));
+            } catch (NumberFormatException badQueueWait) {
+                LOG.warn("Invalid PETASOS_AGENT_QUEUE_WAIT_MILLIS " + queueWaitMillis + ", using the default");
+            }
+        }
     }
     
     @Override
     public void registerWorkUnitProcessor(FDN myProcessorFDN, FDN mySupportedFunctionFDN) {
-        node.registerWUPCapability(myProcessorFDN, mySupportedFunctionFDN);
-        // register with the local Petasos::Node
-        // so for now a watchdog entry is going to be a flattened state plus supported function
-        // FDN String. Petasos care about WUPs and Nodes so will limit to that as component
-        // instance model too complex (recursive) to flatten onto cache.
-        // Check if registered, check if function registered, if no to any of those, json-ise
-        // and put on cache
-        // key to watchdog cache will be component qualified fdn string
-        // Do we need an injection point as well?
-        // TODO: not sure the watchdog cache is needed, might end up being made irrelevant by 
-        // the map caches, not sure at this stage
-        PetasosWUPWatchdogState watchdogEntry = new PetasosWUPWatchdogState(myProcessorFDN, ComponentStatusEnum.COMPONENT_STATUS_IDLE, Instant.now());
-        String watchdogEntryJSON = petasosWatchdogCache.get(myProcessorFDN.getQualifiedFDN());
-        if (watchdogEntryJSON == null) {
-            petasosWatchdogCache.put(myProcessorFDN.getQualifiedFDN(), new PetasosWUPWatchdogStateJSON(watchdogEntry).toJSONString());
-        } else {
-            // exists so do we add a supported function, replace, or ??
-            // for now will replace
-            petasosWatchdogCache.replace(myProcessorFDN.getQualifiedFDN(), new PetasosWUPWatchdogStateJSON(watchdogEntry).toJSONString());
+        long callStartNanos = System.nanoTime();
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        try {
+            node.registerWUPCapability(myProcessorFDN, mySupportedFunctionFDN);
+            // register with the local Petasos::Node
+            // so for now a watchdog entry is going to be a flattened state plus supported function
+            // FDN String. Petasos care about WUPs and Nodes so will limit to that as component
+            // instance model too complex (recursive) to flatten onto cache.
+            // Check if registered, check if function registered, if no to any of those, json-ise
+            // and put on cache
+            // key to watchdog cache will be component qualified fdn string
+            // Do we need an injection point as well?
+            // TODO: not sure the watchdog cache is needed, might end up being made irrelevant by 
+            // the map caches, not sure at this stage
+            PetasosWUPWatchdogState watchdogEntry = new PetasosWUPWatchdogState(myProcessorFDN, ComponentStatusEnum.COMPONENT_STATUS_IDLE, Instant.now());
+            String watchdogEntryJSON = petasosWatchdogCache.get(myProcessorFDN.getQualifiedFDN());
+            if (watchdogEntryJSON == null) {
+                petasosWatchdogCache.put(myProcessorFDN.getQualifiedFDN(), new PetasosWUPWatchdogStateJSON(watchdogEntry).toJSONString());
+            } else {
+                // exists so do we add a supported function, replace, or ??
+                // for now will replace
+                petasosWatchdogCache.replace(myProcessorFDN.getQualifiedFDN(), new PetasosWUPWatchdogStateJSON(watchdogEntry).toJSONString());
+            }
+            // do we need to make sure this is successful to make sure the WUP is known to other
+            // sites in case it's needed for failover? For now just log it, registration
+            // doesn't wait for the other sites.
+            node.registerWUPWithOtherSites(watchdogEntry).thenAccept(registeredSites -> {
+                if (registeredSites < node.getSiteConnectionEndpoints().size()) {
+                    LOG.warn("WUP " + myProcessorFDN.getQualifiedFDN() + " registered with " + registeredSites + " of "
+                            + node.getSiteConnectionEndpoints().size() + " other sites");
+                }
+            });
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.REGISTER_WORK_UNIT_PROCESSOR);
+            throw ex;
+        } finally {
+            metrics.getAgentTimer(PetasosMetrics.REGISTER_WORK_UNIT_PROCESSOR).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.REGISTER_WORK_UNIT_PROCESSOR, myProcessorFDN, null);
+            }
         }
-        // do we need to make sure this is successful to make sure the WUP is known to other
-        // sites in case it's needed for failover?
-        node.registerWUPWithOtherSites(watchdogEntry);
     }
     
     @Override
     public PetasosParcel registerActivity(FDN theWUPFDN, FDN theComponentFunctionFDN, UoW theUoW, FDN precursorParcelFDN){
-        PetasosParcelRegistration parcelRegistration = new PetasosParcelRegistration(theWUPFDN, theUoW.getUoWFDN(), theComponentFunctionFDN, Instant.now());
-        PetasosParcel parcel = new PetasosParcel(parcelRegistration);
-        parcel.setUoW(theUoW);
-        if (precursorParcelFDN != null) {
-            parcel.setPrecursorParcel(precursorParcelFDN);
-        }
-        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED);
-
-        // put onto cache.
-        String parcelJSON = petasosParcelCache.putIfAbsent(parcel.getParcelRegistration().getParcelFDN().getQualifiedFDN(), new PetasosParcelJSON(parcel).toJSONString());
-        // parcel Ids are unique so it should be impossible for a clash but...
-        // if one exists we need to fail, as something is really badly wrong.
-        if (parcelJSON != null) {
-            LOG.error("duplicate parcel encountered with id: "+parcel.getParcelRegistration().getParcelFDN().getQualifiedFDN());
+        long callStartNanos = System.nanoTime();
+        long admittedNanos = concurrencyLimiter.acquire();
+        if (admittedNanos < 0) {
+            metrics.agentShed(PetasosMetrics.REGISTER_ACTIVITY);
             return null;
         }
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        try {
+            PetasosParcelRegistration parcelRegistration = new PetasosParcelRegistration(theWUPFDN, theUoW.getUoWFDN(), theComponentFunctionFDN,
+                    Instant.now(), parcelAffinity.nextParcelQualifier(theUoW.getUoWFDN()));
+            PetasosParcel parcel = new PetasosParcel(parcelRegistration);
+            parcel.setUoW(theUoW);
+            if (precursorParcelFDN != null) {
+                parcel.setPrecursorParcel(precursorParcelFDN);
+            }
+            parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED);
+            parcel.setTaskProcessorState(new PetasosWUPWatchdogState(theWUPFDN, ComponentStatusEnum.COMPONENT_STATUS_IDLE, Instant.now()));
+
+            // put onto cache.
+            String parcelQualifiedFDN = parcel.getParcelRegistration().getParcelFDN().getQualifiedFDN();
+            // the payloads go into the payload store, the parcel only holds references to them
+            Set<String> newPayloadRefs = new HashSet<>();
+            String newParcelJSON = PetasosParcelJSONWriter.get().toJSONString(parcel, node.getPayloadStore(), newPayloadRefs);
+            long startNanos = System.nanoTime();
+            // before the write, as the ParcelMonitor can be told about it before the write returns
+            metrics.parcelWriteStarted(parcelQualifiedFDN);
+            CompletableFuture<String> cacheWrite = petasosParcelCache.putIfAbsentAsync(parcelQualifiedFDN, newParcelJSON);
+            // journal and cache write proceed together, for a critical write we then wait on both
+            long journalSequence = node.journalParcelTransition(parcelQualifiedFDN, newParcelJSON);
+            if (criticalWrite == true) {
+                // an existing parcel means the cache did not take the write
+                CompletableFuture<String> cacheAcknowledgement = cacheWrite.thenApply(existingParcelJSON -> {
+                    if (existingParcelJSON != null) {
+                        throw new IllegalStateException("Parcel " + parcelQualifiedFDN + " already exists");
+                    }
+                    return existingParcelJSON;
+                });
+                if (!criticalWriteCoordinator.awaitQuorum("registerActivity", startNanos, cacheAcknowledgement, node.whenParcelTransitionDurable(journalSequence))) {
+                    rollBackRegistration(parcelQualifiedFDN, newParcelJSON, cacheWrite, newPayloadRefs);
+                    metrics.parcelWriteAbandoned(parcelQualifiedFDN);
+                    return null;
+                }
+            }
+            String parcelJSON = cacheWrite.join();
+            // parcel Ids are unique so it should be impossible for a clash but...
+            // if one exists we need to fail, as something is really badly wrong.
+            if (parcelJSON != null) {
+                LOG.error("duplicate parcel encountered with id: "+parcelQualifiedFDN);
+                // the journal should reflect what the cache holds
+                node.journalParcelTransition(parcelQualifiedFDN, parcelJSON);
+                releasePayloads(newPayloadRefs);
+                metrics.parcelWriteAbandoned(parcelQualifiedFDN);
+                return null;
+            }
+            metrics.parcelTransition(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED);
+            // new UoW so forward to other sites
+            node.forwardParcelToOtherSites(parcelQualifiedFDN, newParcelJSON);
+            node.recordParcelLineage(parcelQualifiedFDN, theUoW.getUoWFDN().getQualifiedFDN(),
+                    precursorParcelFDN == null ? null : precursorParcelFDN.getQualifiedFDN());
+            return parcel;
         
-        // new UoW so forward to other sites REST service points
-        if (criticalWrite == true) {
-            // synchronous write to Hestia?
-        }
-        return parcel;
-        
-        // Add the current parcel ID to the Watchdog entry so as to provide a quick
-        // lookup for failover processing (NB temporary, may not need).
-/*        if (petasosWatchdogCache.containsKey(theWUPFDN.getQualifiedFDN())) {
-            WatchdogEntry watchdogEntry = new WatchdogEntry(theWUPFDN.getQualifiedFDN());
-            watchdogEntry.setCurrentParcelFDN(parcel.getParcelFDN());
-            petasosWatchdogCache.replace(theWUPFDN.getQualifiedFDN(), watchdogEntry.toJSONString());
-        } else {
-            LOG.warn("Entry for "+theWUPFDN.getQualifiedFDN()+" not found on cache. Current parcel information can be added");
+            // Add the current parcel ID to the Watchdog entry so as to provide a quick
+            // lookup for failover processing (NB temporary, may not need).
+    /*        if (petasosWatchdogCache.containsKey(theWUPFDN.getQualifiedFDN())) {
+                WatchdogEntry watchdogEntry = new WatchdogEntry(theWUPFDN.getQualifiedFDN());
+                watchdogEntry.setCurrentParcelFDN(parcel.getParcelFDN());
+                petasosWatchdogCache.replace(theWUPFDN.getQualifiedFDN(), watchdogEntry.toJSONString());
+            } else {
+                LOG.warn("Entry for "+theWUPFDN.getQualifiedFDN()+" not found on cache. Current parcel information can be added");
+            }
+      */    
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.REGISTER_ACTIVITY);
+            throw ex;
+        } finally {
+            concurrencyLimiter.release(admittedNanos);
+            metrics.getAgentTimer(PetasosMetrics.REGISTER_ACTIVITY).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.REGISTER_ACTIVITY, theUoW == null ? null : theUoW.getUoWFDN(), theUoW);
+            }
         }
-  */    
     }
 
     @Override
     public PetasosWUPActionSuggestionEnum startActivity(FDN parcelFDN) {
-        // since we only have the parcel FDN, need to get the UoW FDN which is one
-        // level up from the parcel
-        PetasosParcelJSON parcelJSON = new PetasosParcelJSON(petasosParcelCache.get(parcelFDN.getQualifiedFDN()));
-//        ComponentStatusEnum wupStatus = parcelJSON.getWupStatus();
-
-        PetasosParcelStatusEnum parcelStatus = parcelJSON.getParcelStatus();
-/*
-        node.isActiveMulticast(parcelFDN) {
-            
-        }*/
-        // Generally a parcel should only be in an active state when a WUP has control of it
-        // However if a WUP has it and fails, then another WUP takes over and tries to activate
-        // the same parcel, we'll check the expected end date and if expired, we'll tell
-        // the caller to go ahead. Else we'll tell the caller to pause.
-        if (parcelJSON.getParcelStatus() == PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE) {
+        long callStartNanos = System.nanoTime();
+        long admittedNanos = concurrencyLimiter.acquire();
+        if (admittedNanos < 0) {
+            metrics.agentShed(PetasosMetrics.START_ACTIVITY);
             return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
         }
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        try {
+            // since we only have the parcel FDN, need to get the UoW FDN which is one
+            // level up from the parcel
+            String cachedParcelJSON = petasosParcelCache.get(parcelFDN.getQualifiedFDN());
+            PetasosParcelJSON parcelJSON = new PetasosParcelJSON(cachedParcelJSON);
+    //        ComponentStatusEnum wupStatus = parcelJSON.getWupStatus();
 
-        if (parcelJSON.getParcelStatus() == PetasosParcelStatusEnum.PARCEL_STATUS_FAILED) {
-            parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
-            return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE;
-        }
+    /*
+            node.isActiveMulticast(parcelFDN) {
+            
+            }*/
+            // Generally a parcel should only be in an active state when a WUP has control of it
+            // However if a WUP has it and fails, then another WUP takes over and tries to activate
+            // the same parcel, we'll check the expected end date and if expired, we'll tell
+            // the caller to go ahead. Else we'll tell the caller to pause.
+            if (parcelJSON.getParcelStatus() == PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE) {
+                return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
+            }
+
+            if (parcelJSON.getParcelStatus() == PetasosParcelStatusEnum.PARCEL_STATUS_FAILED) {
+                parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+                return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE;
+            }
 
-        parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+            parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
 
-        // if the parcel is currently being actioned, ignore it (should this be continue or pause?)
-//        if (wupStatus == ComponentStatusEnum.COMPONENT_STATUS_ACTIVE) {
-  //          return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
-    //    }
+            // if the parcel is currently being actioned, ignore it (should this be continue or pause?)
+    //        if (wupStatus == ComponentStatusEnum.COMPONENT_STATUS_ACTIVE) {
+      //          return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
+        //    }
         
-        // check if there is already an active multicast for this parcel
-/*        if (node.isParcelAnExistingActiveMulticast()) {
-            return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
-        }
+            // check if there is already an active multicast for this parcel
+    /*        if (node.isParcelAnExistingActiveMulticast()) {
+                return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
+            }
 
-        // if idle, start the activity
-        if (wupStatus == ComponentStatusEnum.COMPONENT_STATUS_IDLE) {
-            // do we need to check that the component is on our pod??
-            parcelJSON.setWupStatus(ComponentStatusEnum.COMPONENT_STATUS_ACTIVE);
-        }
-        parcelJSON.setWUPLastStatusUpdate(Instant.now().toEpochMilli());
-*/
-        // put updated parcel on the cache
-        petasosParcelCache.replace(parcelFDN.getQualifiedFDN(), parcelJSON.toJSONString());
-
-        // new UoW so forward to other sites REST service points
-        if (criticalWrite == true) {
-            // synchronous write to Hestia?
-        }
+            // if idle, start the activity
+            if (wupStatus == ComponentStatusEnum.COMPONENT_STATUS_IDLE) {
+                // do we need to check that the component is on our pod??
+                parcelJSON.setWupStatus(ComponentStatusEnum.COMPONENT_STATUS_ACTIVE);
+            }
+            parcelJSON.setWUPLastStatusUpdate(Instant.now().toEpochMilli());
+    */
+            // put updated parcel on the cache, only if it is still the parcel we read. If another
+            // WUP activated it in the meantime it has lost the race and is told to pause.
+            String updatedParcelJSON = parcelJSON.toJSONString();
+            if (!writeParcelTransition("startActivity", parcelFDN.getQualifiedFDN(), cachedParcelJSON, updatedParcelJSON)) {
+                return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
+            }
+            metrics.parcelTransition(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+            recordLifecycleLatency(parcelJSON, ParcelLifecycleTransitionEnum.PARCEL_TRANSITION_REGISTERED_TO_ACTIVE);
         
-        return(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE);
+            return(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE);
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.START_ACTIVITY);
+            throw ex;
+        } finally {
+            concurrencyLimiter.release(admittedNanos);
+            metrics.getAgentTimer(PetasosMetrics.START_ACTIVITY).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.START_ACTIVITY, parcelFDN, null);
+            }
+        }
     }
 
     @Override    
     public PetasosWUPActionSuggestionEnum finishActivity(FDN parcelFDN, UoW theFinishedUoW) {
-        PetasosParcelJSON parcelJSON = new PetasosParcelJSON(petasosParcelCache.get(parcelFDN.getQualifiedFDN()));
-        ComponentStatusEnum wupStatus = parcelJSON.getWupStatus();
-
-        // if active, now it's finished set back to idle
-        if (wupStatus == ComponentStatusEnum.COMPONENT_STATUS_ACTIVE) {
-            // do we need to check that the component is on our pod??
-            parcelJSON.setWupStatus(ComponentStatusEnum.COMPONENT_STATUS_IDLE);
+        long callStartNanos = System.nanoTime();
+        long admittedNanos = concurrencyLimiter.acquire();
+        if (admittedNanos < 0) {
+            metrics.agentShed(PetasosMetrics.FINISH_ACTIVITY);
+            return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
         }
-        parcelJSON.setWUPLastStatusUpdate(Instant.now().toEpochMilli());
-        parcelJSON.setUoW(theFinishedUoW);
-        parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        try {
+            // a status report still buffered is superseded by the finished parcel
+            statusCoalescer.forgetActivity(parcelFDN.getQualifiedFDN());
+            String cachedParcelJSON = petasosParcelCache.get(parcelFDN.getQualifiedFDN());
+            PetasosParcelJSON parcelJSON = new PetasosParcelJSON(cachedParcelJSON);
+            ComponentStatusEnum wupStatus = parcelJSON.getWupStatus();
 
-        // put updated parcel on the cache
-        petasosParcelCache.replace(parcelFDN.getQualifiedFDN(), parcelJSON.toJSONString());
+            // if active, now it's finished set back to idle
+            if (wupStatus == ComponentStatusEnum.COMPONENT_STATUS_ACTIVE) {
+                // do we need to check that the component is on our pod??
+                parcelJSON.setWupStatus(ComponentStatusEnum.COMPONENT_STATUS_IDLE);
+            }
+            parcelJSON.setWUPLastStatusUpdate(Instant.now().toEpochMilli());
+            // the parcel already holds references on the payloads it carried, the ones the
+            // finished UoW no longer carries are released once the update is written
+            Set<String> previousPayloadRefs = parcelJSON.getPayloadRefs();
+            parcelJSON.setUoW(theFinishedUoW);
+            PetasosPayloadStore payloadStore = node.getPayloadStore();
+            if (payloadStore != null) {
+                parcelJSON.externalisePayloads(payloadStore, previousPayloadRefs);
+            } else {
+                parcelJSON.compressPayloads();
+            }
+            parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
 
-        // new UoW so forward to other sites REST service points
-        if (criticalWrite == true) {
-            // synchronous write to Hestia?
-        }
+            // put updated parcel on the cache
+            String updatedParcelJSON = parcelJSON.toJSONString();
+            if (!writeParcelTransition("finishActivity", parcelFDN.getQualifiedFDN(), cachedParcelJSON, updatedParcelJSON)) {
+                return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
+            }
+            previousPayloadRefs.removeAll(parcelJSON.getPayloadRefs());
+            releasePayloads(previousPayloadRefs);
+            metrics.parcelTransition(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+            recordLifecycleLatency(parcelJSON, ParcelLifecycleTransitionEnum.PARCEL_TRANSITION_ACTIVE_TO_FINISHED);
         
-        return(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE);
+            return(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE);
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.FINISH_ACTIVITY);
+            throw ex;
+        } finally {
+            concurrencyLimiter.release(admittedNanos);
+            metrics.getAgentTimer(PetasosMetrics.FINISH_ACTIVITY).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.FINISH_ACTIVITY, parcelFDN, theFinishedUoW);
+            }
+        }
     }
     
     @Override
     public UoWProcessingOutcomeEnum finaliseActivity(FDN parcelFDN, UoW theFinishedUoW) {
-        // not sure what to do here??
-        PetasosParcelJSON parcelJSON = new PetasosParcelJSON(petasosParcelCache.get(parcelFDN.getQualifiedFDN()));
-        parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED);
+        long callStartNanos = System.nanoTime();
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        try {
+            // not sure what to do here??
+            statusCoalescer.forgetActivity(parcelFDN.getQualifiedFDN());
+            PetasosParcelJSON parcelJSON = new PetasosParcelJSON(petasosParcelCache.get(parcelFDN.getQualifiedFDN()));
+            parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED);
 
-        petasosParcelCache.replace(parcelFDN.getQualifiedFDN(), parcelJSON.toJSONString());
-        return(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_SUCCESS);
+            // finalised parcels only stay in the cache for their lifespan, then expire to the archive
+            String finalisedParcelJSON = parcelJSON.toJSONString();
+            if (petasosParcelCache.replace(parcelFDN.getQualifiedFDN(), finalisedParcelJSON, node.getFinalisedParcelLifespanMillis(), TimeUnit.MILLISECONDS) == null) {
+                // the parcel has left the cache since it was read, so there is nothing to finalise
+                return(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_FAILED);
+            }
+            node.journalParcelTransition(parcelFDN.getQualifiedFDN(), finalisedParcelJSON);
+            node.forwardParcelToOtherSites(parcelFDN.getQualifiedFDN(), finalisedParcelJSON);
+            metrics.parcelTransition(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED);
+            recordLifecycleLatency(parcelJSON, ParcelLifecycleTransitionEnum.PARCEL_TRANSITION_FINISHED_TO_FINALISED);
+            return(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_SUCCESS);
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.FINALISE_ACTIVITY);
+            throw ex;
+        } finally {
+            metrics.getAgentTimer(PetasosMetrics.FINALISE_ACTIVITY).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.FINALISE_ACTIVITY, parcelFDN, theFinishedUoW);
+            }
+        }
     }
 
     @Override
     public PetasosWUPActionSuggestionEnum updateOperationalStatus(FDN wupFDN, Long presentInstant, ComponentStatusEnum presentState) {
-/*        String watchdogEntryJSON = petasosWatchdogCache.get(wupFDN.getQualifiedFDN());
-        WatchdogEntry watchdogEntry = new WatchdogEntry(watchdogEntryJSON);
-        watchdogEntry.getWatchdogState().setWupStatus(presentState);
-        watchdogEntry.getWatchdogState().setLastStatusUpdate(Instant.ofEpochMilli(presentInstant));
-        //TODO: check for success? TODO: do we need to update parcel state as well?
-        node.updateCIStatus(watchdogEntry);
-        // TODO: what to check for? CIStatus to see if someone has invalidated the entry? If they
-        // have but this WUP is OK, then the above would have reflected that so just continue?*/
-        return(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE);
+        long callStartNanos = System.nanoTime();
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        try {
+            // the watchdog entry only needs writing straight away when the WUP's status changes,
+            // else the latest report is written on the next flush
+            if (!statusCoalescer.bufferOperationalStatus(wupFDN.getQualifiedFDN(), presentInstant, presentState)) {
+                statusCoalescer.writeOperationalStatus(wupFDN.getQualifiedFDN(), presentInstant, presentState);
+            }
+            //TODO: do we need to update parcel state as well?
+            // TODO: what to check for? CIStatus to see if someone has invalidated the entry? If they
+            // have but this WUP is OK, then the above would have reflected that so just continue?
+            return(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE);
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.UPDATE_OPERATIONAL_STATUS);
+            throw ex;
+        } finally {
+            metrics.getAgentTimer(PetasosMetrics.UPDATE_OPERATIONAL_STATUS).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.UPDATE_OPERATIONAL_STATUS, wupFDN, null);
+            }
+        }
     }
     
     @Override
     public PetasosWUPActionSuggestionEnum updateActivityStatus(FDN parcelFDN, Long presentInstant, ComponentStatusEnum presentState) {
-        PetasosParcelJSON parcelJSON = new PetasosParcelJSON(petasosParcelCache.get(parcelFDN.getQualifiedFDN()));
-        parcelJSON.setWupStatus(presentState);
-        // just make sure we're in milliseconds so have to do ofMilli then toMilli
-        parcelJSON.setWUPLastStatusUpdate(Instant.ofEpochMilli(presentInstant).toEpochMilli());
-        petasosParcelCache.replace(parcelFDN.getQualifiedFDN(), parcelJSON.toJSONString());
-
-        // don't know what should be checked here, if the caller is OK then it makes sense to continue
-        // Is the caller reporting self-problems?? Or is this just a straight 'still processing'
-        // type call? Might need to update parcel status if issue?
-        // TODO:: clarify what this does to the parcel status for each case
-        return(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE);
+        long callStartNanos = System.nanoTime();
+        // only a status change goes to the cache, so only it needs a place under the limit
+        long admittedNanos = -1;
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        try {
+            // just make sure we're in milliseconds so have to do ofMilli then toMilli
+            long presentInstantMillis = Instant.ofEpochMilli(presentInstant).toEpochMilli();
+            if (!statusCoalescer.bufferActivityStatus(parcelFDN.getQualifiedFDN(), presentInstantMillis, presentState)) {
+                admittedNanos = concurrencyLimiter.acquire();
+                if (admittedNanos < 0) {
+                    // not written, so the next report is taken as the change again
+                    statusCoalescer.forgetActivity(parcelFDN.getQualifiedFDN());
+                    metrics.agentShed(PetasosMetrics.UPDATE_ACTIVITY_STATUS);
+                    return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
+                }
+                statusCoalescer.writeActivityStatus(parcelFDN.getQualifiedFDN(), presentInstantMillis, presentState);
+            }
+
+            // don't know what should be checked here, if the caller is OK then it makes sense to continue
+            // Is the caller reporting self-problems?? Or is this just a straight 'still processing'
+            // type call? Might need to update parcel status if issue?
+            // TODO:: clarify what this does to the parcel status for each case
+            return(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE);
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.UPDATE_ACTIVITY_STATUS);
+            throw ex;
+        } finally {
+            concurrencyLimiter.release(admittedNanos);
+            metrics.getAgentTimer(PetasosMetrics.UPDATE_ACTIVITY_STATUS).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.UPDATE_ACTIVITY_STATUS, parcelFDN, null);
+            }
+        }
     }
 
     // look up to see what the status of other WUPs (of the same FunctionFDN type) is
@@ -270,44 +528,226 @@ public class PetasosAgent implements PetasosAgentInterface{
     // If parcel not on cache, assume writer has removed so return halt.
     @Override
     public PetasosWUPActionSuggestionEnum getPeerActivityStatus(FDN parcelFDN) {
-        PetasosWUPActionSuggestionEnum suggestedAction = PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
-
-        String parcelJSONString = petasosParcelCache.get(parcelFDN.getQualifiedFDN());
-        if (parcelJSONString == null) {
-            return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_HALT;
+        long callStartNanos = System.nanoTime();
+        long admittedNanos = concurrencyLimiter.acquire();
+        if (admittedNanos < 0) {
+            metrics.agentShed(PetasosMetrics.GET_PEER_ACTIVITY_STATUS);
+            return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
         }
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        try {
+            PetasosWUPActionSuggestionEnum suggestedAction = PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE;
+
+            String parcelJSONString = petasosParcelCache.get(parcelFDN.getQualifiedFDN());
+            if (parcelJSONString == null) {
+                return PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_HALT;
+            }
         
         
-        return suggestedAction;
+            return suggestedAction;
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.GET_PEER_ACTIVITY_STATUS);
+            throw ex;
+        } finally {
+            concurrencyLimiter.release(admittedNanos);
+            metrics.getAgentTimer(PetasosMetrics.GET_PEER_ACTIVITY_STATUS).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.GET_PEER_ACTIVITY_STATUS, parcelFDN, null);
+            }
+        }
     }
 
     @Override
     public Collection<PetasosParcel> getRelevantParcels(FDN myProcessorFDN, FDN myFunctionFDN) {
-        // TODO Auto-generated method stub
-        return null;
+        long callStartNanos = System.nanoTime();
+        long admittedNanos = concurrencyLimiter.acquire();
+        if (admittedNanos < 0) {
+            metrics.agentShed(PetasosMetrics.GET_RELEVANT_PARCELS);
+            return Collections.emptyList();
+        }
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginAgentCall() : null;
+        // only a parcel read is a cache call, an empty poll mustn't count towards the latency
+        boolean parcelRead = false;
+        try {
+            // the dispatcher gives out one parcel at a time, a WUP only has one active parcel
+            String parcelQualifiedFDN = node.getDispatcher().takeWork(myProcessorFDN);
+            if (parcelQualifiedFDN == null) {
+                return Collections.emptyList();
+            }
+            parcelRead = true;
+            String parcelJSON = petasosParcelCache.get(parcelQualifiedFDN);
+            if (parcelJSON == null) {
+                // expired or removed since it was dispatched
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new PetasosParcelJSON(parcelJSON).createParcel(node.getPayloadStore()));
+        } catch (RuntimeException ex) {
+            metrics.agentFailure(PetasosMetrics.GET_RELEVANT_PARCELS);
+            throw ex;
+        } finally {
+            if (parcelRead) {
+                concurrencyLimiter.release(admittedNanos);
+            } else {
+                concurrencyLimiter.cancel(admittedNanos);
+            }
+            metrics.getAgentTimer(PetasosMetrics.GET_RELEVANT_PARCELS).recordSince(callStartNanos);
+            if (flightRecorderEvent != null) {
+                PetasosFlightRecorder.commitAgentCall(flightRecorderEvent, PetasosMetrics.GET_RELEVANT_PARCELS, myProcessorFDN, null);
+            }
+        }
     }
     
-    public void setCriticalWrite(boolean criticalWrite) {
-        this.criticalWrite = criticalWrite;
-    }    
-    
-    public class ParcelForwardTask implements Callable<Integer> {
-        // TBD: this will be either REST or server:port combo?
-        // TODO: change the var name once connection method is known
-        String connectionEndpoint;
-        
-        public void setConnectionEndpoint(String connectionEndpoint) {
-            this.connectionEndpoint = connectionEndpoint;
+    private void releasePayloads(Set<String> payloadRefs) {
+        PetasosPayloadStore payloadStore = node.getPayloadStore();
+        if (payloadStore != null) {
+            payloadRefs.forEach(payloadStore::releasePayload);
         }
-        
-        public Integer call() {
-            try {
-                // connection and forwarding
+    }
+
+    // The time between the parcel entering the transition's from and to status, as recorded
+    // on the parcel. Parcels written before the transitions were recorded are skipped.
+    private void recordLifecycleLatency(PetasosParcelJSON parcelJSON, ParcelLifecycleTransitionEnum transition) {
+        long fromInstant = parcelJSON.getStatusTransitionInstant(transition.getFromStatus());
+        long toInstant = parcelJSON.getStatusTransitionInstant(transition.getToStatus());
+        if (fromInstant < 0 || toInstant < 0) {
+            return;
+        }
+        lifecycleLatency.recordTransition(parcelJSON.getSupportingFunctionFDN(), parcelJSON.getWUPFDN(), transition, toInstant - fromInstant);
+    }
+
+    // Writes the updated parcel to the cache and the local journal. For a critical
+    // write both are started and we wait for the configured quorum of them, else
+    // the cache write is synchronous as before and the journal is left to its group commit.
+    // The write only replaces the parcel the transition was made from, so of two callers
+    // racing on the same parcel only one wins. Only a transition that made it into the
+    // cache is journalled and forwarded.
+    // Returns false if the parcel has changed or left the cache (e.g. expired) in the
+    // meantime, or a critical write could not reach its quorum, in which case the write
+    // is rolled back if it lands after all.
+    private boolean writeParcelTransition(String method, String parcelQualifiedFDN, String expectedParcelJSON, String parcelJSON) {
+        if (criticalWrite == false) {
+            if (!petasosParcelCache.replace(parcelQualifiedFDN, expectedParcelJSON, parcelJSON)) {
+                return false;
             }
-            catch (Exception e) {
-                return new Integer(0);
+            node.journalParcelTransition(parcelQualifiedFDN, parcelJSON);
+            node.forwardParcelToOtherSites(parcelQualifiedFDN, parcelJSON);
+            return true;
+        }
+        long startNanos = System.nanoTime();
+        CompletableFuture<Boolean> cacheWrite = petasosParcelCache.replaceAsync(parcelQualifiedFDN, expectedParcelJSON, parcelJSON);
+        // journalled alongside the cache write so both acknowledge in parallel
+        long journalSequence = node.journalParcelTransition(parcelQualifiedFDN, parcelJSON);
+        CompletableFuture<Boolean> cacheAcknowledgement = cacheWrite.thenApply(replaced -> {
+            if (!replaced) {
+                throw new IllegalStateException("Parcel " + parcelQualifiedFDN + " has changed or is no longer in the cache");
             }
-            return new Integer(1);
+            return replaced;
+        });
+        if (!criticalWriteCoordinator.awaitQuorum(method, startNanos, cacheAcknowledgement, node.whenParcelTransitionDurable(journalSequence))) {
+            rollBackTransition(parcelQualifiedFDN, expectedParcelJSON, parcelJSON, cacheWrite);
+            return false;
         }
+        // with a quorum of one the journal alone may have acknowledged, but only the cache
+        // decides which of two racing callers goes ahead, so its answer is always waited for
+        boolean replaced;
+        try {
+            replaced = cacheWrite.join();
+        } catch (CompletionException cacheWriteFailed) {
+            LOG.warn("Critical write of parcel " + parcelQualifiedFDN + " reached its quorum but the cache write failed", cacheWriteFailed);
+            replaced = false;
+        }
+        if (!replaced) {
+            rollBackTransition(parcelQualifiedFDN, expectedParcelJSON, parcelJSON, cacheWrite);
+            return false;
+        }
+        node.forwardParcelToOtherSites(parcelQualifiedFDN, parcelJSON);
+        return true;
+    }
+
+    // The caller has been told the transition failed, so if the cache write lands after
+    // all it is put back to the previous parcel, as long as nothing has moved the parcel
+    // on since. Otherwise the parcel would be left in a state nobody is acting on.
+    private void rollBackTransition(String parcelQualifiedFDN, String previousParcelJSON, String parcelJSON, CompletableFuture<Boolean> cacheWrite) {
+        cacheWrite.whenComplete((replaced, error) -> {
+            if (error != null || !replaced) {
+                resyncJournal(parcelQualifiedFDN);
+                return;
+            }
+            petasosParcelCache.replaceAsync(parcelQualifiedFDN, parcelJSON, previousParcelJSON).whenComplete((rolledBack, rollBackError) -> {
+                if (rollBackError != null || !Boolean.TRUE.equals(rolledBack)) {
+                    LOG.warn("Unable to roll back parcel " + parcelQualifiedFDN + " after a failed critical write, it has moved on", rollBackError);
+                }
+                resyncJournal(parcelQualifiedFDN);
+            });
+        });
+    }
+
+    // As above for a registration, a parcel that lands is removed again along with the
+    // payload references made for it. If the write failed the references are kept, as
+    // it can't be told whether the parcel is in the cache.
+    private void rollBackRegistration(String parcelQualifiedFDN, String parcelJSON, CompletableFuture<String> cacheWrite, Set<String> payloadRefs) {
+        cacheWrite.whenComplete((existingParcelJSON, error) -> {
+            if (error != null) {
+                resyncJournal(parcelQualifiedFDN);
+                return;
+            }
+            if (existingParcelJSON != null) {
+                // the write never happened
+                node.getBlockingTaskExecutor().execute(() -> releasePayloads(payloadRefs));
+                resyncJournal(parcelQualifiedFDN);
+                return;
+            }
+            petasosParcelCache.removeAsync(parcelQualifiedFDN, parcelJSON).whenComplete((removed, removeError) -> {
+                if (removeError == null && Boolean.TRUE.equals(removed)) {
+                    // the reference counts are blocking cache calls, so off the cache's callback thread
+                    node.getBlockingTaskExecutor().execute(() -> releasePayloads(payloadRefs));
+                } else {
+                    LOG.warn("Unable to roll back registration of parcel " + parcelQualifiedFDN + " after a failed critical write, it has moved on", removeError);
+                }
+                resyncJournal(parcelQualifiedFDN);
+            });
+        });
+    }
+
+    // brings the journal back in line with the cache after a write the journal got ahead of
+    private void resyncJournal(String parcelQualifiedFDN) {
+        petasosParcelCache.getAsync(parcelQualifiedFDN).thenAccept(cachedParcelJSON -> {
+            if (cachedParcelJSON == null) {
+                node.journalParcelRemoval(parcelQualifiedFDN);
+            } else {
+                node.journalParcelTransition(parcelQualifiedFDN, cachedParcelJSON);
+            }
+        });
+    }
+
+    public void setCriticalWrite(boolean criticalWrite) {
+        this.criticalWrite = criticalWrite;
+    }    
+
+    /**
+     * @param quorum the number of durable copies (cache owners, local journal, Hestia)
+     * that must acknowledge a critical write before it returns
+     */
+    public void setCriticalWriteQuorum(int quorum) {
+        criticalWriteCoordinator.setQuorum(quorum);
+    }
+
+    public void setCriticalWriteTimeoutMillis(long timeoutMillis) {
+        criticalWriteCoordinator.setTimeoutMillis(timeoutMillis);
+    }
+
+    /**
+     * @return p50/p99 critical write latency per lifecycle call
+     */
+    public CriticalWriteCoordinator getCriticalWriteStatistics() {
+        return criticalWriteCoordinator;
+    }
+
+    /**
+     * @return the limiter on agent calls into the parcel cache, for its limit, calls in
+     * flight and calls shed
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
     }
 }
\ No newline at end of file
@@ -0,0 +1,294 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.common.PetasosWUPWatchdogStateJSON;
+import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
+import net.fhirbox.pegacorn.petasos.node.PetasosNode;
+
+/**
+ * Coalesces the status updates WUPs report for their parcels (updateActivityStatus) and
+ * for themselves (updateOperationalStatus), so only the latest status per parcel or WUP
+ * is written to the cache each flush interval rather than every report.
+ *
+ * A report that changes the status (e.g. active to failed) is what the failover and the
+ * action suggestions act on, so it bypasses the buffer and is written straight away,
+ * superseding anything buffered for the parcel or WUP. Only the reports repeating the
+ * current status, which just move the last status update on, wait for the flush.
+ * A buffered report is only written if it is still the current status and is newer
+ * than what the cache holds, so a status change written while it waited (or while the
+ * flush was writing it) is never overwritten by it.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class StatusUpdateCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(StatusUpdateCoalescer.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 250L;
+    // a concurrent change to the parcel (e.g. it was started elsewhere) means re-reading it
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final Cache<String, String> petasosParcelCache;
+    private final Cache<String, String> petasosWatchdogCache;
+    private final PetasosNode node;
+    private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private volatile boolean closed = false;
+
+    // keyed by parcel qualified FDN
+    private final ConcurrentHashMap<String, PendingStatus> pendingActivityStatus = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ComponentStatusEnum> activityStatus = new ConcurrentHashMap<>();
+    // keyed by WUP qualified FDN
+    private final ConcurrentHashMap<String, PendingStatus> pendingOperationalStatus = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ComponentStatusEnum> operationalStatus = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedUpdates = new AtomicLong();
+    private final AtomicLong writtenUpdates = new AtomicLong();
+
+    public StatusUpdateCoalescer(Cache<String, String> petasosParcelCache, Cache<String, String> petasosWatchdogCache, PetasosNode node) {
+        this.petasosParcelCache = petasosParcelCache;
+        this.petasosWatchdogCache = petasosWatchdogCache;
+        this.node = node;
+    }
+
+    /**
+     * Buffers a parcel's activity status report if it repeats the parcel's current
+     * status. A changed status isn't buffered, anything buffered before it is dropped and
+     * the caller writes it with writeActivityStatus().
+     *
+     * @return true if the report was buffered, false if it is a status change
+     */
+    public boolean bufferActivityStatus(String parcelQualifiedFDN, long presentInstant, ComponentStatusEnum presentState) {
+        return buffer(pendingActivityStatus, activityStatus, parcelQualifiedFDN, new PendingStatus(presentInstant, presentState));
+    }
+
+    /**
+     * Buffers a WUP's operational status report if it repeats the WUP's current status,
+     * as for bufferActivityStatus().
+     *
+     * @return true if the report was buffered, false if it is a status change
+     */
+    public boolean bufferOperationalStatus(String wupQualifiedFDN, long presentInstant, ComponentStatusEnum presentState) {
+        return buffer(pendingOperationalStatus, operationalStatus, wupQualifiedFDN, new PendingStatus(presentInstant, presentState));
+    }
+
+    private boolean buffer(Map<String, PendingStatus> pending, Map<String, ComponentStatusEnum> current, String qualifiedFDN, PendingStatus update) {
+        ComponentStatusEnum previousState = current.put(qualifiedFDN, update.state);
+        if (update.state == previousState) {
+            // the latest report replaces any earlier one still waiting for the flush
+            if (pending.put(qualifiedFDN, update) != null) {
+                coalescedUpdates.incrementAndGet();
+            }
+            return true;
+        }
+        if (pending.remove(qualifiedFDN) != null) {
+            coalescedUpdates.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * Drops what is known of the parcel's activity status, for when the WUP has finished
+     * with it or a status change couldn't be written. A status still buffered is dropped
+     * too, and the next report is taken as a status change.
+     */
+    public void forgetActivity(String parcelQualifiedFDN) {
+        pendingActivityStatus.remove(parcelQualifiedFDN);
+        activityStatus.remove(parcelQualifiedFDN);
+    }
+
+    /**
+     * Writes all the buffered status updates.
+     *
+     * @return the number written
+     */
+    public int flush() {
+        int written = 0;
+        for (String parcelQualifiedFDN : pendingActivityStatus.keySet()) {
+            PendingStatus update = pendingActivityStatus.remove(parcelQualifiedFDN);
+            if (update != null && writeActivityStatus(parcelQualifiedFDN, update, true)) {
+                written++;
+            }
+        }
+        for (String wupQualifiedFDN : pendingOperationalStatus.keySet()) {
+            PendingStatus update = pendingOperationalStatus.remove(wupQualifiedFDN);
+            if (update != null && writeOperationalStatus(wupQualifiedFDN, update, true)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    public void writeActivityStatus(String parcelQualifiedFDN, long presentInstant, ComponentStatusEnum presentState) {
+        writeActivityStatus(parcelQualifiedFDN, new PendingStatus(presentInstant, presentState), false);
+    }
+
+    public void writeOperationalStatus(String wupQualifiedFDN, long presentInstant, ComponentStatusEnum presentState) {
+        writeOperationalStatus(wupQualifiedFDN, new PendingStatus(presentInstant, presentState), false);
+    }
+
+    // Conditional replace so a flush can't overwrite a transition made since the parcel
+    // was read. A parcel the WUP has finished with is left alone, the status is stale.
+    // A buffered report is also dropped once a status change has been reported since it,
+    // or the cache already holds a report at least as recent.
+    // Returns true if the status was written.
+    private boolean writeActivityStatus(String parcelQualifiedFDN, PendingStatus update, boolean buffered) {
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            if (buffered && isSuperseded(activityStatus, parcelQualifiedFDN, update)) {
+                return false;
+            }
+            String currentParcelJSON = petasosParcelCache.get(parcelQualifiedFDN);
+            if (currentParcelJSON == null) {
+                // expired or removed
+                activityStatus.remove(parcelQualifiedFDN);
+                return false;
+            }
+            PetasosParcelJSON parcelJSON = new PetasosParcelJSON(currentParcelJSON);
+            PetasosParcelStatusEnum parcelStatus = parcelJSON.getParcelStatus();
+            if (parcelStatus == PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED || parcelStatus == PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED) {
+                activityStatus.remove(parcelQualifiedFDN);
+                return false;
+            }
+            if (buffered && parcelJSON.getWUPLastStatusUpdate() >= update.instantMillis) {
+                return false;
+            }
+            parcelJSON.setWupStatus(update.state);
+            parcelJSON.setWUPLastStatusUpdate(update.instantMillis);
+            String updatedParcelJSON = parcelJSON.toJSONString();
+            if (petasosParcelCache.replace(parcelQualifiedFDN, currentParcelJSON, updatedParcelJSON)) {
+                node.journalParcelTransition(parcelQualifiedFDN, updatedParcelJSON);
+                writtenUpdates.incrementAndGet();
+                return true;
+            }
+        }
+        LOG.warn("Activity status of parcel " + parcelQualifiedFDN + " not written, the parcel kept changing");
+        return false;
+    }
+
+    // A status change is written as reported. A buffered report is checked as above and
+    // written with a conditional replace, so a change written in the meantime wins.
+    private boolean writeOperationalStatus(String wupQualifiedFDN, PendingStatus update, boolean buffered) {
+        PetasosWUPWatchdogState watchdogState = new PetasosWUPWatchdogState(new FDN(wupQualifiedFDN), update.state,
+                Instant.ofEpochMilli(update.instantMillis));
+        String updatedWatchdogJSON = new PetasosWUPWatchdogStateJSON(watchdogState).toJSONString();
+        if (!buffered) {
+            petasosWatchdogCache.put(wupQualifiedFDN, updatedWatchdogJSON);
+            writtenUpdates.incrementAndGet();
+            return true;
+        }
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            if (isSuperseded(operationalStatus, wupQualifiedFDN, update)) {
+                return false;
+            }
+            String currentWatchdogJSON = petasosWatchdogCache.get(wupQualifiedFDN);
+            boolean written;
+            if (currentWatchdogJSON == null) {
+                written = petasosWatchdogCache.putIfAbsent(wupQualifiedFDN, updatedWatchdogJSON) == null;
+            } else if (new PetasosWUPWatchdogStateJSON(currentWatchdogJSON).getLastStatusUpdate() >= update.instantMillis) {
+                return false;
+            } else {
+                written = petasosWatchdogCache.replace(wupQualifiedFDN, currentWatchdogJSON, updatedWatchdogJSON);
+            }
+            if (written) {
+                writtenUpdates.incrementAndGet();
+                return true;
+            }
+        }
+        LOG.warn("Operational status of WUP " + wupQualifiedFDN + " not written, the watchdog entry kept changing");
+        return false;
+    }
+
+    // the status has changed (or been forgotten) since the report was buffered
+    private static boolean isSuperseded(Map<String, ComponentStatusEnum> current, String qualifiedFDN, PendingStatus update) {
+        return current.get(qualifiedFDN) != update.state;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public int getPendingCount() {
+        return pendingActivityStatus.size() + pendingOperationalStatus.size();
+    }
+
+    /**
+     * @return the number of status updates replaced by a later one before being written
+     */
+    public long getCoalescedCount() {
+        return coalescedUpdates.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenUpdates.get();
+    }
+
+    /**
+     * Writes what is buffered and stops the flush task.
+     */
+    public void close() {
+        closed = true;
+        flush();
+    }
+
+    private static class PendingStatus {
+        private final long instantMillis;
+        private final ComponentStatusEnum state;
+
+        PendingStatus(long instantMillis, ComponentStatusEnum state) {
+            this.instantMillis = instantMillis;
+            this.state = state;
+        }
+    }
+
+    // kick off as a neverending task on the node's executor
+    public class FlushTask implements Callable<Integer> {
+        public Integer call() {
+            while (!closed) {
+                try {
+                    Thread.sleep(flushIntervalMillis);
+                    flush();
+                } catch (InterruptedException ie) {
+                    // container or node shutting down
+                    return new Integer(0);
+                } catch (RuntimeException e) {
+                    LOG.error("Status update flush failed", e);
+                }
+            }
+            return new Integer(1);
+        }
+    }
+}
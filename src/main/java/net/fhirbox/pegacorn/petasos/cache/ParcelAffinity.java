@@ -0,0 +1,101 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.cache;
+
+import org.infinispan.Cache;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.distribution.LocalizedCacheTopology;
+import org.infinispan.encoding.DataConversion;
+
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosIdentifiers;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+
+/**
+ * Chooses parcel qualifiers that put the parcel on this node. Infinispan grouping
+ * would do this by placement, but needs OBJECT storage and the caches use BINARY for
+ * memory eviction, so instead the key is chosen to hash to a segment this node is the
+ * primary owner of: the qualifier is the usual identifier, with a short suffix added
+ * and bumped until the key lands here. With N nodes that takes N tries on average,
+ * each a marshal and hash of the key, far cheaper than the remote calls it saves.
+ *
+ * The lifecycle calls made on the parcel from this node (and the dispatcher giving it
+ * to this node's WUPs) are then local rather than remote. Segments only move when the
+ * topology changes, and parcels move with their segment, so a rebalance costs
+ * locality rather than correctness.
+ *
+ * The owner is always worked out on the key as stored (marshalled), as that is what
+ * the cache hashes, not the String.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelAffinity {
+    public static final char AFFINITY_SEPARATOR = '-';
+    // enough for a cluster of a few dozen nodes to almost always find a local key
+    public static final int MAXIMUM_ATTEMPTS = 64;
+
+    private Cache<String, String> petasosParcelCache;
+
+    public ParcelAffinity(Cache<String, String> petasosParcelCache) {
+        this.petasosParcelCache = petasosParcelCache;
+    }
+
+    /**
+     * @return a new parcel qualifier placing a parcel of the UoW on this node, or a plain
+     * identifier if the cache isn't clustered (or no local key was found)
+     */
+    public String nextParcelQualifier(FDN uowFDN) {
+        String identifier = PetasosIdentifiers.nextIdentifier();
+        LocalizedCacheTopology topology = getTopology();
+        if (topology == null) {
+            return identifier;
+        }
+        DataConversion keyDataConversion = petasosParcelCache.getAdvancedCache().getKeyDataConversion();
+        String parcelFDNPrefix = uowFDN.getQualifiedFDN() + FDN.RDN_ENTRY_SEPERATOR + PetasosParcelRegistration.PARCEL_QUALIFIER + "=";
+        String qualifier = identifier;
+        for (int attempt = 1; attempt <= MAXIMUM_ATTEMPTS; attempt++) {
+            if (topology.getDistribution(keyDataConversion.toStorage(parcelFDNPrefix + qualifier)).isPrimary()) {
+                return qualifier;
+            }
+            qualifier = identifier + AFFINITY_SEPARATOR + Integer.toString(attempt, 36);
+        }
+        return identifier;
+    }
+
+    /**
+     * @return true if this node is the primary owner of the key (or the cache isn't clustered)
+     */
+    public boolean isLocalPrimary(String key) {
+        LocalizedCacheTopology topology = getTopology();
+        if (topology == null) {
+            return true;
+        }
+        return topology.getDistribution(petasosParcelCache.getAdvancedCache().getKeyDataConversion().toStorage(key)).isPrimary();
+    }
+
+    private LocalizedCacheTopology getTopology() {
+        DistributionManager distributionManager = petasosParcelCache.getAdvancedCache().getDistributionManager();
+        return distributionManager == null ? null : distributionManager.getCacheTopology();
+    }
+}
@@ -22,63 +22,142 @@ import org.infinispan.eviction.EvictionType;
 import org.infinispan.configuration.cache.Configuration;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.StorageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @ApplicationScoped
 public class PetasosCacheManager {
+    private static final Logger LOG = LoggerFactory.getLogger(PetasosCacheManager.class);
  
     @Inject
     PetasosProperties petasosProperties;
     
     private DefaultCacheManager petasosCacheManager;
 
+    public static final String CLUSTER_NAME = "petasos-cluster";
+    public static final String JGROUPS_CONFIGURATION_FILE = "jgroups-petasos.xml";
+
+    // The supporting caches are bounded on their own rather than each taking the parcel
+    // cache's size. Unless set (PETASOS_<CACHE>_CACHE_SIZE_BYTES) they get a share of the
+    // parcel cache size: the payloads the same again, as they are most of what a parcel
+    // carries, the rest a small slice each as they hold short strings per parcel or WUP.
+    private static final int PAYLOAD_CACHE_SHARE = 1;
+    private static final int PAYLOAD_REFERENCE_CACHE_SHARE = 16;
+    private static final int PARCEL_LINEAGE_CACHE_SHARE = 8;
+    private static final int PARCEL_TOMBSTONE_CACHE_SHARE = 16;
+    private static final int REPLAY_CHECKPOINT_CACHE_SHARE = 256;
+    private static final int COMPONENT_TOPOLOGY_CACHE_SHARE = 256;
+    private static final long MINIMUM_CACHE_SIZE_BYTES = 1024L * 1024L;
+
     @Produces
     public DefaultCacheManager getCacheManager() {
         if (petasosCacheManager == null) {
-            // configure a named clustered cache configuration using Infinispan defined defaults
-            GlobalConfigurationBuilder builder = new GlobalConfigurationBuilder().clusteredDefault();
-            
-            // complete the config with a cluster name, jgroups config, and enable JMX statistics
-            GlobalConfiguration global = builder.transport().clusterName("petasos-cluster").addProperty("configurationFile", "jgroups-petasos.xml").jmx().enable().build();
-            
-            // define a local configuration for setting finer level properties including
-            // individual cache statistics and methods required for configuring the cache
-            // as clustered
-//            Configuration local = new ConfigurationBuilder().statistics().enable().clustering()
-//                    .cacheMode(CacheMode.DIST_SYNC).build();
-           // note the doco for each of the persistence methods is poor so I have just copied the
-           // persistence config from
-           // https://infinispan.org/docs/stable/titles/configuring/configuring.html#configuring_cache_stores-persistence
-         // not sure about preload effect when starting a new pod - could out of date info clobber newer info, see
-          // https://docs.jboss.org/infinispan/10.1/apidocs/org/infinispan/configuration/cache/AbstractStoreConfigurationBuilder.html#preload(boolean)
-           Configuration local = new ConfigurationBuilder().statistics().enable().clustering().cacheMode(CacheMode.DIST_SYNC)
-            .persistence()
-            .passivation(true) // only write the cache overflow to disk
-            .addSingleFileStore() // the disk cache
-               .preload(true) 
-               .shared(false)
-               .fetchPersistentState(true)
-               .ignoreModifications(false)
-               .purgeOnStartup(false)
-               .location(petasosProperties.getCacheOverflowDirectory())
-               .async()
-                  .enabled(true)
-                  .threadPoolSize(5)
-            .memory()
-//               .storageType(StorageType.BINARY) // let Infinispan decide?
-               .evictionType(EvictionType.MEMORY)
-               .size(petasosProperties.getCacheSizeInBytes()) // cache size in bytes, need to make configurable
-            .build();
+            GlobalConfiguration global = createGlobalConfiguration(CLUSTER_NAME, JGROUPS_CONFIGURATION_FILE).build();
+            Configuration local = createCacheConfiguration(petasosProperties.getCacheOverflowDirectory(), petasosProperties.getCacheSizeInBytes());
             
             // create a cache manager based on the gloabl configuration
             petasosCacheManager = new DefaultCacheManager(global);
-            // define a set of caches based on the local configuration
-            petasosCacheManager.defineConfiguration("petasos-parcel-cache", local);
-            petasosCacheManager.defineConfiguration("petasos-watchdog-cache", "petasos-parcel-cache", local);
-            petasosCacheManager.defineConfiguration("petasos-uow-to-wup-map", "petasos-parcel-cache", local);
-            petasosCacheManager.defineConfiguration("capability-map", "petasos-parcel-cache", local);
+            defineCaches(petasosCacheManager, local);
         }
         return petasosCacheManager;
     }
+
+    // The configuration is built by these static methods so that the benchmark harness
+    // can start several cache managers in one JVM with exactly the production setup,
+    // only changing the jgroups stack and overflow directory.
+    public static GlobalConfigurationBuilder createGlobalConfiguration(String clusterName, String jgroupsConfigurationFile) {
+        // configure a named clustered cache configuration using Infinispan defined defaults
+        GlobalConfigurationBuilder builder = new GlobalConfigurationBuilder().clusteredDefault();
+        
+        // complete the config with a cluster name, jgroups config, and enable JMX statistics
+        builder.transport().clusterName(clusterName).addProperty("configurationFile", jgroupsConfigurationFile).jmx().enable();
+        return builder;
+    }
+
+    public static Configuration createCacheConfiguration(String cacheOverflowDirectory, long cacheSizeInBytes) {
+        // define a local configuration for setting finer level properties including
+        // individual cache statistics and methods required for configuring the cache
+        // as clustered
+//        Configuration local = new ConfigurationBuilder().statistics().enable().clustering()
+//                .cacheMode(CacheMode.DIST_SYNC).build();
+       // note the doco for each of the persistence methods is poor so I have just copied the
+       // persistence config from
+       // https://infinispan.org/docs/stable/titles/configuring/configuring.html#configuring_cache_stores-persistence
+     // not sure about preload effect when starting a new pod - could out of date info clobber newer info, see
+      // https://docs.jboss.org/infinispan/10.1/apidocs/org/infinispan/configuration/cache/AbstractStoreConfigurationBuilder.html#preload(boolean)
+       Configuration local = new ConfigurationBuilder().statistics().enable().clustering().cacheMode(CacheMode.DIST_SYNC)
+        .persistence()
+        .passivation(true) // only write the cache overflow to disk
+        .addSingleFileStore() // the disk cache
+           .preload(true) 
+           .shared(false)
+           .fetchPersistentState(true)
+           .ignoreModifications(false)
+           .purgeOnStartup(false)
+           .location(cacheOverflowDirectory)
+           .async()
+              .enabled(true)
+              .threadPoolSize(5)
+        .memory()
+           .storageType(StorageType.BINARY) // MEMORY eviction isn't supported with the default OBJECT storage
+           .evictionType(EvictionType.MEMORY)
+           .size(cacheSizeInBytes) // cache size in bytes, need to make configurable
+        .build();
+       return local;
+    }
+
+    public static void defineCaches(DefaultCacheManager cacheManager, Configuration local) {
+        // define a set of caches based on the local configuration
+        cacheManager.defineConfiguration("petasos-parcel-cache", local);
+        cacheManager.defineConfiguration("petasos-watchdog-cache", "petasos-parcel-cache", local);
+        cacheManager.defineConfiguration("petasos-uow-to-wup-map", "petasos-parcel-cache", local);
+        cacheManager.defineConfiguration("capability-map", "petasos-parcel-cache", local);
+        // UoW payloads held once and referenced from the parcels, see PetasosPayloadStore
+        cacheManager.defineConfiguration("petasos-payload-cache",
+                createSizedConfiguration(local, "PETASOS_PAYLOAD_CACHE_SIZE_BYTES", PAYLOAD_CACHE_SHARE));
+        cacheManager.defineConfiguration("petasos-payload-reference-cache",
+                createSizedConfiguration(local, "PETASOS_PAYLOAD_REFERENCE_CACHE_SIZE_BYTES", PAYLOAD_REFERENCE_CACHE_SHARE));
+        // precursor/successor links between parcels, see ParcelLineageIndex
+        cacheManager.defineConfiguration("petasos-parcel-lineage-cache",
+                createSizedConfiguration(local, "PETASOS_PARCEL_LINEAGE_CACHE_SIZE_BYTES", PARCEL_LINEAGE_CACHE_SHARE));
+        // progress of parcel replays, so a replay can be resumed, see ParcelReplayEngine
+        cacheManager.defineConfiguration("petasos-replay-checkpoint-cache",
+                createSizedConfiguration(local, "PETASOS_REPLAY_CHECKPOINT_CACHE_SIZE_BYTES", REPLAY_CHECKPOINT_CACHE_SHARE));
+        // finalised parcels that have expired, checked when restoring from the journal
+        cacheManager.defineConfiguration("petasos-parcel-tombstone-cache",
+                createSizedConfiguration(local, "PETASOS_PARCEL_TOMBSTONE_CACHE_SIZE_BYTES", PARCEL_TOMBSTONE_CACHE_SHARE));
+        // where each WUP is, see ComponentResolver
+        cacheManager.defineConfiguration("petasos-component-topology-cache",
+                createSizedConfiguration(local, "PETASOS_COMPONENT_TOPOLOGY_CACHE_SIZE_BYTES", COMPONENT_TOPOLOGY_CACHE_SHARE));
+    }
+
+    /**
+     * The parcel cache configuration with its own memory bound, from the environment
+     * variable if set, otherwise the given share of the parcel cache size. If the parcel
+     * cache isn't bounded, nor is this one unless the variable is set.
+     */
+    public static Configuration createSizedConfiguration(Configuration local, String sizeVariable, int parcelCacheShare) {
+        long parcelCacheSize = local.memory().size();
+        long defaultSize = parcelCacheSize <= 0 ? parcelCacheSize : Math.max(MINIMUM_CACHE_SIZE_BYTES, parcelCacheSize / parcelCacheShare);
+        long cacheSize = defaultSize;
+        String configuredSize = System.getenv(sizeVariable);
+        if (configuredSize == null && parcelCacheSize <= 0) {
+            return local;
+        }
+        if (configuredSize != null) {
+            try {
+                cacheSize = Long.parseLong(configuredSize.trim());
+                if (cacheSize <= 0) {
+                    LOG.warn("Invalid " + sizeVariable + " " + configuredSize + ", using " + defaultSize);
+                    cacheSize = defaultSize;
+                }
+            } catch (NumberFormatException badSize) {
+                LOG.warn("Invalid " + sizeVariable + " " + configuredSize + ", using " + defaultSize);
+            }
+        }
+        return new ConfigurationBuilder().read(local).memory().size(cacheSize).build();
+    }
  
     @PreDestroy
     public void cleanUp() {
@@ -23,10 +23,237 @@
  */
 package net.fhirbox.pegacorn.petasos.common;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryExpired;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryExpiredEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirbox.pegacorn.petasos.common.ComponentTopology.WUPPlacement;
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
+import net.fhirbox.pegacorn.petasos.model.ComponentInstance;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+
 /**
+ * Answers where components are (which WUPs support a function, which pod hosts a WUP)
+ * from an in-memory ComponentTopology snapshot, so routing lookups never go to the
+ * cluster.
+ *
+ * Each WUP's placement is kept in the component topology cache keyed by its FDN. A
+ * clustered listener, which is handed the existing entries when it is added, applies
+ * each change to the current snapshot and swaps the new one in, so the snapshot
+ * follows the WUPs registered on every node. A lookup just reads the current snapshot.
+ *
+ * A placement only lives in the cache for the placement lifespan, and the node's
+ * heartbeat puts this node's placements back (refreshWUPs) well within it. So the WUPs
+ * of a pod that dies without deregistering them expire out of every snapshot, and a
+ * node shutting down removes its own straight away.
  *
  * @author mhunter
  */
+@ApplicationScoped
 public class ComponentResolver implements ComponentResolverInterface {
-    
+    private static final Logger LOG = LoggerFactory.getLogger(ComponentResolver.class);
+    // three of the node's default heartbeats, so one late heartbeat doesn't drop the WUPs
+    public static final long DEFAULT_PLACEMENT_LIFESPAN_MILLIS = 30000L;
+
+    @Inject
+    DefaultCacheManager petasosCacheManager;
+
+    @Inject
+    PetasosMetrics metrics;
+
+    private Cache<String, String> topologyCache;
+    private volatile ComponentTopology topology = ComponentTopology.empty();
+    // the placements registered on this node, which it keeps alive in the cache, keyed by WUP FDN
+    private ConcurrentHashMap<String, WUPPlacement> localPlacements = new ConcurrentHashMap<>();
+    private long placementLifespanMillis = DEFAULT_PLACEMENT_LIFESPAN_MILLIS;
+
+    @PostConstruct
+    public void start() {
+        topologyCache = petasosCacheManager.getCache("petasos-component-topology-cache", true);
+        configurePlacementLifespan();
+        ComponentTopologyMonitor topologyMonitor = new ComponentTopologyMonitor();
+        topologyMonitor.setResolver(this);
+        topologyCache.addListener(topologyMonitor);
+        metrics.registerGauge("componentResolver.wups", () -> topology.getWUPCount());
+        metrics.registerGauge("componentResolver.changes", () -> topology.getChangeCount());
+    }
+
+    // the other nodes needn't wait for this node's placements to expire
+    @PreDestroy
+    public void stop() {
+        localPlacements.keySet().forEach(wupQualifiedFDN -> {
+            try {
+                deregisterWUP(new FDN(wupQualifiedFDN));
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to deregister WUP " + wupQualifiedFDN + ", it will expire from the component topology", e);
+            }
+        });
+    }
+
+    // PETASOS_COMPONENT_PLACEMENT_LIFESPAN_SECONDS, should be a few heartbeat intervals
+    private void configurePlacementLifespan() {
+        String lifespanSeconds = System.getenv("PETASOS_COMPONENT_PLACEMENT_LIFESPAN_SECONDS");
+        if (lifespanSeconds == null) {
+            return;
+        }
+        try {
+            long configuredLifespanSeconds = Long.parseLong(lifespanSeconds.trim());
+            if (configuredLifespanSeconds <= 0) {
+                throw new NumberFormatException("not positive");
+            }
+            placementLifespanMillis = configuredLifespanSeconds * 1000L;
+        } catch (NumberFormatException badLifespan) {
+            LOG.warn("Invalid PETASOS_COMPONENT_PLACEMENT_LIFESPAN_SECONDS " + lifespanSeconds + ", using the default");
+        }
+    }
+
+    /**
+     * Records where the WUP is for every node. The local snapshot has it straight away,
+     * the other nodes once the cache event reaches them.
+     */
+    @Override
+    public void registerWUP(FDN wupFDN, FDN supportedFunctionFDN, FDN hostNodeFDN) {
+        WUPPlacement placement = new WUPPlacement(wupFDN, supportedFunctionFDN, hostNodeFDN);
+        localPlacements.put(wupFDN.getQualifiedFDN(), placement);
+        topologyCache.put(wupFDN.getQualifiedFDN(), placement.toJSONString(), placementLifespanMillis, TimeUnit.MILLISECONDS);
+        placeWUP(placement);
+    }
+
+    @Override
+    public void deregisterWUP(FDN wupFDN) {
+        localPlacements.remove(wupFDN.getQualifiedFDN());
+        topologyCache.remove(wupFDN.getQualifiedFDN());
+        removeWUP(wupFDN.getQualifiedFDN());
+    }
+
+    /**
+     * Puts this node's placements back in the cache with a fresh lifespan, called by the
+     * node's heartbeat. The placement is unchanged, so the snapshots are left as they are
+     * unless it had expired in the meantime.
+     */
+    @Override
+    public void refreshWUPs() {
+        localPlacements.forEach((wupQualifiedFDN, placement) ->
+                topologyCache.put(wupQualifiedFDN, placement.toJSONString(), placementLifespanMillis, TimeUnit.MILLISECONDS));
+    }
+
+    public void setPlacementLifespanMillis(long placementLifespanMillis) {
+        this.placementLifespanMillis = placementLifespanMillis;
+    }
+
+    @Override
+    public Collection<FDN> getWUPsSupportingFunction(FDN functionFDN) {
+        return topology.getWUPsSupportingFunction(functionFDN.getQualifiedFDN());
+    }
+
+    /**
+     * @return the pod hosting the WUP, or null if the WUP isn't known
+     */
+    @Override
+    public FDN getPodHostingWUP(FDN wupFDN) {
+        WUPPlacement placement = topology.getPlacement(wupFDN.getQualifiedFDN());
+        return placement == null ? null : placement.getPodFDN();
+    }
+
+    /**
+     * @return the function the WUP supports, or null if the WUP isn't known
+     */
+    @Override
+    public FDN getFunctionSupportedByWUP(FDN wupFDN) {
+        WUPPlacement placement = topology.getPlacement(wupFDN.getQualifiedFDN());
+        return placement == null ? null : placement.getFunctionFDN();
+    }
+
+    @Override
+    public Collection<FDN> getWUPsHostedByPod(FDN podFDN) {
+        return topology.getWUPsHostedByPod(podFDN.getQualifiedFDN());
+    }
+
+    @Override
+    public Collection<ComponentInstance> getComponentHierarchy() {
+        return topology.getHierarchy();
+    }
+
+    /**
+     * @return the current snapshot, for several lookups that need to agree with each other
+     */
+    public ComponentTopology getTopology() {
+        return topology;
+    }
+
+    // the writers are serialised so no change is lost between reading the snapshot and
+    // swapping in the new one, readers never wait
+    synchronized void placeWUP(WUPPlacement placement) {
+        topology = topology.withWUP(placement);
+    }
+
+    synchronized void removeWUP(String wupQualifiedFDN) {
+        topology = topology.withoutWUP(wupQualifiedFDN);
+    }
+
+    @Listener(clustered = true, includeCurrentState = true, sync = false)
+    public static class ComponentTopologyMonitor {
+        private ComponentResolver resolver;
+
+        @CacheEntryCreated
+        public CompletionStage<Void> wupPlaced(CacheEntryCreatedEvent<String, String> event) {
+            applyPlacement(event.getKey(), event.getValue());
+            return CompletableFuture.allOf();
+        }
+
+        @CacheEntryModified
+        public CompletionStage<Void> wupMoved(CacheEntryModifiedEvent<String, String> event) {
+            applyPlacement(event.getKey(), event.getValue());
+            return CompletableFuture.allOf();
+        }
+
+        @CacheEntryRemoved
+        public CompletionStage<Void> wupRemoved(CacheEntryRemovedEvent<String, String> event) {
+            resolver.removeWUP(event.getKey());
+            return CompletableFuture.allOf();
+        }
+
+        @CacheEntryExpired
+        public CompletionStage<Void> wupExpired(CacheEntryExpiredEvent<String, String> event) {
+            resolver.removeWUP(event.getKey());
+            return CompletableFuture.allOf();
+        }
+
+        private void applyPlacement(String wupQualifiedFDN, String placementJSON) {
+            if (placementJSON == null) {
+                return;
+            }
+            try {
+                resolver.placeWUP(WUPPlacement.fromJSONString(placementJSON));
+            } catch (RuntimeException e) {
+                LOG.warn("Unreadable placement for WUP " + wupQualifiedFDN + ", not added to the component topology", e);
+            }
+        }
+
+        // Listeners are not managed by the container, so not using injection
+        public void setResolver(ComponentResolver resolver) {
+            this.resolver = resolver;
+        }
+    }
 }
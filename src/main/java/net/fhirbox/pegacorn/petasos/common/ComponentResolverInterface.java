@@ -23,10 +23,30 @@
  */
 package net.fhirbox.pegacorn.petasos.common;
 
+import java.util.Collection;
+
+import net.fhirbox.pegacorn.petasos.model.ComponentInstance;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+
 /**
  *
  * @author mhunter
  */
 public interface ComponentResolverInterface {
     
+    public void registerWUP(FDN wupFDN, FDN supportedFunctionFDN, FDN hostNodeFDN);
+    
+    public void deregisterWUP(FDN wupFDN);
+    
+    public void refreshWUPs();
+    
+    public Collection<FDN> getWUPsSupportingFunction(FDN functionFDN);
+    
+    public FDN getPodHostingWUP(FDN wupFDN);
+    
+    public FDN getFunctionSupportedByWUP(FDN wupFDN);
+    
+    public Collection<FDN> getWUPsHostedByPod(FDN podFDN);
+    
+    public Collection<ComponentInstance> getComponentHierarchy();
 }
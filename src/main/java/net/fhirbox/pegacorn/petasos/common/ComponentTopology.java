@@ -0,0 +1,344 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+
+import net.fhirbox.pegacorn.petasos.model.ComponentInstance;
+import net.fhirbox.pegacorn.petasos.model.ComponentTypeEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.WorkUnitProcessor;
+
+/**
+ * An immutable snapshot of where the WUPs are in the deployment, with the lookups the
+ * routing needs (WUPs by function, pod by WUP, WUPs by pod) worked out up front.
+ *
+ * A change to one WUP gives a new snapshot sharing everything the change didn't touch,
+ * so readers holding a snapshot never see it change under them and never need a lock.
+ * The component hierarchy (deployment, site, pod, module, WUP) is only built when it is
+ * asked for, once per snapshot.
+ *
+ * Each node builds its own snapshots from the cache events it is sent, so there is no
+ * version to compare snapshots between nodes, only a count of the changes this node
+ * has applied.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ComponentTopology {
+    private static final String DEPLOYMENT_RDN = "deployment";
+    private static final String SITE_RDN = "site";
+    private static final String POD_RDN = "pod";
+    private static final String MODULE_RDN = "module";
+
+    private final long changeCount;
+    // all keyed by qualified FDN
+    private final Map<String, WUPPlacement> placements;
+    private final Map<String, List<FDN>> wupsByFunction;
+    private final Map<String, List<FDN>> wupsByPod;
+    private volatile Collection<ComponentInstance> hierarchy;
+
+    private ComponentTopology(long changeCount, Map<String, WUPPlacement> placements, Map<String, List<FDN>> wupsByFunction,
+            Map<String, List<FDN>> wupsByPod) {
+        this.changeCount = changeCount;
+        this.placements = placements;
+        this.wupsByFunction = wupsByFunction;
+        this.wupsByPod = wupsByPod;
+    }
+
+    public static ComponentTopology empty() {
+        return new ComponentTopology(0, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * @return a snapshot with the WUP added, or moved if it was already placed elsewhere,
+     * either way one change
+     */
+    public ComponentTopology withWUP(WUPPlacement placement) {
+        WUPPlacement previous = placements.get(placement.getWupFDN().getQualifiedFDN());
+        if (placement.equals(previous)) {
+            return this;
+        }
+        ComponentTopology topology = previous == null ? this : withoutWUP(previous.getWupFDN().getQualifiedFDN());
+        Map<String, WUPPlacement> newPlacements = new HashMap<>(topology.placements);
+        newPlacements.put(placement.getWupFDN().getQualifiedFDN(), placement);
+        return new ComponentTopology(changeCount + 1, Collections.unmodifiableMap(newPlacements),
+                adding(topology.wupsByFunction, placement.getFunctionFDN().getQualifiedFDN(), placement.getWupFDN()),
+                adding(topology.wupsByPod, placement.getPodFDN().getQualifiedFDN(), placement.getWupFDN()));
+    }
+
+    /**
+     * @return a snapshot without the WUP, or this one if it wasn't placed
+     */
+    public ComponentTopology withoutWUP(String wupQualifiedFDN) {
+        WUPPlacement previous = placements.get(wupQualifiedFDN);
+        if (previous == null) {
+            return this;
+        }
+        Map<String, WUPPlacement> newPlacements = new HashMap<>(placements);
+        newPlacements.remove(wupQualifiedFDN);
+        return new ComponentTopology(changeCount + 1, Collections.unmodifiableMap(newPlacements),
+                removing(wupsByFunction, previous.getFunctionFDN().getQualifiedFDN(), wupQualifiedFDN),
+                removing(wupsByPod, previous.getPodFDN().getQualifiedFDN(), wupQualifiedFDN));
+    }
+
+    // only the list for the changed key is copied, the others are shared with the old snapshot
+    private static Map<String, List<FDN>> adding(Map<String, List<FDN>> index, String key, FDN wupFDN) {
+        List<FDN> wups = new ArrayList<>(index.getOrDefault(key, Collections.emptyList()));
+        wups.add(wupFDN);
+        Map<String, List<FDN>> newIndex = new HashMap<>(index);
+        newIndex.put(key, Collections.unmodifiableList(wups));
+        return Collections.unmodifiableMap(newIndex);
+    }
+
+    private static Map<String, List<FDN>> removing(Map<String, List<FDN>> index, String key, String wupQualifiedFDN) {
+        List<FDN> wups = new ArrayList<>(index.getOrDefault(key, Collections.emptyList()));
+        wups.removeIf(wupFDN -> wupFDN.getQualifiedFDN().equals(wupQualifiedFDN));
+        Map<String, List<FDN>> newIndex = new HashMap<>(index);
+        if (wups.isEmpty()) {
+            newIndex.remove(key);
+        } else {
+            newIndex.put(key, Collections.unmodifiableList(wups));
+        }
+        return Collections.unmodifiableMap(newIndex);
+    }
+
+    /**
+     * @return the number of changes this node applied to get to this snapshot, which
+     * differs between nodes holding the same placements
+     */
+    public long getChangeCount() {
+        return changeCount;
+    }
+
+    public List<FDN> getWUPsSupportingFunction(String functionQualifiedFDN) {
+        return wupsByFunction.getOrDefault(functionQualifiedFDN, Collections.emptyList());
+    }
+
+    public List<FDN> getWUPsHostedByPod(String podQualifiedFDN) {
+        return wupsByPod.getOrDefault(podQualifiedFDN, Collections.emptyList());
+    }
+
+    /**
+     * @return where the WUP is, or null if it isn't known
+     */
+    public WUPPlacement getPlacement(String wupQualifiedFDN) {
+        return placements.get(wupQualifiedFDN);
+    }
+
+    public int getWUPCount() {
+        return placements.size();
+    }
+
+    /**
+     * The component hierarchy, one entry per deployment with its sites, pods, modules and
+     * WUPs as the contained components. Shared by every reader of this snapshot, so not
+     * to be modified.
+     */
+    public Collection<ComponentInstance> getHierarchy() {
+        Collection<ComponentInstance> builtHierarchy = hierarchy;
+        if (builtHierarchy == null) {
+            // building it twice on a race is harmless, both are the same
+            builtHierarchy = buildHierarchy();
+            hierarchy = builtHierarchy;
+        }
+        return builtHierarchy;
+    }
+
+    private Collection<ComponentInstance> buildHierarchy() {
+        // keyed by the path of FDNs down to the component, a module FDN needn't name its
+        // pod, so the same module in two pods is two components
+        Map<String, ComponentInstance> components = new LinkedHashMap<>();
+        List<ComponentInstance> deployments = new ArrayList<>();
+        placements.values().forEach(placement -> {
+            ComponentInstance parent = null;
+            String componentPath = "";
+            for (FDN ancestorFDN : placement.getAncestorFDNs()) {
+                componentPath = componentPath + "/" + ancestorFDN.getQualifiedFDN();
+                ComponentInstance ancestor = components.get(componentPath);
+                if (ancestor == null) {
+                    ancestor = new ComponentInstance();
+                    ancestor.setComponentFDN(ancestorFDN);
+                    ancestor.setComponentType(componentType(ancestorFDN));
+                    components.put(componentPath, ancestor);
+                    if (parent == null) {
+                        deployments.add(ancestor);
+                    } else {
+                        parent.getContainedComponents().add(ancestor);
+                    }
+                }
+                if (!ancestor.getSupportedFunctionSet().stream()
+                        .anyMatch(functionFDN -> functionFDN.getQualifiedFDN().equals(placement.getFunctionFDN().getQualifiedFDN()))) {
+                    ancestor.getSupportedFunctionSet().add(placement.getFunctionFDN());
+                }
+                parent = ancestor;
+            }
+            ComponentInstance wup = new ComponentInstance();
+            wup.setComponentFDN(placement.getWupFDN());
+            wup.setComponentType(ComponentTypeEnum.PEGACORN_WUP);
+            wup.getSupportedFunctionSet().add(placement.getFunctionFDN());
+            wup.getEnabledWUPSet().add(new WorkUnitProcessor(placement.getWupFDN(), placement.getFunctionFDN()));
+            if (parent == null) {
+                deployments.add(wup);
+            } else {
+                parent.getContainedComponents().add(wup);
+                parent.getEnabledWUPSet().add(new WorkUnitProcessor(placement.getWupFDN(), placement.getFunctionFDN()));
+            }
+        });
+        return Collections.unmodifiableList(deployments);
+    }
+
+    private static ComponentTypeEnum componentType(FDN componentFDN) {
+        String qualifiedFDN = componentFDN.getQualifiedFDN();
+        String lastRDN = qualifiedFDN.substring(qualifiedFDN.lastIndexOf(FDN.RDN_ENTRY_SEPERATOR) + 1);
+        if (lastRDN.startsWith(DEPLOYMENT_RDN + "=")) {
+            return ComponentTypeEnum.PEGACORN_DEPLOYMENT;
+        }
+        if (lastRDN.startsWith(POD_RDN + "=")) {
+            return ComponentTypeEnum.PEGACORN_POD;
+        }
+        if (lastRDN.startsWith(MODULE_RDN + "=")) {
+            return ComponentTypeEnum.PEGACORN_MODULE;
+        }
+        // a site is the nearest thing to a system
+        return ComponentTypeEnum.PEGACORN_SYSTEM;
+    }
+
+    /**
+     * @return the FDN made of the RDNs up to and including the first of the given type,
+     * or null if there is none
+     */
+    static FDN truncateAt(FDN fdn, String rdnType) {
+        StringBuilder truncatedFDN = new StringBuilder();
+        for (String rdn : fdn.getQualifiedFDN().split(Pattern.quote(FDN.RDN_ENTRY_SEPERATOR))) {
+            if (truncatedFDN.length() > 0) {
+                truncatedFDN.append(FDN.RDN_ENTRY_SEPERATOR);
+            }
+            truncatedFDN.append(rdn);
+            if (rdn.startsWith(rdnType + "=")) {
+                return new FDN(truncatedFDN.toString());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Where a WUP is: the function it supports, the pod hosting it and, if its FDN has
+     * one, the module it belongs to. The pod comes from the WUP's FDN if it names one,
+     * else from the Petasos node the WUP registered with.
+     */
+    public static class WUPPlacement {
+        private final FDN wupFDN;
+        private final FDN functionFDN;
+        private final FDN podFDN;
+        private final FDN moduleFDN;
+
+        public WUPPlacement(FDN wupFDN, FDN functionFDN, FDN hostNodeFDN) {
+            this.wupFDN = wupFDN;
+            this.functionFDN = functionFDN;
+            FDN wupPodFDN = truncateAt(wupFDN, POD_RDN);
+            FDN nodePodFDN = truncateAt(hostNodeFDN, POD_RDN);
+            this.podFDN = wupPodFDN != null ? wupPodFDN : (nodePodFDN != null ? nodePodFDN : hostNodeFDN);
+            this.moduleFDN = truncateAt(wupFDN, MODULE_RDN);
+        }
+
+        /**
+         * @param placementJSONString as from toJSONString()
+         */
+        public static WUPPlacement fromJSONString(String placementJSONString) {
+            JSONObject placementJSON = new JSONObject(placementJSONString);
+            return new WUPPlacement(new FDN(placementJSON.getString("wupFDN")), new FDN(placementJSON.getString("functionFDN")),
+                    new FDN(placementJSON.getString("podFDN")));
+        }
+
+        public String toJSONString() {
+            return new JSONObject()
+                    .put("wupFDN", wupFDN.getQualifiedFDN())
+                    .put("functionFDN", functionFDN.getQualifiedFDN())
+                    .put("podFDN", podFDN.getQualifiedFDN())
+                    .toString();
+        }
+
+        public FDN getWupFDN() {
+            return wupFDN;
+        }
+
+        public FDN getFunctionFDN() {
+            return functionFDN;
+        }
+
+        public FDN getPodFDN() {
+            return podFDN;
+        }
+
+        /**
+         * @return the module FDN, or null if the WUP's FDN doesn't name one
+         */
+        public FDN getModuleFDN() {
+            return moduleFDN;
+        }
+
+        // deployment, site, pod and module, whichever of them the FDNs name, outermost first
+        List<FDN> getAncestorFDNs() {
+            List<FDN> ancestors = new ArrayList<>();
+            FDN deploymentFDN = truncateAt(podFDN, DEPLOYMENT_RDN);
+            if (deploymentFDN != null && !deploymentFDN.getQualifiedFDN().equals(podFDN.getQualifiedFDN())) {
+                ancestors.add(deploymentFDN);
+            }
+            FDN siteFDN = truncateAt(podFDN, SITE_RDN);
+            if (siteFDN != null && !siteFDN.getQualifiedFDN().equals(podFDN.getQualifiedFDN())) {
+                ancestors.add(siteFDN);
+            }
+            ancestors.add(podFDN);
+            if (moduleFDN != null) {
+                ancestors.add(moduleFDN);
+            }
+            return ancestors;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof WUPPlacement)) {
+                return false;
+            }
+            WUPPlacement otherPlacement = (WUPPlacement) other;
+            return wupFDN.getQualifiedFDN().equals(otherPlacement.wupFDN.getQualifiedFDN())
+                    && functionFDN.getQualifiedFDN().equals(otherPlacement.functionFDN.getQualifiedFDN())
+                    && podFDN.getQualifiedFDN().equals(otherPlacement.podFDN.getQualifiedFDN());
+        }
+
+        @Override
+        public int hashCode() {
+            return wupFDN.getQualifiedFDN().hashCode();
+        }
+    }
+}
@@ -26,11 +26,14 @@ package net.fhirbox.pegacorn.petasos.common;
 import java.time.Instant;
 import java.util.HashSet;
 import java.util.ArrayList;
+import java.util.Set;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.fhirbox.pegacorn.petasos.jfr.PetasosFlightRecorder;
 import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
 import net.fhirbox.pegacorn.petasos.model.FDN;
 import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
@@ -39,6 +42,8 @@ import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
 import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
 import net.fhirbox.pegacorn.petasos.model.UoW;
 import net.fhirbox.pegacorn.petasos.model.UoWProcessingOutcomeEnum;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadCompression;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadStore;
 
 /**
  *
@@ -50,7 +55,11 @@ public class PetasosParcelJSON {
     private JSONObject parcelJSON;
 
     public PetasosParcelJSON(String parcelString) {
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginParcelJSON() : null;
         this.parcelJSON = new JSONObject(parcelString);
+        if (flightRecorderEvent != null) {
+            PetasosFlightRecorder.commitParcelJSON(flightRecorderEvent, "decode", getParcelFDN(), parcelString.length());
+        }
 
         // This is meant to support parcels from the cache, so if no registration information
         // then something is wrong, so return null
@@ -68,14 +77,41 @@ public class PetasosParcelJSON {
         }
     }    
     
+    // Content is already JSON, so is written out as is rather than parsed into a JSONObject
+    // just to be written out again. PetasosParcelJSONWriter avoids the tree altogether.
+    private static class RawJSON implements JSONString {
+        private final String json;
+
+        RawJSON(String json) {
+            this.json = json;
+        }
+
+        @Override
+        public String toJSONString() {
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+    }
+
     public PetasosParcelJSON(PetasosParcel petasosParcel) {
-        JSONObject parcelJSON = new JSONObject();
+        parcelJSON = new JSONObject();
         
         parcelJSON.put("parcelStatus", petasosParcel.getParcelStatus().getPetasosParcelStatus());
+        JSONObject statusTransitions = new JSONObject();
+        petasosParcel.getStatusTransitions().forEach((parcelStatus, transitionInstant) -> {
+            statusTransitions.put(parcelStatus.getPetasosParcelStatus(), transitionInstant.toEpochMilli());
+        });
+        parcelJSON.put("statusTransitions", statusTransitions);
 
+        // an open ended parcel (Instant.MAX) can't be held as epoch millis, so is written as 0
+        Instant expectedCompletion = petasosParcel.getParcelRegistration().getParcelExpectedCompletionInstant();
         JSONObject registrationInfo = new JSONObject().put("parcelFDN", petasosParcel.getParcelRegistration().getParcelFDN().getQualifiedFDN())
                     .put("parcelInstantiationInstant", petasosParcel.getParcelRegistration().getParcelInstantiationInstant().toEpochMilli())
-                          .put("parcelExpectedCompletionInstant", petasosParcel.getParcelRegistration().getParcelExpectedCompletionInstant().toEpochMilli())
+                          .put("parcelExpectedCompletionInstant", (expectedCompletion == null || expectedCompletion.equals(Instant.MAX)) ? 0L : expectedCompletion.toEpochMilli())
                           .put("supportingFunctionFDN", petasosParcel.getParcelRegistration().getSupportingFunctionFDN().getQualifiedFDN());
 
         JSONArray wupList = new JSONArray();
@@ -95,21 +131,23 @@ public class PetasosParcelJSON {
         JSONArray ingressContent = new JSONArray();
         if (petasosParcel.getContainedUoW().getUowIngressContent() != null) {
             petasosParcel.getContainedUoW().getUowIngressContent().forEach(ingress -> {
-                ingressContent.put(new JSONObject((String)ingress));
+                ingressContent.put(new RawJSON((String)ingress));
             });
         }
 
         JSONArray egressContent = new JSONArray();
         if (petasosParcel.getContainedUoW().getUowEgressContent() != null) {
             petasosParcel.getContainedUoW().getUowEgressContent().forEach(egress -> {
-                egressContent.put(new JSONObject((String)egress));
+                egressContent.put(new RawJSON((String)egress));
             });
         }
   
         JSONObject uowInfo = new JSONObject().put("uowFDN", petasosParcel.getContainedUoW().getUoWFDN().getQualifiedFDN())
                 .put("requiredFunctionFDN", petasosParcel.getContainedUoW().getRequiredFunctionFDN().getQualifiedFDN())
-                .put("ingressContent", ingressContent).put("egressContent", egressContent)
-                .put("processingOutcome", petasosParcel.getContainedUoW().getUowProcessingOutcome().getUoWProcessingOutcome());
+                .put("ingressContent", ingressContent).put("egressContent", egressContent);
+        if (petasosParcel.getContainedUoW().getUowProcessingOutcome() != null) {
+            uowInfo.put("processingOutcome", petasosParcel.getContainedUoW().getUowProcessingOutcome().getUoWProcessingOutcome());
+        }
         parcelJSON.put("uow", uowInfo);
         
 
@@ -120,20 +158,36 @@ public class PetasosParcelJSON {
         });
         parcelJSON.put("successorParcels", successorParcelFDNs);
 
-        JSONObject watchdogStateInfo = new JSONObject().put("wupFDN", petasosParcel.getTaskProcessorState().getWupFDN().getQualifiedFDN())
-                .put("wupStatus", petasosParcel.getTaskProcessorState().getWupStatus().getComponentWatchdogState())
-                .put("lastStatusUpdate", petasosParcel.getTaskProcessorState().getLastStatusUpdate().toEpochMilli());
-        parcelJSON.put("watchdogStatus", watchdogStateInfo);
+        if (petasosParcel.getTaskProcessorState() != null) {
+            JSONObject watchdogStateInfo = new JSONObject().put("wupFDN", petasosParcel.getTaskProcessorState().getWupFDN().getQualifiedFDN())
+                    .put("wupStatus", petasosParcel.getTaskProcessorState().getWupStatus().getComponentWatchdogState())
+                    .put("lastStatusUpdate", petasosParcel.getTaskProcessorState().getLastStatusUpdate().toEpochMilli());
+            parcelJSON.put("watchdogStatus", watchdogStateInfo);
+        }
         
-        parcelJSON.put("precursorParcelFDN", petasosParcel.getPrecursorParcel().getQualifiedFDN());
+        if (petasosParcel.getPrecursorParcel() != null) {
+            parcelJSON.put("precursorParcelFDN", petasosParcel.getPrecursorParcel().getQualifiedFDN());
+        }
     }
     
     public String toJSONString() {
-        return parcelJSON.toString();
+        if (!PetasosFlightRecorder.ENABLED) {
+            return parcelJSON.toString();
+        }
+        Object flightRecorderEvent = PetasosFlightRecorder.beginParcelJSON();
+        String parcelString = parcelJSON.toString();
+        PetasosFlightRecorder.commitParcelJSON(flightRecorderEvent, "encode", getParcelFDN(), parcelString.length());
+        return parcelString;
+    }
+
+    // null if the JSON has no registration
+    private String getParcelFDN() {
+        JSONObject registrationObject = parcelJSON.optJSONObject("parcelRegistration");
+        return registrationObject == null ? null : registrationObject.optString("parcelFDN", null);
     }
     
     public ComponentStatusEnum getWupStatus() {
-        return ComponentStatusEnum.valueOf(parcelJSON.getJSONObject("watchdogStatus").getString("wupStatus"));
+        return ComponentStatusEnum.fromComponentWatchdogState(parcelJSON.getJSONObject("watchdogStatus").getString("wupStatus"));
     }
     
     public void setWupStatus(ComponentStatusEnum wupStatus) {
@@ -144,6 +198,10 @@ public class PetasosParcelJSON {
         parcelJSON.getJSONObject("watchdogStatus").put("lastStatusUpdate", lastStatusUpdate);
     }
     
+    public long getWUPLastStatusUpdate() {
+        return parcelJSON.getJSONObject("watchdogStatus").getLong("lastStatusUpdate");
+    }
+    
     public String getWUPFDN() {
         return parcelJSON.getJSONObject("watchdogStatus").getString("wupFDN");
     }
@@ -152,12 +210,100 @@ public class PetasosParcelJSON {
         return parcelJSON.getJSONObject("uow").getString("uowFDN");
     }
     
+    // also records when the parcel entered the status
     public void setParcelStatus(PetasosParcelStatusEnum parcelStatus) {
         parcelJSON.put("parcelStatus", parcelStatus.getPetasosParcelStatus());
+        if (!parcelJSON.has("statusTransitions")) {
+            parcelJSON.put("statusTransitions", new JSONObject());
+        }
+        parcelJSON.getJSONObject("statusTransitions").put(parcelStatus.getPetasosParcelStatus(), Instant.now().toEpochMilli());
+    }
+
+    /**
+     * @return when the parcel last entered the status in epoch milliseconds, or -1 if it never has
+     */
+    public long getStatusTransitionInstant(PetasosParcelStatusEnum parcelStatus) {
+        if (!parcelJSON.has("statusTransitions")) {
+            return -1;
+        }
+        return parcelJSON.getJSONObject("statusTransitions").optLong(parcelStatus.getPetasosParcelStatus(), -1);
+    }
+
+    /**
+     * Whether this copy of a parcel is more recent than the other, for copies arriving
+     * from other sites in no particular order. Copies are ordered by when they entered
+     * their current status, then by how far through the lifecycle they are, then by the
+     * WUP's last status report. A finalised parcel is never superseded by one that isn't.
+     */
+    public boolean supersedes(PetasosParcelJSON otherParcel) {
+        PetasosParcelStatusEnum parcelStatus = getParcelStatus();
+        PetasosParcelStatusEnum otherParcelStatus = otherParcel.getParcelStatus();
+        if (otherParcelStatus == PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED && parcelStatus != PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED) {
+            return false;
+        }
+        long transitionInstant = getStatusTransitionInstant(parcelStatus);
+        long otherTransitionInstant = otherParcel.getStatusTransitionInstant(otherParcelStatus);
+        if (transitionInstant != otherTransitionInstant) {
+            return transitionInstant > otherTransitionInstant;
+        }
+        int lifecycleRank = getLifecycleRank(parcelStatus);
+        int otherLifecycleRank = getLifecycleRank(otherParcelStatus);
+        if (lifecycleRank != otherLifecycleRank) {
+            return lifecycleRank > otherLifecycleRank;
+        }
+        return getLastStatusUpdateOrUnknown() > otherParcel.getLastStatusUpdateOrUnknown();
+    }
+
+    // a failed parcel goes back to active when it is retried, so they rank the same
+    private static int getLifecycleRank(PetasosParcelStatusEnum parcelStatus) {
+        switch (parcelStatus) {
+            case PARCEL_STATUS_REGISTERED:
+                return 0;
+            case PARCEL_STATUS_INITIATED:
+                return 1;
+            case PARCEL_STATUS_ACTIVE:
+            case PARCEL_STATUS_FAILED:
+                return 2;
+            case PARCEL_STATUS_FINISHED:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    private long getLastStatusUpdateOrUnknown() {
+        JSONObject watchdogStatus = parcelJSON.optJSONObject("watchdogStatus");
+        return watchdogStatus == null ? -1 : watchdogStatus.optLong("lastStatusUpdate", -1);
+    }
+
+    // Which replays have registered the parcel again, and as what parcel, so a replay
+    // resumed after stopping part way through a batch doesn't register it a second time.
+    public void setReplayedAs(String replayId, String replayParcelFDN) {
+        JSONObject replays = parcelJSON.optJSONObject("replays");
+        if (replays == null) {
+            replays = new JSONObject();
+            parcelJSON.put("replays", replays);
+        }
+        replays.put(replayId, replayParcelFDN);
+    }
+
+    // null if the replay hasn't registered the parcel again
+    public String getReplayedAs(String replayId) {
+        JSONObject replays = parcelJSON.optJSONObject("replays");
+        return replays == null ? null : replays.optString(replayId, null);
+    }
+
+    // null for a parcel that started its lineage
+    public String getPrecursorParcelFDN() {
+        return parcelJSON.optString("precursorParcelFDN", null);
+    }
+
+    public String getSupportingFunctionFDN() {
+        return parcelJSON.getJSONObject("parcelRegistration").getString("supportingFunctionFDN");
     }
     
     public PetasosParcelStatusEnum getParcelStatus() {
-        return PetasosParcelStatusEnum.valueOf(parcelJSON.getString("parcelStatus"));
+        return PetasosParcelStatusEnum.fromPetasosParcelStatus(parcelJSON.getString("parcelStatus"));
     }
     
     public long getParcelInstantiationInstant() {
@@ -170,7 +316,7 @@ public class PetasosParcelJSON {
     
     public UoWProcessingOutcomeEnum getUoWProcessingOutcome() {
         if (parcelJSON.getJSONObject("uow").has("processingOutcome")) {
-            return UoWProcessingOutcomeEnum.valueOf(parcelJSON.getJSONObject("uow").getString("processingOutcome"));            
+            return UoWProcessingOutcomeEnum.fromUoWProcessingOutcome(parcelJSON.getJSONObject("uow").getString("processingOutcome"));            
         }
         return null;
     }
@@ -190,27 +336,107 @@ public class PetasosParcelJSON {
         JSONArray ingressContent = new JSONArray();
         if (uow.getUowIngressContent() != null) {
             uow.getUowIngressContent().forEach(ingress -> {
-                ingressContent.put(new JSONObject((String)ingress));
+                ingressContent.put(new RawJSON((String)ingress));
             });
         }
 
         JSONArray egressContent = new JSONArray();
         if (uow.getUowEgressContent() != null) {
             uow.getUowEgressContent().forEach(egress -> {
-                egressContent.put(new JSONObject((String)egress));
+                egressContent.put(new RawJSON((String)egress));
             });
         }
   
         JSONObject uowJSONObject = new JSONObject().put("uowFDN", uow.getUoWFDN().getQualifiedFDN())
                 .put("requiredFunctionFDN", uow.getRequiredFunctionFDN().getQualifiedFDN())
-                .put("ingressContent", ingressContent).put("egressContent", egressContent)
-                .put("processingOutcome", uow.getUowProcessingOutcome().getUoWProcessingOutcome());
+                .put("ingressContent", ingressContent).put("egressContent", egressContent);
+        if (uow.getUowProcessingOutcome() != null) {
+            uowJSONObject.put("processingOutcome", uow.getUowProcessingOutcome().getUoWProcessingOutcome());
+        }
         
         parcelJSON.put("uow", uowJSONObject);
     }
     
     
+    /**
+     * Moves the UoW's ingress and egress content into the payload store, leaving
+     * "ingressContentRefs" and "egressContentRefs" in its place. References already held
+     * by this parcel (e.g. the ingress content when the UoW is finished) aren't taken again.
+     */
+    public void externalisePayloads(PetasosPayloadStore payloadStore, Set<String> heldPayloadRefs) {
+        JSONObject uowJSONObject = parcelJSON.getJSONObject("uow");
+        // the parcel holds one reference per distinct payload, even if it is both ingress and egress
+        HashSet<String> parcelPayloadRefs = new HashSet<>(heldPayloadRefs);
+        externalisePayloads(payloadStore, parcelPayloadRefs, uowJSONObject, "ingressContent", "ingressContentRefs");
+        externalisePayloads(payloadStore, parcelPayloadRefs, uowJSONObject, "egressContent", "egressContentRefs");
+    }
+
+    private void externalisePayloads(PetasosPayloadStore payloadStore, Set<String> parcelPayloadRefs, JSONObject uowJSONObject,
+            String contentKey, String contentRefsKey) {
+        if (!uowJSONObject.has(contentKey)) {
+            return;
+        }
+        JSONArray contentRefs = uowJSONObject.has(contentRefsKey) ? uowJSONObject.getJSONArray(contentRefsKey) : new JSONArray();
+        uowJSONObject.getJSONArray(contentKey).forEach(content -> {
+            String payloadRef = payloadStore.storePayload(content.toString(), parcelPayloadRefs);
+            parcelPayloadRefs.add(payloadRef);
+            contentRefs.put(payloadRef);
+        });
+        uowJSONObject.remove(contentKey);
+        uowJSONObject.put(contentRefsKey, contentRefs);
+    }
+
+    /**
+     * Compresses the UoW's inline ingress and egress content that is over the compression
+     * threshold, for parcels written without a payload store. Compressed content is held
+     * as a string in place of the JSON object.
+     */
+    public void compressPayloads() {
+        JSONObject uowJSONObject = parcelJSON.getJSONObject("uow");
+        compressPayloads(uowJSONObject, "ingressContent");
+        compressPayloads(uowJSONObject, "egressContent");
+    }
+
+    private void compressPayloads(JSONObject uowJSONObject, String contentKey) {
+        if (!uowJSONObject.has(contentKey)) {
+            return;
+        }
+        JSONArray compressedContent = new JSONArray();
+        uowJSONObject.getJSONArray(contentKey).forEach(content -> {
+            if (!(content instanceof String)) {
+                String payload = content.toString();
+                String compressedPayload = PetasosPayloadCompression.compress(payload);
+                // keep the object if it wasn't worth compressing
+                compressedContent.put(compressedPayload == payload ? content : compressedPayload);
+            } else {
+                compressedContent.put(content);
+            }
+        });
+        uowJSONObject.put(contentKey, compressedContent);
+    }
+
+    /**
+     * @return the references to the payloads in the store this parcel holds, empty if
+     * the content is inline
+     */
+    public Set<String> getPayloadRefs() {
+        HashSet<String> payloadRefs = new HashSet<>();
+        JSONObject uowJSONObject = parcelJSON.getJSONObject("uow");
+        if (uowJSONObject.has("ingressContentRefs")) {
+            uowJSONObject.getJSONArray("ingressContentRefs").forEach(payloadRef -> payloadRefs.add((String)payloadRef));
+        }
+        if (uowJSONObject.has("egressContentRefs")) {
+            uowJSONObject.getJSONArray("egressContentRefs").forEach(payloadRef -> payloadRefs.add((String)payloadRef));
+        }
+        return payloadRefs;
+    }
+
     public PetasosParcel createParcel() {
+        return createParcel(null);
+    }
+
+    // the payload store resolves the content references, it can be null for parcels with inline content
+    public PetasosParcel createParcel(PetasosPayloadStore payloadStore) {
         // create the parcel and registration information
         JSONObject registrationObject = parcelJSON.getJSONObject("parcelRegistration");
 
@@ -219,6 +445,8 @@ public class PetasosParcelJSON {
         if (registrationObject.has("parcelExpectedCompletionInstant")) {
             if (registrationObject.getLong("parcelExpectedCompletionInstant") > 0) {
                 parcelRegistration.setParcelExpectedCompletionInstant(Instant.ofEpochMilli(registrationObject.getLong("parcelExpectedCompletionInstant")));                    
+            } else {
+                parcelRegistration.setParcelExpectedCompletionInstant(Instant.MAX);
             }
         }
         parcelRegistration.setSupportingFunctionFDN(new FDN(registrationObject.getString("supportingFunctionFDN")));
@@ -238,27 +466,40 @@ public class PetasosParcelJSON {
         //create the parcel
         PetasosParcel parcel = new PetasosParcel(parcelRegistration);
         
-        parcel.setParcelStatus(PetasosParcelStatusEnum.valueOf(parcelJSON.getString("parcelStatus")));
+        parcel.setParcelStatus(PetasosParcelStatusEnum.fromPetasosParcelStatus(parcelJSON.getString("parcelStatus")));
+        // after setting the status, so the recorded transitions replace the one it adds
+        if (parcelJSON.has("statusTransitions")) {
+            JSONObject statusTransitions = parcelJSON.getJSONObject("statusTransitions");
+            statusTransitions.keySet().forEach(parcelStatus -> {
+                parcel.setStatusTransitionInstant(PetasosParcelStatusEnum.fromPetasosParcelStatus(parcelStatus),
+                        Instant.ofEpochMilli(statusTransitions.getLong(parcelStatus)));
+            });
+        }
 
         // create the UoW object        
         UoW uow = new UoW(new FDN(parcelJSON.getJSONObject("uow").getString("uowFDN")), new FDN(parcelJSON.getJSONObject("uow").getString("requiredFunctionFDN")));
 
-        if (parcelJSON.getJSONObject("uow").has("ingressContent")) {
-            HashSet<String> ingressContent = new HashSet<>();
-            parcelJSON.getJSONObject("uow").getJSONArray("ingressContent").forEach(ingress -> {
-                ingressContent.add(((JSONObject)ingress).toString());
-            });
-            uow.setUowIngressContent(ingressContent);
+        // the content is only turned back into strings (or fetched from the payload store)
+        // if the UoW content is asked for, most callers only want the status and FDNs
+        JSONObject uowJSONObject = parcelJSON.getJSONObject("uow");
+        if (uowJSONObject.has("ingressContent")) {
+            JSONArray ingressContent = uowJSONObject.getJSONArray("ingressContent");
+            uow.setUowIngressContentLoader(() -> readContent(ingressContent));
         }
-        if (parcelJSON.getJSONObject("uow").has("egressContent")) {
-            HashSet<String> egressContent = new HashSet<>();
-            parcelJSON.getJSONObject("uow").getJSONArray("egressContent").forEach(egress -> {
-                egressContent.add(((JSONObject)egress).toString());
-            });
-            uow.setUowEgressContent(egressContent);
+        if (uowJSONObject.has("egressContent")) {
+            JSONArray egressContent = uowJSONObject.getJSONArray("egressContent");
+            uow.setUowEgressContentLoader(() -> readContent(egressContent));
+        }
+        if (uowJSONObject.has("ingressContentRefs")) {
+            JSONArray ingressContentRefs = uowJSONObject.getJSONArray("ingressContentRefs");
+            uow.setUowIngressContentLoader(() -> loadPayloads(payloadStore, ingressContentRefs));
+        }
+        if (uowJSONObject.has("egressContentRefs")) {
+            JSONArray egressContentRefs = uowJSONObject.getJSONArray("egressContentRefs");
+            uow.setUowEgressContentLoader(() -> loadPayloads(payloadStore, egressContentRefs));
         }
         if (parcelJSON.getJSONObject("uow").has("processingOutcome")) {
-            uow.setUowProcessingOutcome(UoWProcessingOutcomeEnum.valueOf(parcelJSON.getJSONObject("uow").getString("processingOutcome")));
+            uow.setUowProcessingOutcome(UoWProcessingOutcomeEnum.fromUoWProcessingOutcome(parcelJSON.getJSONObject("uow").getString("processingOutcome")));
         }
         parcel.setUoW(uow);
 
@@ -266,7 +507,7 @@ public class PetasosParcelJSON {
             HashSet<FDN> successorParcelFDNs = new HashSet<>();
             parcelJSON.getJSONArray("successorParcels").forEach(successor -> {
                 FDN successorParcelFDN  = new FDN();
-                successorParcelFDN.populateFDN((String)successor);
+                successorParcelFDN.populateFDN(((JSONObject)successor).getString("FDN"));
                 successorParcelFDNs.add(successorParcelFDN);
             });
             parcel.setSuccessorParcels(successorParcelFDNs);
@@ -274,7 +515,7 @@ public class PetasosParcelJSON {
 
         if (parcelJSON.has("watchdogStatus")) {
             PetasosWUPWatchdogState watchdogState = new PetasosWUPWatchdogState(new FDN(parcelJSON.getJSONObject("watchdogStatus").getString("wupFDN")),
-                    ComponentStatusEnum.valueOf(parcelJSON.getJSONObject("watchdogStatus").getString("wupStatus")),
+                    ComponentStatusEnum.fromComponentWatchdogState(parcelJSON.getJSONObject("watchdogStatus").getString("wupStatus")),
                     Instant.ofEpochMilli(parcelJSON.getJSONObject("watchdogStatus").getLong("lastStatusUpdate")));
             parcel.setTaskProcessorState(watchdogState);
         }
@@ -284,5 +525,27 @@ public class PetasosParcelJSON {
         }
 
         return parcel;
-    }    
+    }
+
+    // compressed content is a string rather than an object, left compressed for the UoW to decompress
+    private static HashSet<String> readContent(JSONArray contentArray) {
+        HashSet<String> content = new HashSet<>();
+        contentArray.forEach(payload -> content.add(payload.toString()));
+        return content;
+    }
+
+    private HashSet<String> loadPayloads(PetasosPayloadStore payloadStore, JSONArray payloadRefs) {
+        HashSet<String> content = new HashSet<>();
+        if (payloadStore == null) {
+            LOG.error("Parcel " + getParcelFDN() + " has content references but no payload store to resolve them");
+            return content;
+        }
+        payloadRefs.forEach(payloadRef -> {
+            String payload = payloadStore.loadPayload((String)payloadRef);
+            if (payload != null) {
+                content.add(payload);
+            }
+        });
+        return content;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,256 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.fhirbox.pegacorn.petasos.jfr.PetasosFlightRecorder;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadCompression;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadStore;
+
+/**
+ * Writes a parcel as JSON straight to a buffer or any Appendable, without building the
+ * JSONObject tree PetasosParcelJSON does. The UoW content is already JSON so is copied
+ * in as is rather than being parsed and written out again, which is where most of the
+ * time and garbage went for large payloads.
+ *
+ * The JSON is the same as PetasosParcelJSON(PetasosParcel) followed by
+ * externalisePayloads (with a payload store) or compressPayloads (without), so either
+ * can read it. Keys are written in a fixed order where org.json uses hash order, and
+ * content is not re-normalised, so it isn't byte for byte the same.
+ *
+ * Not thread safe, get() gives each thread its own writer with a reused buffer.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosParcelJSONWriter {
+    private static final int INITIAL_CAPACITY = 4096;
+    // don't hang on to the buffer after an unusually large parcel
+    private static final int MAXIMUM_RETAINED_CAPACITY = 1024 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<PetasosParcelJSONWriter> WRITERS = ThreadLocal.withInitial(PetasosParcelJSONWriter::new);
+
+    private StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+
+    public static PetasosParcelJSONWriter get() {
+        return WRITERS.get();
+    }
+
+    public String toJSONString(PetasosParcel parcel) {
+        return toJSONString(parcel, null, new HashSet<>());
+    }
+
+    /**
+     * @param payloadStore where the UoW content goes, null to write it inline (compressed
+     * if large)
+     * @param parcelPayloadRefs the payload references the parcel already holds, the
+     * references it now holds are added
+     */
+    public String toJSONString(PetasosParcel parcel, PetasosPayloadStore payloadStore, Set<String> parcelPayloadRefs) {
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginParcelJSON() : null;
+        buffer.setLength(0);
+        try {
+            writeParcel(parcel, payloadStore, parcelPayloadRefs, buffer);
+        } catch (IOException cantHappen) {
+            // StringBuilder doesn't throw
+            throw new UncheckedIOException(cantHappen);
+        }
+        String parcelString = buffer.toString();
+        if (buffer.capacity() > MAXIMUM_RETAINED_CAPACITY) {
+            buffer = new StringBuilder(INITIAL_CAPACITY);
+        }
+        if (flightRecorderEvent != null) {
+            PetasosFlightRecorder.commitParcelJSON(flightRecorderEvent, "encode", parcel.getParcelRegistration().getParcelFDN().getQualifiedFDN(),
+                    parcelString.length());
+        }
+        return parcelString;
+    }
+
+    public void writeParcel(PetasosParcel parcel, PetasosPayloadStore payloadStore, Set<String> parcelPayloadRefs, Appendable out) throws IOException {
+        out.append("{\"parcelStatus\":");
+        writeString(parcel.getParcelStatus().getPetasosParcelStatus(), out);
+
+        out.append(",\"statusTransitions\":{");
+        boolean first = true;
+        for (Map.Entry<PetasosParcelStatusEnum, Instant> statusTransition : parcel.getStatusTransitions().entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            writeString(statusTransition.getKey().getPetasosParcelStatus(), out);
+            out.append(':').append(Long.toString(statusTransition.getValue().toEpochMilli()));
+        }
+        out.append('}');
+
+        writeRegistration(parcel.getParcelRegistration(), out);
+        writeUoW(parcel.getContainedUoW(), payloadStore, parcelPayloadRefs, out);
+
+        out.append(",\"successorParcels\":[");
+        first = true;
+        for (FDN successorParcelFDN : parcel.getSuccessorParcelSet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append("{\"FDN\":");
+            writeString(successorParcelFDN.getQualifiedFDN(), out);
+            out.append('}');
+        }
+        out.append(']');
+
+        if (parcel.getTaskProcessorState() != null) {
+            out.append(",\"watchdogStatus\":{\"wupFDN\":");
+            writeString(parcel.getTaskProcessorState().getWupFDN().getQualifiedFDN(), out);
+            out.append(",\"wupStatus\":");
+            writeString(parcel.getTaskProcessorState().getWupStatus().getComponentWatchdogState(), out);
+            out.append(",\"lastStatusUpdate\":").append(Long.toString(parcel.getTaskProcessorState().getLastStatusUpdate().toEpochMilli()));
+            out.append('}');
+        }
+
+        if (parcel.getPrecursorParcel() != null) {
+            out.append(",\"precursorParcelFDN\":");
+            writeString(parcel.getPrecursorParcel().getQualifiedFDN(), out);
+        }
+        out.append('}');
+    }
+
+    private void writeRegistration(PetasosParcelRegistration registration, Appendable out) throws IOException {
+        // an open ended parcel (Instant.MAX) can't be held as epoch millis, so is written as 0
+        Instant expectedCompletion = registration.getParcelExpectedCompletionInstant();
+        out.append(",\"parcelRegistration\":{\"parcelFDN\":");
+        writeString(registration.getParcelFDN().getQualifiedFDN(), out);
+        out.append(",\"parcelInstantiationInstant\":").append(Long.toString(registration.getParcelInstantiationInstant().toEpochMilli()));
+        out.append(",\"parcelExpectedCompletionInstant\":")
+                .append(Long.toString((expectedCompletion == null || expectedCompletion.equals(Instant.MAX)) ? 0L : expectedCompletion.toEpochMilli()));
+        out.append(",\"supportingFunctionFDN\":");
+        writeString(registration.getSupportingFunctionFDN().getQualifiedFDN(), out);
+        if (registration.getRegisteredWUPList() != null) {
+            out.append(",\"registeredWUPList\":[");
+            boolean first = true;
+            for (FDN wupFDN : registration.getRegisteredWUPList()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(wupFDN.getQualifiedFDN(), out);
+            }
+            out.append(']');
+        }
+        if (registration.getContainedUoW() != null) {
+            out.append(",\"containedUoW\":");
+            writeString(registration.getContainedUoW().getQualifiedFDN(), out);
+        }
+        out.append('}');
+    }
+
+    private void writeUoW(UoW uow, PetasosPayloadStore payloadStore, Set<String> parcelPayloadRefs, Appendable out) throws IOException {
+        out.append(",\"uow\":{\"uowFDN\":");
+        writeString(uow.getUoWFDN().getQualifiedFDN(), out);
+        out.append(",\"requiredFunctionFDN\":");
+        writeString(uow.getRequiredFunctionFDN().getQualifiedFDN(), out);
+        writeContent(payloadStore == null ? ",\"ingressContent\":[" : ",\"ingressContentRefs\":[", uow.getUowIngressContent(), payloadStore, parcelPayloadRefs, out);
+        writeContent(payloadStore == null ? ",\"egressContent\":[" : ",\"egressContentRefs\":[", uow.getUowEgressContent(), payloadStore, parcelPayloadRefs, out);
+        if (uow.getUowProcessingOutcome() != null) {
+            out.append(",\"processingOutcome\":");
+            writeString(uow.getUowProcessingOutcome().getUoWProcessingOutcome(), out);
+        }
+        out.append('}');
+    }
+
+    private void writeContent(String contentKey, Collection<String> content, PetasosPayloadStore payloadStore, Set<String> parcelPayloadRefs,
+            Appendable out) throws IOException {
+        out.append(contentKey);
+        if (content != null) {
+            boolean first = true;
+            for (String payload : content) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                if (payloadStore != null) {
+                    String payloadRef = payloadStore.storePayload(payload, parcelPayloadRefs);
+                    parcelPayloadRefs.add(payloadRef);
+                    writeString(payloadRef, out);
+                    continue;
+                }
+                String compressedPayload = PetasosPayloadCompression.compress(payload);
+                if (compressedPayload == payload) {
+                    // already JSON, copied as is
+                    out.append(payload);
+                } else {
+                    writeString(compressedPayload, out);
+                }
+            }
+        }
+        out.append(']');
+    }
+
+    // as JSON requires, quotes, backslashes and control characters are escaped
+    private static void writeString(String value, Appendable out) throws IOException {
+        out.append('"');
+        int unescapedFrom = 0;
+        int length = value.length();
+        for (int index = 0; index < length; index++) {
+            char character = value.charAt(index);
+            if (character >= 0x20 && character != '"' && character != '\\') {
+                continue;
+            }
+            out.append(value, unescapedFrom, index);
+            unescapedFrom = index + 1;
+            switch (character) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append("\\u00").append(HEX_DIGITS[(character >> 4) & 0xF]).append(HEX_DIGITS[character & 0xF]);
+            }
+        }
+        out.append(value, unescapedFrom, length);
+        out.append('"');
+    }
+}
@@ -45,16 +45,20 @@ public class PetasosWUPWatchdogStateJSON {
     public PetasosWUPWatchdogStateJSON(PetasosWUPWatchdogState watchdogState) {
         this.watchdogStateJSON = new JSONObject()
             .put("wupFDN", watchdogState.getWupFDN().getQualifiedFDN())
-            .put("wupStatus", ComponentStatusEnum.valueOf(watchdogState.getWupStatus().getComponentWatchdogState()))
+            .put("wupStatus", watchdogState.getWupStatus().getComponentWatchdogState())
             .put("lastStatusUpdate", watchdogState.getLastStatusUpdate().toEpochMilli());
     }
     
     public PetasosWUPWatchdogState createWatchdogState() {
         return new PetasosWUPWatchdogState(new FDN(watchdogStateJSON.getString("wupFDN")),
-                ComponentStatusEnum.valueOf(watchdogStateJSON.getString("wupStatus")),
+                ComponentStatusEnum.fromComponentWatchdogState(watchdogStateJSON.getString("wupStatus")),
                 Instant.ofEpochMilli(watchdogStateJSON.getLong("lastStatusUpdate")));
     }
     
+    public long getLastStatusUpdate() {
+        return watchdogStateJSON.getLong("lastStatusUpdate");
+    }
+    
     public String toJSONString() {
         return watchdogStateJSON.toString();
     }
@@ -0,0 +1,248 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.dispatch;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.Cache;
+
+import net.fhirbox.pegacorn.petasos.cache.ParcelAffinity;
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.WorkUnitProcessor;
+
+/**
+ * Hands registered parcels to this node's WUPs, by the function the parcel needs.
+ *
+ * Every node sees every new parcel (through the clustered ParcelMonitor). A parcel
+ * whose cache segment is primary on this node is local work, its reads and writes
+ * as it goes through the WUP stay on this node, so it goes straight to an idle WUP
+ * of the function, or onto the function's ready queue if none is idle. Any other
+ * parcel is only held as remote work, given out once it is older than the remote
+ * delay and only if it is still registered, which covers functions with no WUP on
+ * the owning node. The owner normally takes the parcel long before then, and nothing
+ * tells this node it has, so the remote work held for a function is bounded and the
+ * oldest is dropped to make room.
+ *
+ * A WUP takes work from its own queue first, then the function's ready queue, then
+ * steals from the other WUPs of the function, then remote work. All of the queues are
+ * lock free, so WUPs on different cores only contend when stealing.
+ *
+ * A parcel can still be given to more than one WUP (e.g. on two nodes), startActivity
+ * remains what decides which of them goes ahead.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class WorkUnitDispatcher {
+    public static final long DEFAULT_REMOTE_DELAY_MILLIS = 1000L;
+    public static final int DEFAULT_MAX_REMOTE_PARCELS = 10000;
+
+    private Cache<String, String> petasosParcelCache;
+    private ParcelAffinity parcelAffinity;
+    private long remoteDelayMillis = DEFAULT_REMOTE_DELAY_MILLIS;
+    // per function
+    private int maxRemoteParcels = DEFAULT_MAX_REMOTE_PARCELS;
+    // keyed by supporting function FDN
+    private ConcurrentHashMap<String, FunctionQueues> functionQueues = new ConcurrentHashMap<>();
+    // keyed by WUP FDN
+    private ConcurrentHashMap<String, WUPQueue> wupQueues = new ConcurrentHashMap<>();
+
+    public WorkUnitDispatcher(Cache<String, String> petasosParcelCache) {
+        this.petasosParcelCache = petasosParcelCache;
+        this.parcelAffinity = new ParcelAffinity(petasosParcelCache);
+    }
+
+    public void registerWUP(FDN wupFDN, FDN supportedFunctionFDN) {
+        wupQueues.computeIfAbsent(wupFDN.getQualifiedFDN(), wupKey -> {
+            WUPQueue wupQueue = new WUPQueue(new WorkUnitProcessor(wupFDN, supportedFunctionFDN));
+            functionQueues.computeIfAbsent(supportedFunctionFDN.getQualifiedFDN(), functionKey -> new FunctionQueues())
+                    .wupQueues.add(wupQueue);
+            return wupQueue;
+        });
+    }
+
+    /**
+     * Queues a newly registered parcel, if this node has a WUP for its function.
+     */
+    public void dispatch(String parcelQualifiedFDN, PetasosParcelJSON parcelJSON) {
+        if (parcelJSON.getParcelStatus() != PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED) {
+            return;
+        }
+        FunctionQueues queues = functionQueues.get(parcelJSON.getSupportingFunctionFDN());
+        if (queues == null) {
+            return;
+        }
+        if (!parcelAffinity.isLocalPrimary(parcelQualifiedFDN)) {
+            queues.addRemoteParcel(new RemoteParcel(parcelQualifiedFDN, System.currentTimeMillis() + remoteDelayMillis), maxRemoteParcels);
+            return;
+        }
+        WUPQueue idleWUP = queues.nextIdleWUP();
+        if (idleWUP != null) {
+            idleWUP.assignedParcels.addLast(parcelQualifiedFDN);
+        } else {
+            queues.readyParcels.add(parcelQualifiedFDN);
+        }
+    }
+
+    /**
+     * @return the FDN of the next parcel for the WUP, or null if there is no work for
+     * it (in which case it is idle until it next asks)
+     */
+    public String takeWork(FDN wupFDN) {
+        WUPQueue wupQueue = wupQueues.get(wupFDN.getQualifiedFDN());
+        if (wupQueue == null) {
+            return null;
+        }
+        FunctionQueues queues = functionQueues.get(wupQueue.wup.getSupportedFunctionFDN().getQualifiedFDN());
+        String parcelQualifiedFDN = wupQueue.assignedParcels.pollFirst();
+        if (parcelQualifiedFDN == null) {
+            parcelQualifiedFDN = queues.readyParcels.poll();
+        }
+        if (parcelQualifiedFDN == null) {
+            parcelQualifiedFDN = queues.steal(wupQueue);
+        }
+        if (parcelQualifiedFDN == null) {
+            parcelQualifiedFDN = takeRemoteWork(queues);
+        }
+        wupQueue.wup.setProcessorStatus(parcelQualifiedFDN == null ? ComponentStatusEnum.COMPONENT_STATUS_IDLE : ComponentStatusEnum.COMPONENT_STATUS_ACTIVE);
+        return parcelQualifiedFDN;
+    }
+
+    /**
+     * @return the parcels waiting for a WUP on this node, local and remote
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for (FunctionQueues queues : functionQueues.values()) {
+            queued += queues.readyParcels.size() + queues.remoteParcelCount.get();
+            for (WUPQueue wupQueue : queues.wupQueues) {
+                queued += wupQueue.assignedParcels.size();
+            }
+        }
+        return queued;
+    }
+
+    public void setRemoteDelayMillis(long remoteDelayMillis) {
+        this.remoteDelayMillis = remoteDelayMillis;
+    }
+
+    public void setMaxRemoteParcels(int maxRemoteParcels) {
+        this.maxRemoteParcels = maxRemoteParcels;
+    }
+
+    // Only due remote parcels, and only those still waiting for a WUP. The status check
+    // is a cache read from the owner, acceptable as this is the fallback path.
+    private String takeRemoteWork(FunctionQueues queues) {
+        long now = System.currentTimeMillis();
+        RemoteParcel remoteParcel;
+        while ((remoteParcel = queues.remoteParcels.peek()) != null && remoteParcel.dueMillis <= now) {
+            if (!queues.remoteParcels.remove(remoteParcel)) {
+                // taken by another WUP
+                continue;
+            }
+            queues.remoteParcelCount.decrementAndGet();
+            String parcelJSON = petasosParcelCache.get(remoteParcel.parcelQualifiedFDN);
+            if (parcelJSON != null && new PetasosParcelJSON(parcelJSON).getParcelStatus() == PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED) {
+                return remoteParcel.parcelQualifiedFDN;
+            }
+        }
+        return null;
+    }
+
+    private static class FunctionQueues {
+        private final List<WUPQueue> wupQueues = new CopyOnWriteArrayList<>();
+        private final ConcurrentLinkedQueue<String> readyParcels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<RemoteParcel> remoteParcels = new ConcurrentLinkedQueue<>();
+        // the queue's size() walks the whole queue
+        private final AtomicInteger remoteParcelCount = new AtomicInteger();
+        // where the next search for an idle WUP (or one to steal from) starts, so the
+        // work spreads over the WUPs rather than piling onto the first
+        private final AtomicInteger nextWUP = new AtomicInteger();
+
+        // the oldest remote parcels are the ones most likely already taken on their owner
+        void addRemoteParcel(RemoteParcel remoteParcel, int maxRemoteParcels) {
+            remoteParcels.add(remoteParcel);
+            if (remoteParcelCount.incrementAndGet() <= maxRemoteParcels) {
+                return;
+            }
+            if (remoteParcels.poll() != null) {
+                remoteParcelCount.decrementAndGet();
+            }
+        }
+
+        WUPQueue nextIdleWUP() {
+            int wupCount = wupQueues.size();
+            int start = nextWUP.getAndIncrement();
+            for (int i = 0; i < wupCount; i++) {
+                WUPQueue wupQueue = wupQueues.get(Math.floorMod(start + i, wupCount));
+                if (wupQueue.wup.getProcessorStatus() == ComponentStatusEnum.COMPONENT_STATUS_IDLE && wupQueue.assignedParcels.isEmpty()) {
+                    return wupQueue;
+                }
+            }
+            return null;
+        }
+
+        // from the tail, the opposite end to the one the owner takes from
+        String steal(WUPQueue thief) {
+            int wupCount = wupQueues.size();
+            int start = nextWUP.getAndIncrement();
+            for (int i = 0; i < wupCount; i++) {
+                WUPQueue victim = wupQueues.get(Math.floorMod(start + i, wupCount));
+                if (victim != thief) {
+                    String parcelQualifiedFDN = victim.assignedParcels.pollLast();
+                    if (parcelQualifiedFDN != null) {
+                        return parcelQualifiedFDN;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class WUPQueue {
+        private final WorkUnitProcessor wup;
+        private final ConcurrentLinkedDeque<String> assignedParcels = new ConcurrentLinkedDeque<>();
+
+        WUPQueue(WorkUnitProcessor wup) {
+            this.wup = wup;
+        }
+    }
+
+    private static class RemoteParcel {
+        private final String parcelQualifiedFDN;
+        private final long dueMillis;
+
+        RemoteParcel(String parcelQualifiedFDN, long dueMillis) {
+            this.parcelQualifiedFDN = parcelQualifiedFDN;
+            this.dueMillis = dueMillis;
+        }
+    }
+}
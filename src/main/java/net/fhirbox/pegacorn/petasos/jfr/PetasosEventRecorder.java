@@ -0,0 +1,53 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.jfr;
+
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+
+/**
+ * What PetasosFlightRecorder hands the events to. The implementation and the event
+ * classes use jdk.jfr, so they are built from src/main/java11 (by the jfr profile, on
+ * JDK 11 or later) and loaded by name, leaving the rest of Petasos buildable for Java 8.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+interface PetasosEventRecorder {
+
+    Object beginAgentCall();
+
+    void commitAgentCall(Object agentCall, String method, FDN fdn, UoW uow);
+
+    Object beginParcelJSON();
+
+    void commitParcelJSON(Object parcelJSON, String operation, String parcelFDN, int payloadSize);
+
+    Object beginParcelMonitor();
+
+    void commitParcelMonitor(Object parcelMonitor, String parcelFDN, int payloadSize);
+
+    Object beginNodeRegistration();
+
+    void commitNodeRegistration(Object nodeRegistration, String registration, String fdn, String wupFDN);
+}
@@ -0,0 +1,113 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.jfr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+
+/**
+ * Emits the Petasos Flight Recorder events, so latency spikes in a JFR dump can be
+ * tied to the agent call, parcel JSON, ParcelMonitor callback or node registration
+ * behind them.
+ *
+ * Events are off unless PETASOS_JFR_EVENTS_ENABLED=true. Callers check ENABLED before
+ * calling in here, and as it is a static final the check is compiled away when off.
+ * Once enabled the events show in any recording, e.g. jcmd <pid> JFR.start.
+ *
+ * The event classes need jdk.jfr, so they live in src/main/java11 and are only built
+ * by the jfr profile (active on JDK 11 or later). They are loaded by name here, so this
+ * class, and everything calling it, still builds with --release 8. On a JVM without
+ * the flight recorder, or a jar built without the events, they stay off.
+ *
+ * The begin methods return the event as an Object so callers don't reference the
+ * event classes.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosFlightRecorder {
+    private static final Logger LOG = LoggerFactory.getLogger(PetasosFlightRecorder.class);
+
+    private static final String EVENT_RECORDER_CLASS = "net.fhirbox.pegacorn.petasos.jfr.PetasosJFREventRecorder";
+
+    // null unless the events are enabled
+    private static final PetasosEventRecorder EVENT_RECORDER = loadEventRecorder();
+
+    public static final boolean ENABLED = EVENT_RECORDER != null;
+
+    private static PetasosEventRecorder loadEventRecorder() {
+        if (!"true".equalsIgnoreCase(System.getenv("PETASOS_JFR_EVENTS_ENABLED"))) {
+            return null;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+        } catch (ClassNotFoundException noFlightRecorder) {
+            LOG.warn("PETASOS_JFR_EVENTS_ENABLED is set but this JVM has no flight recorder, events disabled");
+            return null;
+        }
+        try {
+            PetasosEventRecorder eventRecorder = (PetasosEventRecorder) Class.forName(EVENT_RECORDER_CLASS).getDeclaredConstructor().newInstance();
+            LOG.info("Petasos flight recorder events enabled");
+            return eventRecorder;
+        } catch (ReflectiveOperationException | LinkageError noEventClasses) {
+            // built without the jfr profile, or the classes are newer than this JVM
+            LOG.warn("PETASOS_JFR_EVENTS_ENABLED is set but the Petasos flight recorder events aren't available, events disabled", noEventClasses);
+            return null;
+        }
+    }
+
+    public static Object beginAgentCall() {
+        return EVENT_RECORDER.beginAgentCall();
+    }
+
+    public static void commitAgentCall(Object agentCall, String method, FDN fdn, UoW uow) {
+        EVENT_RECORDER.commitAgentCall(agentCall, method, fdn, uow);
+    }
+
+    public static Object beginParcelJSON() {
+        return EVENT_RECORDER.beginParcelJSON();
+    }
+
+    public static void commitParcelJSON(Object parcelJSON, String operation, String parcelFDN, int payloadSize) {
+        EVENT_RECORDER.commitParcelJSON(parcelJSON, operation, parcelFDN, payloadSize);
+    }
+
+    public static Object beginParcelMonitor() {
+        return EVENT_RECORDER.beginParcelMonitor();
+    }
+
+    public static void commitParcelMonitor(Object parcelMonitor, String parcelFDN, int payloadSize) {
+        EVENT_RECORDER.commitParcelMonitor(parcelMonitor, parcelFDN, payloadSize);
+    }
+
+    public static Object beginNodeRegistration() {
+        return EVENT_RECORDER.beginNodeRegistration();
+    }
+
+    public static void commitNodeRegistration(Object nodeRegistration, String registration, String fdn, String wupFDN) {
+        EVENT_RECORDER.commitNodeRegistration(nodeRegistration, registration, fdn, wupFDN);
+    }
+}
@@ -0,0 +1,259 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.journal;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadStore;
+
+/**
+ * Where finalised parcels go once they expire from the parcel cache, so the cache only
+ * holds in-flight work. Until there is a Hestia connection this is a set of JSON lines
+ * files next to the journal, one parcel per line:
+ *   {"parcelFDN":..., "archivedInstant":..., "parcel":{...}, "payloads":{ref:payload, ...}}
+ * The payloads the parcel refers to are copied in (as held, so possibly compressed)
+ * as the payload store releases them once the parcel is archived.
+ *
+ * Expired parcels are queued and written in batches by the ArchiveTask, each batch
+ * forced to disk before its payloads are released. A parcel queued but not yet
+ * written when the node stops is only in the journal of the node(s) that moved it.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelArchive {
+    private static final Logger LOG = LoggerFactory.getLogger(ParcelArchive.class);
+
+    public static final long DEFAULT_FILE_SIZE_BYTES = 64L * 1024L * 1024L;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_ARCHIVE_INTERVAL_MILLIS = 1000L;
+
+    private static final String ARCHIVE_FILE_PREFIX = "parcel-archive-";
+    private static final String ARCHIVE_FILE_SUFFIX = ".jsonl";
+
+    private final Path archiveDirectory;
+    private final long fileSizeBytes;
+    private final int batchSize;
+    private final long archiveIntervalMillis;
+
+    private final ConcurrentLinkedQueue<ExpiredParcel> expiredParcels = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingParcels = new AtomicInteger();
+    private final AtomicLong archivedParcels = new AtomicLong();
+    private PetasosPayloadStore payloadStore;
+
+    private FileChannel archiveChannel;
+    private Writer archiveWriter;
+    private long archiveFileBytes;
+    private volatile boolean closed = false;
+
+    public ParcelArchive(Path archiveDirectory) {
+        this(archiveDirectory, DEFAULT_FILE_SIZE_BYTES, DEFAULT_BATCH_SIZE, DEFAULT_ARCHIVE_INTERVAL_MILLIS);
+    }
+
+    public ParcelArchive(Path archiveDirectory, long fileSizeBytes, int batchSize, long archiveIntervalMillis) {
+        this.archiveDirectory = archiveDirectory;
+        this.fileSizeBytes = fileSizeBytes;
+        this.batchSize = batchSize;
+        this.archiveIntervalMillis = archiveIntervalMillis;
+    }
+
+    public synchronized void open() throws IOException {
+        Files.createDirectories(archiveDirectory);
+        openArchiveFile();
+    }
+
+    // payloads are resolved and released through the store, without one parcels are archived as they are
+    public void setPayloadStore(PetasosPayloadStore payloadStore) {
+        this.payloadStore = payloadStore;
+    }
+
+    /**
+     * Queues an expired parcel for the next batch, doesn't block.
+     */
+    public void archive(String parcelQualifiedFDN, String parcelJSON) {
+        expiredParcels.add(new ExpiredParcel(parcelQualifiedFDN, parcelJSON));
+        pendingParcels.incrementAndGet();
+    }
+
+    /**
+     * Writes up to a batch of the queued parcels and forces them to disk.
+     *
+     * @return the number of parcels archived
+     */
+    public int archiveBatch() throws IOException {
+        List<ExpiredParcel> batch = new ArrayList<>(batchSize);
+        ExpiredParcel expiredParcel;
+        while (batch.size() < batchSize && (expiredParcel = expiredParcels.poll()) != null) {
+            batch.add(expiredParcel);
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<Set<String>> batchPayloadRefs = new ArrayList<>(batch.size());
+        synchronized (this) {
+            try {
+                for (ExpiredParcel parcel : batch) {
+                    Set<String> payloadRefs = new PetasosParcelJSON(parcel.parcelJSON).getPayloadRefs();
+                    batchPayloadRefs.add(payloadRefs);
+                    writeRecord(parcel, payloadRefs);
+                }
+                archiveWriter.flush();
+                archiveChannel.force(false);
+            } catch (IOException | RuntimeException e) {
+                // put the batch back for the next attempt, any records that did make it
+                // to the file are archived twice rather than not at all
+                expiredParcels.addAll(batch);
+                throw e;
+            }
+            if (archiveFileBytes >= fileSizeBytes) {
+                rotateArchiveFile();
+            }
+        }
+        pendingParcels.addAndGet(-batch.size());
+        archivedParcels.addAndGet(batch.size());
+        // only once they are safely in the archive
+        if (payloadStore != null) {
+            batchPayloadRefs.forEach(payloadRefs -> payloadRefs.forEach(payloadStore::releasePayload));
+        }
+        return batch.size();
+    }
+
+    public int getPendingCount() {
+        return pendingParcels.get();
+    }
+
+    public long getArchivedCount() {
+        return archivedParcels.get();
+    }
+
+    public Path getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            archiveWriter.flush();
+            archiveChannel.force(false);
+            archiveWriter.close();
+        } catch (IOException ioe) {
+            LOG.warn("Error closing parcel archive", ioe);
+        }
+    }
+
+    // called with the archive lock held
+    private void writeRecord(ExpiredParcel parcel, Set<String> payloadRefs) throws IOException {
+        StringBuilder record = new StringBuilder(parcel.parcelJSON.length() + 128);
+        record.append("{\"parcelFDN\":").append(JSONObject.quote(parcel.parcelQualifiedFDN))
+                .append(",\"archivedInstant\":").append(System.currentTimeMillis())
+                .append(",\"parcel\":").append(parcel.parcelJSON);
+        if (!payloadRefs.isEmpty() && payloadStore != null) {
+            record.append(",\"payloads\":{");
+            boolean first = true;
+            for (String payloadRef : payloadRefs) {
+                String payload = payloadStore.loadPayload(payloadRef);
+                if (payload == null) {
+                    continue;
+                }
+                if (!first) {
+                    record.append(',');
+                }
+                first = false;
+                record.append(JSONObject.quote(payloadRef)).append(':').append(JSONObject.quote(payload));
+            }
+            record.append('}');
+        }
+        record.append("}\n");
+        archiveWriter.append(record);
+        // close enough for deciding when to roll the file
+        archiveFileBytes += record.length();
+    }
+
+    // called with the archive lock held
+    private void rotateArchiveFile() throws IOException {
+        archiveWriter.close();
+        openArchiveFile();
+    }
+
+    private void openArchiveFile() throws IOException {
+        // time ordered names, so the files list in the order they were written
+        Path archiveFile = archiveDirectory.resolve(String.format("%s%020d%s", ARCHIVE_FILE_PREFIX, System.currentTimeMillis(), ARCHIVE_FILE_SUFFIX));
+        archiveChannel = FileChannel.open(archiveFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        archiveWriter = new OutputStreamWriter(Channels.newOutputStream(archiveChannel), StandardCharsets.UTF_8);
+        archiveFileBytes = archiveChannel.size();
+        LOG.debug("Opened parcel archive file " + archiveFile);
+    }
+
+    private static class ExpiredParcel {
+        private final String parcelQualifiedFDN;
+        private final String parcelJSON;
+
+        ExpiredParcel(String parcelQualifiedFDN, String parcelJSON) {
+            this.parcelQualifiedFDN = parcelQualifiedFDN;
+            this.parcelJSON = parcelJSON;
+        }
+    }
+
+    // kick off as a neverending task on the node's executor, same as the journal group commit
+    public class ArchiveTask implements Callable<Integer> {
+        public Integer call() {
+            while (!closed) {
+                try {
+                    // keep writing while there is a backlog, else wait for the next interval
+                    if (archiveBatch() < batchSize) {
+                        Thread.sleep(archiveIntervalMillis);
+                    }
+                } catch (InterruptedException ie) {
+                    // container or node shutting down
+                    return new Integer(0);
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Parcel archive batch failed", e);
+                }
+            }
+            return new Integer(1);
+        }
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local, append-only record of every parcel state transition made on this node.
+ *
+ * The journal is a sequence of fixed size memory-mapped segment files. Each record
+ * is framed as [payload length][CRC32 of payload][payload] where the payload is
+ * [timestamp][key length][key][value length][value] (a value length of -1 records
+ * a removal). Appends only copy into the mapped segment, making them about as cheap
+ * as a cache put; durability comes from a group commit which forces the segment to
+ * disk on a short interval, so one force() covers every append made since the last.
+ *
+ * On startup the segments are replayed in order, stopping at the first zero length
+ * (unused space) or CRC mismatch (a torn write from a crash).
+ *
+ * Once enough segments have filled up they are compacted: the closed segments are
+ * rewritten as one holding only the latest record for each parcel, so a parcel that
+ * lives longer than the retained segments keeps its last state and removed parcels
+ * drop out. A removal is kept for the tombstone retention so an older segment left
+ * behind by a crash mid-compaction can't bring the parcel back.
+ *
+ * The journal also keeps the set of parcels it holds (their latest record not being
+ * a removal), from the startup replay and then each append, so a removal seen for a
+ * parcel this node never wrote isn't journalled.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(ParcelJournal.class);
+
+    public static final long DEFAULT_SEGMENT_SIZE_BYTES = 16L * 1024L * 1024L;
+    public static final int DEFAULT_MAX_RETAINED_SEGMENTS = 8;
+    public static final long DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS = 5L;
+    public static final long DEFAULT_TOMBSTONE_RETENTION_MILLIS = 60L * 60L * 1000L;
+
+    private static final String SEGMENT_FILE_PREFIX = "parcel-journal-";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private static final String COMPACTION_FILE = "parcel-journal-compaction.tmp";
+    // payload length + CRC
+    private static final int RECORD_HEADER_BYTES = 8;
+    // timestamp + key length + value length
+    private static final int PAYLOAD_FIXED_BYTES = 16;
+    private static final int REMOVED_VALUE_LENGTH = -1;
+
+    private final Path journalDirectory;
+    private final long segmentSizeBytes;
+    private final int maxRetainedSegments;
+    private final long groupCommitIntervalMillis;
+
+    private final CRC32 crc = new CRC32();
+    private final Object durabilitySemaphore = new Object();
+    // only one compaction at a time, appends carry on while it runs
+    private final Object compactionSemaphore = new Object();
+    private long tombstoneRetentionMillis = DEFAULT_TOMBSTONE_RETENTION_MILLIS;
+    // futures handed out by whenDurable(), keyed by the sequence they wait for
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> durabilityFutures = new ConcurrentSkipListMap<>();
+    // parcels whose latest record is a transition rather than a removal
+    private final Set<String> heldParcelKeys = ConcurrentHashMap.newKeySet();
+
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segmentBuffer;
+    private long segmentIndex;
+    private int closedSegmentCount;
+    private volatile boolean compactionDue = false;
+    // sequence numbers are per journal instance, they are only used to co-ordinate
+    // the group commit and are not persisted
+    private long appendedSequence = 0;
+    private volatile long durableSequence = 0;
+    private volatile boolean closed = false;
+
+    public ParcelJournal(Path journalDirectory) {
+        this(journalDirectory, DEFAULT_SEGMENT_SIZE_BYTES, DEFAULT_MAX_RETAINED_SEGMENTS, DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS);
+    }
+
+    public ParcelJournal(Path journalDirectory, long segmentSizeBytes, int maxRetainedSegments, long groupCommitIntervalMillis) {
+        this.journalDirectory = journalDirectory;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.maxRetainedSegments = maxRetainedSegments;
+        this.groupCommitIntervalMillis = groupCommitIntervalMillis;
+    }
+
+    /**
+     * Opens the journal for appending. Existing segments are left untouched (so they
+     * can still be replayed) and appends start in a new segment.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(journalDirectory);
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            segmentIndex = 0;
+        } else {
+            segmentIndex = segmentIndexOf(segments.get(segments.size() - 1)) + 1;
+        }
+        closedSegmentCount = segments.size();
+        compactionDue = closedSegmentCount > 1;
+        openSegment(segmentSizeBytes);
+    }
+
+    /**
+     * Appends a parcel state transition.
+     *
+     * @return the sequence number of the record, which can be passed to
+     * awaitDurable() by callers that need to know the record has reached disk
+     */
+    public long append(String parcelKey, String parcelJSON) {
+        byte[] key = parcelKey.getBytes(StandardCharsets.UTF_8);
+        byte[] value = parcelJSON == null ? null : parcelJSON.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = PAYLOAD_FIXED_BYTES + key.length + (value == null ? 0 : value.length);
+
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Parcel journal has been closed");
+            }
+            if (segmentBuffer.remaining() < RECORD_HEADER_BYTES + payloadLength) {
+                rotateSegment(RECORD_HEADER_BYTES + payloadLength);
+            }
+            writeRecord(segmentBuffer, crc, System.currentTimeMillis(), key, value);
+            // under the journal lock, so the set ends up matching the last record appended
+            if (parcelJSON == null) {
+                heldParcelKeys.remove(parcelKey);
+            } else {
+                heldParcelKeys.add(parcelKey);
+            }
+            return ++appendedSequence;
+        }
+    }
+
+    // Writes the payload first, then goes back and fills in the header so the length is
+    // only non-zero once the whole record is in place.
+    private static void writeRecord(ByteBuffer target, CRC32 recordCRC, long timestamp, byte[] key, byte[] value) {
+        int payloadLength = PAYLOAD_FIXED_BYTES + key.length + (value == null ? 0 : value.length);
+        recordCRC.reset();
+        int recordStart = target.position();
+        target.position(recordStart + RECORD_HEADER_BYTES);
+        target.putLong(timestamp);
+        target.putInt(key.length);
+        target.put(key);
+        if (value == null) {
+            target.putInt(REMOVED_VALUE_LENGTH);
+        } else {
+            target.putInt(value.length);
+            target.put(value);
+        }
+        int recordEnd = target.position();
+        ByteBuffer payload = target.duplicate();
+        payload.position(recordStart + RECORD_HEADER_BYTES);
+        payload.limit(recordEnd);
+        recordCRC.update(payload);
+        target.putInt(recordStart + 4, (int) recordCRC.getValue());
+        target.putInt(recordStart, payloadLength);
+    }
+
+    /**
+     * Records the removal of a parcel from the cache.
+     */
+    public long appendRemoval(String parcelKey) {
+        return append(parcelKey, null);
+    }
+
+    /**
+     * @return true if the latest record for the parcel, replayed or appended since, is
+     * a transition rather than a removal
+     */
+    public boolean holdsParcel(String parcelKey) {
+        return heldParcelKeys.contains(parcelKey);
+    }
+
+    /**
+     * Forces everything appended so far to disk. Called periodically by the
+     * GroupCommitTask, but can be called directly.
+     */
+    public void groupCommit() {
+        MappedByteBuffer buffer;
+        long committedSequence;
+        synchronized (this) {
+            if (closed || appendedSequence == durableSequence) {
+                return;
+            }
+            buffer = segmentBuffer;
+            committedSequence = appendedSequence;
+        }
+        // force outside the lock so appends can carry on while the pages are written,
+        // anything appended meanwhile will be picked up by the next group commit
+        buffer.force();
+        markDurable(committedSequence);
+    }
+
+    /**
+     * Non-blocking alternative to awaitDurable(), the future completes on the group
+     * commit that makes the record durable.
+     */
+    public CompletableFuture<Void> whenDurable(long sequence) {
+        if (durableSequence >= sequence) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> durable = durabilityFutures.computeIfAbsent(sequence, key -> new CompletableFuture<>());
+        // the group commit may have run between the check above and registering the future
+        if (durableSequence >= sequence) {
+            durabilityFutures.remove(sequence);
+            durable.complete(null);
+        }
+        return durable;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number has been forced to disk.
+     *
+     * @return true if the record is durable, false if the timeout expired first
+     */
+    public boolean awaitDurable(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (durabilitySemaphore) {
+            while (durableSequence < sequence) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || closed) {
+                    return durableSequence >= sequence;
+                }
+                durabilitySemaphore.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replays every intact record in the journal, oldest first. A null value means
+     * the parcel was removed.
+     *
+     * @return the number of records replayed
+     */
+    public long replay(BiConsumer<String, String> transitionConsumer) throws IOException {
+        return replay((parcelKey, parcelJSON, timestamp) -> transitionConsumer.accept(parcelKey, parcelJSON));
+    }
+
+    /**
+     * As replay(BiConsumer), also giving when each record was written. Replayed before
+     * the journal is opened, the parcels it holds are rebuilt as it goes; once open the
+     * appends keep them current.
+     */
+    public long replay(JournalRecordConsumer recordConsumer) throws IOException {
+        long replayedRecords = 0;
+        if (!Files.isDirectory(journalDirectory)) {
+            return replayedRecords;
+        }
+        boolean rebuildHeldParcels;
+        synchronized (this) {
+            rebuildHeldParcels = segmentChannel == null;
+        }
+        if (rebuildHeldParcels) {
+            heldParcelKeys.clear();
+        }
+        for (Path segment : listSegments()) {
+            replayedRecords += replaySegment(segment, (parcelKey, parcelJSON, timestamp) -> {
+                if (rebuildHeldParcels) {
+                    if (parcelJSON == null) {
+                        heldParcelKeys.remove(parcelKey);
+                    } else {
+                        heldParcelKeys.add(parcelKey);
+                    }
+                }
+                recordConsumer.accept(parcelKey, parcelJSON, timestamp);
+            });
+        }
+        return replayedRecords;
+    }
+
+    private long replaySegment(Path segment, JournalRecordConsumer recordConsumer) throws IOException {
+        long replayedRecords = 0;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                int recordStart = buffer.position();
+                int payloadLength = buffer.getInt();
+                int recordCRC = buffer.getInt();
+                if (payloadLength < PAYLOAD_FIXED_BYTES || payloadLength > buffer.remaining()) {
+                    // end of the used part of the segment
+                    break;
+                }
+                ByteBuffer payload = buffer.duplicate();
+                payload.limit(buffer.position() + payloadLength);
+                CRC32 replayCRC = new CRC32();
+                replayCRC.update(payload);
+                if ((int) replayCRC.getValue() != recordCRC) {
+                    LOG.warn("Parcel journal record failed CRC check, ignoring rest of segment " + segment + " from offset " + recordStart);
+                    break;
+                }
+                long timestamp = buffer.getLong();
+                byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                int valueLength = buffer.getInt();
+                String value = null;
+                if (valueLength != REMOVED_VALUE_LENGTH) {
+                    byte[] valueBytes = new byte[valueLength];
+                    buffer.get(valueBytes);
+                    value = new String(valueBytes, StandardCharsets.UTF_8);
+                }
+                recordConsumer.accept(new String(key, StandardCharsets.UTF_8), value, timestamp);
+                replayedRecords++;
+            }
+        }
+        return replayedRecords;
+    }
+
+    /**
+     * Rewrites the closed segments (all but the one being appended to) as a single
+     * segment holding the latest record for each parcel. Removals older than the
+     * tombstone retention are dropped altogether.
+     *
+     * The compacted segment replaces the newest closed segment, and only then are the
+     * older ones deleted, so a crash part way through leaves either the old segments or
+     * the compacted one followed by (some of) the older ones, which replay to the same
+     * state while the removals are retained.
+     *
+     * @return the number of records in the compacted segment, or -1 if there was
+     * nothing to compact
+     */
+    public int compact() throws IOException {
+        synchronized (compactionSemaphore) {
+            long currentSegmentIndex;
+            synchronized (this) {
+                if (closed) {
+                    return -1;
+                }
+                currentSegmentIndex = segmentIndex;
+                compactionDue = false;
+            }
+            List<Path> closedSegments = new ArrayList<>();
+            for (Path segment : listSegments()) {
+                if (segmentIndexOf(segment) < currentSegmentIndex) {
+                    closedSegments.add(segment);
+                }
+            }
+            if (closedSegments.isEmpty()) {
+                return -1;
+            }
+            Map<String, JournalRecord> latestRecords = new LinkedHashMap<>();
+            for (Path segment : closedSegments) {
+                replaySegment(segment, (parcelKey, parcelJSON, timestamp) -> {
+                    // re-inserted so the compacted segment keeps the order of the latest writes
+                    latestRecords.remove(parcelKey);
+                    latestRecords.put(parcelKey, new JournalRecord(parcelJSON, timestamp));
+                });
+            }
+            long tombstoneCutoff = System.currentTimeMillis() - tombstoneRetentionMillis;
+            Iterator<JournalRecord> records = latestRecords.values().iterator();
+            while (records.hasNext()) {
+                JournalRecord record = records.next();
+                if (record.parcelJSON == null && record.timestamp < tombstoneCutoff) {
+                    records.remove();
+                }
+            }
+
+            Path compactionFile = journalDirectory.resolve(COMPACTION_FILE);
+            try (FileChannel compactionChannel = FileChannel.open(compactionFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                CRC32 compactionCRC = new CRC32();
+                for (Map.Entry<String, JournalRecord> latestRecord : latestRecords.entrySet()) {
+                    byte[] key = latestRecord.getKey().getBytes(StandardCharsets.UTF_8);
+                    byte[] value = latestRecord.getValue().parcelJSON == null ? null
+                            : latestRecord.getValue().parcelJSON.getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + PAYLOAD_FIXED_BYTES + key.length + (value == null ? 0 : value.length));
+                    writeRecord(recordBuffer, compactionCRC, latestRecord.getValue().timestamp, key, value);
+                    recordBuffer.flip();
+                    while (recordBuffer.hasRemaining()) {
+                        compactionChannel.write(recordBuffer);
+                    }
+                }
+                compactionChannel.force(true);
+            }
+            Path newestClosedSegment = closedSegments.get(closedSegments.size() - 1);
+            Files.move(compactionFile, newestClosedSegment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Path segment : closedSegments.subList(0, closedSegments.size() - 1)) {
+                Files.deleteIfExists(segment);
+            }
+            synchronized (this) {
+                closedSegmentCount -= closedSegments.size() - 1;
+            }
+            LOG.debug("Parcel journal compacted " + closedSegments.size() + " segments to " + latestRecords.size() + " records");
+            return latestRecords.size();
+        }
+    }
+
+    public void setTombstoneRetentionMillis(long tombstoneRetentionMillis) {
+        this.tombstoneRetentionMillis = tombstoneRetentionMillis;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            segmentBuffer.force();
+            closed = true;
+            try {
+                segmentChannel.close();
+            } catch (IOException ioe) {
+                LOG.warn("Error closing parcel journal segment", ioe);
+            }
+        }
+        markDurable(appendedSequence);
+    }
+
+    public long getGroupCommitIntervalMillis() {
+        return groupCommitIntervalMillis;
+    }
+
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    // called with the journal lock held
+    private void rotateSegment(int minimumSegmentSize) {
+        try {
+            // everything in the old segment becomes durable before we move on, so the
+            // group commit only ever has to force the current segment
+            segmentBuffer.force();
+            markDurable(appendedSequence);
+            segmentChannel.close();
+            segmentIndex++;
+            closedSegmentCount++;
+            openSegment(Math.max(segmentSizeBytes, minimumSegmentSize));
+            // compacted by the group commit task rather than holding up this append
+            if (closedSegmentCount >= maxRetainedSegments) {
+                compactionDue = true;
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to rotate parcel journal segment", ioe);
+        }
+    }
+
+    private void markDurable(long committedSequence) {
+        synchronized (durabilitySemaphore) {
+            if (committedSequence > durableSequence) {
+                durableSequence = committedSequence;
+            }
+            durabilitySemaphore.notifyAll();
+        }
+        ConcurrentNavigableMap<Long, CompletableFuture<Void>> nowDurable = durabilityFutures.headMap(committedSequence, true);
+        nowDurable.values().forEach(durable -> durable.complete(null));
+        nowDurable.clear();
+    }
+
+    private void openSegment(long size) throws IOException {
+        Path segment = journalDirectory.resolve(String.format("%s%020d%s", SEGMENT_FILE_PREFIX, segmentIndex, SEGMENT_FILE_SUFFIX));
+        segmentChannel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentBuffer = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        LOG.debug("Opened parcel journal segment " + segment);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalDirectory, SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        // zero padded indexes so the natural order is the write order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private long segmentIndexOf(Path segment) {
+        String fileName = segment.getFileName().toString();
+        return Long.parseLong(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+    }
+
+    /**
+     * Receives the replayed records, a null parcelJSON being a removal.
+     */
+    public interface JournalRecordConsumer {
+        void accept(String parcelKey, String parcelJSON, long timestamp);
+    }
+
+    private static class JournalRecord {
+        private final String parcelJSON;
+        private final long timestamp;
+
+        JournalRecord(String parcelJSON, long timestamp) {
+            this.parcelJSON = parcelJSON;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // kick off as a neverending task on the node's executor, same as the heartbeat
+    public class GroupCommitTask implements Callable<Integer> {
+        public Integer call() {
+            while (!closed) {
+                try {
+                    Thread.sleep(groupCommitIntervalMillis);
+                    groupCommit();
+                    if (compactionDue) {
+                        compact();
+                    }
+                } catch (InterruptedException ie) {
+                    // container or node shutting down
+                    return new Integer(0);
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Parcel journal group commit failed", e);
+                }
+            }
+            return new Integer(1);
+        }
+    }
+}
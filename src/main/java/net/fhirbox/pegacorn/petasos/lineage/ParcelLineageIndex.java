@@ -0,0 +1,281 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.lineage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirbox.pegacorn.petasos.node.PetasosNode;
+
+/**
+ * Precursor and successor links between parcels, kept as the parcels are registered,
+ * so a UoW can be traced through a pipeline without fetching and parsing every parcel
+ * along the way.
+ *
+ * Each parcel has an entry holding its precursor followed by its successors, and each
+ * UoW an entry holding the parcels registered for it, as MAP_ENTRY_DELIMITER separated
+ * FDNs. Entries are updated with compare and swap, as the payload reference counts
+ * are, so concurrent successors of the same parcel don't lose each other.
+ *
+ * A traversal reads a whole level of the graph with one getAll, so the number of
+ * round trips is the depth of the lineage rather than the number of parcels in it.
+ *
+ * Entries expire after the lineage lifespan, well after the parcels themselves have
+ * been archived.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelLineageIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(ParcelLineageIndex.class);
+
+    public static final long DEFAULT_LINEAGE_LIFESPAN_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private static final String PARCEL_KEY_PREFIX = "parcel:";
+    private static final String UOW_KEY_PREFIX = "uow:";
+    private static final String DELIMITER = PetasosNode.MAP_ENTRY_DELIMITER;
+
+    private Cache<String, String> lineageCache;
+    private long lineageLifespanMillis;
+
+    public ParcelLineageIndex(Cache<String, String> lineageCache) {
+        this(lineageCache, DEFAULT_LINEAGE_LIFESPAN_MILLIS);
+    }
+
+    public ParcelLineageIndex(Cache<String, String> lineageCache, long lineageLifespanMillis) {
+        this.lineageCache = lineageCache;
+        this.lineageLifespanMillis = lineageLifespanMillis;
+    }
+
+    /**
+     * Records a newly registered parcel against its UoW and, if it has one, links it to
+     * its precursor. Recording the same parcel again changes nothing, so parcels
+     * arriving from other sites can be recorded as they are.
+     *
+     * @param precursorParcelFDN null for the first parcel of a lineage
+     */
+    public void recordParcel(String parcelFDN, String uowFDN, String precursorParcelFDN) {
+        if (precursorParcelFDN != null) {
+            updateEntry(PARCEL_KEY_PREFIX + parcelFDN, entry -> setPrecursor(entry, precursorParcelFDN));
+            updateEntry(PARCEL_KEY_PREFIX + precursorParcelFDN, entry -> addSuccessor(entry, parcelFDN));
+        }
+        if (uowFDN != null) {
+            updateEntry(UOW_KEY_PREFIX + uowFDN, entry -> addParcel(entry, parcelFDN));
+        }
+    }
+
+    /**
+     * @return the parcels registered for the UoW, and every parcel upstream and downstream
+     * of them
+     */
+    public ParcelLineage getLineage(String uowFDN) {
+        String uowEntry = lineageCache.get(UOW_KEY_PREFIX + uowFDN);
+        if (uowEntry == null) {
+            return new ParcelLineage();
+        }
+        return traverse(split(uowEntry), true, true);
+    }
+
+    /**
+     * @return the parcel and every parcel upstream and downstream of it
+     */
+    public ParcelLineage getParcelLineage(String parcelFDN) {
+        return traverse(Collections.singletonList(parcelFDN), true, true);
+    }
+
+    /**
+     * @return every parcel downstream of the parcel, nearest first (not including the
+     * parcel itself)
+     */
+    public List<String> getDownstreamParcels(String parcelFDN) {
+        List<String> downstreamParcels = new ArrayList<>(traverse(Collections.singletonList(parcelFDN), false, true).getParcels());
+        downstreamParcels.remove(parcelFDN);
+        return downstreamParcels;
+    }
+
+    /**
+     * @return the precursors of the parcel, nearest first back to the parcel that
+     * started the lineage
+     */
+    public List<String> getUpstreamParcels(String parcelFDN) {
+        List<String> upstreamParcels = new ArrayList<>(traverse(Collections.singletonList(parcelFDN), true, false).getParcels());
+        upstreamParcels.remove(parcelFDN);
+        return upstreamParcels;
+    }
+
+    // breadth first, one getAll per level
+    private ParcelLineage traverse(List<String> startParcels, boolean upstream, boolean downstream) {
+        ParcelLineage lineage = new ParcelLineage();
+        Set<String> visited = new HashSet<>(startParcels);
+        Set<String> level = new LinkedHashSet<>(startParcels);
+        while (!level.isEmpty()) {
+            Set<String> levelKeys = new LinkedHashSet<>(level.size() * 2);
+            level.forEach(parcelFDN -> levelKeys.add(PARCEL_KEY_PREFIX + parcelFDN));
+            Map<String, String> levelEntries = lineageCache.getAdvancedCache().getAll(levelKeys);
+            Set<String> nextLevel = new LinkedHashSet<>();
+            for (String parcelFDN : level) {
+                List<String> entry = split(levelEntries.get(PARCEL_KEY_PREFIX + parcelFDN));
+                String precursorParcelFDN = entry.isEmpty() || entry.get(0).isEmpty() ? null : entry.get(0);
+                List<String> successorParcelFDNs = entry.size() > 1 ? entry.subList(1, entry.size()) : Collections.emptyList();
+                lineage.addParcel(parcelFDN, precursorParcelFDN, successorParcelFDNs);
+                if (upstream && precursorParcelFDN != null && visited.add(precursorParcelFDN)) {
+                    nextLevel.add(precursorParcelFDN);
+                }
+                if (downstream) {
+                    successorParcelFDNs.forEach(successorParcelFDN -> {
+                        if (visited.add(successorParcelFDN)) {
+                            nextLevel.add(successorParcelFDN);
+                        }
+                    });
+                }
+            }
+            level = nextLevel;
+        }
+        return lineage;
+    }
+
+    // compare and swap, the update returns null when there is nothing to change
+    private void updateEntry(String key, EntryUpdate update) {
+        while (true) {
+            String currentEntry = lineageCache.get(key);
+            String updatedEntry = update.apply(currentEntry == null ? null : split(currentEntry));
+            if (updatedEntry == null) {
+                return;
+            }
+            if (currentEntry == null) {
+                if (lineageCache.putIfAbsent(key, updatedEntry, lineageLifespanMillis, TimeUnit.MILLISECONDS) == null) {
+                    return;
+                }
+            } else if (lineageCache.replace(key, currentEntry, updatedEntry, lineageLifespanMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            LOG.trace("Concurrent lineage update of " + key + ", retrying");
+        }
+    }
+
+    private static String setPrecursor(List<String> entry, String precursorParcelFDN) {
+        if (entry == null) {
+            return precursorParcelFDN;
+        }
+        if (entry.get(0).equals(precursorParcelFDN)) {
+            return null;
+        }
+        entry.set(0, precursorParcelFDN);
+        return String.join(DELIMITER, entry);
+    }
+
+    // the precursor may not be recorded yet (or was recorded at another site), so the
+    // entry starts with an empty precursor
+    private static String addSuccessor(List<String> entry, String successorParcelFDN) {
+        if (entry == null) {
+            return DELIMITER + successorParcelFDN;
+        }
+        if (entry.subList(1, entry.size()).contains(successorParcelFDN)) {
+            return null;
+        }
+        entry.add(successorParcelFDN);
+        return String.join(DELIMITER, entry);
+    }
+
+    private static String addParcel(List<String> entry, String parcelFDN) {
+        if (entry == null) {
+            return parcelFDN;
+        }
+        if (entry.contains(parcelFDN)) {
+            return null;
+        }
+        entry.add(parcelFDN);
+        return String.join(DELIMITER, entry);
+    }
+
+    private static List<String> split(String entry) {
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        List<String> fdns = new ArrayList<>();
+        Collections.addAll(fdns, entry.split(DELIMITER, -1));
+        return fdns;
+    }
+
+    private interface EntryUpdate {
+        String apply(List<String> currentEntry);
+    }
+
+    /**
+     * The parcels found by a traversal, in the order they were reached, with the links
+     * between them.
+     */
+    public static class ParcelLineage {
+        private Map<String, String> precursors = new LinkedHashMap<>();
+        private Map<String, List<String>> successors = new LinkedHashMap<>();
+
+        void addParcel(String parcelFDN, String precursorParcelFDN, List<String> successorParcelFDNs) {
+            precursors.put(parcelFDN, precursorParcelFDN);
+            successors.put(parcelFDN, new ArrayList<>(successorParcelFDNs));
+        }
+
+        public Set<String> getParcels() {
+            return Collections.unmodifiableSet(precursors.keySet());
+        }
+
+        public boolean isEmpty() {
+            return precursors.isEmpty();
+        }
+
+        /**
+         * @return the parcel's precursor, or null if it started the lineage (or isn't in it)
+         */
+        public String getPrecursor(String parcelFDN) {
+            return precursors.get(parcelFDN);
+        }
+
+        public List<String> getSuccessors(String parcelFDN) {
+            List<String> parcelSuccessors = successors.get(parcelFDN);
+            return parcelSuccessors == null ? Collections.emptyList() : Collections.unmodifiableList(parcelSuccessors);
+        }
+
+        /**
+         * @return the parcels in the lineage with no precursor
+         */
+        public List<String> getOrigins() {
+            List<String> origins = new ArrayList<>();
+            precursors.forEach((parcelFDN, precursorParcelFDN) -> {
+                if (precursorParcelFDN == null) {
+                    origins.add(parcelFDN);
+                }
+            });
+            return origins;
+        }
+    }
+}
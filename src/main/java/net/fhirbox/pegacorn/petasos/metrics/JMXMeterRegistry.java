@@ -0,0 +1,100 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the meters as MBeans on the platform MBean server, named
+ * net.fhirbox.pegacorn.petasos:scope=<scope>,type=<Timer|Counter|Gauge>,name=<name>.
+ * The scope keeps nodes apart when there is more than one in a JVM.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class JMXMeterRegistry implements PetasosMeterRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(JMXMeterRegistry.class);
+
+    public static final String JMX_DOMAIN = "net.fhirbox.pegacorn.petasos";
+
+    private MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    private String scope;
+    private List<ObjectName> registeredNames = new CopyOnWriteArrayList<>();
+
+    public JMXMeterRegistry(String scope) {
+        this.scope = scope;
+    }
+
+    @Override
+    public void registerTimer(String name, PetasosTimer timer) {
+        register("Timer", name, timer);
+    }
+
+    @Override
+    public void registerCounter(String name, PetasosCounter counter) {
+        register("Counter", name, counter);
+    }
+
+    @Override
+    public void registerGauge(String name, PetasosGauge gauge) {
+        register("Gauge", name, gauge);
+    }
+
+    private void register(String type, String name, Object meter) {
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":scope=" + ObjectName.quote(scope) + ",type=" + type + ",name=" + ObjectName.quote(name));
+            try {
+                mbeanServer.registerMBean(meter, objectName);
+            } catch (InstanceAlreadyExistsException alreadyRegistered) {
+                // left over from a previous deployment in the same JVM, take it over
+                mbeanServer.unregisterMBean(objectName);
+                mbeanServer.registerMBean(meter, objectName);
+            }
+            registeredNames.add(objectName);
+        } catch (JMException jmxError) {
+            LOG.warn("Unable to register " + type + " " + name + " with JMX", jmxError);
+        }
+    }
+
+    @Override
+    public void close() {
+        registeredNames.forEach(objectName -> {
+            try {
+                mbeanServer.unregisterMBean(objectName);
+            } catch (JMException jmxError) {
+                LOG.debug("Unable to unregister " + objectName, jmxError);
+            }
+        });
+        registeredNames.clear();
+    }
+}
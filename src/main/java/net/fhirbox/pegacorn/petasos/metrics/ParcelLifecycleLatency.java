@@ -0,0 +1,248 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How long parcels spend between statuses (registered to active, active to finished,
+ * finished to finalised), kept per supporting function FDN and per WUP FDN, so a slow
+ * processor shows up without external tracing.
+ *
+ * Each function/WUP and transition has a rolling HdrHistogram of the last few minutes
+ * (DEFAULT_WINDOW_INTERVALS of DEFAULT_ROLL_INTERVAL_MILLIS). The latencies come from
+ * the status transition instants recorded on the parcel, so a transition made on
+ * another pod is subject to clock skew between the pods.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@ApplicationScoped
+public class ParcelLifecycleLatency implements ParcelLifecycleLatencyMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ParcelLifecycleLatency.class);
+
+    public static final long DEFAULT_ROLL_INTERVAL_MILLIS = 60000L;
+    public static final int DEFAULT_WINDOW_INTERVALS = 5;
+
+    private long rollIntervalMillis = DEFAULT_ROLL_INTERVAL_MILLIS;
+    private int windowIntervals = DEFAULT_WINDOW_INTERVALS;
+
+    // histograms indexed by ParcelLifecycleTransitionEnum ordinal
+    private ConcurrentHashMap<String, RollingLatencyHistogram[]> functionLatencies = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, RollingLatencyHistogram[]> wupLatencies = new ConcurrentHashMap<>();
+
+    private ObjectName mbeanName;
+
+    @PostConstruct
+    public void start() {
+        String scope = System.getenv("MY_POD_NAME");
+        registerMBean(scope == null ? "petasos" : scope);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException jmxError) {
+                LOG.debug("Unable to unregister " + mbeanName, jmxError);
+            }
+            mbeanName = null;
+        }
+    }
+
+    public void registerMBean(String scope) {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanName = new ObjectName(JMXMeterRegistry.JMX_DOMAIN + ":scope=" + ObjectName.quote(scope) + ",type=ParcelLifecycleLatency");
+            if (mbeanServer.isRegistered(mbeanName)) {
+                mbeanServer.unregisterMBean(mbeanName);
+            }
+            mbeanServer.registerMBean(this, mbeanName);
+        } catch (JMException jmxError) {
+            LOG.warn("Unable to register parcel lifecycle latencies with JMX", jmxError);
+        }
+    }
+
+    public void recordTransition(String functionFDN, String wupFDN, ParcelLifecycleTransitionEnum transition, long latencyMillis) {
+        histogramsFor(functionLatencies, functionFDN)[transition.ordinal()].record(latencyMillis);
+        histogramsFor(wupLatencies, wupFDN)[transition.ordinal()].record(latencyMillis);
+    }
+
+    private RollingLatencyHistogram[] histogramsFor(ConcurrentHashMap<String, RollingLatencyHistogram[]> latencies, String fdn) {
+        RollingLatencyHistogram[] histograms = latencies.get(fdn);
+        if (histograms == null) {
+            RollingLatencyHistogram[] newHistograms = new RollingLatencyHistogram[ParcelLifecycleTransitionEnum.values().length];
+            for (int transition = 0; transition < newHistograms.length; transition++) {
+                newHistograms[transition] = new RollingLatencyHistogram(windowIntervals, rollIntervalMillis);
+            }
+            histograms = latencies.putIfAbsent(fdn, newHistograms);
+            if (histograms == null) {
+                histograms = newHistograms;
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * @return the latency of the transition for the supporting function over the window,
+     * or null if the function hasn't been seen
+     */
+    public ParcelLifecycleLatencySummary getFunctionLatency(String functionFDN, ParcelLifecycleTransitionEnum transition) {
+        return summarise(functionLatencies, functionFDN, transition);
+    }
+
+    public ParcelLifecycleLatencySummary getWUPLatency(String wupFDN, ParcelLifecycleTransitionEnum transition) {
+        return summarise(wupLatencies, wupFDN, transition);
+    }
+
+    /**
+     * @return the supporting functions with the highest latency at the percentile for
+     * the transition, slowest first
+     */
+    public List<ParcelLifecycleLatencySummary> getSlowestFunctions(ParcelLifecycleTransitionEnum transition, double percentile, int limit) {
+        return slowest(functionLatencies, transition, percentile, limit);
+    }
+
+    public List<ParcelLifecycleLatencySummary> getSlowestWUPs(ParcelLifecycleTransitionEnum transition, double percentile, int limit) {
+        return slowest(wupLatencies, transition, percentile, limit);
+    }
+
+    private List<ParcelLifecycleLatencySummary> slowest(Map<String, RollingLatencyHistogram[]> latencies, ParcelLifecycleTransitionEnum transition, double percentile, int limit) {
+        List<ParcelLifecycleLatencySummary> summaries = new ArrayList<>();
+        latencies.keySet().forEach(fdn -> {
+            ParcelLifecycleLatencySummary summary = summarise(latencies, fdn, transition);
+            if (summary != null && summary.getCount() > 0) {
+                summaries.add(summary);
+            }
+        });
+        summaries.sort(Comparator.comparingDouble((ParcelLifecycleLatencySummary summary) -> summary.getPercentileMillis(percentile)).reversed());
+        return summaries.subList(0, Math.min(limit, summaries.size()));
+    }
+
+    private ParcelLifecycleLatencySummary summarise(Map<String, RollingLatencyHistogram[]> latencies, String fdn, ParcelLifecycleTransitionEnum transition) {
+        RollingLatencyHistogram[] histograms = latencies.get(fdn);
+        if (histograms == null) {
+            return null;
+        }
+        return new ParcelLifecycleLatencySummary(fdn, transition, histograms[transition.ordinal()].getWindowHistogram());
+    }
+
+    @Override
+    public String[] getFunctionFDNs() {
+        return new TreeSet<>(functionLatencies.keySet()).toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getWUPFDNs() {
+        return new TreeSet<>(wupLatencies.keySet()).toArray(new String[0]);
+    }
+
+    @Override
+    public double getFunctionLatencyPercentileMillis(String functionFDN, String transition, double percentile) {
+        ParcelLifecycleLatencySummary summary = getFunctionLatency(functionFDN, ParcelLifecycleTransitionEnum.fromParcelLifecycleTransition(transition));
+        return summary == null ? 0 : summary.getPercentileMillis(percentile);
+    }
+
+    @Override
+    public double getWUPLatencyPercentileMillis(String wupFDN, String transition, double percentile) {
+        ParcelLifecycleLatencySummary summary = getWUPLatency(wupFDN, ParcelLifecycleTransitionEnum.fromParcelLifecycleTransition(transition));
+        return summary == null ? 0 : summary.getPercentileMillis(percentile);
+    }
+
+    // one line per function and transition, slowest p99 first
+    @Override
+    public String getLatencyReport() {
+        StringBuilder report = new StringBuilder();
+        for (ParcelLifecycleTransitionEnum transition : ParcelLifecycleTransitionEnum.values()) {
+            getSlowestFunctions(transition, 99.0, Integer.MAX_VALUE).forEach(summary -> report.append(summary).append('\n'));
+        }
+        return report.toString();
+    }
+
+    public void setRollIntervalMillis(long rollIntervalMillis) {
+        this.rollIntervalMillis = rollIntervalMillis;
+    }
+
+    public void setWindowIntervals(int windowIntervals) {
+        this.windowIntervals = windowIntervals;
+    }
+
+    /**
+     * Latency of one transition for one function or WUP over the window.
+     */
+    public static class ParcelLifecycleLatencySummary {
+        private String fdn;
+        private ParcelLifecycleTransitionEnum transition;
+        private Histogram histogram;
+
+        ParcelLifecycleLatencySummary(String fdn, ParcelLifecycleTransitionEnum transition, Histogram histogram) {
+            this.fdn = fdn;
+            this.transition = transition;
+            this.histogram = histogram;
+        }
+
+        public String getFDN() {
+            return fdn;
+        }
+
+        public ParcelLifecycleTransitionEnum getTransition() {
+            return transition;
+        }
+
+        public long getCount() {
+            return histogram.getTotalCount();
+        }
+
+        public double getPercentileMillis(double percentile) {
+            return histogram.getValueAtPercentile(percentile);
+        }
+
+        public double getMaxMillis() {
+            return histogram.getMaxValue();
+        }
+
+        @Override
+        public String toString() {
+            return fdn + " " + transition.getParcelLifecycleTransition() + ": count=" + getCount() + " p50=" + getPercentileMillis(50.0)
+                    + "ms p90=" + getPercentileMillis(90.0) + "ms p99=" + getPercentileMillis(99.0) + "ms max=" + getMaxMillis() + "ms";
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.metrics;
+
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+
+/**
+ * The parcel status changes whose latency is tracked by ParcelLifecycleLatency.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public enum ParcelLifecycleTransitionEnum {
+    PARCEL_TRANSITION_REGISTERED_TO_ACTIVE("registered-to-active", PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED, PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE),
+    PARCEL_TRANSITION_ACTIVE_TO_FINISHED("active-to-finished", PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED),
+    PARCEL_TRANSITION_FINISHED_TO_FINALISED("finished-to-finalised", PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED, PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED);
+
+    private String parcelLifecycleTransition;
+    private PetasosParcelStatusEnum fromStatus;
+    private PetasosParcelStatusEnum toStatus;
+
+    private ParcelLifecycleTransitionEnum(String parcelLifecycleTransition, PetasosParcelStatusEnum fromStatus, PetasosParcelStatusEnum toStatus) {
+        this.parcelLifecycleTransition = parcelLifecycleTransition;
+        this.fromStatus = fromStatus;
+        this.toStatus = toStatus;
+    }
+
+    public String getParcelLifecycleTransition() {
+        return(this.parcelLifecycleTransition);
+    }
+
+    public PetasosParcelStatusEnum getFromStatus() {
+        return(this.fromStatus);
+    }
+
+    public PetasosParcelStatusEnum getToStatus() {
+        return(this.toStatus);
+    }
+
+    public static ParcelLifecycleTransitionEnum fromParcelLifecycleTransition(String parcelLifecycleTransition) {
+        for (ParcelLifecycleTransitionEnum transition : values()) {
+            if (transition.parcelLifecycleTransition.equals(parcelLifecycleTransition)) {
+                return(transition);
+            }
+        }
+        return(valueOf(parcelLifecycleTransition));
+    }
+}
@@ -0,0 +1,220 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+
+import org.infinispan.Cache;
+import org.infinispan.stats.Stats;
+
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+
+/**
+ * The Petasos meters: a timer and failure counter per PetasosAgentInterface method,
+ * parcel transitions per status, ParcelMonitor listener lag, site forward outcomes and
+ * cache hit ratios. All of them are created up front and looked up by constant names,
+ * so recording never allocates.
+ *
+ * Meters are published through a PetasosMeterRegistry, JMX unless another one is set
+ * with setMeterRegistry().
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@ApplicationScoped
+public class PetasosMetrics {
+    // the agent methods, as used for the meter names
+    public static final String REGISTER_WORK_UNIT_PROCESSOR = "agent.registerWorkUnitProcessor";
+    public static final String REGISTER_ACTIVITY = "agent.registerActivity";
+    public static final String START_ACTIVITY = "agent.startActivity";
+    public static final String FINISH_ACTIVITY = "agent.finishActivity";
+    public static final String FINALISE_ACTIVITY = "agent.finaliseActivity";
+    public static final String UPDATE_OPERATIONAL_STATUS = "agent.updateOperationalStatus";
+    public static final String UPDATE_ACTIVITY_STATUS = "agent.updateActivityStatus";
+    public static final String GET_PEER_ACTIVITY_STATUS = "agent.getPeerActivityStatus";
+    public static final String GET_RELEVANT_PARCELS = "agent.getRelevantParcels";
+    private static final String[] AGENT_METHODS = {REGISTER_WORK_UNIT_PROCESSOR, REGISTER_ACTIVITY, START_ACTIVITY, FINISH_ACTIVITY,
+        FINALISE_ACTIVITY, UPDATE_OPERATIONAL_STATUS, UPDATE_ACTIVITY_STATUS, GET_PEER_ACTIVITY_STATUS, GET_RELEVANT_PARCELS};
+    private static final String FAILURES = ".failures";
+    private static final String SHED = ".shed";
+
+    public static final String PARCEL_MONITOR_LAG = "parcelMonitor.listenerLag";
+    public static final String SITE_FORWARD_SUCCESS = "siteForward.success";
+    public static final String SITE_FORWARD_FAILURE = "siteForward.failure";
+    // registrations waiting on the ParcelMonitor beyond this are dropped rather than held
+    private static final int MAX_PENDING_PARCEL_WRITES = 10000;
+
+    private Map<String, PetasosTimer> timers = new ConcurrentHashMap<>();
+    private Map<String, PetasosCounter> counters = new ConcurrentHashMap<>();
+    private Map<String, PetasosGauge> gauges = new ConcurrentHashMap<>();
+    // indexed by PetasosParcelStatusEnum ordinal
+    private PetasosCounter[] parcelTransitionCounts = new PetasosCounter[PetasosParcelStatusEnum.values().length];
+    // when each parcel registered on this node was written, until the ParcelMonitor hears of it
+    private Map<String, Long> pendingParcelWrites = new ConcurrentHashMap<>();
+    private PetasosCounter siteForwardSuccess;
+    private PetasosCounter siteForwardFailure;
+    private PetasosTimer parcelMonitorLag;
+
+    private PetasosMeterRegistry meterRegistry;
+
+    public PetasosMetrics() {
+        for (String method : AGENT_METHODS) {
+            timers.put(method, new PetasosTimer());
+            counters.put(method + FAILURES, new PetasosCounter());
+            counters.put(method + SHED, new PetasosCounter());
+        }
+        for (PetasosParcelStatusEnum parcelStatus : PetasosParcelStatusEnum.values()) {
+            PetasosCounter transitionCount = new PetasosCounter();
+            parcelTransitionCounts[parcelStatus.ordinal()] = transitionCount;
+            counters.put("parcelTransitions." + parcelStatus.name(), transitionCount);
+        }
+        siteForwardSuccess = new PetasosCounter();
+        counters.put(SITE_FORWARD_SUCCESS, siteForwardSuccess);
+        siteForwardFailure = new PetasosCounter();
+        counters.put(SITE_FORWARD_FAILURE, siteForwardFailure);
+        parcelMonitorLag = new PetasosTimer();
+        timers.put(PARCEL_MONITOR_LAG, parcelMonitorLag);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (meterRegistry == null) {
+            // the pod name keeps the MBeans apart if several pods share a JMX view
+            String scope = System.getenv("MY_POD_NAME");
+            setMeterRegistry(new JMXMeterRegistry(scope == null ? "petasos" : scope));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (meterRegistry != null) {
+            meterRegistry.close();
+        }
+    }
+
+    /**
+     * Publishes the meters through the given registry instead of the current one.
+     */
+    public synchronized void setMeterRegistry(PetasosMeterRegistry newMeterRegistry) {
+        if (meterRegistry != null) {
+            meterRegistry.close();
+        }
+        meterRegistry = newMeterRegistry;
+        timers.forEach(meterRegistry::registerTimer);
+        counters.forEach(meterRegistry::registerCounter);
+        gauges.forEach(meterRegistry::registerGauge);
+    }
+
+    public PetasosTimer getAgentTimer(String agentMethod) {
+        return timers.get(agentMethod);
+    }
+
+    public void agentFailure(String agentMethod) {
+        counters.get(agentMethod + FAILURES).increment();
+    }
+
+    /**
+     * Counts an agent call turned away by the concurrency limiter.
+     */
+    public void agentShed(String agentMethod) {
+        counters.get(agentMethod + SHED).increment();
+    }
+
+    /**
+     * Counts a parcel moving into the status through this node's agent. These only ever
+     * go up, they are not the number of parcels in each status: the transitions of one
+     * parcel can be made on different nodes, and parcels leave the cache by expiry
+     * without a transition. Sum the nodes for the cluster wide rate of each transition.
+     */
+    public void parcelTransition(PetasosParcelStatusEnum newStatus) {
+        parcelTransitionCounts[newStatus.ordinal()].increment();
+    }
+
+    public long getParcelTransitionCount(PetasosParcelStatusEnum parcelStatus) {
+        return parcelTransitionCounts[parcelStatus.ordinal()].getCount();
+    }
+
+    /**
+     * Notes a parcel registration about to be written from this node, for the ParcelMonitor
+     * lag. Only parcels written here are timed, so the lag is on one clock, and parcels
+     * restored from a journal or arriving from another site (which were registered long
+     * before they reach the cache) aren't timed at all.
+     */
+    public void parcelWriteStarted(String parcelQualifiedFDN) {
+        // a write that failed without saying so is never removed, so rather than grow
+        // the marks are dropped, losing the samples for the writes still in flight
+        if (pendingParcelWrites.size() >= MAX_PENDING_PARCEL_WRITES) {
+            pendingParcelWrites.clear();
+        }
+        pendingParcelWrites.put(parcelQualifiedFDN, System.nanoTime());
+    }
+
+    // the registration wasn't written, so the ParcelMonitor won't hear of it
+    public void parcelWriteAbandoned(String parcelQualifiedFDN) {
+        pendingParcelWrites.remove(parcelQualifiedFDN);
+    }
+
+    // time between a parcel written from this node and the ParcelMonitor here being told about it
+    public void parcelMonitorNotified(String parcelQualifiedFDN) {
+        Long writeStartedNanos = pendingParcelWrites.remove(parcelQualifiedFDN);
+        if (writeStartedNanos != null) {
+            parcelMonitorLag.recordSince(writeStartedNanos);
+        }
+    }
+
+    public void siteForwardOutcome(boolean forwarded) {
+        if (forwarded) {
+            siteForwardSuccess.increment();
+        } else {
+            siteForwardFailure.increment();
+        }
+    }
+
+    public void registerGauge(String name, DoubleSupplier valueSupplier) {
+        PetasosGauge gauge = new PetasosGauge(valueSupplier);
+        gauges.put(name, gauge);
+        synchronized (this) {
+            if (meterRegistry != null) {
+                meterRegistry.registerGauge(name, gauge);
+            }
+        }
+    }
+
+    /**
+     * Adds a gauge of the cache's hit ratio on this node, from the Infinispan statistics
+     * (so statistics need to be enabled for the cache, as they are for the Petasos caches).
+     */
+    public void registerCacheHitRatio(Cache<?, ?> cache) {
+        registerGauge("cache." + cache.getName() + ".hitRatio", () -> {
+            Stats cacheStats = cache.getAdvancedCache().getStats();
+            long reads = cacheStats.getHits() + cacheStats.getMisses();
+            return reads == 0 ? 0 : (double) cacheStats.getHits() / reads;
+        });
+    }
+}
@@ -0,0 +1,74 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times calls. Recording is a LongAdder increment and add plus a
+ * LongAccumulator max, all striped so concurrent WUPs don't contend, and nothing is
+ * allocated per call.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosTimer implements PetasosTimerMBean {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0L);
+
+    public void record(long durationNanos) {
+        count.increment();
+        totalNanos.add(durationNanos);
+        maxNanos.accumulate(durationNanos);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getTotalTimeMillis() {
+        return totalNanos.sum() / 1000000.0;
+    }
+
+    @Override
+    public double getMeanTimeMillis() {
+        long calls = count.sum();
+        if (calls == 0) {
+            return 0;
+        }
+        return totalNanos.sum() / 1000000.0 / calls;
+    }
+
+    @Override
+    public double getMaxTimeMillis() {
+        return maxNanos.get() / 1000000.0;
+    }
+}
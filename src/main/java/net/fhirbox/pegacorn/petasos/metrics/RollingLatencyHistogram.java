@@ -0,0 +1,114 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.metrics;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latencies over the last few intervals. Values are recorded into a HdrHistogram
+ * Recorder (wait free for the recording threads), and once an interval has passed the
+ * recorded histogram is swapped out into a ring of completed intervals, dropping the
+ * oldest. Intervals that pass with nothing recorded take their place in the ring as
+ * empty ones, so a quiet spell ages out the latencies from before it. Reads merge the
+ * completed intervals, so they lag by up to one interval.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+class RollingLatencyHistogram {
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram[] intervals;
+    private final long rollIntervalMillis;
+    private final ReentrantLock rollLock = new ReentrantLock();
+    private int nextInterval;
+    private volatile long lastRollMillis = System.currentTimeMillis();
+    private Histogram recycledInterval;
+
+    RollingLatencyHistogram(int windowIntervals, long rollIntervalMillis) {
+        this.intervals = new Histogram[windowIntervals];
+        this.rollIntervalMillis = rollIntervalMillis;
+    }
+
+    void record(long latencyMillis) {
+        // rolled before recording, so what the recorder holds belongs to the interval
+        // starting at lastRollMillis
+        if (System.currentTimeMillis() - lastRollMillis >= rollIntervalMillis) {
+            roll(false);
+        }
+        recorder.recordValue(Math.max(0L, latencyMillis));
+    }
+
+    /**
+     * @return the latencies over the completed intervals in the window
+     */
+    Histogram getWindowHistogram() {
+        roll(true);
+        Histogram window = new Histogram(3);
+        rollLock.lock();
+        try {
+            for (Histogram interval : intervals) {
+                if (interval != null) {
+                    window.add(interval);
+                }
+            }
+        } finally {
+            rollLock.unlock();
+        }
+        return window;
+    }
+
+    // only the first recording thread past the interval rolls, the rest carry on
+    private void roll(boolean waitForLock) {
+        if (waitForLock) {
+            rollLock.lock();
+        } else if (!rollLock.tryLock()) {
+            return;
+        }
+        try {
+            long elapsedIntervals = (System.currentTimeMillis() - lastRollMillis) / rollIntervalMillis;
+            if (elapsedIntervals < 1) {
+                return;
+            }
+            Histogram interval = recorder.getIntervalHistogram(recycledInterval);
+            recycledInterval = intervals[nextInterval];
+            intervals[nextInterval] = interval;
+            nextInterval = (nextInterval + 1) % intervals.length;
+            // the intervals since then had nothing recorded, beyond the ring length they
+            // would only clear the same slots again
+            long emptyIntervals = Math.min(elapsedIntervals - 1, intervals.length);
+            for (long emptyInterval = 0; emptyInterval < emptyIntervals; emptyInterval++) {
+                if (intervals[nextInterval] != null) {
+                    intervals[nextInterval].reset();
+                }
+                nextInterval = (nextInterval + 1) % intervals.length;
+            }
+            // kept on the interval boundaries, so the intervals don't drift with when the rolls happen
+            lastRollMillis += elapsedIntervals * rollIntervalMillis;
+        } finally {
+            rollLock.unlock();
+        }
+    }
+}
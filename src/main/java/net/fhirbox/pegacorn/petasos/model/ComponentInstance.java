@@ -31,10 +31,11 @@ import java.util.Collection;
  * @author ACT Health (Mark A. Hunter)
  */
 public class ComponentInstance {
-    private ArrayList<FDN> supportedFunctionSet;
-    private ArrayList<ComponentInstance> containedComponents;
-    private ArrayList<WorkUnitProcessor> enabledWUPSet;
+    private ArrayList<FDN> supportedFunctionSet = new ArrayList<>();
+    private ArrayList<ComponentInstance> containedComponents = new ArrayList<>();
+    private ArrayList<WorkUnitProcessor> enabledWUPSet = new ArrayList<>();
     private FDN componentFDN;
+    private ComponentTypeEnum componentType;
     private ComponentInstanceStatus componentStatus; 
     
 
@@ -50,6 +51,18 @@ public class ComponentInstance {
     public void setComponentFDN(FDN componentFDN) {
         this.componentFDN = componentFDN;
     }
+    /**
+     * @return the componentType
+     */
+    public ComponentTypeEnum getComponentType() {
+        return componentType;
+    }
+    /**
+     * @param componentType the componentType to set
+     */
+    public void setComponentType(ComponentTypeEnum componentType) {
+        this.componentType = componentType;
+    }
     /**
      * @return the supportedFunctionSet
      */
@@ -43,4 +43,14 @@ public enum ComponentStatusEnum {
         return(this.componentWatchdogState);
     }
     
+    // the cached JSON holds the state string rather than the enum name
+    public static ComponentStatusEnum fromComponentWatchdogState(String componentWatchdogState){
+        for (ComponentStatusEnum componentStatus : values()) {
+            if (componentStatus.componentWatchdogState.equals(componentWatchdogState)) {
+                return(componentStatus);
+            }
+        }
+        return(valueOf(componentWatchdogState));
+    }
+    
 }
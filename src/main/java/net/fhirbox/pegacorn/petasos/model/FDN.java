@@ -26,6 +26,7 @@ package net.fhirbox.pegacorn.petasos.model;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.ListIterator;
+import java.util.regex.Pattern;
 
 /**
  *
@@ -69,7 +70,7 @@ public class FDN
     	if( qualifiedFDN.isEmpty()) {
     		return;
     	}
-    	String[] qualifiedElements = qualifiedFDN.split(FDN.RDN_ENTRY_SEPERATOR);
+    	String[] qualifiedElements = qualifiedFDN.split(Pattern.quote(FDN.RDN_ENTRY_SEPERATOR));
     	if(qualifiedElements.length < 1 ) {
     		return;
     	}
@@ -156,7 +157,7 @@ public class FDN
         while( rdnIterator.hasNext() )
         {
             RDN rdn = rdnIterator.next();
-            if (rdn.getTypeName() == name) {
+            if (rdn.getTypeName().equals(name)) {
                 return rdn.getTypeValue();
             }
         }
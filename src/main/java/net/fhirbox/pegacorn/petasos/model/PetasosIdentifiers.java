@@ -0,0 +1,46 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.model;
+
+/**
+ * Where UoW and parcel qualifiers come from. Model objects are created outside of CDI
+ * so the generator is held here rather than injected.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosIdentifiers {
+    private static volatile PetasosIdentifierGenerator generator = new TimeOrderedIdentifierGenerator();
+
+    public static String nextIdentifier() {
+        return generator.generateIdentifier();
+    }
+
+    public static void setGenerator(PetasosIdentifierGenerator identifierGenerator) {
+        generator = identifierGenerator;
+    }
+
+    public static PetasosIdentifierGenerator getGenerator() {
+        return generator;
+    }
+}
@@ -23,8 +23,11 @@
  */
 package net.fhirbox.pegacorn.petasos.model;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,12 +44,15 @@ public class PetasosParcel {
     private FDN precursorParcelFDN;
     
     private PetasosParcelStatusEnum petasosParcelStatus;
+    // when the parcel entered each status, for the lifecycle latencies
+    private EnumMap<PetasosParcelStatusEnum, Instant> statusTransitions = new EnumMap<>(PetasosParcelStatusEnum.class);
     
 
     private static final Logger LOG = LoggerFactory.getLogger(PetasosParcel.class);
 
     public PetasosParcel(PetasosParcelRegistration theParcelRegistration) {
         this.parcelRegistration = theParcelRegistration;
+        this.successorParcelSet = new ArrayList<>();
     }
     
     public PetasosParcel(PetasosParcelRegistration theParcelRegistration, UoW theUoW, FDN thePrecursorFDN, PetasosWUPWatchdogState theWUPStatus) {
@@ -63,7 +69,11 @@ public class PetasosParcel {
         this.successorParcelSet = new ArrayList<>();
         this.successorParcelSet.addAll(originalParcel.getSuccessorParcelSet());
         this.taskProcessorState = originalParcel.getTaskProcessorState();
-        this.precursorParcelFDN = new FDN(originalParcel.getPrecursorParcel());
+        if (originalParcel.getPrecursorParcel() != null) {
+            this.precursorParcelFDN = new FDN(originalParcel.getPrecursorParcel());
+        }
+        this.petasosParcelStatus = originalParcel.getParcelStatus();
+        this.statusTransitions.putAll(originalParcel.getStatusTransitions());
     }
     
     /**
@@ -142,9 +152,25 @@ public class PetasosParcel {
     
     public void setParcelStatus(PetasosParcelStatusEnum petasosParcelStatus) {
         this.petasosParcelStatus = petasosParcelStatus;
+        this.statusTransitions.put(petasosParcelStatus, Instant.now());
     }
     
     public PetasosParcelStatusEnum getParcelStatus() {
         return this.petasosParcelStatus;
     }
+
+    /**
+     * @return when the parcel last entered the status, or null if it never has
+     */
+    public Instant getStatusTransitionInstant(PetasosParcelStatusEnum parcelStatus) {
+        return statusTransitions.get(parcelStatus);
+    }
+
+    public void setStatusTransitionInstant(PetasosParcelStatusEnum parcelStatus, Instant transitionInstant) {
+        statusTransitions.put(parcelStatus, transitionInstant);
+    }
+
+    public Map<PetasosParcelStatusEnum, Instant> getStatusTransitions() {
+        return statusTransitions;
+    }
 }
\ No newline at end of file
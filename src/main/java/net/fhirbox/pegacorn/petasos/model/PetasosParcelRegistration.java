@@ -26,13 +26,14 @@ package net.fhirbox.pegacorn.petasos.model;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.UUID;
 
 /**
  *
  * @author ACT Health (Mark A. Hunter)
  */
 public class PetasosParcelRegistration {
+    public static final String PARCEL_QUALIFIER = "ParcelQualifier";
+
     private ArrayList<FDN> registeredWUPList;
     private FDN parcelFDN;
     private FDN containedUoW;
@@ -42,6 +43,7 @@ public class PetasosParcelRegistration {
 
 
     public PetasosParcelRegistration(FDN parcelFDN) {
+        this.registeredWUPList = new ArrayList<>();
         this.parcelFDN = parcelFDN;
         parcelInstantiationInstant = Instant.now();
     }
@@ -51,17 +53,28 @@ public class PetasosParcelRegistration {
         this.registeredWUPList = new ArrayList<>();
         this.registeredWUPList.add(wupFDN);
         this.parcelFDN = new FDN(theUoW);
-        this.parcelFDN.appendRDN(new RDN("ParcelQualifier", UUID.randomUUID().toString()));
+        this.parcelFDN.appendRDN(new RDN(PARCEL_QUALIFIER, PetasosIdentifiers.nextIdentifier()));
         this.supportingFunctionFDN = new FDN(theFunction);
         this.parcelInstantiationInstant = creationTime;
         this.parcelExpectedCompletionInstant = Instant.MAX;
     }
     
+    // with the qualifier chosen by the caller, e.g. for parcel affinity
+    public PetasosParcelRegistration(FDN wupFDN, FDN theUoW, FDN theFunction, Instant creationTime, String parcelQualifier) {
+        this.registeredWUPList = new ArrayList<>();
+        this.registeredWUPList.add(wupFDN);
+        this.parcelFDN = new FDN(theUoW);
+        this.parcelFDN.appendRDN(new RDN(PARCEL_QUALIFIER, parcelQualifier));
+        this.supportingFunctionFDN = new FDN(theFunction);
+        this.parcelInstantiationInstant = creationTime;
+        this.parcelExpectedCompletionInstant = Instant.MAX;
+    }
+
     public PetasosParcelRegistration( FDN wupFDN, FDN theUoW, FDN theFunction, Instant creationTime, Instant endTime ) {
         this.registeredWUPList = new ArrayList<>();
         this.registeredWUPList.add(wupFDN);
         this.parcelFDN = new FDN(theUoW);
-        this.parcelFDN.appendRDN(new RDN("ParcelQualifier", UUID.randomUUID().toString()));
+        this.parcelFDN.appendRDN(new RDN(PARCEL_QUALIFIER, PetasosIdentifiers.nextIdentifier()));
         this.supportingFunctionFDN = new FDN(theFunction);
         this.parcelInstantiationInstant = creationTime;
         this.parcelExpectedCompletionInstant = endTime;
@@ -71,7 +84,7 @@ public class PetasosParcelRegistration {
         this.registeredWUPList = new ArrayList<>();
         this.registeredWUPList.addAll(theWUPList);
         this.parcelFDN = new FDN(theUoW);
-        this.parcelFDN.appendRDN(new RDN("ParcelQualifier", UUID.randomUUID().toString()));
+        this.parcelFDN.appendRDN(new RDN(PARCEL_QUALIFIER, PetasosIdentifiers.nextIdentifier()));
         this.supportingFunctionFDN = new FDN(theFunction);
         this.parcelInstantiationInstant = creationTime;
         this.parcelExpectedCompletionInstant = endTime;
@@ -44,4 +44,14 @@ public enum PetasosParcelStatusEnum {
     public String getPetasosParcelStatus(){
         return(this.petasosParcelStatus);
     }    
+    
+    // the cached JSON holds the status string rather than the enum name
+    public static PetasosParcelStatusEnum fromPetasosParcelStatus(String petasosParcelStatus){
+        for (PetasosParcelStatusEnum parcelStatus : values()) {
+            if (parcelStatus.petasosParcelStatus.equals(petasosParcelStatus)) {
+                return(parcelStatus);
+            }
+        }
+        return(valueOf(petasosParcelStatus));
+    }
 }
@@ -0,0 +1,142 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.model;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time ordered identifiers in the style of Snowflake/ULID, 23 characters of Crockford
+ * base32 made up of
+ *   [50 bit epoch millis][45 bit node id][20 bit sequence]
+ * Being fixed width and time first, they sort in the order they were generated (to the
+ * millisecond), so related parcels sit together in the journal and any ordered store.
+ *
+ * The millisecond and sequence come from one AtomicLong per generator, so every thread
+ * on the node draws from the same sequence and no two identifiers from a node can be
+ * the same. Generating one is a single compare and set in the common case, unlike
+ * UUID.randomUUID() which contends on SecureRandom. The node id separates nodes. It is
+ * PETASOS_NODE_ID if set (e.g. the StatefulSet ordinal, below 2^24), which guarantees
+ * uniqueness, otherwise it is random per start: the top bit set, so it can't be taken
+ * for a configured one, and 44 random bits, so two nodes only clash if they pick the
+ * same id (about one in 17 trillion) and then the same millisecond and sequence.
+ *
+ * A node generating more than a million identifiers in a millisecond borrows the next
+ * millisecond, and the clock going backwards doesn't produce duplicates, the node
+ * carries on from the last millisecond it used until the clock catches up.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class TimeOrderedIdentifierGenerator implements PetasosIdentifierGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(TimeOrderedIdentifierGenerator.class);
+
+    public static final int IDENTIFIER_LENGTH = 23;
+
+    private static final char[] CROCKFORD_BASE32 = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final int NODE_ID_BITS = 45;
+    private static final int CONFIGURED_NODE_ID_BITS = 24;
+    private static final long RANDOM_NODE_ID_FLAG = 1L << (NODE_ID_BITS - 1);
+    private static final int SEQUENCE_BITS = 20;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    // the millisecond is held from here in the shared state, so it and the sequence fit in
+    // a long for the next couple of centuries
+    private static final long STATE_EPOCH_MILLIS = 1577836800000L; // 2020-01-01T00:00:00Z
+
+    private final long nodeId;
+    // (milliseconds since STATE_EPOCH_MILLIS << SEQUENCE_BITS) | sequence, of the last identifier
+    private final AtomicLong lastState = new AtomicLong();
+
+    public TimeOrderedIdentifierGenerator() {
+        this(getConfiguredNodeId());
+    }
+
+    public TimeOrderedIdentifierGenerator(long nodeId) {
+        if (nodeId < 0 || nodeId >= 1L << NODE_ID_BITS) {
+            throw new IllegalArgumentException("Node id " + nodeId + " doesn't fit in " + NODE_ID_BITS + " bits");
+        }
+        this.nodeId = nodeId;
+    }
+
+    private static long getConfiguredNodeId() {
+        return getNodeId(System.getenv("PETASOS_NODE_ID"));
+    }
+
+    // a configured id that is out of range is refused rather than cut down to one that
+    // another node may well have been given
+    static long getNodeId(String configuredNodeId) {
+        if (configuredNodeId != null) {
+            try {
+                long nodeId = Long.parseLong(configuredNodeId.trim());
+                if (nodeId >= 0 && nodeId < 1L << CONFIGURED_NODE_ID_BITS) {
+                    return nodeId;
+                }
+                LOG.warn("PETASOS_NODE_ID " + configuredNodeId + " is outside 0 to " + ((1L << CONFIGURED_NODE_ID_BITS) - 1) + ", using a random node id");
+            } catch (NumberFormatException badNodeId) {
+                LOG.warn("Invalid PETASOS_NODE_ID " + configuredNodeId + ", using a random node id");
+            }
+        }
+        long randomBits = new SecureRandom().nextLong() & (RANDOM_NODE_ID_FLAG - 1);
+        return RANDOM_NODE_ID_FLAG | randomBits;
+    }
+
+    @Override
+    public String generateIdentifier() {
+        long nowState = (System.currentTimeMillis() - STATE_EPOCH_MILLIS) << SEQUENCE_BITS;
+        long state;
+        while (true) {
+            long previousState = lastState.get();
+            // a new millisecond starts at sequence 0, otherwise the next in the sequence,
+            // which runs over into the next millisecond once it is used up
+            state = nowState > previousState ? nowState : previousState + 1;
+            if (lastState.compareAndSet(previousState, state)) {
+                break;
+            }
+        }
+        // node id and sequence are 65 bits, so the top 5 bits of the node id (the first
+        // character) are kept apart from the rest
+        long nodeIdHighBits = nodeId >>> (NODE_ID_BITS - 5);
+        long lowBits = ((nodeId & ((1L << (NODE_ID_BITS - 5)) - 1)) << SEQUENCE_BITS) | (state & SEQUENCE_MASK);
+
+        char[] identifier = new char[IDENTIFIER_LENGTH];
+        // 10 characters (50 bits) of time, then 13 characters (65 bits) of node and sequence
+        long millis = (state >>> SEQUENCE_BITS) + STATE_EPOCH_MILLIS;
+        for (int index = 9; index >= 0; index--) {
+            identifier[index] = CROCKFORD_BASE32[(int) (millis & 0x1F)];
+            millis >>>= 5;
+        }
+        for (int index = IDENTIFIER_LENGTH - 1; index >= 11; index--) {
+            identifier[index] = CROCKFORD_BASE32[(int) (lowBits & 0x1F)];
+            lowBits >>>= 5;
+        }
+        identifier[10] = CROCKFORD_BASE32[(int) nodeIdHighBits];
+        return new String(identifier);
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+}
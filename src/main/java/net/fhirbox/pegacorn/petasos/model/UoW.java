@@ -23,9 +23,11 @@
  */
 package net.fhirbox.pegacorn.petasos.model;
 
-import java.time.Instant;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.function.Supplier;
+
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadCompression;
 
 /**
  *
@@ -54,6 +56,18 @@ public class UoW {
      * The set of (JSON) objects created as part of the completion of this UoW. 
      */
     private HashSet<String> uowEgressContent; // JSON Objects
+    /**
+     * Content read back from the cache may still be compressed, it is only decompressed
+     * when the content is asked for, as many parcels are never looked inside.
+     */
+    private boolean uowIngressContentCompressed;
+    private boolean uowEgressContentCompressed;
+    /**
+     * Content not yet read out of the parcel it came from, loaded on first access so a
+     * parcel used only for its status or FDNs never decodes (or fetches) its payloads.
+     */
+    private Supplier<Set<String>> uowIngressContentLoader;
+    private Supplier<Set<String>> uowEgressContentLoader;
     /**
      * The (enum) outcome status of the processing of this UoW. 
      */
@@ -63,7 +77,8 @@ public class UoW {
     // Constructers
     
     public UoW (FDN functionFDN, Set<String> theInput) {
-        String generatedInstanceValue = Long.toString(Instant.now().getNano());
+        String generatedInstanceValue = PetasosIdentifiers.nextIdentifier();
+        this.requiredFunctionFDN = new FDN(functionFDN);
         this.uowIngressContent = new HashSet<>(theInput);
         this.uowEgressContent = new HashSet<>();
         this.uowProcessingOutcome = UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_NOTSTARTED;
@@ -73,6 +88,7 @@ public class UoW {
     }
     
     public UoW (FDN functionFDN, String uowQualifier,Set<String> theInput) {
+        this.requiredFunctionFDN = new FDN(functionFDN);
         this.uowIngressContent = new HashSet<>(theInput);
         this.uowEgressContent = new HashSet<>();
         this.uowProcessingOutcome = UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_NOTSTARTED;
@@ -85,15 +101,26 @@ public class UoW {
         this.uowFDN = new FDN(originalUoW.getUoWFDN());
         this.requiredFunctionFDN = new FDN(originalUoW.getRequiredFunctionFDN());
         this.uowIngressContent = new HashSet<>();
-        this.uowIngressContent.addAll(originalUoW.getUowIngressContent());
         this.uowEgressContent = new HashSet<>();
-        this.uowEgressContent.addAll(originalUoW.getUowEgressContent());
+        // content the original hasn't loaded yet is left for the copy to load too
+        if (originalUoW.uowIngressContentLoader != null) {
+            this.uowIngressContentLoader = originalUoW.uowIngressContentLoader;
+        } else {
+            this.uowIngressContent.addAll(originalUoW.getUowIngressContent());
+        }
+        if (originalUoW.uowEgressContentLoader != null) {
+            this.uowEgressContentLoader = originalUoW.uowEgressContentLoader;
+        } else {
+            this.uowEgressContent.addAll(originalUoW.getUowEgressContent());
+        }
         this.uowProcessingOutcome = originalUoW.getUowProcessingOutcome();
     }
     
     public UoW (FDN uowFDN, FDN requiredFunctionFDN) {
         this.uowFDN = uowFDN;
         this.requiredFunctionFDN = requiredFunctionFDN;
+        this.uowIngressContent = new HashSet<>();
+        this.uowEgressContent = new HashSet<>();
     }
 
     public FDN getUoWFDN() {
@@ -105,21 +132,72 @@ public class UoW {
     }
 
     public Set<String> getUowIngressContent() {
+        if (uowIngressContentLoader != null) {
+            Supplier<Set<String>> contentLoader = uowIngressContentLoader;
+            uowIngressContentLoader = null;
+            setUowIngressContent(contentLoader.get());
+        }
+        if (uowIngressContentCompressed) {
+            decompressContent(uowIngressContent);
+            uowIngressContentCompressed = false;
+        }
         return uowIngressContent;
     }
 
     public void setUowIngressContent(Set<String> uowIngressContent) {
+        this.uowIngressContentLoader = null;
         this.uowIngressContent.clear();
         this.uowIngressContent.addAll(uowIngressContent);
+        this.uowIngressContentCompressed = isContentCompressed(uowIngressContent);
+    }
+
+    /**
+     * Sets the ingress content to be loaded from the supplier when first asked for.
+     */
+    public void setUowIngressContentLoader(Supplier<Set<String>> uowIngressContentLoader) {
+        this.uowIngressContent.clear();
+        this.uowIngressContentCompressed = false;
+        this.uowIngressContentLoader = uowIngressContentLoader;
     }
 
     public Set<String> getUowEgressContent() {
+        if (uowEgressContentLoader != null) {
+            Supplier<Set<String>> contentLoader = uowEgressContentLoader;
+            uowEgressContentLoader = null;
+            setUowEgressContent(contentLoader.get());
+        }
+        if (uowEgressContentCompressed) {
+            decompressContent(uowEgressContent);
+            uowEgressContentCompressed = false;
+        }
         return uowEgressContent;
     }
 
     public void setUowEgressContent(Set<String> uowEgressContent) {
+        this.uowEgressContentLoader = null;
         this.uowEgressContent.clear();
         this.uowEgressContent.addAll(uowEgressContent);
+        this.uowEgressContentCompressed = isContentCompressed(uowEgressContent);
+    }
+
+    /**
+     * Sets the egress content to be loaded from the supplier when first asked for.
+     */
+    public void setUowEgressContentLoader(Supplier<Set<String>> uowEgressContentLoader) {
+        this.uowEgressContent.clear();
+        this.uowEgressContentCompressed = false;
+        this.uowEgressContentLoader = uowEgressContentLoader;
+    }
+
+    private static boolean isContentCompressed(Set<String> content) {
+        return content.stream().anyMatch(PetasosPayloadCompression::isCompressed);
+    }
+
+    private static void decompressContent(HashSet<String> content) {
+        HashSet<String> decompressedContent = new HashSet<>(content.size());
+        content.forEach(payload -> decompressedContent.add(PetasosPayloadCompression.decompress(payload)));
+        content.clear();
+        content.addAll(decompressedContent);
     }
 
     public UoWProcessingOutcomeEnum getUowProcessingOutcome() {
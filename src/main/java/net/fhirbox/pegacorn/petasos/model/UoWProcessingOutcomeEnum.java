@@ -43,4 +43,14 @@ public enum UoWProcessingOutcomeEnum {
         return(this.uowProcessingOutcome);
     }
     
+    // the cached JSON holds the outcome string rather than the enum name
+    public static UoWProcessingOutcomeEnum fromUoWProcessingOutcome(String uowProcessingOutcome){
+        for (UoWProcessingOutcomeEnum processingOutcome : values()) {
+            if (processingOutcome.uowProcessingOutcome.equals(uowProcessingOutcome)) {
+                return(processingOutcome);
+            }
+        }
+        return(valueOf(uowProcessingOutcome));
+    }
+    
 }
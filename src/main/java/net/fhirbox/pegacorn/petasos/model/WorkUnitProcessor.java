@@ -31,7 +31,8 @@ public class WorkUnitProcessor {
     private FDN processorFDN;
     private PetasosParcel activeParcel;
     private FDN supportedFunctionFDN;
-    private ComponentStatusEnum processorStatus;
+    // set by the dispatcher from whichever thread the WUP asks for work on
+    private volatile ComponentStatusEnum processorStatus;
     
     
     public WorkUnitProcessor(FDN newProcessorFDN, FDN newSupportedFunction ) {
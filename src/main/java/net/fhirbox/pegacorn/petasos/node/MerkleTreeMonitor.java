@@ -0,0 +1,75 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.node;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryExpired;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryExpiredEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+
+import net.fhirbox.pegacorn.petasos.replication.ParcelMerkleTree;
+
+// Keeps a cache's Merkle tree in step with the cache. Clustered so the tree on each
+// node covers every entry at the site, not just the ones this node owns.
+@Listener(clustered = true, sync=false)
+public class MerkleTreeMonitor {
+
+    private ParcelMerkleTree tree;
+
+    public MerkleTreeMonitor(ParcelMerkleTree tree) {
+        this.tree = tree;
+    }
+
+    @CacheEntryCreated
+    public CompletionStage<Void> entryCreated(CacheEntryCreatedEvent<String, String> event) {
+        tree.update(event.getKey(), event.getValue());
+        return CompletableFuture.allOf();
+    }
+
+    @CacheEntryModified
+    public CompletionStage<Void> entryModified(CacheEntryModifiedEvent<String, String> event) {
+        tree.update(event.getKey(), event.getValue());
+        return CompletableFuture.allOf();
+    }
+
+    @CacheEntryRemoved
+    public CompletionStage<Void> entryRemoved(CacheEntryRemovedEvent<String, String> event) {
+        tree.update(event.getKey(), null);
+        return CompletableFuture.allOf();
+    }
+
+    @CacheEntryExpired
+    public CompletionStage<Void> entryExpired(CacheEntryExpiredEvent<String, String> event) {
+        tree.update(event.getKey(), null);
+        return CompletableFuture.allOf();
+    }
+}
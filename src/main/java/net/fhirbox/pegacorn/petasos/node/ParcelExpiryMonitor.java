@@ -0,0 +1,68 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.node;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryExpired;
+import org.infinispan.notifications.cachelistener.event.CacheEntryExpiredEvent;
+
+import net.fhirbox.pegacorn.petasos.journal.ParcelArchive;
+
+/**
+ * Hands finalised parcels to the archive as their lifespan in the parcel cache runs out.
+ * A local listener on the primary owner only, so each expired parcel is archived once
+ * per site rather than by every node (or every owner).
+ *
+ * Each expired parcel also leaves a tombstone behind for a while, so a node restoring
+ * its journal can tell the parcel was finalised and expired rather than lost.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@Listener(primaryOnly = true, sync = false)
+public class ParcelExpiryMonitor {
+    // null if the archive couldn't be opened
+    private ParcelArchive archive;
+    private Cache<String, String> tombstoneCache;
+    private long tombstoneLifespanMillis;
+
+    public ParcelExpiryMonitor(ParcelArchive archive, Cache<String, String> tombstoneCache, long tombstoneLifespanMillis) {
+        this.archive = archive;
+        this.tombstoneCache = tombstoneCache;
+        this.tombstoneLifespanMillis = tombstoneLifespanMillis;
+    }
+
+    @CacheEntryExpired
+    public CompletionStage<Void> parcelExpired(CacheEntryExpiredEvent<String, String> event) {
+        tombstoneCache.putAsync(event.getKey(), Long.toString(System.currentTimeMillis()), tombstoneLifespanMillis, TimeUnit.MILLISECONDS);
+        if (archive != null && event.getValue() != null) {
+            archive.archive(event.getKey(), event.getValue());
+        }
+        return CompletableFuture.allOf();
+    }
+}
@@ -4,6 +4,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.jfr.PetasosFlightRecorder;
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
 import net.fhirbox.pegacorn.petasos.model.UoW;
 
 import java.util.concurrent.CompletionStage;
@@ -22,22 +24,32 @@ public class ParcelMonitor {
     private static final Logger LOG = LoggerFactory.getLogger(ParcelMonitor.class);
 
     PetasosNode node;
+    PetasosMetrics metrics;
     
     // when a parcel is added, check if it is a multicast and add its FDN to a list which
     // will hold all parcel FDNs for that UoW FDN.
     @CacheEntryCreated
     public CompletionStage<Void> monitorParcel(CacheEntryCreatedEvent<String, String> event) {
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginParcelMonitor() : null;
         PetasosParcelJSON parcelJSON = new PetasosParcelJSON(event.getValue());
+        // the lag between the write and this listener, for parcels registered on this node
+        if (metrics != null) {
+            metrics.parcelMonitorNotified(event.getKey());
+        }
         String uowQualifiedFDN = parcelJSON.getUoWFDN();
         // if multicast, store it with the Node
         if (uowQualifiedFDN.contains(UoW.HASH_ATTRIBUTE)) {
             node.registerMulticastParcel(uowQualifiedFDN, parcelJSON);
         }
+        node.dispatchParcel(event.getKey(), parcelJSON);
 
         // Not clear if Infinispan manages non-blocking listener tasks
         // https://infinispan.org/docs/stable/titles/developing/developing.html#synchronicity_of_events
         // https://stackoverflow.com/questions/46641700/what-is-the-correct-way-to-create-an-already-completed-completablefuturevoid/46642974#46642974
         CompletableFuture<Void> cf = CompletableFuture.allOf();
+        if (flightRecorderEvent != null) {
+            PetasosFlightRecorder.commitParcelMonitor(flightRecorderEvent, event.getKey(), event.getValue().length());
+        }
         return cf;
     }
     
@@ -45,4 +57,8 @@ public class ParcelMonitor {
     public void setNodeReference(PetasosNode node) {
         this.node = node;
     } 
+
+    public void setMetrics(PetasosMetrics metrics) {
+        this.metrics = metrics;
+    }
 }
\ No newline at end of file
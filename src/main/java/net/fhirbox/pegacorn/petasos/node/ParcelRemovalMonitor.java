@@ -0,0 +1,64 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.node;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryExpired;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryExpiredEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+
+/**
+ * Journals the removal of parcels from the parcel cache, so the local journal can drop
+ * them when it is compacted and doesn't put them back on a restart. Clustered as the
+ * journal holds every parcel this node wrote, not just the ones it owns, though only
+ * the removals of parcels the journal holds are journalled.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@Listener(clustered = true, sync = false)
+public class ParcelRemovalMonitor {
+    private PetasosNode node;
+
+    public ParcelRemovalMonitor(PetasosNode node) {
+        this.node = node;
+    }
+
+    @CacheEntryExpired
+    public CompletionStage<Void> parcelExpired(CacheEntryExpiredEvent<String, String> event) {
+        node.journalParcelRemoval(event.getKey());
+        return CompletableFuture.allOf();
+    }
+
+    @CacheEntryRemoved
+    public CompletionStage<Void> parcelRemoved(CacheEntryRemovedEvent<String, String> event) {
+        if (!event.isPre()) {
+            node.journalParcelRemoval(event.getKey());
+        }
+        return CompletableFuture.allOf();
+    }
+}
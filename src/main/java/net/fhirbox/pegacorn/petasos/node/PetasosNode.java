@@ -8,30 +8,61 @@
  */
 package net.fhirbox.pegacorn.petasos.node;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.enterprise.context.ApplicationScoped;
 import org.infinispan.manager.DefaultCacheManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import net.fhirbox.pegacorn.deploymentproperties.PetasosProperties;
+import net.fhirbox.pegacorn.petasos.jfr.PetasosFlightRecorder;
+import net.fhirbox.pegacorn.petasos.dispatch.WorkUnitDispatcher;
+import net.fhirbox.pegacorn.petasos.journal.ParcelArchive;
+import net.fhirbox.pegacorn.petasos.lineage.ParcelLineageIndex;
+import net.fhirbox.pegacorn.petasos.journal.ParcelJournal;
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
 import net.fhirbox.pegacorn.petasos.node.ParcelMonitor;
+import net.fhirbox.pegacorn.petasos.common.ComponentResolverInterface;
 import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
 import net.fhirbox.pegacorn.petasos.common.PetasosWUPWatchdogStateJSON;
 import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
 import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadStore;
+import net.fhirbox.pegacorn.petasos.replication.MerkleReconciler;
+import net.fhirbox.pegacorn.petasos.replication.ParcelMerkleTree;
+import net.fhirbox.pegacorn.petasos.replication.SiteParcelUpdateWriter;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationClient;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationListener;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationTransport;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationUpdate;
+import net.fhirbox.pegacorn.petasos.replication.SiteReplicationUpdateTypeEnum;
 
 import org.infinispan.Cache;
 
 @ApplicationScoped
-public class PetasosNode {
+public class PetasosNode implements SiteReplicationListener {
+    private static final Logger LOG = LoggerFactory.getLogger(PetasosNode.class);
+
     // not very nice, but to keep simple string lists in Infinispan without having to
     // serialise and deserialise
     public static final String MAP_ENTRY_DELIMITER = "#@#@";
@@ -47,9 +78,21 @@ public class PetasosNode {
     @Resource(name = "DefaultManagedExecutorService")
     ManagedExecutorService executor;
     
+    // the blocking background work runs here, the managed executor or virtual threads
+    private PetasosTaskExecutor taskExecutor;
+
     @Inject
     DefaultCacheManager petasosCacheManager;   
 
+    @Inject
+    PetasosProperties petasosProperties;
+
+    @Inject
+    PetasosMetrics metrics;
+
+    @Inject
+    ComponentResolverInterface componentResolver;
+
     // The clustered cache
     private Cache<String, String> petasosParcelCache;
     private Cache<String, String> petasosWatchdogCache;
@@ -57,21 +100,89 @@ public class PetasosNode {
     private Cache<String, String> uowToWUPMap;
     // shared map which contains a map of key => WUP Function FDNs to => list of WUP FDNs
     private Cache<String, String> capabilityMap;
+    // UoW payloads referenced by the parcels, so a payload is held once however many parcels carry it
+    private PetasosPayloadStore payloadStore;
+
+    // local record of every parcel transition made on this node, replayed on startup
+    private ParcelJournal parcelJournal;
+    // finalised parcels stay in the cache for their lifespan, then go to the archive
+    public static final long DEFAULT_FINALISED_PARCEL_LIFESPAN_MILLIS = 300000L;
+    private long finalisedParcelLifespanMillis = getConfiguredFinalisedParcelLifespanMillis();
+    private ParcelArchive parcelArchive;
+    // expired parcels are remembered for a while so the journal doesn't bring them back,
+    // a journalled parcel older than this can't be checked so isn't restored
+    public static final long DEFAULT_PARCEL_TOMBSTONE_LIFESPAN_MILLIS = 7L * 24L * 60L * 60L * 1000L;
+    private long parcelTombstoneLifespanMillis = getConfiguredParcelTombstoneLifespanMillis();
+    private Cache<String, String> parcelTombstoneCache;
+    // precursor/successor links between parcels, for tracing a UoW through the pipeline
+    private ParcelLineageIndex lineageIndex;
+    // hands new parcels to this node's WUPs
+    private WorkUnitDispatcher dispatcher;
     
-    // TODO: other configured sites and endpoints
-    // need to know comms mechanism for types of activity to implement this
+    // other configured sites as host:port of their site replication transport,
     // will contain *other* sites, not itself
     ArrayList<String> siteConnectionEndpoints = new ArrayList<>();
+    private SiteReplicationTransport siteReplication;
+    private long siteForwardTimeoutMillis = SiteReplicationClient.DEFAULT_SEND_TIMEOUT_MILLIS;
+    private SiteParcelUpdateWriter siteParcelUpdateWriter;
+    // one instance shared by every forward so counting the outcome doesn't allocate
+    private final BiConsumer<Boolean, Throwable> siteForwardOutcome = (forwarded, error) -> metrics.siteForwardOutcome(error == null && Boolean.TRUE.equals(forwarded));
+    // anti-entropy between sites, in case forwarded updates are missed
+    public static final long DEFAULT_RECONCILIATION_INTERVAL_MILLIS = 60000L;
+    private long reconciliationIntervalMillis = DEFAULT_RECONCILIATION_INTERVAL_MILLIS;
+    // keeps this node's WUP placements alive in the component topology, see ComponentResolver
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 10000L;
+    private long heartbeatIntervalMillis = getConfiguredHeartbeatIntervalMillis();
+    private ParcelMerkleTree parcelMerkleTree = new ParcelMerkleTree("petasos-parcel-cache");
+    private ParcelMerkleTree watchdogMerkleTree = new ParcelMerkleTree("petasos-watchdog-cache");
 
     @PostConstruct
     public void start() {
+        taskExecutor = PetasosTaskExecutor.forBlockingTasks(executor);
         // get or create the clustered cache which will hold the transactions (aka Units of Work)
         petasosParcelCache = petasosCacheManager.getCache("petasos-parcel-cache", true);
         petasosWatchdogCache = petasosCacheManager.getCache("petasos-watchdog-cache", true);
         uowToWUPMap = petasosCacheManager.getCache("petasos-uow-to-wup-map", true);
+        capabilityMap = petasosCacheManager.getCache("capability-map", true);
+        metrics.registerCacheHitRatio(uowToWUPMap);
+        metrics.registerCacheHitRatio(capabilityMap);
+        payloadStore = new PetasosPayloadStore(petasosCacheManager.getCache("petasos-payload-cache", true),
+                petasosCacheManager.getCache("petasos-payload-reference-cache", true));
+        payloadStore.setNewPayloadListener(this::forwardPayloadToOtherSites);
+        lineageIndex = new ParcelLineageIndex(petasosCacheManager.getCache("petasos-parcel-lineage-cache", true));
+        dispatcher = new WorkUnitDispatcher(petasosParcelCache);
+        metrics.registerGauge("dispatcher.queued", () -> dispatcher.getQueuedCount());
         ParcelMonitor parcelMonitor = new ParcelMonitor();
         parcelMonitor.setNodeReference(this);
+        parcelMonitor.setMetrics(metrics);
         petasosParcelCache.addListener(parcelMonitor);
+        parcelTombstoneCache = petasosCacheManager.getCache("petasos-parcel-tombstone-cache", true);
+        startParcelJournal();
+        startParcelArchive();
+        startMerkleTrees();
+        startSiteReplication();
+
+        // needs the injected executor, so can't be done in the constructor
+        startHeartbeat();
+        initialiseHestiaConnection();
+        startAuditMonitor();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (siteReplication != null) {
+            siteReplication.stop();
+            siteReplication = null;
+        }
+        if (parcelJournal != null) {
+            parcelJournal.close();
+        }
+        if (parcelArchive != null) {
+            parcelArchive.close();
+        }
+        if (taskExecutor != null) {
+            taskExecutor.shutdown();
+        }
     }
     
     public PetasosNode() {
@@ -79,43 +190,27 @@ public class PetasosNode {
         // come from system vars. The pod name provides the uniqueness in this instance as only
         // one Node per pod and Kubernetes won't allow duplicate pod names.
         nodeFDN = new FDN("deployment=aether.site=site-a.pod="+System.getenv("MY_POD_NAME")+".node=PetasosNode");
-
-        startHeartbeat();
-        initialiseHestiaConnection();
-        startAuditMonitor();
     }
         
-    public void registerWUPWithOtherSites(PetasosWUPWatchdogState watchdogEntry) {
-        ArrayList<Callable<Integer>> taskList = new ArrayList<>();
+    /**
+     * Sends the WUP's watchdog state to every other site. Each site is sent to
+     * independently with its own timeout and circuit breaker, so this returns straight
+     * away and a slow or missing site can't hold up registration.
+     *
+     * @return completes with the number of sites the WUP was registered with
+     */
+    public CompletionStage<Integer> registerWUPWithOtherSites(PetasosWUPWatchdogState watchdogEntry) {
+        ArrayList<CompletableFuture<Integer>> forwardTaskOutcomes = new ArrayList<>();
         
         siteConnectionEndpoints.forEach(connectionEndpoint -> {
-            CIStatusForwardTask ci = new CIStatusForwardTask(watchdogEntry, (String)connectionEndpoint);
-            taskList.add(ci);
+            forwardTaskOutcomes.add(new CIStatusForwardTask(watchdogEntry, connectionEndpoint).forward());
         });
 
-        try {
-            List<Future<Integer>> forwardTaskOutcomes = executor.invokeAll(taskList);
-
-            for (Future<Integer> forwardTaskOutcome : forwardTaskOutcomes) {
-                if (forwardTaskOutcome.get() != 1) {
-                    // flag site as unavailable?? or heartbeat should do this?
-                    // ArrayList needs FDN (to check status) and endpoint (to connect)?
-                    // Need to monitor site status? Keep it simple, heartbeat should
-                    // provide updates, all we need to do is try to register the WUP
-                    // if it fails, bad luck
-                }
-            }
-        }
-        catch (InterruptedException ie) {
-            // since this is probably just the container or node being shut down
-            // there is probably no point doing anything here
-        }
-        catch (ExecutionException ee) {
-            // Might add a return value. Do we care if it doesn't work? If the forward
-            // fails are we assuming there is a problem with the site and need to flag
-            // it as unresponsive? If a forward fails then the site/pod endpoint could not
-            // be contacted. Heartbeat should pick this up so no action required?
-        }
+        // If a forward fails the site/pod endpoint could not be contacted. The circuit
+        // breaker stops us trying for a while and the heartbeat should pick the site up
+        // as unresponsive, so there is nothing more to do here than report it.
+        return CompletableFuture.allOf(forwardTaskOutcomes.toArray(new CompletableFuture<?>[0]))
+                .thenApply(allDone -> forwardTaskOutcomes.stream().mapToInt(CompletableFuture::join).sum());
     }
 
     // capture multicasts so we can keep track of them. The UoW FDN is a functional FDN
@@ -130,6 +225,7 @@ public class PetasosNode {
     }*/
 
     public void registerMulticastParcel(String uowQualifiedFDN, PetasosParcelJSON parcelJSON) {
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginNodeRegistration() : null;
         synchronized (this.multicastSemaphore) {
             if (uowToWUPMap.containsKey(uowQualifiedFDN) == false) {
                 uowToWUPMap.put(uowQualifiedFDN, parcelJSON.getWUPFDN());
@@ -140,9 +236,16 @@ public class PetasosNode {
                 uowToWUPMap.replace(uowQualifiedFDN, wupFDNs.toString());
             }
         }
+        if (flightRecorderEvent != null) {
+            PetasosFlightRecorder.commitNodeRegistration(flightRecorderEvent, "registerMulticastParcel", uowQualifiedFDN, parcelJSON.getWUPFDN());
+        }
     }
     
     public void registerWUPCapability(FDN wupFDN, FDN functionFDN) {
+        Object flightRecorderEvent = PetasosFlightRecorder.ENABLED ? PetasosFlightRecorder.beginNodeRegistration() : null;
+        dispatcher.registerWUP(wupFDN, functionFDN);
+        // so every node's resolver knows where the WUP is
+        componentResolver.registerWUP(wupFDN, functionFDN, nodeFDN);
         synchronized (this.capabilitySemaphore) {
             if (capabilityMap.containsKey(functionFDN.getQualifiedFDN()) == false) {
                 capabilityMap.put(functionFDN.getQualifiedFDN(), wupFDN.getQualifiedFDN());
@@ -153,6 +256,9 @@ public class PetasosNode {
                 uowToWUPMap.replace(functionFDN.getQualifiedFDN(), wupFDNs.toString());
             }
         }
+        if (flightRecorderEvent != null) {
+            PetasosFlightRecorder.commitNodeRegistration(flightRecorderEvent, "registerWUPCapability", functionFDN.getQualifiedFDN(), wupFDN.getQualifiedFDN());
+        }
     }
 
     // removes all multicast parcels from the Node's internal register, basically
@@ -174,11 +280,263 @@ public class PetasosNode {
         activeMulticasts.remove(parcelFDN);
     }
 */    
+    /**
+     * Records a parcel transition in the local journal. The cache write is made by
+     * the caller, this only provides the local durable copy.
+     *
+     * @return the journal sequence number of the transition, or -1 if the journal
+     * is not available
+     */
+    public long journalParcelTransition(String parcelQualifiedFDN, String parcelJSON) {
+        if (parcelJournal == null) {
+            return -1;
+        }
+        return parcelJournal.append(parcelQualifiedFDN, parcelJSON);
+    }
+
+    /**
+     * Records in the local journal that a parcel has left the parcel cache, so it is
+     * neither kept when the journal is compacted nor restored on a restart. Nothing is
+     * journalled for a parcel the journal doesn't hold, as every node hears about
+     * every removal.
+     */
+    public void journalParcelRemoval(String parcelQualifiedFDN) {
+        if (parcelJournal != null && parcelJournal.holdsParcel(parcelQualifiedFDN)) {
+            parcelJournal.appendRemoval(parcelQualifiedFDN);
+        }
+    }
+
+    /**
+     * @return a future completing once the journalled transition is on disk, or null
+     * if the transition was not journalled
+     */
+    public CompletableFuture<Void> whenParcelTransitionDurable(long journalSequence) {
+        if (parcelJournal == null || journalSequence < 0) {
+            return null;
+        }
+        return parcelJournal.whenDurable(journalSequence);
+    }
+
+    public ParcelJournal getParcelJournal() {
+        return parcelJournal;
+    }
+
+    /**
+     * For a node used without being started, as setBlockingTaskExecutor(). The journal
+     * is expected to be open, and is replaced when the node is started.
+     */
+    public void setParcelJournal(ParcelJournal parcelJournal) {
+        this.parcelJournal = parcelJournal;
+    }
+
     public void updateCIStatus(PetasosWUPWatchdogState watchdogEntry) {
-        petasosWatchdogCache.put(watchdogEntry.getWupFDN().getQualifiedFDN(), new PetasosWUPWatchdogStateJSON(watchdogEntry).toJSONString());
-        // TODO: forward to other sites
+        String watchdogEntryJSON = new PetasosWUPWatchdogStateJSON(watchdogEntry).toJSONString();
+        petasosWatchdogCache.put(watchdogEntry.getWupFDN().getQualifiedFDN(), watchdogEntryJSON);
+        siteConnectionEndpoints.forEach(connectionEndpoint -> {
+            new CIStatusForwardTask(watchdogEntry, connectionEndpoint).forward();
+        });
+    }
+
+    // Queues a parcel for forwarding to every other site. The transport coalesces
+    // and batches per site on its own event loop so this never blocks.
+    public void forwardParcelToOtherSites(String parcelQualifiedFDN, String parcelJSON) {
+        if (siteReplication == null) {
+            return;
+        }
+        // each site gets its own update, sharing the encoded parcel
+        SiteReplicationUpdate update = new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL, parcelQualifiedFDN, parcelJSON);
+        siteReplication.getSites().forEach(site -> site.send(new SiteReplicationUpdate(update)).whenComplete(siteForwardOutcome));
+    }
+
+    // Payloads go to the other sites once, when first stored, the parcels then only carry
+    // the reference. Sent before the parcel so normally arrives first.
+    public void forwardPayloadToOtherSites(String payloadRef, String payload) {
+        if (siteReplication == null) {
+            return;
+        }
+        SiteReplicationUpdate update = new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PAYLOAD, payloadRef, payload);
+        siteReplication.getSites().forEach(site -> site.send(new SiteReplicationUpdate(update)).whenComplete(siteForwardOutcome));
+    }
+
+    /**
+     * @return the store holding the UoW payloads, null until the node is started (in which
+     * case parcels keep their content inline)
+     */
+    public PetasosPayloadStore getPayloadStore() {
+        return payloadStore;
+    }
+
+    /**
+     * Records a newly registered parcel in the lineage index. Off the caller's thread, as
+     * the index is for tracing and replay rather than processing, so a lineage query can
+     * lag a registration slightly.
+     */
+    public void recordParcelLineage(String parcelQualifiedFDN, String uowQualifiedFDN, String precursorParcelFDN) {
+        if (lineageIndex == null) {
+            return;
+        }
+        taskExecutor.getExecutor().submit(() -> {
+            try {
+                lineageIndex.recordParcel(parcelQualifiedFDN, uowQualifiedFDN, precursorParcelFDN);
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to record lineage of parcel " + parcelQualifiedFDN, e);
+            }
+        });
+    }
+
+    /**
+     * @return the parcel lineage index, null until the node is started
+     */
+    public ParcelLineageIndex getLineageIndex() {
+        return lineageIndex;
+    }
+
+    // called by the ParcelMonitor for every new parcel in the cluster
+    public void dispatchParcel(String parcelQualifiedFDN, PetasosParcelJSON parcelJSON) {
+        dispatcher.dispatch(parcelQualifiedFDN, parcelJSON);
+    }
+
+    /**
+     * @return where blocking background work should be run, see PetasosTaskExecutor
+     */
+    public ExecutorService getBlockingTaskExecutor() {
+        return taskExecutor.getExecutor();
+    }
+
+    /**
+     * For a node used outside the container without being started (the benchmarks and
+     * cluster harness), which has no managed executor injected. Replaced when the node
+     * is started.
+     */
+    public void setBlockingTaskExecutor(ExecutorService blockingTaskExecutor) {
+        taskExecutor = PetasosTaskExecutor.forBlockingTasks(blockingTaskExecutor);
+    }
+
+    public WorkUnitDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public FDN getNodeFDN() {
+        return nodeFDN;
+    }
+
+    public SiteReplicationTransport getSiteReplicationTransport() {
+        return siteReplication;
+    }
+
+    public void setSiteForwardTimeoutMillis(long siteForwardTimeoutMillis) {
+        this.siteForwardTimeoutMillis = siteForwardTimeoutMillis;
+    }
+
+    public List<String> getSiteConnectionEndpoints() {
+        return siteConnectionEndpoints;
+    }
+
+    // updates from other sites are the latest state there, but can arrive out of order
+    // or behind a local transition, so the writer orders them against our copy.
+    @Override
+    public void onParcelUpdate(String parcelQualifiedFDN, String parcelJSON) {
+        PetasosParcelJSON updatedParcel = new PetasosParcelJSON(parcelJSON);
+        if (updatedParcel.getParcelStatus() == PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED) {
+            // each site keeps its own lineage index
+            recordParcelLineage(parcelQualifiedFDN, updatedParcel.getUoWFDN(), updatedParcel.getPrecursorParcelFDN());
+        }
+        siteParcelUpdateWriter.write(parcelQualifiedFDN, parcelJSON);
+    }
+
+    // this site's copy holds its own references on the payloads, moved across to those
+    // the update refers to. The reference counts are blocking cache calls so off the event loop.
+    private void updateSiteParcelPayloadReferences(String previousParcelJSON, String parcelJSON) {
+        if (payloadStore == null) {
+            return;
+        }
+        taskExecutor.getExecutor().execute(() -> {
+            Set<String> previousPayloadRefs = getPayloadRefs(previousParcelJSON);
+            Set<String> currentPayloadRefs = getPayloadRefs(parcelJSON);
+            if (!previousPayloadRefs.isEmpty() || !currentPayloadRefs.isEmpty()) {
+                payloadStore.updateReferences(previousPayloadRefs, currentPayloadRefs);
+            }
+        });
+    }
+
+    // avoids decoding parcels with inline content
+    private Set<String> getPayloadRefs(String parcelJSON) {
+        if (parcelJSON == null || !parcelJSON.contains("ContentRefs")) {
+            return Collections.emptySet();
+        }
+        return new PetasosParcelJSON(parcelJSON).getPayloadRefs();
+    }
+
+    @Override
+    public void onCIStatusUpdate(String wupQualifiedFDN, String watchdogStateJSON) {
+        petasosWatchdogCache.putAsync(wupQualifiedFDN, watchdogStateJSON);
+    }
+
+    @Override
+    public void onPayloadUpdate(String payloadRef, String payload) {
+        if (payloadStore != null) {
+            payloadStore.putPayload(payloadRef, payload);
+        }
     }
     
+    // Site endpoints and the port we listen on come from the environment, same as
+    // the pod name. PETASOS_SITE_ENDPOINTS is a comma separated list of host:port.
+    private void startSiteReplication() {
+        String siteEndpoints = System.getenv("PETASOS_SITE_ENDPOINTS");
+        if (siteEndpoints != null) {
+            for (String siteEndpoint : siteEndpoints.split(",")) {
+                if (!siteEndpoint.trim().isEmpty()) {
+                    siteConnectionEndpoints.add(siteEndpoint.trim());
+                }
+            }
+        }
+        String replicationPort = System.getenv("PETASOS_SITE_REPLICATION_PORT");
+        int listenPort = replicationPort == null ? SiteReplicationTransport.DEFAULT_PORT : Integer.parseInt(replicationPort);
+        // finalised parcels expire here too, from when they were finalised at the other site,
+        // and one that already has is left out rather than archived again
+        siteParcelUpdateWriter = new SiteParcelUpdateWriter(petasosParcelCache, this::getRemainingLifespanMillis,
+                this::updateSiteParcelPayloadReferences, parcelTombstoneCache);
+        siteReplication = new SiteReplicationTransport(listenPort, this);
+        try {
+            siteReplication.start();
+            siteConnectionEndpoints.forEach(siteReplication::addSite);
+            MerkleReconciler reconciler = new MerkleReconciler();
+            reconciler.addCache(parcelMerkleTree, petasosParcelCache::get,
+                    parcelJSON -> new PetasosParcelJSON(parcelJSON).getWUPLastStatusUpdate(), SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL);
+            reconciler.addCache(watchdogMerkleTree, petasosWatchdogCache::get,
+                    watchdogJSON -> new PetasosWUPWatchdogStateJSON(watchdogJSON).getLastStatusUpdate(), SiteReplicationUpdateTypeEnum.SITE_UPDATE_CI_STATUS);
+            siteReplication.setReconciler(reconciler);
+            // the reconciler reads the caches to build its replies, which mustn't block the event loop
+            siteReplication.setReconciliationExecutor(taskExecutor.getExecutor());
+            if (!siteConnectionEndpoints.isEmpty()) {
+                taskExecutor.getExecutor().submit(new ReconciliationTask());
+            }
+        } catch (InterruptedException ie) {
+            // container or node being shut down
+            siteReplication = null;
+        } catch (RuntimeException re) {
+            // most likely the port is in use, we still work as a single site
+            LOG.error("Unable to start site replication on port " + listenPort, re);
+            siteReplication = null;
+        }
+    }
+
+    // Listeners first so nothing is missed while the trees are seeded from the caches
+    private void startMerkleTrees() {
+        petasosParcelCache.addListener(new MerkleTreeMonitor(parcelMerkleTree));
+        petasosWatchdogCache.addListener(new MerkleTreeMonitor(watchdogMerkleTree));
+        petasosParcelCache.entrySet().forEach(entry -> parcelMerkleTree.update(entry.getKey(), entry.getValue()));
+        petasosWatchdogCache.entrySet().forEach(entry -> watchdogMerkleTree.update(entry.getKey(), entry.getValue()));
+    }
+
+    public void setReconciliationIntervalMillis(long reconciliationIntervalMillis) {
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis;
+    }
+
+    public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    }
+
     private void initialiseHestiaConnection() {
         // need jdbc string, will be over SSL to Postgres
         // Hestia db sharded by service so separate dbs per service
@@ -187,6 +545,168 @@ public class PetasosNode {
         // the db design
     }
     
+    // Replay whatever the journal holds from before a restart, then keep appending
+    // to it. The journal is local to the pod so it holds the last known state of
+    // every parcel this node touched. If the cluster lost an entry (e.g. all owners
+    // went down together) it is put back, if the cache holds a different version we
+    // leave the cache alone as another node may have legitimately moved the parcel on.
+    // A parcel with a tombstone was finalised and expired elsewhere (its payloads are
+    // already released) so it is not restored, nor is one journalled before the oldest
+    // tombstone we could still hold as we can't tell whether it went the same way.
+    private void startParcelJournal() {
+        parcelJournal = new ParcelJournal(Paths.get(petasosProperties.getCacheOverflowDirectory(), "parcel-journal"));
+        try {
+            HashMap<String, String> journalledParcels = new HashMap<>();
+            HashMap<String, Long> journalledInstants = new HashMap<>();
+            parcelJournal.replay((parcelFDN, parcelJSON, journalledInstant) -> {
+                if (parcelJSON == null) {
+                    journalledParcels.remove(parcelFDN);
+                    journalledInstants.remove(parcelFDN);
+                } else {
+                    journalledParcels.put(parcelFDN, parcelJSON);
+                    journalledInstants.put(parcelFDN, journalledInstant);
+                }
+            });
+            int restoredParcels = 0;
+            int divergentParcels = 0;
+            ArrayList<String> expiredParcels = new ArrayList<>();
+            long oldestCheckableInstant = System.currentTimeMillis() - parcelTombstoneLifespanMillis;
+            for (String parcelFDN : journalledParcels.keySet()) {
+                String journalledParcelJSON = journalledParcels.get(parcelFDN);
+                if (journalledInstants.get(parcelFDN) < oldestCheckableInstant || parcelTombstoneCache.containsKey(parcelFDN)) {
+                    expiredParcels.add(parcelFDN);
+                    continue;
+                }
+                String cachedParcelJSON;
+                long remainingLifespanMillis = getRemainingLifespanMillis(new PetasosParcelJSON(journalledParcelJSON));
+                if (remainingLifespanMillis < 0) {
+                    cachedParcelJSON = petasosParcelCache.putIfAbsent(parcelFDN, journalledParcelJSON);
+                } else {
+                    // a finalised parcel only gets what is left of its lifespan, one that ran out
+                    // while we were down still expires (and so is archived) rather than being dropped
+                    cachedParcelJSON = petasosParcelCache.putIfAbsent(parcelFDN, journalledParcelJSON,
+                            Math.max(remainingLifespanMillis, 1000L), TimeUnit.MILLISECONDS);
+                }
+                if (cachedParcelJSON == null) {
+                    restoredParcels++;
+                } else if (!cachedParcelJSON.equals(journalledParcelJSON)) {
+                    divergentParcels++;
+                }
+            }
+            LOG.info("Parcel journal replayed, " + journalledParcels.size() + " parcels, " + restoredParcels
+                    + " restored to cache, " + divergentParcels + " differ from the cache, " + expiredParcels.size() + " already expired");
+            parcelJournal.setTombstoneRetentionMillis(parcelTombstoneLifespanMillis);
+            parcelJournal.open();
+            for (String expiredParcelFDN : expiredParcels) {
+                parcelJournal.appendRemoval(expiredParcelFDN);
+            }
+            // the replayed segments are closed now, so this leaves one holding just the restored parcels
+            try {
+                parcelJournal.compact();
+            } catch (IOException compactionFailure) {
+                // left for the group commit task to try again
+                LOG.warn("Unable to compact parcel journal in " + parcelJournal.getJournalDirectory(), compactionFailure);
+            }
+            taskExecutor.getExecutor().submit(parcelJournal.new GroupCommitTask());
+            petasosParcelCache.addListener(new ParcelRemovalMonitor(this));
+        } catch (IOException ioe) {
+            // carry on without the journal, the cache store still gives us overflow persistence
+            LOG.error("Unable to open parcel journal in " + parcelJournal.getJournalDirectory() + ", continuing without it", ioe);
+            parcelJournal = null;
+        }
+    }
+
+    // The archive is local to the pod like the journal. Each expired parcel is archived by
+    // the node that is its primary owner when it expires.
+    private void startParcelArchive() {
+        parcelArchive = new ParcelArchive(Paths.get(petasosProperties.getCacheOverflowDirectory(), "parcel-archive"));
+        parcelArchive.setPayloadStore(payloadStore);
+        try {
+            parcelArchive.open();
+        } catch (IOException ioe) {
+            // finalised parcels still expire, they just aren't archived (or their payloads released)
+            LOG.error("Unable to open parcel archive in " + parcelArchive.getArchiveDirectory() + ", expired parcels will not be archived", ioe);
+            parcelArchive = null;
+            petasosParcelCache.addListener(new ParcelExpiryMonitor(null, parcelTombstoneCache, parcelTombstoneLifespanMillis));
+            return;
+        }
+        petasosParcelCache.addListener(new ParcelExpiryMonitor(parcelArchive, parcelTombstoneCache, parcelTombstoneLifespanMillis));
+        taskExecutor.getExecutor().submit(parcelArchive.new ArchiveTask());
+        metrics.registerGauge("parcelArchive.pending", () -> parcelArchive.getPendingCount());
+        metrics.registerGauge("parcelArchive.archived", () -> parcelArchive.getArchivedCount());
+    }
+
+    private static long getConfiguredFinalisedParcelLifespanMillis() {
+        String lifespanSeconds = System.getenv("PETASOS_FINALISED_PARCEL_LIFESPAN_SECONDS");
+        if (lifespanSeconds == null) {
+            return DEFAULT_FINALISED_PARCEL_LIFESPAN_MILLIS;
+        }
+        try {
+            return Long.parseLong(lifespanSeconds.trim()) * 1000L;
+        } catch (NumberFormatException badLifespan) {
+            LOG.warn("Invalid PETASOS_FINALISED_PARCEL_LIFESPAN_SECONDS " + lifespanSeconds + ", using the default");
+            return DEFAULT_FINALISED_PARCEL_LIFESPAN_MILLIS;
+        }
+    }
+
+    private static long getConfiguredHeartbeatIntervalMillis() {
+        String intervalSeconds = System.getenv("PETASOS_HEARTBEAT_INTERVAL_SECONDS");
+        if (intervalSeconds == null) {
+            return DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+        }
+        try {
+            long configuredIntervalSeconds = Long.parseLong(intervalSeconds.trim());
+            if (configuredIntervalSeconds <= 0) {
+                throw new NumberFormatException("not positive");
+            }
+            return configuredIntervalSeconds * 1000L;
+        } catch (NumberFormatException badInterval) {
+            LOG.warn("Invalid PETASOS_HEARTBEAT_INTERVAL_SECONDS " + intervalSeconds + ", using the default");
+            return DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+        }
+    }
+
+    private static long getConfiguredParcelTombstoneLifespanMillis() {
+        String lifespanSeconds = System.getenv("PETASOS_PARCEL_TOMBSTONE_LIFESPAN_SECONDS");
+        if (lifespanSeconds == null) {
+            return DEFAULT_PARCEL_TOMBSTONE_LIFESPAN_MILLIS;
+        }
+        try {
+            return Long.parseLong(lifespanSeconds.trim()) * 1000L;
+        } catch (NumberFormatException badLifespan) {
+            LOG.warn("Invalid PETASOS_PARCEL_TOMBSTONE_LIFESPAN_SECONDS " + lifespanSeconds + ", using the default");
+            return DEFAULT_PARCEL_TOMBSTONE_LIFESPAN_MILLIS;
+        }
+    }
+
+    /**
+     * @return how long a finalised parcel stays in the parcel cache before it expires to
+     * the archive
+     */
+    public long getFinalisedParcelLifespanMillis() {
+        return finalisedParcelLifespanMillis;
+    }
+
+    public void setFinalisedParcelLifespanMillis(long finalisedParcelLifespanMillis) {
+        this.finalisedParcelLifespanMillis = finalisedParcelLifespanMillis;
+    }
+
+    public ParcelArchive getParcelArchive() {
+        return parcelArchive;
+    }
+
+    // -1 for parcels that aren't finalised, and so don't expire
+    private long getRemainingLifespanMillis(PetasosParcelJSON parcelJSON) {
+        if (parcelJSON.getParcelStatus() != PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED) {
+            return -1;
+        }
+        long finalisedInstant = parcelJSON.getStatusTransitionInstant(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED);
+        if (finalisedInstant < 0) {
+            return finalisedParcelLifespanMillis;
+        }
+        return Math.max(0, finalisedInstant + finalisedParcelLifespanMillis - System.currentTimeMillis());
+    }
+
     private void startAuditMonitor() {
         // create a writer and let it go.
         // Currently allowing 1 writer per node type per site. Not sure how to manager
@@ -206,7 +726,7 @@ public class PetasosNode {
     // kick off a neverending thread which will do the heartbeat process
     private void startHeartbeat() {
         HeartbeatMonitor heartbeat = new HeartbeatMonitor();
-        executor.submit(heartbeat);
+        taskExecutor.getExecutor().submit(heartbeat);
     }
     
     public class HeartbeatMonitor implements Callable<Integer> {
@@ -217,18 +737,48 @@ public class PetasosNode {
         // If using a cache listener, needs to ignore own FDN, needs to keep track of all
         // petasos nodes in an internal quick lookup map. If status of one changes to failed
         // or not responsive - what to do, how to shutdown pod?
+        // For now it only refreshes this node's WUP placements, which expire from the
+        // component topology if the node stops beating.
         public Integer call() {
-            return new Integer(1);
+            while (true) {
+                try {
+                    Thread.sleep(heartbeatIntervalMillis);
+                    componentResolver.refreshWUPs();
+                } catch (InterruptedException ie) {
+                    // container or node shutting down
+                    return new Integer(0);
+                } catch (RuntimeException re) {
+                    LOG.warn("Unable to refresh the WUP placements, trying again next heartbeat", re);
+                }
+            }
         }
     }
     
-    // just placeholder, there will be a heartbeat client, server and status/parcel
-    // update server and client for each node (although parcels only move between
-    // site endpoints). These are apparently to be implemented using Netty.
+    // Periodically compares the parcel and watchdog caches with each other site and
+    // repairs any differences, the exchange itself happens on the transport's event loop.
+    // Every node in the site does this, which is wasteful but keeps it simple until
+    // there is a way to pick one node per site (see the audit writer notes above).
+    public class ReconciliationTask implements Callable<Integer> {
+        public Integer call() {
+            while (siteReplication != null) {
+                try {
+                    Thread.sleep(reconciliationIntervalMillis);
+                    siteReplication.reconcileWithSites();
+                } catch (InterruptedException ie) {
+                    // container or node shutting down
+                    return new Integer(0);
+                } catch (RuntimeException re) {
+                    LOG.error("Site reconciliation failed", re);
+                }
+            }
+            return new Integer(1);
+        }
+    }
+
+    // Forwards the WUP's status to one other site. The transport batches and sends on
+    // its own event loop, connection retries and the circuit breaker are handled there
+    // too, so forward() only queues the update and never blocks.
     public class CIStatusForwardTask implements Callable<Integer> {
-        // TBD: this will be either REST or server:port combo?
-        // TODO: change the var name once comm type is known
-        private static final int NUM_CONNECTION_RETRIES = 3;
         String connectionEndpoint;
         PetasosWUPWatchdogState watchdogState;
         
@@ -236,26 +786,26 @@ public class PetasosNode {
             this.watchdogState = watchdogState;
             this.connectionEndpoint = connectionEndpoint;
         }
+
+        // completes with 1 if the site received the status, 0 if not
+        public CompletableFuture<Integer> forward() {
+            if (siteReplication == null) {
+                return CompletableFuture.completedFuture(new Integer(0));
+            }
+            SiteReplicationClient site = siteReplication.getSite(connectionEndpoint);
+            if (site == null) {
+                // might not need to do anything, if problem connecting to another
+                // Node, heartbeat should take care of it
+                return CompletableFuture.completedFuture(new Integer(0));
+            }
+            return site.send(new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_CI_STATUS,
+                    watchdogState.getWupFDN().getQualifiedFDN(), new PetasosWUPWatchdogStateJSON(watchdogState).toJSONString()), siteForwardTimeoutMillis)
+                    .thenApply(sent -> sent ? new Integer(1) : new Integer(0));
+        }
         
+        // blocking form, waits for the site
         public Integer call() {
-            int connectionAttempts = 0;
-//            try {
-                // connection and forwarding
-                // number of retries and timeout
-                while (connectionAttempts < NUM_CONNECTION_RETRIES) {
-                    // connect and send
-                    connectionAttempts++;
-                }
-                
-                if (connectionAttempts == NUM_CONNECTION_RETRIES) {
-                    // might not need to do anything, if problem connecting to another
-                    // Node, heartbeat should take care of it
-                }
-//            }
-//            catch () {
-  //              return new Integer(0);
-    //        }
-            return new Integer(1);
+            return forward().join();
         }
     }
 }
\ No newline at end of file
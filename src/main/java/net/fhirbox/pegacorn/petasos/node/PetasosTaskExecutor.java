@@ -0,0 +1,111 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.node;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where the node runs its blocking background work: the journal group commit and
+ * archive writes (which force to disk), the reconciliation and heartbeat loops, and
+ * the payload reference, lineage and replay updates (which make blocking cache calls).
+ *
+ * By default that's the container's managed executor. With PETASOS_EXECUTOR_MODE=virtual
+ * it is a virtual thread per task instead, so blocked tasks don't hold a platform
+ * thread each and the managed pool doesn't have to be sized for them. Virtual threads
+ * need Java 21 (or 19/20 with preview enabled), the source stays at 1.8 so they are
+ * created by reflection, and if the runtime doesn't support them the managed executor
+ * is used as before.
+ *
+ * Tasks run on virtual threads have no container context (naming, transactions),
+ * none of the node's tasks use it.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosTaskExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(PetasosTaskExecutor.class);
+
+    public static final String EXECUTOR_MODE_MANAGED = "managed";
+    public static final String EXECUTOR_MODE_VIRTUAL = "virtual";
+
+    private ExecutorService executor;
+    // only an executor we created is ours to shut down, the container owns the managed one
+    private boolean ownExecutor;
+
+    private PetasosTaskExecutor(ExecutorService executor, boolean ownExecutor) {
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * @param managedExecutor the container's executor, used unless virtual threads are
+     * asked for and available
+     */
+    public static PetasosTaskExecutor forBlockingTasks(ExecutorService managedExecutor) {
+        String executorMode = System.getenv("PETASOS_EXECUTOR_MODE");
+        if (executorMode != null && EXECUTOR_MODE_VIRTUAL.equalsIgnoreCase(executorMode.trim())) {
+            ExecutorService virtualThreadExecutor = createVirtualThreadExecutor();
+            if (virtualThreadExecutor != null) {
+                LOG.info("Running blocking node tasks on virtual threads");
+                return new PetasosTaskExecutor(virtualThreadExecutor, true);
+            }
+            LOG.warn("PETASOS_EXECUTOR_MODE is virtual but virtual threads aren't supported by this runtime, using the managed executor");
+        }
+        return new PetasosTaskExecutor(managedExecutor, false);
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null if the runtime
+     * doesn't support virtual threads
+     */
+    public static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException notSupported) {
+            // no such method before Java 19, or preview features not enabled on 19/20
+            LOG.debug("Virtual threads not available", notSupported);
+            return null;
+        }
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public boolean isVirtual() {
+        return ownExecutor;
+    }
+
+    // interrupts the node's loops if they are ours, the container stops its own
+    public void shutdown() {
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+    }
+}
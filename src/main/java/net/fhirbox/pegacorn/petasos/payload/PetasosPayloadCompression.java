@@ -0,0 +1,121 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.payload;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * LZ4 compression of large UoW payloads, as held in the payload and parcel caches.
+ * Clinical messages are often tens to hundreds of KB of very compressible JSON, so
+ * compressing them cuts cache memory, overflow to disk and the bytes replicated
+ * between nodes.
+ *
+ * The caches hold Strings, so a compressed payload is held as
+ *   lz4:[uncompressed length]:[base64 of the compressed UTF-8 bytes]
+ * which can't be mistaken for a JSON payload. Payloads are only compressed if they
+ * are over the threshold (PETASOS_PAYLOAD_COMPRESSION_THRESHOLD, in characters,
+ * 0 to disable) and it saves space after the base64 overhead.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosPayloadCompression {
+    private static final Logger LOG = LoggerFactory.getLogger(PetasosPayloadCompression.class);
+
+    public static final String COMPRESSED_PREFIX = "lz4:";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 8192;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private static volatile int compressionThreshold = getConfiguredThreshold();
+
+    private static int getConfiguredThreshold() {
+        String threshold = System.getenv("PETASOS_PAYLOAD_COMPRESSION_THRESHOLD");
+        if (threshold == null) {
+            return DEFAULT_COMPRESSION_THRESHOLD;
+        }
+        try {
+            return Integer.parseInt(threshold.trim());
+        } catch (NumberFormatException badThreshold) {
+            LOG.warn("Invalid PETASOS_PAYLOAD_COMPRESSION_THRESHOLD " + threshold + ", using " + DEFAULT_COMPRESSION_THRESHOLD);
+            return DEFAULT_COMPRESSION_THRESHOLD;
+        }
+    }
+
+    public static void setCompressionThreshold(int threshold) {
+        compressionThreshold = threshold;
+    }
+
+    public static int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public static boolean isCompressed(String payload) {
+        return payload != null && payload.startsWith(COMPRESSED_PREFIX);
+    }
+
+    /**
+     * @return the compressed form of the payload, or the payload itself if it is under
+     * the threshold, already compressed or doesn't compress
+     */
+    public static String compress(String payload) {
+        if (compressionThreshold <= 0 || payload == null || payload.length() < compressionThreshold || isCompressed(payload)) {
+            return payload;
+        }
+        byte[] uncompressed = payload.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = new byte[COMPRESSOR.maxCompressedLength(uncompressed.length)];
+        int compressedLength = COMPRESSOR.compress(uncompressed, 0, uncompressed.length, compressed, 0, compressed.length);
+        // base64 is 4 characters per 3 bytes
+        if ((compressedLength + 2) / 3 * 4 >= payload.length()) {
+            return payload;
+        }
+        byte[] encoded = Base64.getEncoder().encode(Arrays.copyOf(compressed, compressedLength));
+        return new StringBuilder(COMPRESSED_PREFIX.length() + 12 + encoded.length).append(COMPRESSED_PREFIX)
+                .append(uncompressed.length).append(':').append(new String(encoded, StandardCharsets.ISO_8859_1)).toString();
+    }
+
+    /**
+     * @return the payload, decompressed if it was compressed
+     */
+    public static String decompress(String payload) {
+        if (!isCompressed(payload)) {
+            return payload;
+        }
+        int lengthEnd = payload.indexOf(':', COMPRESSED_PREFIX.length());
+        int uncompressedLength = Integer.parseInt(payload.substring(COMPRESSED_PREFIX.length(), lengthEnd));
+        byte[] compressed = Base64.getDecoder().decode(payload.substring(lengthEnd + 1));
+        byte[] uncompressed = new byte[uncompressedLength];
+        DECOMPRESSOR.decompress(compressed, 0, uncompressed, 0, uncompressedLength);
+        return new String(uncompressed, StandardCharsets.UTF_8);
+    }
+}
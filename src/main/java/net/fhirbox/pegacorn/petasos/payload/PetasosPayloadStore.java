@@ -0,0 +1,208 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.payload;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds UoW ingress and egress payloads once, keyed by their SHA-256, so parcels can
+ * carry a reference instead of the payload. A multicast (or a chain of successor
+ * parcels) of the same payload then stores and replicates it once rather than once
+ * per parcel.
+ *
+ * Each parcel referencing a payload holds a reference count on it, kept in its own
+ * cache and updated with compare and swap so no lambdas have to be marshalled to the
+ * owners. A payload is removed when its last reference is released.
+ *
+ * To avoid a payload being removed just as it is stored again, the reference is always
+ * taken before the payload is written, and a release that removes a payload puts it
+ * back if a reference has appeared in the meantime.
+ *
+ * Payloads over the compression threshold are held compressed (see
+ * PetasosPayloadCompression), the reference is always the hash of the uncompressed
+ * payload so the same content dedups however it arrives.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosPayloadStore {
+    private static final Logger LOG = LoggerFactory.getLogger(PetasosPayloadStore.class);
+
+    public static final String PAYLOAD_REF_PREFIX = "sha256:";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException noSHA256) {
+            // every JVM has to provide SHA-256
+            throw new IllegalStateException(noSHA256);
+        }
+    });
+
+    private Cache<String, String> payloadCache;
+    private Cache<String, String> payloadReferenceCache;
+    // told about payloads the first time they are stored, e.g. to forward them to other sites
+    private BiConsumer<String, String> newPayloadListener;
+
+    public PetasosPayloadStore(Cache<String, String> payloadCache, Cache<String, String> payloadReferenceCache) {
+        this.payloadCache = payloadCache;
+        this.payloadReferenceCache = payloadReferenceCache;
+    }
+
+    public void setNewPayloadListener(BiConsumer<String, String> newPayloadListener) {
+        this.newPayloadListener = newPayloadListener;
+    }
+
+    public static String payloadRef(String payload) {
+        byte[] digest = SHA256.get().digest(payload.getBytes(StandardCharsets.UTF_8));
+        char[] ref = new char[PAYLOAD_REF_PREFIX.length() + digest.length * 2];
+        PAYLOAD_REF_PREFIX.getChars(0, PAYLOAD_REF_PREFIX.length(), ref, 0);
+        int position = PAYLOAD_REF_PREFIX.length();
+        for (byte digestByte : digest) {
+            ref[position++] = HEX_DIGITS[(digestByte >> 4) & 0xF];
+            ref[position++] = HEX_DIGITS[digestByte & 0xF];
+        }
+        return new String(ref);
+    }
+
+    public String storePayload(String payload) {
+        return storePayload(payload, Collections.emptySet());
+    }
+
+    /**
+     * Stores the payload and takes a reference on it, unless the caller already holds
+     * one (the payload's reference is in heldPayloadRefs). The payload can be compressed
+     * or not.
+     *
+     * @return the reference to put in the parcel
+     */
+    public String storePayload(String payload, Set<String> heldPayloadRefs) {
+        String payloadRef = payloadRef(PetasosPayloadCompression.decompress(payload));
+        if (heldPayloadRefs.contains(payloadRef)) {
+            return payloadRef;
+        }
+        long references = adjustReferences(payloadRef, 1);
+        if (references == 1) {
+            String storedPayload = PetasosPayloadCompression.compress(payload);
+            payloadCache.put(payloadRef, storedPayload);
+            if (newPayloadListener != null) {
+                newPayloadListener.accept(payloadRef, storedPayload);
+            }
+        } else if (!payloadCache.containsKey(payloadRef)) {
+            // the first reference is still being written, only send the payload if we have to
+            payloadCache.putIfAbsent(payloadRef, PetasosPayloadCompression.compress(payload));
+        }
+        return payloadRef;
+    }
+
+    /**
+     * @return the payload as held, so possibly still compressed (the UoW decompresses it
+     * when the content is asked for), or null if it isn't held (e.g. a parcel from
+     * another site arriving before its payload)
+     */
+    public String loadPayload(String payloadRef) {
+        String payload = payloadCache.get(payloadRef);
+        if (payload == null) {
+            LOG.warn("Payload " + payloadRef + " not found");
+        }
+        return payload;
+    }
+
+    // a payload written by another site, the parcels arriving from there take the references
+    public CompletableFuture<String> putPayload(String payloadRef, String payload) {
+        return payloadCache.putIfAbsentAsync(payloadRef, payload);
+    }
+
+    public void retainPayload(String payloadRef) {
+        adjustReferences(payloadRef, 1);
+    }
+
+    public void releasePayload(String payloadRef) {
+        if (adjustReferences(payloadRef, -1) > 0) {
+            return;
+        }
+        String payload = payloadCache.remove(payloadRef);
+        if (payload != null && payloadReferenceCache.containsKey(payloadRef)) {
+            // stored again while we were removing it
+            payloadCache.putIfAbsent(payloadRef, payload);
+        }
+    }
+
+    /**
+     * Takes references on the payloads a parcel now refers to and releases the ones it
+     * no longer does.
+     */
+    public void updateReferences(Set<String> previousPayloadRefs, Set<String> currentPayloadRefs) {
+        currentPayloadRefs.forEach(payloadRef -> {
+            if (!previousPayloadRefs.contains(payloadRef)) {
+                retainPayload(payloadRef);
+            }
+        });
+        previousPayloadRefs.forEach(payloadRef -> {
+            if (!currentPayloadRefs.contains(payloadRef)) {
+                releasePayload(payloadRef);
+            }
+        });
+    }
+
+    public long getReferenceCount(String payloadRef) {
+        String references = payloadReferenceCache.get(payloadRef);
+        return references == null ? 0 : Long.parseLong(references);
+    }
+
+    // compare and swap on the count, returns the new count (0 once removed)
+    private long adjustReferences(String payloadRef, long delta) {
+        while (true) {
+            String currentReferences = payloadReferenceCache.get(payloadRef);
+            if (currentReferences == null) {
+                if (delta < 0) {
+                    LOG.warn("Release of unreferenced payload " + payloadRef);
+                    return 0;
+                }
+                if (payloadReferenceCache.putIfAbsent(payloadRef, Long.toString(delta)) == null) {
+                    return delta;
+                }
+                continue;
+            }
+            long references = Long.parseLong(currentReferences) + delta;
+            if (references <= 0) {
+                if (payloadReferenceCache.remove(payloadRef, currentReferences)) {
+                    return 0;
+                }
+            } else if (payloadReferenceCache.replace(payloadRef, currentReferences, Long.toString(references))) {
+                return references;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replay;
+
+import org.json.JSONObject;
+
+/**
+ * Progress of a replay, as held in the replay checkpoint cache. The parcels are
+ * replayed in (instantiation instant, parcel FDN) order, so the last one replayed is
+ * enough to resume from: a resumed replay selects again and skips everything up to
+ * and including it.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelReplayCheckpoint {
+    private JSONObject checkpointJSON;
+
+    public ParcelReplayCheckpoint(String checkpointJSONString) {
+        this.checkpointJSON = new JSONObject(checkpointJSONString);
+    }
+
+    public ParcelReplayCheckpoint(String replayId, ParcelReplaySelection selection, String owner) {
+        this.checkpointJSON = new JSONObject()
+            .put("replayId", replayId)
+            .put("selection", selection.toJSON())
+            .put("owner", owner)
+            .put("watermarkInstant", Long.MIN_VALUE)
+            .put("watermarkParcelFDN", "")
+            .put("replayed", 0L)
+            .put("failed", 0L)
+            .put("complete", false)
+            .put("lastCheckpoint", System.currentTimeMillis());
+    }
+
+    public String getReplayId() {
+        return checkpointJSON.getString("replayId");
+    }
+
+    public ParcelReplaySelection getSelection() {
+        return new ParcelReplaySelection(checkpointJSON.getJSONObject("selection"));
+    }
+
+    public String getOwner() {
+        return checkpointJSON.getString("owner");
+    }
+
+    public void setOwner(String owner) {
+        checkpointJSON.put("owner", owner);
+    }
+
+    /**
+     * @return true if the parcel comes after the last one replayed
+     */
+    public boolean isAfterWatermark(long parcelInstant, String parcelFDN) {
+        long watermarkInstant = checkpointJSON.getLong("watermarkInstant");
+        return parcelInstant > watermarkInstant
+                || (parcelInstant == watermarkInstant && parcelFDN.compareTo(checkpointJSON.getString("watermarkParcelFDN")) > 0);
+    }
+
+    /**
+     * Records a batch as done, the parcel being the last of the batch.
+     */
+    public void advance(long parcelInstant, String parcelFDN, long replayed, long failed) {
+        checkpointJSON.put("watermarkInstant", parcelInstant)
+            .put("watermarkParcelFDN", parcelFDN)
+            .put("replayed", getReplayedCount() + replayed)
+            .put("failed", getFailedCount() + failed)
+            .put("lastCheckpoint", System.currentTimeMillis());
+    }
+
+    public long getReplayedCount() {
+        return checkpointJSON.getLong("replayed");
+    }
+
+    public long getFailedCount() {
+        return checkpointJSON.getLong("failed");
+    }
+
+    public boolean isComplete() {
+        return checkpointJSON.getBoolean("complete");
+    }
+
+    public void setComplete() {
+        checkpointJSON.put("complete", true).put("lastCheckpoint", System.currentTimeMillis());
+    }
+
+    public long getLastCheckpoint() {
+        return checkpointJSON.getLong("lastCheckpoint");
+    }
+
+    public String toJSONString() {
+        return checkpointJSON.toString();
+    }
+}
@@ -0,0 +1,443 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirbox.pegacorn.petasos.agent.PetasosAgent;
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosIdentifiers;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+import net.fhirbox.pegacorn.petasos.model.UoWProcessingOutcomeEnum;
+import net.fhirbox.pegacorn.petasos.node.PetasosNode;
+
+/**
+ * Re-drives parcels that didn't complete, e.g. every parcel that failed while a
+ * downstream system was down. The parcels chosen by a ParcelReplaySelection are
+ * registered again through the PetasosAgent, as new parcels of the same UoW with the
+ * same ingress content, WUP and precursor, so the WUPs pick them up as normal work
+ * (and the lineage index shows the replay alongside the original).
+ *
+ * A replay works through the selected parcels in batches. The replay itself runs on the
+ * node's blocking task executor, the parcels of a batch are registered in parallel on
+ * the engine's own replay pool (PETASOS_REPLAY_PARALLELISM threads), so a replay waiting
+ * on its batch never holds the threads the batch needs. Batches are paced so the replay
+ * as a whole doesn't exceed the replay rate. A registration the agent turns away (e.g.
+ * shed by its concurrency limiter) is retried with backoff rather than counted as
+ * failed. Once a batch is done the checkpoint is moved
+ * past it in the (clustered, persisted) replay checkpoint cache, so a replay stopped
+ * part way, by the node going down or being cancelled, can be resumed from there.
+ * Each original parcel is marked with the parcel it was replayed as, so the parcels of
+ * a batch that were registered before the replay stopped are skipped when it resumes.
+ *
+ * Incomplete replays are resumed when the node starts, if they were this node's or
+ * haven't been checkpointed for STALE_CHECKPOINT_MILLIS. A node takes over a replay
+ * by compare and swap on its checkpoint, and a replay stops if its checkpoint is taken
+ * over from under it, so only one node drives a replay at a time.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@ApplicationScoped
+public class ParcelReplayEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(ParcelReplayEngine.class);
+
+    // parcels per second, across the whole replay
+    public static final int DEFAULT_REPLAY_RATE = 100;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_REPLAY_PARALLELISM = 8;
+    public static final long STALE_CHECKPOINT_MILLIS = 300000L;
+    // the original parcel can change under the replay mark (e.g. a status report)
+    private static final int MAX_MARK_ATTEMPTS = 3;
+    // a registration turned away is tried this many times in all, backing off from the
+    // initial delay (doubling) up to the maximum, about half a minute altogether
+    public static final int MAX_REGISTER_ATTEMPTS = 10;
+    private static final long INITIAL_REGISTER_BACKOFF_MILLIS = 50L;
+    private static final long MAX_REGISTER_BACKOFF_MILLIS = 5000L;
+
+    @Inject
+    DefaultCacheManager petasosCacheManager;
+
+    @Inject
+    PetasosAgent agent;
+
+    @Inject
+    PetasosNode node;
+
+    @Inject
+    PetasosMetrics metrics;
+
+    private Cache<String, String> petasosParcelCache;
+    private Cache<String, String> replayCheckpointCache;
+
+    private int replayRate = getConfiguredSetting("PETASOS_REPLAY_RATE", DEFAULT_REPLAY_RATE);
+    private int batchSize = getConfiguredSetting("PETASOS_REPLAY_BATCH_SIZE", DEFAULT_BATCH_SIZE);
+    private int replayParallelism = getConfiguredSetting("PETASOS_REPLAY_PARALLELISM", DEFAULT_REPLAY_PARALLELISM);
+    // where the parcels of a batch are registered, apart from the executor the replays run on
+    private ExecutorService replayPool;
+    private volatile boolean stopping;
+    private Set<String> cancelledReplays = ConcurrentHashMap.newKeySet();
+    private AtomicLong replayedParcels = new AtomicLong();
+    private AtomicLong failedReplays = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        petasosParcelCache = petasosCacheManager.getCache("petasos-parcel-cache", true);
+        replayCheckpointCache = petasosCacheManager.getCache("petasos-replay-checkpoint-cache", true);
+        AtomicInteger replayThreadCount = new AtomicInteger();
+        replayPool = Executors.newFixedThreadPool(Math.max(1, replayParallelism), runnable -> {
+            Thread replayThread = new Thread(runnable, "petasos-replay-" + replayThreadCount.incrementAndGet());
+            replayThread.setDaemon(true);
+            return replayThread;
+        });
+        metrics.registerGauge("replay.replayed", () -> replayedParcels.get());
+        metrics.registerGauge("replay.failed", () -> failedReplays.get());
+        resumeReplays();
+    }
+
+    @PreDestroy
+    public void stop() {
+        // registrations in progress finish (without further retries), the batch they are
+        // part of isn't checkpointed so replays resume from the batch on restart
+        stopping = true;
+        replayPool.shutdown();
+    }
+
+    /**
+     * Starts replaying the selected parcels in the background.
+     *
+     * @return the replay id, for getReplayProgress() and cancelReplay()
+     */
+    public String startReplay(ParcelReplaySelection selection) {
+        String replayId = "replay-" + PetasosIdentifiers.nextIdentifier();
+        ParcelReplayCheckpoint checkpoint = new ParcelReplayCheckpoint(replayId, selection.closedAt(System.currentTimeMillis()), getOwner());
+        String checkpointJSON = checkpoint.toJSONString();
+        replayCheckpointCache.put(replayId, checkpointJSON);
+        LOG.info("Starting replay " + replayId + " of " + checkpoint.getSelection().toJSON());
+        node.getBlockingTaskExecutor().submit(new ReplayTask(replayId, checkpointJSON));
+        return replayId;
+    }
+
+    /**
+     * Takes over and resumes an incomplete replay, whichever node it was running on.
+     *
+     * @return false if the replay is unknown, complete or was taken over by another node first
+     */
+    public boolean resumeReplay(String replayId) {
+        String checkpointJSON = replayCheckpointCache.get(replayId);
+        if (checkpointJSON == null || new ParcelReplayCheckpoint(checkpointJSON).isComplete()) {
+            return false;
+        }
+        return claimReplay(replayId, checkpointJSON);
+    }
+
+    /**
+     * Stops the replay after the batch in progress, it can be resumed later.
+     */
+    public void cancelReplay(String replayId) {
+        cancelledReplays.add(replayId);
+    }
+
+    /**
+     * @return the replay's last checkpoint, or null if there is no such replay
+     */
+    public ParcelReplayCheckpoint getReplayProgress(String replayId) {
+        String checkpointJSON = replayCheckpointCache.get(replayId);
+        return checkpointJSON == null ? null : new ParcelReplayCheckpoint(checkpointJSON);
+    }
+
+    public void setReplayRate(int replayRate) {
+        this.replayRate = replayRate;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    // takes effect when the engine starts
+    public void setReplayParallelism(int replayParallelism) {
+        this.replayParallelism = replayParallelism;
+    }
+
+    // replays left by this node, or abandoned by another
+    private void resumeReplays() {
+        long staleBefore = System.currentTimeMillis() - STALE_CHECKPOINT_MILLIS;
+        List<String> replaysToResume = new ArrayList<>();
+        replayCheckpointCache.entrySet().forEach(entry -> {
+            ParcelReplayCheckpoint checkpoint = new ParcelReplayCheckpoint(entry.getValue());
+            if (!checkpoint.isComplete() && (getOwner().equals(checkpoint.getOwner()) || checkpoint.getLastCheckpoint() < staleBefore)) {
+                replaysToResume.add(entry.getKey());
+            }
+        });
+        replaysToResume.forEach(this::resumeReplay);
+    }
+
+    private boolean claimReplay(String replayId, String checkpointJSON) {
+        ParcelReplayCheckpoint checkpoint = new ParcelReplayCheckpoint(checkpointJSON);
+        checkpoint.setOwner(getOwner());
+        String claimedCheckpointJSON = checkpoint.toJSONString();
+        if (!replayCheckpointCache.replace(replayId, checkpointJSON, claimedCheckpointJSON)) {
+            return false;
+        }
+        cancelledReplays.remove(replayId);
+        LOG.info("Resuming replay " + replayId + " after " + checkpoint.getReplayedCount() + " replayed parcels");
+        node.getBlockingTaskExecutor().submit(new ReplayTask(replayId, claimedCheckpointJSON));
+        return true;
+    }
+
+    private String getOwner() {
+        return node.getNodeFDN().getQualifiedFDN();
+    }
+
+    // The selected parcels not yet replayed, in replay order. A full scan of the parcel
+    // cache, but only once per run of the replay rather than per batch.
+    private List<ReplayCandidate> selectParcels(ParcelReplayCheckpoint checkpoint) {
+        ParcelReplaySelection selection = checkpoint.getSelection();
+        List<ReplayCandidate> candidates = new ArrayList<>();
+        petasosParcelCache.entrySet().forEach(entry -> {
+            if (!selection.mightMatch(entry.getValue())) {
+                return;
+            }
+            PetasosParcelJSON parcelJSON = new PetasosParcelJSON(entry.getValue());
+            if (selection.matches(parcelJSON)) {
+                long parcelInstant = parcelJSON.getParcelInstantiationInstant();
+                if (checkpoint.isAfterWatermark(parcelInstant, entry.getKey())) {
+                    candidates.add(new ReplayCandidate(entry.getKey(), parcelInstant));
+                }
+            }
+        });
+        Collections.sort(candidates, REPLAY_ORDER);
+        return candidates;
+    }
+
+    /**
+     * @return true if the parcel was registered again (or no longer needs to be)
+     */
+    private boolean replayParcel(String replayId, String parcelFDN, ParcelReplaySelection selection) {
+        try {
+            // the parcel may have moved on since it was selected
+            String currentParcelJSON = petasosParcelCache.get(parcelFDN);
+            if (currentParcelJSON == null) {
+                return true;
+            }
+            PetasosParcelJSON parcelJSON = new PetasosParcelJSON(currentParcelJSON);
+            if (parcelJSON.getReplayedAs(replayId) != null) {
+                // registered before the replay was stopped
+                return true;
+            }
+            if (!selection.matches(parcelJSON)) {
+                return true;
+            }
+            PetasosParcel originalParcel = parcelJSON.createParcel(node.getPayloadStore());
+            UoW originalUoW = originalParcel.getContainedUoW();
+            UoW replayUoW = new UoW(originalUoW.getUoWFDN(), originalUoW.getRequiredFunctionFDN());
+            replayUoW.setUowIngressContent(originalUoW.getUowIngressContent());
+            replayUoW.setUowProcessingOutcome(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_NOTSTARTED);
+            FDN wupFDN = new FDN(parcelJSON.getWUPFDN());
+            FDN functionFDN = new FDN(parcelJSON.getSupportingFunctionFDN());
+            // null when the agent sheds the call under load (or the write isn't acknowledged),
+            // both pass, so back off and try again rather than skip the parcel
+            long backoffMillis = INITIAL_REGISTER_BACKOFF_MILLIS;
+            for (int attempt = 1; attempt <= MAX_REGISTER_ATTEMPTS && !stopping; attempt++) {
+                PetasosParcel replayParcel = agent.registerActivity(wupFDN, functionFDN, replayUoW, originalParcel.getPrecursorParcel());
+                if (replayParcel != null) {
+                    markReplayed(replayId, parcelFDN, replayParcel.getParcelFDN().getQualifiedFDN());
+                    return true;
+                }
+                if (attempt < MAX_REGISTER_ATTEMPTS && !stopping) {
+                    Thread.sleep(backoffMillis);
+                    backoffMillis = Math.min(backoffMillis * 2, MAX_REGISTER_BACKOFF_MILLIS);
+                }
+            }
+            if (!stopping) {
+                LOG.warn("Replay of parcel " + parcelFDN + " was not registered after " + MAX_REGISTER_ATTEMPTS + " attempts");
+            }
+            return false;
+        } catch (InterruptedException ie) {
+            // shutting down, the batch isn't checkpointed so the parcel is replayed on resume
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (RuntimeException e) {
+            LOG.warn("Replay of parcel " + parcelFDN + " failed", e);
+            return false;
+        }
+    }
+
+    // Only a crash between the registration and this leaves the parcel to be registered
+    // again on resume. Not forwarded to other sites, a replay is local to its site.
+    private void markReplayed(String replayId, String parcelFDN, String replayParcelFDN) {
+        for (int attempt = 0; attempt < MAX_MARK_ATTEMPTS; attempt++) {
+            String currentParcelJSON = petasosParcelCache.get(parcelFDN);
+            if (currentParcelJSON == null) {
+                // expired, so it can't be selected again
+                return;
+            }
+            PetasosParcelJSON parcelJSON = new PetasosParcelJSON(currentParcelJSON);
+            parcelJSON.setReplayedAs(replayId, replayParcelFDN);
+            String markedParcelJSON = parcelJSON.toJSONString();
+            if (petasosParcelCache.replace(parcelFDN, currentParcelJSON, markedParcelJSON)) {
+                node.journalParcelTransition(parcelFDN, markedParcelJSON);
+                return;
+            }
+        }
+        LOG.warn("Parcel " + parcelFDN + " replayed as " + replayParcelFDN + " but not marked, the parcel kept changing");
+    }
+
+    private static int getConfiguredSetting(String environmentVariable, int defaultValue) {
+        String setting = System.getenv(environmentVariable);
+        if (setting == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(setting.trim());
+        } catch (NumberFormatException badSetting) {
+            LOG.warn("Invalid " + environmentVariable + " " + setting + ", using the default");
+            return defaultValue;
+        }
+    }
+
+    private static final Comparator<ReplayCandidate> REPLAY_ORDER = Comparator
+            .comparingLong((ReplayCandidate candidate) -> candidate.parcelInstant)
+            .thenComparing(candidate -> candidate.parcelFDN);
+
+    private static class ReplayCandidate {
+        private final String parcelFDN;
+        private final long parcelInstant;
+
+        ReplayCandidate(String parcelFDN, long parcelInstant) {
+            this.parcelFDN = parcelFDN;
+            this.parcelInstant = parcelInstant;
+        }
+    }
+
+    // one per running replay, on the node's blocking task executor
+    public class ReplayTask implements Callable<Integer> {
+        private final String replayId;
+        // the checkpoint as last written, for the compare and swap
+        private String checkpointJSON;
+
+        public ReplayTask(String replayId, String checkpointJSON) {
+            this.replayId = replayId;
+            this.checkpointJSON = checkpointJSON;
+        }
+
+        public Integer call() {
+            ParcelReplayCheckpoint checkpoint = new ParcelReplayCheckpoint(checkpointJSON);
+            ParcelReplaySelection selection = checkpoint.getSelection();
+            List<ReplayCandidate> candidates = selectParcels(checkpoint);
+            LOG.info("Replay " + replayId + " selected " + candidates.size() + " parcels");
+            int nextCandidate = 0;
+            while (nextCandidate < candidates.size()) {
+                if (cancelledReplays.remove(replayId)) {
+                    LOG.info("Replay " + replayId + " cancelled after " + checkpoint.getReplayedCount() + " replayed parcels");
+                    return new Integer(0);
+                }
+                long batchStartMillis = System.currentTimeMillis();
+                List<ReplayCandidate> batch = candidates.subList(nextCandidate, Math.min(nextCandidate + batchSize, candidates.size()));
+                List<CompletableFuture<Boolean>> replays = new ArrayList<>(batch.size());
+                batch.forEach(candidate -> replays.add(CompletableFuture.supplyAsync(() -> replayParcel(replayId, candidate.parcelFDN, selection), replayPool)));
+                long replayed = 0;
+                long failed = 0;
+                for (CompletableFuture<Boolean> replay : replays) {
+                    if (replay.join()) {
+                        replayed++;
+                    } else {
+                        failed++;
+                    }
+                }
+                if (stopping) {
+                    LOG.info("Replay " + replayId + " stopped after " + checkpoint.getReplayedCount() + " replayed parcels");
+                    return new Integer(0);
+                }
+                replayedParcels.addAndGet(replayed);
+                failedReplays.addAndGet(failed);
+                nextCandidate += batch.size();
+
+                ReplayCandidate lastOfBatch = batch.get(batch.size() - 1);
+                checkpoint.advance(lastOfBatch.parcelInstant, lastOfBatch.parcelFDN, replayed, failed);
+                if (nextCandidate == candidates.size()) {
+                    checkpoint.setComplete();
+                }
+                if (!writeCheckpoint(checkpoint)) {
+                    return new Integer(1);
+                }
+
+                // pace the batches to the replay rate
+                long minimumBatchMillis = batch.size() * 1000L / Math.max(1, replayRate);
+                long remainingMillis = minimumBatchMillis - (System.currentTimeMillis() - batchStartMillis);
+                if (remainingMillis > 0 && nextCandidate < candidates.size()) {
+                    try {
+                        Thread.sleep(remainingMillis);
+                    } catch (InterruptedException ie) {
+                        // container or node shutting down, resumed from the checkpoint on restart
+                        return new Integer(0);
+                    }
+                }
+            }
+            if (!checkpoint.isComplete()) {
+                // nothing (left) to replay
+                checkpoint.setComplete();
+                writeCheckpoint(checkpoint);
+            }
+            LOG.info("Replay " + replayId + " complete, " + checkpoint.getReplayedCount() + " replayed and "
+                    + checkpoint.getFailedCount() + " failed");
+            return new Integer(0);
+        }
+
+        // false if another node has taken the replay over
+        private boolean writeCheckpoint(ParcelReplayCheckpoint checkpoint) {
+            String updatedCheckpointJSON = checkpoint.toJSONString();
+            if (!replayCheckpointCache.replace(replayId, checkpointJSON, updatedCheckpointJSON)) {
+                LOG.warn("Replay " + replayId + " taken over by another node, stopping");
+                return false;
+            }
+            checkpointJSON = updatedCheckpointJSON;
+            return true;
+        }
+    }
+}
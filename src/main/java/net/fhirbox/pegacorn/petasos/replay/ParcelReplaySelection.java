@@ -0,0 +1,144 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replay;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.UoWProcessingOutcomeEnum;
+
+/**
+ * Which parcels a replay re-drives: those of a supporting function (or any function),
+ * with one of the UoW outcomes and/or parcel statuses, instantiated within a time
+ * window. An empty outcome or status set doesn't restrict on it.
+ *
+ * The window is closed at the time the replay starts if not given, so the parcels a
+ * replay registers (and any that fail again) are never picked up by the same replay.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelReplaySelection {
+    private String supportingFunctionFDN;
+    private Set<UoWProcessingOutcomeEnum> outcomes;
+    private Set<PetasosParcelStatusEnum> parcelStatuses;
+    private long fromInstant;
+    private long toInstant;
+
+    public ParcelReplaySelection(String supportingFunctionFDN, Set<UoWProcessingOutcomeEnum> outcomes,
+            Set<PetasosParcelStatusEnum> parcelStatuses, long fromInstant, long toInstant) {
+        this.supportingFunctionFDN = supportingFunctionFDN;
+        this.outcomes = outcomes.isEmpty() ? EnumSet.noneOf(UoWProcessingOutcomeEnum.class) : EnumSet.copyOf(outcomes);
+        this.parcelStatuses = parcelStatuses.isEmpty() ? EnumSet.noneOf(PetasosParcelStatusEnum.class) : EnumSet.copyOf(parcelStatuses);
+        this.fromInstant = fromInstant;
+        this.toInstant = toInstant;
+    }
+
+    /**
+     * The usual replay, every failed or incomplete UoW of the function in the window.
+     */
+    public static ParcelReplaySelection failedOrIncomplete(String supportingFunctionFDN, long fromInstant, long toInstant) {
+        return new ParcelReplaySelection(supportingFunctionFDN,
+                EnumSet.of(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_FAILED, UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_INCOMPLETE),
+                Collections.emptySet(), fromInstant, toInstant);
+    }
+
+    public ParcelReplaySelection(JSONObject selectionJSON) {
+        this.supportingFunctionFDN = selectionJSON.optString("supportingFunctionFDN", null);
+        this.outcomes = EnumSet.noneOf(UoWProcessingOutcomeEnum.class);
+        selectionJSON.getJSONArray("outcomes").forEach(outcome -> outcomes.add(UoWProcessingOutcomeEnum.fromUoWProcessingOutcome((String) outcome)));
+        this.parcelStatuses = EnumSet.noneOf(PetasosParcelStatusEnum.class);
+        selectionJSON.getJSONArray("parcelStatuses").forEach(status -> parcelStatuses.add(PetasosParcelStatusEnum.fromPetasosParcelStatus((String) status)));
+        this.fromInstant = selectionJSON.getLong("fromInstant");
+        this.toInstant = selectionJSON.getLong("toInstant");
+    }
+
+    public JSONObject toJSON() {
+        JSONArray outcomesJSON = new JSONArray();
+        outcomes.forEach(outcome -> outcomesJSON.put(outcome.getUoWProcessingOutcome()));
+        JSONArray statusesJSON = new JSONArray();
+        parcelStatuses.forEach(status -> statusesJSON.put(status.getPetasosParcelStatus()));
+        JSONObject selectionJSON = new JSONObject()
+            .put("outcomes", outcomesJSON)
+            .put("parcelStatuses", statusesJSON)
+            .put("fromInstant", fromInstant)
+            .put("toInstant", toInstant);
+        if (supportingFunctionFDN != null) {
+            selectionJSON.put("supportingFunctionFDN", supportingFunctionFDN);
+        }
+        return selectionJSON;
+    }
+
+    /**
+     * Cheap check on the raw parcel JSON before it is parsed, most parcels in the cache
+     * belong to other functions.
+     */
+    public boolean mightMatch(String parcelJSON) {
+        return supportingFunctionFDN == null || parcelJSON.contains(supportingFunctionFDN);
+    }
+
+    public boolean matches(PetasosParcelJSON parcelJSON) {
+        if (supportingFunctionFDN != null && !supportingFunctionFDN.equals(parcelJSON.getSupportingFunctionFDN())) {
+            return false;
+        }
+        long parcelInstant = parcelJSON.getParcelInstantiationInstant();
+        if (parcelInstant < fromInstant || parcelInstant > toInstant) {
+            return false;
+        }
+        if (!outcomes.isEmpty() && !outcomes.contains(parcelJSON.getUoWProcessingOutcome())) {
+            return false;
+        }
+        return parcelStatuses.isEmpty() || parcelStatuses.contains(parcelJSON.getParcelStatus());
+    }
+
+    // with the window closed now if it is still open
+    ParcelReplaySelection closedAt(long replayStartInstant) {
+        return new ParcelReplaySelection(supportingFunctionFDN, outcomes, parcelStatuses, fromInstant, Math.min(toInstant, replayStartInstant));
+    }
+
+    public String getSupportingFunctionFDN() {
+        return supportingFunctionFDN;
+    }
+
+    public Set<UoWProcessingOutcomeEnum> getOutcomes() {
+        return Collections.unmodifiableSet(outcomes);
+    }
+
+    public Set<PetasosParcelStatusEnum> getParcelStatuses() {
+        return Collections.unmodifiableSet(parcelStatuses);
+    }
+
+    public long getFromInstant() {
+        return fromInstant;
+    }
+
+    public long getToInstant() {
+        return toInstant;
+    }
+}
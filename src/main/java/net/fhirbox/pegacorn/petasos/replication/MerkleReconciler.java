@@ -0,0 +1,239 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Anti-entropy between two sites. Each site holds a ParcelMerkleTree per reconciled
+ * cache, and the two sides exchange messages that walk down only the branches whose
+ * hashes differ:
+ *
+ *   SITE_MERKLE_DIGEST  hashes for a set of nodes at one level. The receiver compares
+ *                       them with its own and replies with the hashes of the children
+ *                       of the nodes that differ, or with SITE_MERKLE_KEYS once the
+ *                       differing nodes are segments. Nothing differs, no reply.
+ *   SITE_MERKLE_KEYS    key, entry hash and version for every key in some segments.
+ *                       The receiver sends the entries where it has the newer (or
+ *                       only) copy, and asks for the ones where the sender does.
+ *   SITE_MERKLE_FETCH   keys the receiver should send its entries for.
+ *
+ * Entries are sent as the normal SITE_UPDATE_PARCEL / SITE_UPDATE_CI_STATUS updates.
+ * Where both sides hold a key with different content the entry with the later
+ * version wins, the version being read from the entry by the cache's version function
+ * (the last status update time for parcels and watchdog entries).
+ *
+ * The reconciler only produces messages, it is up to the transport to deliver them,
+ * so the same logic can be driven in-process.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class MerkleReconciler {
+    private static final Logger LOG = LoggerFactory.getLogger(MerkleReconciler.class);
+
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String RECORD_SEPARATOR = "\n";
+    private static final String LEVEL_SEPARATOR = "|";
+    private static final String NODE_SEPARATOR = ",";
+    private static final String HASH_SEPARATOR = ":";
+
+    private ConcurrentHashMap<String, ReconciledCache> reconciledCaches = new ConcurrentHashMap<>();
+
+    /**
+     * @param tree hashes of the cache content, kept up to date by the caller
+     * @param entryLookup reads the current value of a key from the cache
+     * @param entryVersion extracts the version (e.g. last update time) of a value
+     * @param entryUpdateType the update type used to send this cache's entries
+     */
+    public void addCache(ParcelMerkleTree tree, Function<String, String> entryLookup, ToLongFunction<String> entryVersion,
+            SiteReplicationUpdateTypeEnum entryUpdateType) {
+        reconciledCaches.put(tree.getCacheName(), new ReconciledCache(tree, entryLookup, entryVersion, entryUpdateType));
+    }
+
+    /**
+     * @return the root digest of every reconciled cache, sending these to another site
+     * starts a reconciliation with it
+     */
+    public List<SiteReplicationUpdate> createRootDigests() {
+        List<SiteReplicationUpdate> rootDigests = new ArrayList<>();
+        reconciledCaches.values().forEach(cache -> {
+            rootDigests.add(digest(cache, 0, new int[] {0}));
+        });
+        return rootDigests;
+    }
+
+    /**
+     * @return the replies to send back to the site the message came from
+     */
+    public List<SiteReplicationUpdate> onMessage(SiteReplicationUpdate message) {
+        List<SiteReplicationUpdate> replies = new ArrayList<>();
+        ReconciledCache cache = reconciledCaches.get(message.getKey().split("\\" + LEVEL_SEPARATOR)[0]);
+        if (cache == null) {
+            LOG.warn("Reconciliation message for unknown cache " + message.getKey());
+            return replies;
+        }
+        switch (message.getUpdateType()) {
+            case SITE_MERKLE_DIGEST:
+                onDigest(cache, message.getValue(), replies);
+                break;
+            case SITE_MERKLE_KEYS:
+                onKeys(cache, message.getValue(), replies);
+                break;
+            case SITE_MERKLE_FETCH:
+                onFetch(cache, message.getValue(), replies);
+                break;
+            default:
+                break;
+        }
+        return replies;
+    }
+
+    private void onDigest(ReconciledCache cache, String digest, List<SiteReplicationUpdate> replies) {
+        int levelEnd = digest.indexOf(LEVEL_SEPARATOR);
+        int level = Integer.parseInt(digest.substring(0, levelEnd));
+        List<Integer> differingNodes = new ArrayList<>();
+        for (String node : digest.substring(levelEnd + 1).split(NODE_SEPARATOR)) {
+            int hashStart = node.indexOf(HASH_SEPARATOR);
+            int index = Integer.parseInt(node.substring(0, hashStart));
+            long remoteHash = Long.parseUnsignedLong(node.substring(hashStart + 1), 16);
+            if (cache.tree.getNodeHash(level, index) != remoteHash) {
+                differingNodes.add(index);
+            }
+        }
+        if (differingNodes.isEmpty()) {
+            return;
+        }
+        if (level == ParcelMerkleTree.DEPTH) {
+            replies.add(keys(cache, new HashSet<>(differingNodes)));
+            return;
+        }
+        int[] children = new int[differingNodes.size() * ParcelMerkleTree.BRANCHING];
+        int childCount = 0;
+        for (int index : differingNodes) {
+            for (int child = index * ParcelMerkleTree.BRANCHING; child < (index + 1) * ParcelMerkleTree.BRANCHING; child++) {
+                children[childCount++] = child;
+            }
+        }
+        replies.add(digest(cache, level + 1, children));
+    }
+
+    private void onKeys(ReconciledCache cache, String keys, List<SiteReplicationUpdate> replies) {
+        String[] records = keys.split(RECORD_SEPARATOR);
+        HashSet<Integer> leaves = new HashSet<>();
+        for (String leaf : records[0].split(NODE_SEPARATOR)) {
+            leaves.add(Integer.parseInt(leaf));
+        }
+        Map<String, Long> localEntries = cache.tree.getEntryHashes(leaves);
+        StringBuilder fetch = new StringBuilder();
+        for (int record = 1; record < records.length; record++) {
+            String[] fields = records[record].split(FIELD_SEPARATOR);
+            String key = fields[0];
+            long remoteHash = Long.parseUnsignedLong(fields[1], 16);
+            long remoteVersion = Long.parseLong(fields[2]);
+            Long localHash = localEntries.remove(key);
+            if (localHash != null && localHash == remoteHash) {
+                continue;
+            }
+            String localValue = localHash == null ? null : cache.entryLookup.apply(key);
+            if (localValue == null || cache.entryVersion.applyAsLong(localValue) < remoteVersion) {
+                fetch.append(key).append(RECORD_SEPARATOR);
+            } else {
+                replies.add(new SiteReplicationUpdate(cache.entryUpdateType, key, localValue));
+            }
+        }
+        // anything left is only held here
+        localEntries.keySet().forEach(key -> {
+            String localValue = cache.entryLookup.apply(key);
+            if (localValue != null) {
+                replies.add(new SiteReplicationUpdate(cache.entryUpdateType, key, localValue));
+            }
+        });
+        if (fetch.length() > 0) {
+            replies.add(new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_MERKLE_FETCH, cache.tree.getCacheName(), fetch.toString()));
+        }
+    }
+
+    private void onFetch(ReconciledCache cache, String keys, List<SiteReplicationUpdate> replies) {
+        for (String key : keys.split(RECORD_SEPARATOR)) {
+            String localValue = cache.entryLookup.apply(key);
+            if (localValue != null) {
+                replies.add(new SiteReplicationUpdate(cache.entryUpdateType, key, localValue));
+            }
+        }
+    }
+
+    private SiteReplicationUpdate digest(ReconciledCache cache, int level, int[] nodes) {
+        StringBuilder digest = new StringBuilder().append(level).append(LEVEL_SEPARATOR);
+        for (int count = 0; count < nodes.length; count++) {
+            if (count > 0) {
+                digest.append(NODE_SEPARATOR);
+            }
+            digest.append(nodes[count]).append(HASH_SEPARATOR).append(Long.toHexString(cache.tree.getNodeHash(level, nodes[count])));
+        }
+        // the key includes the level so digests for the same cache aren't coalesced together
+        return new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_MERKLE_DIGEST,
+                cache.tree.getCacheName() + LEVEL_SEPARATOR + level, digest.toString());
+    }
+
+    private SiteReplicationUpdate keys(ReconciledCache cache, HashSet<Integer> leaves) {
+        StringBuilder keys = new StringBuilder();
+        leaves.forEach(leaf -> {
+            if (keys.length() > 0) {
+                keys.append(NODE_SEPARATOR);
+            }
+            keys.append(leaf);
+        });
+        cache.tree.getEntryHashes(leaves).forEach((key, hash) -> {
+            String value = cache.entryLookup.apply(key);
+            long version = value == null ? 0 : cache.entryVersion.applyAsLong(value);
+            keys.append(RECORD_SEPARATOR).append(key).append(FIELD_SEPARATOR).append(Long.toHexString(hash))
+                    .append(FIELD_SEPARATOR).append(version);
+        });
+        return new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_MERKLE_KEYS, cache.tree.getCacheName(), keys.toString());
+    }
+
+    private static class ReconciledCache {
+        private final ParcelMerkleTree tree;
+        private final Function<String, String> entryLookup;
+        private final ToLongFunction<String> entryVersion;
+        private final SiteReplicationUpdateTypeEnum entryUpdateType;
+
+        ReconciledCache(ParcelMerkleTree tree, Function<String, String> entryLookup, ToLongFunction<String> entryVersion,
+                SiteReplicationUpdateTypeEnum entryUpdateType) {
+            this.tree = tree;
+            this.entryLookup = entryLookup;
+            this.entryVersion = entryVersion;
+            this.entryUpdateType = entryUpdateType;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Merkle hashes over the content of one cache, used to find the keys that differ
+ * between two sites without copying the whole cache.
+ *
+ * Keys are split into LEAF_COUNT segments by the hash of the key (String.hashCode()
+ * is fixed by the language spec, so every site puts a key in the same segment).
+ * A segment's hash is the XOR of the hashes of its entries, so it can be updated in
+ * place as entries change without re-reading the rest of the segment. The tree above
+ * the segments has a fan out of BRANCHING and is computed when asked for, which for
+ * 4096 segments is cheap enough not to bother caching.
+ *
+ * Level 0 is the root, level DEPTH are the segments.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelMerkleTree {
+    public static final int BRANCHING = 16;
+    public static final int DEPTH = 3;
+    public static final int LEAF_COUNT = 4096; // BRANCHING ^ DEPTH
+
+    private static final XXHash64 ENTRY_HASH = XXHashFactory.fastestInstance().hash64();
+    private static final long ENTRY_HASH_SEED = 0x5045544153L;
+
+    private final String cacheName;
+    private final AtomicLongArray leafHashes = new AtomicLongArray(LEAF_COUNT);
+    // hash of each entry, so an update can remove the old entry's hash from its segment
+    private final ConcurrentHashMap<String, Long> entryHashes = new ConcurrentHashMap<>();
+
+    public ParcelMerkleTree(String cacheName) {
+        this.cacheName = cacheName;
+    }
+
+    /**
+     * Records a new value for the key, a null value records its removal.
+     */
+    public void update(String key, String value) {
+        Long previousHash;
+        long newHash = 0;
+        if (value == null) {
+            previousHash = entryHashes.remove(key);
+        } else {
+            newHash = entryHash(key, value);
+            previousHash = entryHashes.put(key, newHash);
+        }
+        // XOR is order independent, so concurrent updates of the same key still leave
+        // the segment hash matching the entries
+        long change = (previousHash == null ? 0 : previousHash) ^ newHash;
+        if (change != 0) {
+            leafHashes.accumulateAndGet(leafOf(key), change, (current, delta) -> current ^ delta);
+        }
+    }
+
+    public long getNodeHash(int level, int index) {
+        if (level == DEPTH) {
+            return leafHashes.get(index);
+        }
+        long nodeHash = 17;
+        int firstChild = index * BRANCHING;
+        for (int child = firstChild; child < firstChild + BRANCHING; child++) {
+            nodeHash = mix(nodeHash * 31 + getNodeHash(level + 1, child));
+        }
+        return nodeHash;
+    }
+
+    public long getRootHash() {
+        return getNodeHash(0, 0);
+    }
+
+    /**
+     * @return key => entry hash for every key in the given segments
+     */
+    public Map<String, Long> getEntryHashes(Set<Integer> leaves) {
+        HashMap<String, Long> leafEntries = new HashMap<>();
+        entryHashes.forEach((key, hash) -> {
+            if (leaves.contains(leafOf(key))) {
+                leafEntries.put(key, hash);
+            }
+        });
+        return leafEntries;
+    }
+
+    public Long getEntryHash(String key) {
+        return entryHashes.get(key);
+    }
+
+    public int getEntryCount() {
+        return entryHashes.size();
+    }
+
+    public String getCacheName() {
+        return cacheName;
+    }
+
+    public static int leafOf(String key) {
+        return (int) ((mix(key.hashCode()) & Long.MAX_VALUE) % LEAF_COUNT);
+    }
+
+    public static long entryHash(String key, String value) {
+        byte[] entry = (key + '\u0000' + value).getBytes(StandardCharsets.UTF_8);
+        long hash = ENTRY_HASH.hash(entry, 0, entry.length, ENTRY_HASH_SEED);
+        // zero is reserved for "no entry"
+        return hash == 0 ? 1 : hash;
+    }
+
+    // 64 bit finaliser from MurmurHash3
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
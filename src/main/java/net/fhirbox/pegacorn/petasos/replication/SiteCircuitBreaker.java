@@ -0,0 +1,110 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for one site endpoint. After failureThreshold consecutive failures
+ * the circuit opens and sends to the site are refused straight away instead of
+ * queueing for a site that isn't there. After openDurationMillis the circuit goes
+ * half open and a single probe send is let through, its success closes the circuit
+ * and its failure opens it again. A probe that never reports back (e.g. it timed
+ * out before a send was attempted) is replaced by another after openDurationMillis.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteCircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(SiteCircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = 30000L;
+
+    private static final int CIRCUIT_CLOSED = 0;
+    private static final int CIRCUIT_OPEN = 1;
+    private static final int CIRCUIT_HALF_OPEN = 2;
+
+    private final String connectionEndpoint;
+    private final int failureThreshold;
+    private final long openDurationMillis;
+
+    private final AtomicInteger circuitState = new AtomicInteger(CIRCUIT_CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAtMillis;
+    // when the half open probe was let through
+    private final AtomicLong probeStartedAtMillis = new AtomicLong();
+
+    public SiteCircuitBreaker(String connectionEndpoint) {
+        this(connectionEndpoint, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MILLIS);
+    }
+
+    public SiteCircuitBreaker(String connectionEndpoint, int failureThreshold, long openDurationMillis) {
+        this.connectionEndpoint = connectionEndpoint;
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    public boolean allowRequest() {
+        int state = circuitState.get();
+        if (state == CIRCUIT_CLOSED) {
+            return true;
+        }
+        long nowMillis = System.currentTimeMillis();
+        if (state == CIRCUIT_OPEN) {
+            if (nowMillis - openedAtMillis >= openDurationMillis && circuitState.compareAndSet(CIRCUIT_OPEN, CIRCUIT_HALF_OPEN)) {
+                probeStartedAtMillis.set(nowMillis);
+                LOG.info("Circuit to site " + connectionEndpoint + " half open, probing");
+                return true;
+            }
+            return false;
+        }
+        // half open with a probe in flight, everything else is refused until it reports back
+        long probeStarted = probeStartedAtMillis.get();
+        return nowMillis - probeStarted >= openDurationMillis && probeStartedAtMillis.compareAndSet(probeStarted, nowMillis);
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        if (circuitState.getAndSet(CIRCUIT_CLOSED) != CIRCUIT_CLOSED) {
+            LOG.info("Circuit to site " + connectionEndpoint + " closed");
+        }
+    }
+
+    public void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (circuitState.compareAndSet(CIRCUIT_HALF_OPEN, CIRCUIT_OPEN)
+                || (failures >= failureThreshold && circuitState.compareAndSet(CIRCUIT_CLOSED, CIRCUIT_OPEN))) {
+            openedAtMillis = System.currentTimeMillis();
+            LOG.warn("Circuit to site " + connectionEndpoint + " opened after " + failures + " consecutive failures");
+        }
+    }
+
+    public boolean isOpen() {
+        return circuitState.get() == CIRCUIT_OPEN;
+    }
+}
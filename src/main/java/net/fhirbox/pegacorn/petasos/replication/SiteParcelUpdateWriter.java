@@ -0,0 +1,129 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+import org.infinispan.Cache;
+
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+
+/**
+ * Writes parcel updates arriving from other sites to this site's parcel cache. Updates
+ * can arrive out of order, or behind a transition made at this site, so one is only
+ * written if it supersedes our copy, and conditionally on that copy so a local
+ * transition racing it isn't overwritten. A lost race is retried against the new copy,
+ * if it keeps losing the reconciliation catches up with it later.
+ *
+ * A finalised parcel that has already expired here (and so been archived) can still
+ * arrive from a site whose copy hasn't expired yet, late or through reconciliation.
+ * If its lifespan has run out, or it left a tombstone here, it isn't written back,
+ * else it would expire and be archived a second time.
+ *
+ * Only async cache calls, as it is called on the transport's event loop.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteParcelUpdateWriter {
+    public static final int MAX_WRITE_ATTEMPTS = 3;
+    // an expiring update of a parcel we still hold gets at least this long
+    public static final long MIN_LIFESPAN_MILLIS = 1000L;
+
+    private final Cache<String, String> parcelCache;
+    // remaining lifespan for the parcel in milliseconds, 0 if it has run out, negative for none
+    private final ToLongFunction<PetasosParcelJSON> lifespanFunction;
+    // parcels that have expired here, null if not kept
+    private final Cache<String, String> tombstoneCache;
+    // given our previous copy (null if there wasn't one) and the update, once written
+    private final BiConsumer<String, String> writtenListener;
+
+    public SiteParcelUpdateWriter(Cache<String, String> parcelCache, ToLongFunction<PetasosParcelJSON> lifespanFunction,
+            BiConsumer<String, String> writtenListener) {
+        this(parcelCache, lifespanFunction, writtenListener, null);
+    }
+
+    public SiteParcelUpdateWriter(Cache<String, String> parcelCache, ToLongFunction<PetasosParcelJSON> lifespanFunction,
+            BiConsumer<String, String> writtenListener, Cache<String, String> tombstoneCache) {
+        this.parcelCache = parcelCache;
+        this.lifespanFunction = lifespanFunction;
+        this.writtenListener = writtenListener;
+        this.tombstoneCache = tombstoneCache;
+    }
+
+    /**
+     * @return a future completing with true if the update was written, false if our copy
+     * is more recent, the parcel has already expired here or the update kept losing races
+     * with local transitions
+     */
+    public CompletableFuture<Boolean> write(String parcelQualifiedFDN, String parcelJSON) {
+        return write(parcelQualifiedFDN, parcelJSON, new PetasosParcelJSON(parcelJSON), 1);
+    }
+
+    private CompletableFuture<Boolean> write(String parcelQualifiedFDN, String parcelJSON, PetasosParcelJSON updatedParcel, int attempt) {
+        return parcelCache.getAsync(parcelQualifiedFDN).thenCompose(cachedParcelJSON -> {
+            if (cachedParcelJSON != null
+                    && (cachedParcelJSON.equals(parcelJSON) || !updatedParcel.supersedes(new PetasosParcelJSON(cachedParcelJSON)))) {
+                return CompletableFuture.completedFuture(Boolean.FALSE);
+            }
+            // a negative lifespan leaves the parcel immortal
+            long lifespanMillis = lifespanFunction.applyAsLong(updatedParcel);
+            CompletableFuture<Boolean> parcelWrite;
+            if (cachedParcelJSON == null) {
+                if (lifespanMillis == 0) {
+                    // expired at the other site, so it has (or would have) expired here too
+                    return CompletableFuture.completedFuture(Boolean.FALSE);
+                }
+                parcelWrite = whenNotExpiredHere(parcelQualifiedFDN, lifespanMillis).thenCompose(notExpired -> !notExpired
+                        ? CompletableFuture.completedFuture(Boolean.FALSE)
+                        : parcelCache.putIfAbsentAsync(parcelQualifiedFDN, parcelJSON, lifespanMillis, TimeUnit.MILLISECONDS)
+                                .thenApply(existingParcelJSON -> existingParcelJSON == null));
+            } else {
+                // our copy hasn't expired yet, so it expires (and is archived) here once
+                long remainingLifespanMillis = lifespanMillis < 0 ? lifespanMillis : Math.max(lifespanMillis, MIN_LIFESPAN_MILLIS);
+                parcelWrite = parcelCache.replaceAsync(parcelQualifiedFDN, cachedParcelJSON, parcelJSON, remainingLifespanMillis, TimeUnit.MILLISECONDS);
+            }
+            return parcelWrite.thenCompose(written -> {
+                if (written) {
+                    writtenListener.accept(cachedParcelJSON, parcelJSON);
+                    return CompletableFuture.completedFuture(Boolean.TRUE);
+                }
+                if (attempt < MAX_WRITE_ATTEMPTS) {
+                    return write(parcelQualifiedFDN, parcelJSON, updatedParcel, attempt + 1);
+                }
+                return CompletableFuture.completedFuture(Boolean.FALSE);
+            });
+        });
+    }
+
+    // only an expiring (finalised) parcel can have left a tombstone
+    private CompletableFuture<Boolean> whenNotExpiredHere(String parcelQualifiedFDN, long lifespanMillis) {
+        if (tombstoneCache == null || lifespanMillis < 0) {
+            return CompletableFuture.completedFuture(Boolean.TRUE);
+        }
+        return tombstoneCache.getAsync(parcelQualifiedFDN).thenApply(tombstone -> tombstone == null);
+    }
+}
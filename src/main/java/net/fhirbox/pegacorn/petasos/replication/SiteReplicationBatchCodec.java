@@ -0,0 +1,175 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Encodes and decodes a batch of site updates. The frame length is added and removed
+ * by the Netty pipeline, the frame body is
+ *   [flags][uncompressed body length][body]
+ * and the (possibly LZ4 compressed) body is
+ *   [update count] then per update [type][key length][key][value length][value]
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteReplicationBatchCodec {
+    public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 1024;
+
+    private static final byte FLAG_NONE = 0;
+    private static final byte FLAG_LZ4 = 1;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+    private static final SiteReplicationUpdateTypeEnum[] UPDATE_TYPES = SiteReplicationUpdateTypeEnum.values();
+
+    private boolean compressionEnabled;
+    private int compressionThresholdBytes;
+
+    public SiteReplicationBatchCodec(boolean compressionEnabled, int compressionThresholdBytes) {
+        this.compressionEnabled = compressionEnabled;
+        this.compressionThresholdBytes = compressionThresholdBytes;
+    }
+
+    /**
+     * Encodes the batch into a (pooled) buffer from the allocator. Each update's value is
+     * encoded as UTF-8 once and copied from there into the frame for every site and
+     * retry, so forwarding a parcel doesn't allocate beyond that first encoding.
+     */
+    public ByteBuf encode(ByteBufAllocator allocator, List<SiteReplicationUpdate> batch) {
+        // keys are mostly ASCII, the buffer grows if not
+        int estimatedBodyLength = 4;
+        for (SiteReplicationUpdate update : batch) {
+            estimatedBodyLength += 9 + update.getKey().length() + update.getValueBytes().length;
+        }
+
+        if (!compressionEnabled || estimatedBodyLength < compressionThresholdBytes) {
+            ByteBuf frame = allocator.buffer(5 + estimatedBodyLength);
+            frame.writeByte(FLAG_NONE);
+            int bodyLengthIndex = frame.writerIndex();
+            frame.writeInt(0);
+            writeBody(frame, batch);
+            frame.setInt(bodyLengthIndex, frame.writerIndex() - bodyLengthIndex - 4);
+            return frame;
+        }
+
+        ByteBuf body = allocator.heapBuffer(estimatedBodyLength);
+        try {
+            writeBody(body, batch);
+            int bodyLength = body.readableBytes();
+            int maximumCompressedLength = COMPRESSOR.maxCompressedLength(bodyLength);
+            ByteBuf frame = allocator.buffer(5 + maximumCompressedLength);
+            frame.writeByte(FLAG_LZ4);
+            frame.writeInt(bodyLength);
+            // compress from the body buffer straight into the frame
+            ByteBuffer compressed = frame.nioBuffer(frame.writerIndex(), maximumCompressedLength);
+            int compressedLength = COMPRESSOR.compress(body.nioBuffer(), 0, bodyLength, compressed, 0, maximumCompressedLength);
+            frame.writerIndex(frame.writerIndex() + compressedLength);
+            return frame;
+        } finally {
+            body.release();
+        }
+    }
+
+    private void writeBody(ByteBuf body, List<SiteReplicationUpdate> batch) {
+        body.writeInt(batch.size());
+        for (SiteReplicationUpdate update : batch) {
+            body.writeByte(update.getUpdateType().ordinal());
+            writeUTF8(body, update.getKey());
+            byte[] value = update.getValueBytes();
+            body.writeInt(value.length);
+            body.writeBytes(value);
+        }
+    }
+
+    // the length is written as a placeholder and filled in once the UTF-8 length is known
+    private static void writeUTF8(ByteBuf body, String value) {
+        int lengthIndex = body.writerIndex();
+        body.writeInt(0);
+        int length = ByteBufUtil.reserveAndWriteUtf8(body, value, value.length());
+        body.setInt(lengthIndex, length);
+    }
+
+    /**
+     * Decodes a frame, reading the keys and values straight out of the frame (or the
+     * buffer it is decompressed into) as Strings.
+     */
+    public List<SiteReplicationUpdate> decode(ByteBuf frame) {
+        byte flags = frame.readByte();
+        int bodyLength = frame.readInt();
+        if (flags != FLAG_LZ4 && frame.hasArray()) {
+            return readBody(frame);
+        }
+        // the Strings are decoded from a (pooled) heap buffer, from a direct buffer Netty
+        // would go through a char[] for each of them
+        ByteBuf body = frame.alloc().heapBuffer(bodyLength);
+        try {
+            if (flags == FLAG_LZ4) {
+                ByteBuffer decompressed = body.nioBuffer(0, bodyLength);
+                DECOMPRESSOR.decompress(frame.nioBuffer(), 0, decompressed, 0, bodyLength);
+                body.writerIndex(bodyLength);
+            } else {
+                frame.readBytes(body, bodyLength);
+            }
+            return readBody(body);
+        } finally {
+            body.release();
+        }
+    }
+
+    private List<SiteReplicationUpdate> readBody(ByteBuf body) {
+        int updateCount = body.readInt();
+        List<SiteReplicationUpdate> batch = new ArrayList<>(updateCount);
+        for (int count = 0; count < updateCount; count++) {
+            SiteReplicationUpdateTypeEnum updateType = UPDATE_TYPES[body.readByte()];
+            String key = readUTF8(body);
+            String value = readUTF8(body);
+            batch.add(new SiteReplicationUpdate(updateType, key, value));
+        }
+        return batch;
+    }
+
+    private static String readUTF8(ByteBuf body) {
+        int length = body.readInt();
+        String value;
+        if (body.hasArray()) {
+            // decoded straight from the array, ByteBuf.toString goes through a char[] first
+            value = new String(body.array(), body.arrayOffset() + body.readerIndex(), length, StandardCharsets.UTF_8);
+        } else {
+            value = body.toString(body.readerIndex(), length, StandardCharsets.UTF_8);
+        }
+        body.skipBytes(length);
+        return value;
+    }
+}
@@ -0,0 +1,272 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Persistent connection to one other site. Updates are coalesced per key while they
+ * wait, so within a batch window only the latest state of each parcel or WUP is sent,
+ * and everything pending is then sent as a single frame.
+ *
+ * If the site cannot be reached the connection is retried with a doubling back-off.
+ * After maxRetries failed attempts the pending updates are dropped (the site will
+ * catch up from later updates), but connection attempts continue. A circuit breaker
+ * refuses new sends while the site is known to be down.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteReplicationClient {
+    private static final Logger LOG = LoggerFactory.getLogger(SiteReplicationClient.class);
+
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 20L;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_SEND_TIMEOUT_MILLIS = 5000L;
+    private static final long INITIAL_RECONNECT_BACKOFF_MILLIS = 100L;
+    private static final long MAX_RECONNECT_BACKOFF_MILLIS = 10000L;
+
+    private final String connectionEndpoint;
+    private final Bootstrap bootstrap;
+    private final EventLoop eventLoop;
+    private final SiteReplicationBatchCodec codec;
+    private final int maxRetries;
+    private final SiteCircuitBreaker circuitBreaker;
+
+    private final ConcurrentHashMap<String, SiteReplicationUpdate> pendingUpdates = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> flushTask;
+
+    // only accessed on the client's event loop
+    private Channel channel;
+    private boolean connecting = false;
+    private int reconnectAttempts = 0;
+    private long nextConnectMillis = 0;
+
+    private final AtomicLong sentUpdates = new AtomicLong();
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong failedUpdates = new AtomicLong();
+
+    /**
+     * @param inboundHandler creates the handler for frames the site sends back over
+     * this connection (reconciliation replies)
+     */
+    public SiteReplicationClient(String connectionEndpoint, EventLoopGroup eventLoopGroup, SiteReplicationBatchCodec codec, int maxRetries,
+            Supplier<ChannelHandler> inboundHandler) {
+        this.connectionEndpoint = connectionEndpoint;
+        this.codec = codec;
+        this.maxRetries = maxRetries;
+        this.circuitBreaker = new SiteCircuitBreaker(connectionEndpoint);
+        // pin the client to one event loop so the connection state needs no locking
+        this.eventLoop = eventLoopGroup.next();
+        String[] hostAndPort = connectionEndpoint.split(":");
+        this.bootstrap = new Bootstrap().group(eventLoop).channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .remoteAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1]))
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel socketChannel) {
+                        socketChannel.pipeline()
+                                .addLast(new LengthFieldBasedFrameDecoder(SiteReplicationTransport.MAX_FRAME_BYTES, 0, 4, 0, 4))
+                                .addLast(new LengthFieldPrepender(4))
+                                .addLast(inboundHandler.get());
+                    }
+                });
+    }
+
+    public void start(long batchWindowMillis) {
+        flushTask = eventLoop.scheduleWithFixedDelay(this::flush, batchWindowMillis, batchWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        eventLoop.execute(() -> {
+            if (channel != null) {
+                channel.close();
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> send(SiteReplicationUpdate update) {
+        return send(update, DEFAULT_SEND_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Queues an update for the next batch, replacing any queued update for the same
+     * key. Never blocks.
+     *
+     * @return completes with true once the update (or one that replaced it) has been
+     * written to the site, or false if it was refused by the circuit breaker, dropped
+     * or not sent within the timeout
+     */
+    public CompletableFuture<Boolean> send(SiteReplicationUpdate update, long timeoutMillis) {
+        CompletableFuture<Boolean> sendOutcome = update.getSendOutcome();
+        if (!circuitBreaker.allowRequest()) {
+            sendOutcome.complete(false);
+            return sendOutcome;
+        }
+        SiteReplicationUpdate replacedUpdate = pendingUpdates.put(update.getCoalescingKey(), update);
+        if (replacedUpdate != null) {
+            // the replaced update goes out (or not) with its replacement
+            sendOutcome.whenComplete((sent, error) -> replacedUpdate.getSendOutcome().complete(error == null && sent));
+        }
+        if (!sendOutcome.isDone()) {
+            // cancelled once the update is sent, so timeouts don't pile up on the event loop
+            ScheduledFuture<?> sendTimeout = eventLoop.schedule(() -> sendOutcome.complete(false), timeoutMillis, TimeUnit.MILLISECONDS);
+            sendOutcome.whenComplete((sent, error) -> sendTimeout.cancel(false));
+        }
+        return sendOutcome;
+    }
+
+    private void flush() {
+        if (pendingUpdates.isEmpty()) {
+            return;
+        }
+        if (channel == null || !channel.isActive()) {
+            connect();
+            return;
+        }
+
+        List<SiteReplicationUpdate> batch = new ArrayList<>(pendingUpdates.size());
+        for (Map.Entry<String, SiteReplicationUpdate> pending : pendingUpdates.entrySet()) {
+            // only take the update if it hasn't been replaced since we looked at it,
+            // a replacement stays queued for the next batch
+            if (pendingUpdates.remove(pending.getKey(), pending.getValue())) {
+                batch.add(pending.getValue());
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteBuf frame = codec.encode(channel.alloc(), batch);
+        channel.writeAndFlush(frame).addListener(writeFuture -> {
+            if (writeFuture.isSuccess()) {
+                sentUpdates.addAndGet(batch.size());
+                sentBatches.incrementAndGet();
+                circuitBreaker.recordSuccess();
+                batch.forEach(update -> update.getSendOutcome().complete(true));
+            } else {
+                LOG.warn("Failed to send " + batch.size() + " updates to site " + connectionEndpoint, writeFuture.cause());
+                circuitBreaker.recordFailure();
+                requeue(batch);
+            }
+        });
+    }
+
+    private void requeue(List<SiteReplicationUpdate> batch) {
+        batch.forEach(update -> {
+            update.incrementSendAttempts();
+            if (update.getSendAttempts() > maxRetries) {
+                failedUpdates.incrementAndGet();
+                update.getSendOutcome().complete(false);
+            } else {
+                // a newer update for the same key wins over the retry
+                pendingUpdates.putIfAbsent(update.getCoalescingKey(), update);
+            }
+        });
+    }
+
+    private void connect() {
+        if (connecting || System.currentTimeMillis() < nextConnectMillis) {
+            return;
+        }
+        connecting = true;
+        bootstrap.connect().addListener((ChannelFuture connectFuture) -> {
+            connecting = false;
+            if (connectFuture.isSuccess()) {
+                channel = connectFuture.channel();
+                reconnectAttempts = 0;
+                nextConnectMillis = 0;
+                LOG.info("Connected to site " + connectionEndpoint);
+                return;
+            }
+            reconnectAttempts++;
+            circuitBreaker.recordFailure();
+            long backoff = Math.min(INITIAL_RECONNECT_BACKOFF_MILLIS << Math.min(reconnectAttempts, 16), MAX_RECONNECT_BACKOFF_MILLIS);
+            nextConnectMillis = System.currentTimeMillis() + backoff;
+            if (reconnectAttempts >= maxRetries && !pendingUpdates.isEmpty()) {
+                int droppedUpdates = 0;
+                for (Map.Entry<String, SiteReplicationUpdate> pending : pendingUpdates.entrySet()) {
+                    if (pendingUpdates.remove(pending.getKey(), pending.getValue())) {
+                        pending.getValue().getSendOutcome().complete(false);
+                        droppedUpdates++;
+                    }
+                }
+                failedUpdates.addAndGet(droppedUpdates);
+                LOG.warn("Unable to connect to site " + connectionEndpoint + " after " + reconnectAttempts + " attempts, dropped "
+                        + droppedUpdates + " pending updates");
+            }
+        });
+    }
+
+    public String getConnectionEndpoint() {
+        return connectionEndpoint;
+    }
+
+    public SiteCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public int getPendingUpdateCount() {
+        return pendingUpdates.size();
+    }
+
+    public long getSentUpdateCount() {
+        return sentUpdates.get();
+    }
+
+    public long getSentBatchCount() {
+        return sentBatches.get();
+    }
+
+    public long getFailedUpdateCount() {
+        return failedUpdates.get();
+    }
+}
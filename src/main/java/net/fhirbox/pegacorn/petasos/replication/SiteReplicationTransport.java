@@ -0,0 +1,219 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+
+/**
+ * Site to site replication of parcel and CI status updates. Each site listens on
+ * one port for updates from the other sites and holds a persistent client connection
+ * to each of them. Everything runs on a small Netty event loop group owned by this
+ * class rather than the container's managed executor, sends never block the caller.
+ *
+ * The transport does not depend on the container so two can be run in the same JVM
+ * over loopback, e.g.
+ *   siteA = new SiteReplicationTransport(12501, listenerA); siteA.start();
+ *   siteB = new SiteReplicationTransport(12502, listenerB); siteB.start();
+ *   siteA.addSite("127.0.0.1:12502");
+ *
+ * Connections are two way, the site at the other end writes its replies to
+ * reconciliation messages back over the connection they arrived on. Working out the
+ * replies reads the caches, so it is done on the reconciliation executor rather than
+ * the event loop.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteReplicationTransport {
+    private static final Logger LOG = LoggerFactory.getLogger(SiteReplicationTransport.class);
+
+    public static final int DEFAULT_PORT = 12500;
+    static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    private static final int EVENT_LOOP_THREADS = 2;
+
+    private final int listenPort;
+    private final SiteReplicationListener listener;
+    private final SiteReplicationBatchCodec codec;
+    private volatile MerkleReconciler reconciler;
+    // runs the reconciler's blocking cache lookups, inline if not set (e.g. in-process tests)
+    private volatile Executor reconciliationExecutor = Runnable::run;
+    private long batchWindowMillis = SiteReplicationClient.DEFAULT_BATCH_WINDOW_MILLIS;
+    private int maxRetries = SiteReplicationClient.DEFAULT_MAX_RETRIES;
+
+    private EventLoopGroup eventLoopGroup;
+    private Channel serverChannel;
+    private ConcurrentHashMap<String, SiteReplicationClient> siteClients = new ConcurrentHashMap<>();
+
+    public SiteReplicationTransport(int listenPort, SiteReplicationListener listener) {
+        this(listenPort, listener, new SiteReplicationBatchCodec(true, SiteReplicationBatchCodec.DEFAULT_COMPRESSION_THRESHOLD_BYTES));
+    }
+
+    public SiteReplicationTransport(int listenPort, SiteReplicationListener listener, SiteReplicationBatchCodec codec) {
+        this.listenPort = listenPort;
+        this.listener = listener;
+        this.codec = codec;
+    }
+
+    public void start() throws InterruptedException {
+        eventLoopGroup = new NioEventLoopGroup(EVENT_LOOP_THREADS);
+        serverChannel = new ServerBootstrap().group(eventLoopGroup).channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel socketChannel) {
+                        socketChannel.pipeline()
+                                .addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_BYTES, 0, 4, 0, 4))
+                                .addLast(new LengthFieldPrepender(4))
+                                .addLast(new SiteUpdateHandler());
+                    }
+                })
+                .bind(listenPort).sync().channel();
+        LOG.info("Site replication listening on port " + listenPort);
+    }
+
+    public void stop() {
+        siteClients.values().forEach(SiteReplicationClient::stop);
+        siteClients.clear();
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully();
+        }
+    }
+
+    /**
+     * @param connectionEndpoint host:port of the other site's transport
+     */
+    public SiteReplicationClient addSite(String connectionEndpoint) {
+        return siteClients.computeIfAbsent(connectionEndpoint, endpoint -> {
+            SiteReplicationClient client = new SiteReplicationClient(endpoint, eventLoopGroup, codec, maxRetries, () -> new SiteUpdateHandler());
+            client.start(batchWindowMillis);
+            return client;
+        });
+    }
+
+    public SiteReplicationClient getSite(String connectionEndpoint) {
+        return siteClients.get(connectionEndpoint);
+    }
+
+    public Collection<SiteReplicationClient> getSites() {
+        return siteClients.values();
+    }
+
+    /**
+     * Starts an anti-entropy reconciliation of every reconciled cache with each site.
+     */
+    public void reconcileWithSites() {
+        if (reconciler == null) {
+            return;
+        }
+        siteClients.values().forEach(site -> reconciler.createRootDigests().forEach(site::send));
+    }
+
+    public void setReconciler(MerkleReconciler reconciler) {
+        this.reconciler = reconciler;
+    }
+
+    public void setReconciliationExecutor(Executor reconciliationExecutor) {
+        this.reconciliationExecutor = reconciliationExecutor;
+    }
+
+    public void setBatchWindowMillis(long batchWindowMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    private class SiteUpdateHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext context, ByteBuf frame) {
+            List<SiteReplicationUpdate> reconciliationMessages = new ArrayList<>();
+            for (SiteReplicationUpdate update : codec.decode(frame)) {
+                switch (update.getUpdateType()) {
+                    case SITE_UPDATE_PARCEL:
+                        listener.onParcelUpdate(update.getKey(), update.getValue());
+                        break;
+                    case SITE_UPDATE_CI_STATUS:
+                        listener.onCIStatusUpdate(update.getKey(), update.getValue());
+                        break;
+                    case SITE_UPDATE_PAYLOAD:
+                        listener.onPayloadUpdate(update.getKey(), update.getValue());
+                        break;
+                    default:
+                        reconciliationMessages.add(update);
+                        break;
+                }
+            }
+            MerkleReconciler currentReconciler = reconciler;
+            if (reconciliationMessages.isEmpty() || currentReconciler == null) {
+                return;
+            }
+            // the replies are written from the executor, Netty hands the write to the event loop
+            reconciliationExecutor.execute(() -> {
+                List<SiteReplicationUpdate> replies = new ArrayList<>();
+                try {
+                    reconciliationMessages.forEach(message -> replies.addAll(currentReconciler.onMessage(message)));
+                } catch (RuntimeException re) {
+                    LOG.warn("Error reconciling with " + context.channel().remoteAddress(), re);
+                }
+                if (!replies.isEmpty()) {
+                    context.writeAndFlush(codec.encode(context.alloc(), replies));
+                }
+            });
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+            LOG.warn("Error receiving site updates from " + context.channel().remoteAddress(), cause);
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A single parcel or CI status change to be sent to another site. The value is
+ * the same JSON string held in the local cache.
+ *
+ * An update is sent to one site, as it carries that send's attempts and outcome.
+ * Copies for the other sites share the value and its encoding.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteReplicationUpdate {
+    private SiteReplicationUpdateTypeEnum updateType;
+    private String key;
+    private String value;
+    // the value as UTF-8, encoded once however many sites (and retries) it is sent to.
+    // Encoded on first use, two threads racing to do so just both encode it.
+    private volatile byte[] valueBytes;
+    // number of failed attempts to send this update, only changed on the event loop
+    // of the site client sending it
+    private volatile int sendAttempts = 0;
+    // true once sent to the site, false if dropped, refused or timed out
+    private final CompletableFuture<Boolean> sendOutcome = new CompletableFuture<>();
+
+    public SiteReplicationUpdate(SiteReplicationUpdateTypeEnum updateType, String key, String value) {
+        this.updateType = updateType;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * A copy of the update to send to another site, sharing the encoded value but with
+     * its own send attempts and outcome.
+     */
+    public SiteReplicationUpdate(SiteReplicationUpdate update) {
+        this.updateType = update.updateType;
+        this.key = update.key;
+        this.value = update.value;
+        this.valueBytes = update.getValueBytes();
+    }
+
+    /**
+     * Updates with the same coalescing key replace each other while they wait to be
+     * sent, so only the latest state of a parcel or WUP goes over the wire.
+     */
+    public String getCoalescingKey() {
+        // the separator stops e.g. type 1 of key "1x" clashing with type 11 of key "x"
+        return updateType.ordinal() + ":" + key;
+    }
+
+    public SiteReplicationUpdateTypeEnum getUpdateType() {
+        return updateType;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the value as UTF-8, shared by every send of this update so must not be changed
+     */
+    public byte[] getValueBytes() {
+        byte[] encodedValue = valueBytes;
+        if (encodedValue == null) {
+            encodedValue = value.getBytes(StandardCharsets.UTF_8);
+            valueBytes = encodedValue;
+        }
+        return encodedValue;
+    }
+
+    public int getSendAttempts() {
+        return sendAttempts;
+    }
+
+    public CompletableFuture<Boolean> getSendOutcome() {
+        return sendOutcome;
+    }
+
+    public void incrementSendAttempts() {
+        this.sendAttempts++;
+    }
+}
@@ -0,0 +1,55 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A PetasosAgent lifecycle call.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+@Name("net.fhirbox.pegacorn.petasos.AgentCall")
+@Label("Petasos Agent Call")
+@Category({"Pegacorn", "Petasos"})
+@Description("A PetasosAgentInterface call made by a WUP")
+@StackTrace(false)
+class PetasosAgentCallEvent extends jdk.jfr.Event {
+    @Label("Method")
+    String method;
+
+    @Label("FDN")
+    @Description("The parcel FDN, or the UoW/WUP FDN for calls made before there is a parcel")
+    String fdn;
+
+    @Label("Payload Size")
+    @Description("Characters of UoW ingress and egress content")
+    @DataAmount
+    long payloadSize;
+}
@@ -0,0 +1,130 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.jfr;
+
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+
+/**
+ * Records the Petasos events with the flight recorder. Loaded by name from
+ * PetasosFlightRecorder, only once the events are enabled.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+class PetasosJFREventRecorder implements PetasosEventRecorder {
+
+    @Override
+    public Object beginAgentCall() {
+        PetasosAgentCallEvent event = new PetasosAgentCallEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitAgentCall(Object agentCall, String method, FDN fdn, UoW uow) {
+        PetasosAgentCallEvent event = (PetasosAgentCallEvent) agentCall;
+        event.end();
+        // the FDN and payload size aren't worked out unless the event is recorded
+        if (event.shouldCommit()) {
+            event.method = method;
+            event.fdn = fdn == null ? null : fdn.getQualifiedFDN();
+            event.payloadSize = payloadSize(uow);
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginParcelJSON() {
+        PetasosParcelJSONEvent event = new PetasosParcelJSONEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitParcelJSON(Object parcelJSON, String operation, String parcelFDN, int payloadSize) {
+        PetasosParcelJSONEvent event = (PetasosParcelJSONEvent) parcelJSON;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.parcelFDN = parcelFDN;
+            event.payloadSize = payloadSize;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginParcelMonitor() {
+        PetasosParcelMonitorEvent event = new PetasosParcelMonitorEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitParcelMonitor(Object parcelMonitor, String parcelFDN, int payloadSize) {
+        PetasosParcelMonitorEvent event = (PetasosParcelMonitorEvent) parcelMonitor;
+        event.end();
+        if (event.shouldCommit()) {
+            event.parcelFDN = parcelFDN;
+            event.payloadSize = payloadSize;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginNodeRegistration() {
+        PetasosNodeRegistrationEvent event = new PetasosNodeRegistrationEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitNodeRegistration(Object nodeRegistration, String registration, String fdn, String wupFDN) {
+        PetasosNodeRegistrationEvent event = (PetasosNodeRegistrationEvent) nodeRegistration;
+        event.end();
+        if (event.shouldCommit()) {
+            event.registration = registration;
+            event.fdn = fdn;
+            event.wupFDN = wupFDN;
+            event.commit();
+        }
+    }
+
+    private static long payloadSize(UoW uow) {
+        if (uow == null) {
+            return 0;
+        }
+        long payloadSize = 0;
+        if (uow.getUowIngressContent() != null) {
+            for (String ingress : uow.getUowIngressContent()) {
+                payloadSize += ingress.length();
+            }
+        }
+        if (uow.getUowEgressContent() != null) {
+            for (String egress : uow.getUowEgressContent()) {
+                payloadSize += egress.length();
+            }
+        }
+        return payloadSize;
+    }
+}
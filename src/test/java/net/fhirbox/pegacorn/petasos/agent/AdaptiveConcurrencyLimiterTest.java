@@ -0,0 +1,87 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    @Test
+    public void concurrentReleasesKeepTheLimitInBounds() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(32, 4, 64);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int caller = 0; caller < 8; caller++) {
+            calls.add(CompletableFuture.runAsync(() -> {
+                for (int call = 0; call < 20000; call++) {
+                    long admittedNanos = limiter.acquire();
+                    limiter.release(admittedNanos);
+                }
+            }, callers));
+        }
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        callers.shutdown();
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.getLimit() >= 4 && limiter.getLimit() <= 64);
+        assertTrue(limiter.getBaselineLatencyMillis() > 0);
+    }
+
+    @Test
+    public void queuedCallAdmittedWhenASlotIsReleased() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        limiter.setMaxQueueWaitMillis(5000);
+        long firstAdmittedNanos = limiter.acquire();
+        CompletableFuture<Long> queuedCall = CompletableFuture.supplyAsync(limiter::acquire);
+        Thread.sleep(50);
+        long releasedMillis = System.currentTimeMillis();
+        limiter.release(firstAdmittedNanos);
+        assertTrue(queuedCall.get(5, TimeUnit.SECONDS) >= 0);
+        // woken by the release rather than the queue wait running out
+        assertTrue(System.currentTimeMillis() - releasedMillis < 2000);
+        assertEquals(0, limiter.getShedCalls());
+    }
+
+    @Test
+    public void callOverTheLimitIsShedWithoutAQueueWait() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        long admittedNanos = limiter.acquire();
+        assertEquals(-1, limiter.acquire());
+        assertEquals(1, limiter.getShedCalls());
+        limiter.release(admittedNanos);
+        assertEquals(0, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class CriticalWriteCoordinatorTest {
+    private CriticalWriteCoordinator coordinator;
+
+    @Before
+    public void createCoordinator() {
+        coordinator = new CriticalWriteCoordinator();
+        coordinator.setTimeoutMillis(5000);
+    }
+
+    @Test
+    public void quorumReachedOnceEnoughAcknowledge() {
+        CompletableFuture<String> cacheWrite = new CompletableFuture<>();
+        CompletableFuture<Void> journalWrite = CompletableFuture.completedFuture(null);
+        CompletableFuture.runAsync(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            cacheWrite.complete("previous");
+        });
+        assertTrue(coordinator.awaitQuorum("startActivity", System.nanoTime(), cacheWrite, journalWrite));
+    }
+
+    @Test
+    public void failsFastOnceQuorumCannotBeReached() {
+        CompletableFuture<String> cacheWrite = new CompletableFuture<>();
+        // never completes, the journal failure alone means a quorum of two can't be reached
+        CompletableFuture<Void> journalWrite = new CompletableFuture<>();
+        journalWrite.completeExceptionally(new IllegalStateException("journal closed"));
+        long startMillis = System.currentTimeMillis();
+        assertFalse(coordinator.awaitQuorum("startActivity", System.nanoTime(), cacheWrite, journalWrite));
+        assertTrue(System.currentTimeMillis() - startMillis < 1000);
+    }
+
+    @Test
+    public void toleratesFailuresTheQuorumDoesNotNeed() {
+        coordinator.setAvailableCopies(3);
+        coordinator.setQuorum(2);
+        CompletableFuture<Void> failedWrite = new CompletableFuture<>();
+        failedWrite.completeExceptionally(new IllegalStateException("owner left"));
+        assertTrue(coordinator.awaitQuorum("finishActivity", System.nanoTime(), failedWrite,
+                CompletableFuture.completedFuture(null), CompletableFuture.completedFuture(null)));
+    }
+
+    @Test
+    public void quorumCappedAtAvailableCopies() {
+        coordinator.setAvailableCopies(1);
+        assertEquals(2, coordinator.getQuorum());
+        // a node without a journal only has the cache owners to wait on
+        assertTrue(coordinator.awaitQuorum("registerActivity", System.nanoTime(), CompletableFuture.completedFuture(null), null));
+    }
+
+    @Test
+    public void timesOutWhenAcknowledgementsAreSlow() {
+        coordinator.setTimeoutMillis(50);
+        assertFalse(coordinator.awaitQuorum("startActivity", System.nanoTime(), new CompletableFuture<String>(), new CompletableFuture<Void>()));
+    }
+}
@@ -0,0 +1,212 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.infinispan.Cache;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryVisited;
+import org.infinispan.notifications.cachelistener.event.CacheEntryVisitedEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.journal.ParcelJournal;
+import net.fhirbox.pegacorn.petasos.metrics.JMXMeterRegistry;
+import net.fhirbox.pegacorn.petasos.metrics.ParcelLifecycleLatency;
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
+import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.PetasosWUPActionSuggestionEnum;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+import net.fhirbox.pegacorn.petasos.model.UoWProcessingOutcomeEnum;
+import net.fhirbox.pegacorn.petasos.node.PetasosNode;
+
+/**
+ * A parcel lifecycle through an agent wired to a local cache manager, with a node that
+ * is constructed but not started (so no journal, heartbeat or site replication).
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosAgentTest {
+    private static final String PARCEL_CACHE_NAME = "petasos-parcel-cache";
+    private static final FDN WUP_FDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.wup=transform-wup");
+    private static final FDN FUNCTION_FDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.function=transform");
+    private static int agentCount;
+
+    @Rule
+    public TemporaryFolder journalFolder = new TemporaryFolder();
+
+    private DefaultCacheManager cacheManager;
+    private ExecutorService taskExecutor;
+    private PetasosAgent agent;
+
+    @Before
+    public void startAgent() {
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration(PARCEL_CACHE_NAME, localCache.build());
+        cacheManager.defineConfiguration("petasos-watchdog-cache", localCache.build());
+        taskExecutor = Executors.newCachedThreadPool();
+
+        agent = new PetasosAgent();
+        agent.petasosCacheManager = cacheManager;
+        // the node's tasks start in start(), so an unstarted node has nothing running
+        agent.node = new PetasosNode();
+        agent.node.setBlockingTaskExecutor(taskExecutor);
+        String scope = "agent-test-" + (++agentCount);
+        agent.metrics = new PetasosMetrics();
+        agent.metrics.setMeterRegistry(new JMXMeterRegistry(scope));
+        agent.lifecycleLatency = new ParcelLifecycleLatency();
+        agent.lifecycleLatency.registerMBean(scope);
+        agent.start();
+    }
+
+    @After
+    public void stopAgent() {
+        agent.stop();
+        cacheManager.stop();
+        taskExecutor.shutdownNow();
+    }
+
+    @Test
+    public void registeredParcelHasIdleWatchdogState() {
+        UoW uow = new UoW(FUNCTION_FDN, "1", Collections.singleton("{\"a\":1}"));
+        PetasosParcel parcel = agent.registerActivity(WUP_FDN, FUNCTION_FDN, uow, null);
+        assertNotNull(parcel);
+        assertEquals(WUP_FDN.getQualifiedFDN(), parcel.getTaskProcessorState().getWupFDN().getQualifiedFDN());
+        assertEquals(ComponentStatusEnum.COMPONENT_STATUS_IDLE, parcel.getTaskProcessorState().getWupStatus());
+
+        String parcelJSON = cacheManager.<String, String>getCache(PARCEL_CACHE_NAME).get(parcel.getParcelFDN().getQualifiedFDN());
+        PetasosParcelJSON cachedParcel = new PetasosParcelJSON(parcelJSON);
+        assertEquals(WUP_FDN.getQualifiedFDN(), cachedParcel.getWUPFDN());
+        assertEquals(ComponentStatusEnum.COMPONENT_STATUS_IDLE, cachedParcel.getWupStatus());
+        assertEquals(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED, cachedParcel.getParcelStatus());
+    }
+
+    @Test
+    public void parcelLifecycle() {
+        UoW uow = new UoW(FUNCTION_FDN, "2", Collections.singleton("{\"a\":1}"));
+        PetasosParcel parcel = agent.registerActivity(WUP_FDN, FUNCTION_FDN, uow, null);
+        FDN parcelFDN = parcel.getParcelFDN();
+        assertEquals(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE, agent.startActivity(parcelFDN));
+
+        UoW finishedUoW = new UoW(uow);
+        finishedUoW.setUowEgressContent(Collections.singleton("{\"b\":2}"));
+        finishedUoW.setUowProcessingOutcome(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_SUCCESS);
+        assertEquals(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_CONTINUE, agent.finishActivity(parcelFDN, finishedUoW));
+        assertEquals(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_SUCCESS, agent.finaliseActivity(parcelFDN, finishedUoW));
+
+        String parcelJSON = cacheManager.<String, String>getCache(PARCEL_CACHE_NAME).get(parcelFDN.getQualifiedFDN());
+        assertEquals(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED, new PetasosParcelJSON(parcelJSON).getParcelStatus());
+    }
+
+    @Test
+    public void startActivityPausesWhenAnotherWUPActivatesFirst() {
+        UoW uow = new UoW(FUNCTION_FDN, "3", Collections.singleton("{\"a\":1}"));
+        PetasosParcel parcel = agent.registerActivity(WUP_FDN, FUNCTION_FDN, uow, null);
+        FDN parcelFDN = parcel.getParcelFDN();
+        Cache<String, String> parcelCache = cacheManager.getCache(PARCEL_CACHE_NAME);
+        ActivateAfterRead otherWUP = new ActivateAfterRead(parcelCache);
+        parcelCache.addListener(otherWUP);
+
+        assertEquals(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE, agent.startActivity(parcelFDN));
+        // the other WUP's activation is kept
+        parcelCache.removeListener(otherWUP);
+        assertEquals(otherWUP.activatedParcelJSON, parcelCache.get(parcelFDN.getQualifiedFDN()));
+    }
+
+    @Test
+    public void journalAloneDoesNotDecideALostRace() throws IOException {
+        ParcelJournal journal = new ParcelJournal(journalFolder.newFolder("parcel-journal").toPath());
+        journal.open();
+        taskExecutor.submit(journal.new GroupCommitTask());
+        try {
+            agent.node.setParcelJournal(journal);
+            agent.getCriticalWriteStatistics().setAvailableCopies(2);
+            agent.setCriticalWrite(true);
+            // the journal on its own is enough for the quorum
+            agent.setCriticalWriteQuorum(1);
+
+            UoW uow = new UoW(FUNCTION_FDN, "4", Collections.singleton("{\"a\":1}"));
+            PetasosParcel parcel = agent.registerActivity(WUP_FDN, FUNCTION_FDN, uow, null);
+            assertNotNull(parcel);
+            FDN parcelFDN = parcel.getParcelFDN();
+            Cache<String, String> parcelCache = cacheManager.getCache(PARCEL_CACHE_NAME);
+            ActivateAfterRead otherWUP = new ActivateAfterRead(parcelCache);
+            parcelCache.addListener(otherWUP);
+
+            assertEquals(PetasosWUPActionSuggestionEnum.WUP_ACTION_SUGGESTION_PAUSE, agent.startActivity(parcelFDN));
+            parcelCache.removeListener(otherWUP);
+            assertEquals(otherWUP.activatedParcelJSON, parcelCache.get(parcelFDN.getQualifiedFDN()));
+            assertTrue(otherWUP.activated.get());
+        } finally {
+            journal.close();
+        }
+    }
+
+    // Activates the parcel for another WUP straight after the agent has read it, the
+    // window between startActivity's read and write.
+    @Listener(sync = true)
+    public static class ActivateAfterRead {
+        private final Cache<String, String> parcelCache;
+        private final AtomicBoolean activated = new AtomicBoolean();
+        private volatile String activatedParcelJSON;
+
+        ActivateAfterRead(Cache<String, String> parcelCache) {
+            this.parcelCache = parcelCache;
+        }
+
+        @CacheEntryVisited
+        public void parcelRead(CacheEntryVisitedEvent<String, String> event) {
+            if (event.isPre() || !activated.compareAndSet(false, true)) {
+                return;
+            }
+            PetasosParcelJSON parcelJSON = new PetasosParcelJSON(event.getValue());
+            parcelJSON.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+            parcelJSON.setWUPLastStatusUpdate(System.currentTimeMillis() + 1);
+            activatedParcelJSON = parcelJSON.toJSONString();
+            parcelCache.put(event.getKey(), activatedParcelJSON);
+        }
+    }
+}
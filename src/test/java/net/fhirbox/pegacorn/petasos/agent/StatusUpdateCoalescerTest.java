@@ -0,0 +1,201 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryVisited;
+import org.infinispan.notifications.cachelistener.event.CacheEntryVisitedEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSONWriter;
+import net.fhirbox.pegacorn.petasos.common.PetasosWUPWatchdogStateJSON;
+import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+import net.fhirbox.pegacorn.petasos.node.PetasosNode;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class StatusUpdateCoalescerTest {
+    private static final FDN WUP_FDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.wup=transform-wup");
+    private static final FDN FUNCTION_FDN = new FDN("deployment=aether.site=site-a.function=transform");
+
+    private DefaultCacheManager cacheManager;
+    private Cache<String, String> parcelCache;
+    private Cache<String, String> watchdogCache;
+    private StatusUpdateCoalescer coalescer;
+    private String parcelKey;
+
+    @Before
+    public void createCoalescer() {
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("petasos-parcel-cache", localCache.build());
+        cacheManager.defineConfiguration("petasos-watchdog-cache", localCache.build());
+        parcelCache = cacheManager.getCache("petasos-parcel-cache");
+        watchdogCache = cacheManager.getCache("petasos-watchdog-cache");
+        // unstarted, so there is no journal to write to
+        coalescer = new StatusUpdateCoalescer(parcelCache, watchdogCache, new PetasosNode());
+
+        UoW uow = new UoW(FUNCTION_FDN, "1", Collections.singleton("{\"a\":1}"));
+        PetasosParcel parcel = new PetasosParcel(new PetasosParcelRegistration(WUP_FDN, uow.getUoWFDN(), FUNCTION_FDN, Instant.now()));
+        parcel.setUoW(uow);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+        parcel.setTaskProcessorState(new PetasosWUPWatchdogState(WUP_FDN, ComponentStatusEnum.COMPONENT_STATUS_IDLE, Instant.ofEpochMilli(0)));
+        parcelKey = parcel.getParcelFDN().getQualifiedFDN();
+        parcelCache.put(parcelKey, PetasosParcelJSONWriter.get().toJSONString(parcel));
+    }
+
+    @After
+    public void stopCaches() {
+        cacheManager.stop();
+    }
+
+    private PetasosParcelJSON cachedParcel() {
+        return new PetasosParcelJSON(parcelCache.get(parcelKey));
+    }
+
+    private PetasosWUPWatchdogStateJSON cachedWatchdogState() {
+        return new PetasosWUPWatchdogStateJSON(watchdogCache.get(WUP_FDN.getQualifiedFDN()));
+    }
+
+    @Test
+    public void repeatedReportsAreCoalesced() {
+        assertFalse(coalescer.bufferActivityStatus(parcelKey, 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+        coalescer.writeActivityStatus(parcelKey, 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE);
+        assertTrue(coalescer.bufferActivityStatus(parcelKey, 200, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+        assertTrue(coalescer.bufferActivityStatus(parcelKey, 300, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+        assertEquals(1, coalescer.getCoalescedCount());
+        assertEquals(1, coalescer.getPendingCount());
+
+        assertEquals(1, coalescer.flush());
+        assertEquals(300, cachedParcel().getWUPLastStatusUpdate());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void statusChangeBypassesTheBuffer() {
+        assertFalse(coalescer.bufferOperationalStatus(WUP_FDN.getQualifiedFDN(), 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+        coalescer.writeOperationalStatus(WUP_FDN.getQualifiedFDN(), 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE);
+        assertTrue(coalescer.bufferOperationalStatus(WUP_FDN.getQualifiedFDN(), 200, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+        // the change drops the buffered report and is written straight away
+        assertFalse(coalescer.bufferOperationalStatus(WUP_FDN.getQualifiedFDN(), 300, ComponentStatusEnum.COMPONENT_STATUS_FAILED));
+        assertEquals(0, coalescer.getPendingCount());
+        coalescer.writeOperationalStatus(WUP_FDN.getQualifiedFDN(), 300, ComponentStatusEnum.COMPONENT_STATUS_FAILED);
+
+        assertEquals(0, coalescer.flush());
+        assertEquals(ComponentStatusEnum.COMPONENT_STATUS_FAILED, cachedWatchdogState().createWatchdogState().getWupStatus());
+        assertEquals(300, cachedWatchdogState().getLastStatusUpdate());
+    }
+
+    @Test
+    public void flushedActivityReportDoesNotOverwriteALaterStatusChange() {
+        assertFalse(coalescer.bufferActivityStatus(parcelKey, 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+        coalescer.writeActivityStatus(parcelKey, 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE);
+        assertTrue(coalescer.bufferActivityStatus(parcelKey, 200, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+
+        // the WUP fails once the flush has taken the buffered report, before it writes it
+        ChangeStatusOnRead failure = new ChangeStatusOnRead(() -> {
+            assertFalse(coalescer.bufferActivityStatus(parcelKey, 300, ComponentStatusEnum.COMPONENT_STATUS_FAILED));
+            coalescer.writeActivityStatus(parcelKey, 300, ComponentStatusEnum.COMPONENT_STATUS_FAILED);
+        });
+        parcelCache.addListener(failure);
+        assertEquals(0, coalescer.flush());
+        parcelCache.removeListener(failure);
+
+        assertTrue(failure.changed.get());
+        assertEquals(ComponentStatusEnum.COMPONENT_STATUS_FAILED, cachedParcel().getWupStatus());
+        assertEquals(300, cachedParcel().getWUPLastStatusUpdate());
+    }
+
+    @Test
+    public void flushedOperationalReportDoesNotOverwriteALaterStatusChange() {
+        String wupKey = WUP_FDN.getQualifiedFDN();
+        assertFalse(coalescer.bufferOperationalStatus(wupKey, 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+        coalescer.writeOperationalStatus(wupKey, 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE);
+        assertTrue(coalescer.bufferOperationalStatus(wupKey, 200, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+
+        ChangeStatusOnRead failure = new ChangeStatusOnRead(() -> {
+            assertFalse(coalescer.bufferOperationalStatus(wupKey, 300, ComponentStatusEnum.COMPONENT_STATUS_FAILED));
+            coalescer.writeOperationalStatus(wupKey, 300, ComponentStatusEnum.COMPONENT_STATUS_FAILED);
+        });
+        watchdogCache.addListener(failure);
+        assertEquals(0, coalescer.flush());
+        watchdogCache.removeListener(failure);
+
+        assertTrue(failure.changed.get());
+        assertEquals(ComponentStatusEnum.COMPONENT_STATUS_FAILED, cachedWatchdogState().createWatchdogState().getWupStatus());
+        assertEquals(300, cachedWatchdogState().getLastStatusUpdate());
+    }
+
+    @Test
+    public void bufferedReportOlderThanTheCacheIsDropped() {
+        assertFalse(coalescer.bufferActivityStatus(parcelKey, 100, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+        coalescer.writeActivityStatus(parcelKey, 500, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE);
+        assertTrue(coalescer.bufferActivityStatus(parcelKey, 200, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE));
+
+        assertEquals(0, coalescer.flush());
+        assertEquals(500, cachedParcel().getWUPLastStatusUpdate());
+    }
+
+    // Runs the status change the first time the entry is read, which is the flush reading
+    // it after taking the buffered report off the queue.
+    @Listener(sync = true)
+    public static class ChangeStatusOnRead {
+        private final Runnable statusChange;
+        private final AtomicBoolean changed = new AtomicBoolean();
+
+        ChangeStatusOnRead(Runnable statusChange) {
+            this.statusChange = statusChange;
+        }
+
+        @CacheEntryVisited
+        public void entryRead(CacheEntryVisitedEvent<String, String> event) {
+            if (!event.isPre() && changed.compareAndSet(false, true)) {
+                statusChange.run();
+            }
+        }
+    }
+}
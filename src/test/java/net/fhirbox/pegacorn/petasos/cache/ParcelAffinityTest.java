@@ -0,0 +1,147 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.distribution.LocalizedCacheTopology;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.remoting.transport.Address;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+
+/**
+ * Two nodes in the one JVM, clustered over the loopback interface with the production
+ * cache configuration (so BINARY storage, keys hashed as marshalled).
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelAffinityTest {
+    private static final FDN WUP_FDN = new FDN("site=site-a.pod=pod-0.wup=transform-wup");
+    private static final FDN UOW_FDN = new FDN("site=site-a.uow=affinity");
+    private static final FDN FUNCTION_FDN = new FDN("site=site-a.function=transform");
+    private static final int QUALIFIERS = 200;
+
+    private static DefaultCacheManager[] cacheManagers = new DefaultCacheManager[2];
+
+    @BeforeClass
+    public static void startCluster() throws IOException {
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("jgroups.bind_addr", "127.0.0.1");
+        for (int node = 0; node < cacheManagers.length; node++) {
+            GlobalConfigurationBuilder global = PetasosCacheManager.createGlobalConfiguration("parcel-affinity-test",
+                    "default-configs/default-jgroups-udp.xml");
+            global.transport().nodeName("node-" + node);
+            global.jmx().domain("parcel-affinity-test-node-" + node);
+            cacheManagers[node] = new DefaultCacheManager(global.build(), false);
+            PetasosCacheManager.defineCaches(cacheManagers[node], PetasosCacheManager.createCacheConfiguration(
+                    Files.createTempDirectory("parcel-affinity-test").toString(), 64L * 1024L * 1024L));
+            cacheManagers[node].start();
+            cacheManagers[node].getCache("petasos-parcel-cache");
+        }
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        for (int node = cacheManagers.length - 1; node >= 0; node--) {
+            cacheManagers[node].stop();
+        }
+    }
+
+    @Test
+    public void parcelsAreRegisteredOnTheNodeChoosingTheQualifier() {
+        for (DefaultCacheManager cacheManager : cacheManagers) {
+            Cache<String, String> parcelCache = cacheManager.getCache("petasos-parcel-cache");
+            ParcelAffinity parcelAffinity = new ParcelAffinity(parcelCache);
+            for (int count = 0; count < QUALIFIERS; count++) {
+                // the FDN the agent registers the parcel under, not the one ParcelAffinity builds
+                PetasosParcelRegistration registration = new PetasosParcelRegistration(WUP_FDN, UOW_FDN, FUNCTION_FDN, Instant.now(),
+                        parcelAffinity.nextParcelQualifier(UOW_FDN));
+                String parcelFDN = registration.getParcelFDN().getQualifiedFDN();
+                assertEquals(parcelFDN, cacheManager.getAddress(), primaryOwner(parcelCache, parcelFDN));
+                assertTrue(parcelAffinity.isLocalPrimary(parcelFDN));
+            }
+        }
+    }
+
+    @Test
+    public void qualifierIsOnlyExtendedWhenNeeded() {
+        ParcelAffinity parcelAffinity = new ParcelAffinity(cacheManagers[0].getCache("petasos-parcel-cache"));
+        int extendedQualifiers = 0;
+        for (int count = 0; count < QUALIFIERS; count++) {
+            String qualifier = parcelAffinity.nextParcelQualifier(UOW_FDN);
+            if (qualifier.indexOf(ParcelAffinity.AFFINITY_SEPARATOR) >= 0) {
+                extendedQualifiers++;
+            }
+        }
+        // with two nodes about half of the plain identifiers already land here
+        assertTrue(extendedQualifiers + " extended", extendedQualifiers > 0 && extendedQualifiers < QUALIFIERS);
+    }
+
+    @Test
+    public void otherNodesParcelsAreNotLocal() {
+        ParcelAffinity nodeOneAffinity = new ParcelAffinity(cacheManagers[1].getCache("petasos-parcel-cache"));
+        ParcelAffinity nodeZeroAffinity = new ParcelAffinity(cacheManagers[0].getCache("petasos-parcel-cache"));
+        for (int count = 0; count < QUALIFIERS; count++) {
+            String parcelFDN = new PetasosParcelRegistration(WUP_FDN, UOW_FDN, FUNCTION_FDN, Instant.now(),
+                    nodeOneAffinity.nextParcelQualifier(UOW_FDN)).getParcelFDN().getQualifiedFDN();
+            assertFalse(nodeZeroAffinity.isLocalPrimary(parcelFDN));
+        }
+    }
+
+    @Test
+    public void unclusteredCacheGetsPlainIdentifiers() {
+        DefaultCacheManager localCacheManager = new DefaultCacheManager();
+        try {
+            localCacheManager.defineConfiguration("petasos-parcel-cache", new ConfigurationBuilder().clustering().cacheMode(CacheMode.LOCAL).build());
+            ParcelAffinity parcelAffinity = new ParcelAffinity(localCacheManager.getCache("petasos-parcel-cache"));
+            String qualifier = parcelAffinity.nextParcelQualifier(UOW_FDN);
+            assertEquals(-1, qualifier.indexOf(ParcelAffinity.AFFINITY_SEPARATOR));
+            assertTrue(parcelAffinity.isLocalPrimary(UOW_FDN.getQualifiedFDN() + ".ParcelQualifier=" + qualifier));
+        } finally {
+            localCacheManager.stop();
+        }
+    }
+
+    // worked out from the cache's own marshalled form of the key
+    private static Address primaryOwner(Cache<String, String> parcelCache, String key) {
+        LocalizedCacheTopology topology = parcelCache.getAdvancedCache().getDistributionManager().getCacheTopology();
+        Object storedKey = parcelCache.getAdvancedCache().getKeyDataConversion().toStorage(key);
+        return topology.getDistribution(storedKey).primary();
+    }
+}
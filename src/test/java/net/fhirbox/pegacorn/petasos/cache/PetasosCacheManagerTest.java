@@ -0,0 +1,85 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosCacheManagerTest {
+    private static final long PARCEL_CACHE_SIZE_BYTES = 512L * 1024L * 1024L;
+
+    private DefaultCacheManager cacheManager;
+
+    @Before
+    public void defineCaches() throws IOException {
+        Configuration local = PetasosCacheManager.createCacheConfiguration(
+                Files.createTempDirectory("petasos-cache-manager-test").toString(), PARCEL_CACHE_SIZE_BYTES);
+        // clustered caches need a transport configured, the manager isn't started so it never joins
+        cacheManager = new DefaultCacheManager(new GlobalConfigurationBuilder().clusteredDefault().build(), false);
+        PetasosCacheManager.defineCaches(cacheManager, local);
+    }
+
+    @After
+    public void stopCacheManager() {
+        cacheManager.stop();
+    }
+
+    private long getCacheSize(String cacheName) {
+        return cacheManager.getCacheConfiguration(cacheName).memory().size();
+    }
+
+    @Test
+    public void supportingCachesHaveTheirOwnBounds() {
+        assertEquals(PARCEL_CACHE_SIZE_BYTES, getCacheSize("petasos-parcel-cache"));
+        assertEquals(PARCEL_CACHE_SIZE_BYTES, getCacheSize("petasos-payload-cache"));
+        assertEquals(PARCEL_CACHE_SIZE_BYTES / 16, getCacheSize("petasos-payload-reference-cache"));
+        assertEquals(PARCEL_CACHE_SIZE_BYTES / 8, getCacheSize("petasos-parcel-lineage-cache"));
+        assertEquals(PARCEL_CACHE_SIZE_BYTES / 16, getCacheSize("petasos-parcel-tombstone-cache"));
+        assertEquals(PARCEL_CACHE_SIZE_BYTES / 256, getCacheSize("petasos-replay-checkpoint-cache"));
+        assertEquals(PARCEL_CACHE_SIZE_BYTES / 256, getCacheSize("petasos-component-topology-cache"));
+    }
+
+    @Test
+    public void smallCachesHaveAFloor() throws IOException {
+        Configuration local = PetasosCacheManager.createCacheConfiguration(
+                Files.createTempDirectory("petasos-cache-manager-test").toString(), 2L * 1024L * 1024L);
+        Configuration sized = PetasosCacheManager.createSizedConfiguration(local, "PETASOS_TEST_CACHE_SIZE_BYTES", 256);
+        assertEquals(1024L * 1024L, sized.memory().size());
+        // everything else is the parcel cache's configuration
+        assertEquals(local.clustering().cacheMode(), sized.clustering().cacheMode());
+        assertEquals(local.memory().evictionType(), sized.memory().evictionType());
+    }
+}
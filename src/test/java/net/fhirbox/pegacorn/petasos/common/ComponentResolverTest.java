@@ -0,0 +1,125 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.BooleanSupplier;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ComponentResolverTest {
+    private static final String TOPOLOGY_CACHE_NAME = "petasos-component-topology-cache";
+    // names no pod, so it is placed on the node's pod
+    private static final FDN WUP_FDN = new FDN("deployment=aether.site=site-a.wup=transform-wup");
+    private static final FDN FUNCTION_FDN = new FDN("deployment=aether.site=site-a.function=transform");
+    private static final FDN NODE_FDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.node=PetasosNode");
+    private static final FDN POD_FDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0");
+
+    private DefaultCacheManager cacheManager;
+    private ComponentResolver resolver;
+
+    @Before
+    public void startResolver() {
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration(TOPOLOGY_CACHE_NAME, localCache.build());
+        resolver = new ComponentResolver();
+        resolver.petasosCacheManager = cacheManager;
+        resolver.metrics = new PetasosMetrics();
+        resolver.start();
+    }
+
+    @After
+    public void stopResolver() {
+        cacheManager.stop();
+    }
+
+    // the topology monitor is asynchronous
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void unrefreshedPlacementExpires() throws InterruptedException {
+        resolver.setPlacementLifespanMillis(100);
+        resolver.registerWUP(WUP_FDN, FUNCTION_FDN, NODE_FDN);
+        assertEquals(POD_FDN.getQualifiedFDN(), resolver.getPodHostingWUP(WUP_FDN).getQualifiedFDN());
+
+        Thread.sleep(200);
+        // a read finds the placement expired, as the reaper would
+        assertNull(cacheManager.getCache(TOPOLOGY_CACHE_NAME).get(WUP_FDN.getQualifiedFDN()));
+        awaitCondition(() -> resolver.getPodHostingWUP(WUP_FDN) == null);
+        assertTrue(resolver.getWUPsSupportingFunction(FUNCTION_FDN).isEmpty());
+    }
+
+    @Test
+    public void refreshedPlacementStays() throws InterruptedException {
+        resolver.setPlacementLifespanMillis(300);
+        resolver.registerWUP(WUP_FDN, FUNCTION_FDN, NODE_FDN);
+        for (int heartbeat = 0; heartbeat < 5; heartbeat++) {
+            Thread.sleep(100);
+            resolver.refreshWUPs();
+        }
+        assertEquals(1, resolver.getWUPsSupportingFunction(FUNCTION_FDN).size());
+        // an unchanged placement is no change to the topology
+        assertEquals(1, resolver.getTopology().getChangeCount());
+    }
+
+    @Test
+    public void stoppingDeregistersThisNodesWUPs() {
+        resolver.registerWUP(WUP_FDN, FUNCTION_FDN, NODE_FDN);
+        resolver.stop();
+        assertNull(cacheManager.getCache(TOPOLOGY_CACHE_NAME).get(WUP_FDN.getQualifiedFDN()));
+        assertNull(resolver.getPodHostingWUP(WUP_FDN));
+    }
+
+    @Test
+    public void movedWUPIsOneChange() {
+        FDN otherNodeFDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-1.node=PetasosNode");
+        ComponentTopology topology = ComponentTopology.empty()
+                .withWUP(new ComponentTopology.WUPPlacement(WUP_FDN, FUNCTION_FDN, NODE_FDN))
+                .withWUP(new ComponentTopology.WUPPlacement(WUP_FDN, FUNCTION_FDN, otherNodeFDN));
+        assertEquals(2, topology.getChangeCount());
+        assertEquals(1, topology.getWUPCount());
+    }
+}
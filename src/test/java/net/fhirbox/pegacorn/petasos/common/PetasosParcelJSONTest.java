@@ -0,0 +1,122 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.time.Instant;
+import java.util.Collections;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+import net.fhirbox.pegacorn.petasos.model.UoWProcessingOutcomeEnum;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosParcelJSONTest {
+    private static final FDN WUP_FDN = new FDN("deployment=aether.site=site-a.wup=transform-wup");
+    private static final FDN FUNCTION_FDN = new FDN("deployment=aether.site=site-a.function=transform");
+
+    private static PetasosParcel createParcel(UoW uow) {
+        PetasosParcelRegistration parcelRegistration = new PetasosParcelRegistration(WUP_FDN, uow.getUoWFDN(), FUNCTION_FDN, Instant.ofEpochMilli(1000));
+        PetasosParcel parcel = new PetasosParcel(parcelRegistration);
+        parcel.setUoW(uow);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED);
+        return parcel;
+    }
+
+    @Test
+    public void parcelWithoutOutcomeWatchdogOrPrecursor() {
+        UoW uow = new UoW(new FDN(FUNCTION_FDN.getQualifiedFDN() + ".InstanceQualifier=1"), FUNCTION_FDN);
+        PetasosParcel parcel = createParcel(uow);
+
+        JSONObject parcelJSON = new JSONObject(new PetasosParcelJSON(parcel).toJSONString());
+        assertFalse(parcelJSON.getJSONObject("uow").has("processingOutcome"));
+        assertFalse(parcelJSON.has("watchdogStatus"));
+        assertFalse(parcelJSON.has("precursorParcelFDN"));
+        assertEquals(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED.getPetasosParcelStatus(), parcelJSON.getString("parcelStatus"));
+
+        PetasosParcel parcelCopy = new PetasosParcelJSON(parcelJSON.toString()).createParcel();
+        assertNull(parcelCopy.getContainedUoW().getUowProcessingOutcome());
+        assertNull(parcelCopy.getTaskProcessorState());
+        assertNull(parcelCopy.getPrecursorParcel());
+    }
+
+    // Instant.MAX doesn't fit in epoch millis, it is held as 0
+    @Test
+    public void openEndedCompletionRoundTrips() {
+        PetasosParcel parcel = createParcel(new UoW(FUNCTION_FDN, "1", Collections.singleton("{\"a\":1}")));
+        assertEquals(Instant.MAX, parcel.getParcelRegistration().getParcelExpectedCompletionInstant());
+
+        PetasosParcelJSON parcelJSON = new PetasosParcelJSON(parcel);
+        assertEquals(0L, parcelJSON.getParcelExpectedCompletionInstant());
+        assertEquals(Instant.MAX, parcelJSON.createParcel().getParcelRegistration().getParcelExpectedCompletionInstant());
+    }
+
+    @Test
+    public void parcelRoundTrips() {
+        UoW uow = new UoW(FUNCTION_FDN, "1", Collections.singleton("{\"a\":1}"));
+        uow.setUowProcessingOutcome(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_SUCCESS);
+        PetasosParcel parcel = createParcel(uow);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+        parcel.setTaskProcessorState(new PetasosWUPWatchdogState(WUP_FDN, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE, Instant.ofEpochMilli(2000)));
+        parcel.setPrecursorParcel(new FDN("parcel=0"));
+        parcel.getSuccessorParcelSet().add(new FDN("parcel=2"));
+
+        PetasosParcel parcelCopy = new PetasosParcelJSON(new PetasosParcelJSON(parcel).toJSONString()).createParcel();
+        assertEquals(parcel.getParcelFDN().getQualifiedFDN(), parcelCopy.getParcelFDN().getQualifiedFDN());
+        assertEquals(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED, parcelCopy.getParcelStatus());
+        assertEquals(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_SUCCESS, parcelCopy.getContainedUoW().getUowProcessingOutcome());
+        assertEquals(uow.getUowIngressContent(), parcelCopy.getContainedUoW().getUowIngressContent());
+        assertEquals(WUP_FDN.getQualifiedFDN(), parcelCopy.getTaskProcessorState().getWupFDN().getQualifiedFDN());
+        assertEquals(ComponentStatusEnum.COMPONENT_STATUS_ACTIVE, parcelCopy.getTaskProcessorState().getWupStatus());
+        assertEquals(Instant.ofEpochMilli(2000), parcelCopy.getTaskProcessorState().getLastStatusUpdate());
+        assertEquals("parcel=0", parcelCopy.getPrecursorParcel().getQualifiedFDN());
+        assertEquals("parcel=2", parcelCopy.getSuccessorParcelSet().iterator().next().getQualifiedFDN());
+        assertEquals(WUP_FDN.getQualifiedFDN(), parcelCopy.getParcelRegistration().getRegisteredWUPList().iterator().next().getQualifiedFDN());
+    }
+
+    @Test
+    public void watchdogStateRoundTrips() {
+        PetasosWUPWatchdogState watchdogState = new PetasosWUPWatchdogState(WUP_FDN, ComponentStatusEnum.COMPONENT_STATUS_IDLE, Instant.ofEpochMilli(3000));
+        String watchdogStateJSON = new PetasosWUPWatchdogStateJSON(watchdogState).toJSONString();
+        assertEquals(ComponentStatusEnum.COMPONENT_STATUS_IDLE.getComponentWatchdogState(), new JSONObject(watchdogStateJSON).getString("wupStatus"));
+
+        PetasosWUPWatchdogState watchdogStateCopy = new PetasosWUPWatchdogStateJSON(watchdogStateJSON).createWatchdogState();
+        assertEquals(WUP_FDN.getQualifiedFDN(), watchdogStateCopy.getWupFDN().getQualifiedFDN());
+        assertEquals(ComponentStatusEnum.COMPONENT_STATUS_IDLE, watchdogStateCopy.getWupStatus());
+        assertEquals(Instant.ofEpochMilli(3000), watchdogStateCopy.getLastStatusUpdate());
+    }
+}
@@ -0,0 +1,187 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
+import net.fhirbox.pegacorn.petasos.model.RDN;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+import net.fhirbox.pegacorn.petasos.model.UoWProcessingOutcomeEnum;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadCompression;
+import net.fhirbox.pegacorn.petasos.payload.PetasosPayloadStore;
+
+/**
+ * The writer's JSON has to read back the same as PetasosParcelJSON(PetasosParcel)
+ * followed by compressPayloads (inline content) or externalisePayloads (a payload store).
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosParcelJSONWriterTest {
+    private static final FDN WUP_FDN = new FDN("deployment=aether.site=site-a.wup=transform-wup");
+    private static final FDN FUNCTION_FDN = new FDN("deployment=aether.site=site-a.function=transform");
+    // quotes, backslashes, control characters and non ASCII, as carried by the FDNs and content
+    private static final String AWKWARD_STRING = "say \"hi\" \\ back\nslash\ttab\r\u0001\u001f café   </script>";
+
+    private DefaultCacheManager cacheManager;
+    private PetasosPayloadStore payloadStore;
+
+    @Before
+    public void createPayloadStore() {
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("petasos-payload-cache", localCache.build());
+        cacheManager.defineConfiguration("petasos-payload-reference-cache", localCache.build());
+        payloadStore = new PetasosPayloadStore(cacheManager.getCache("petasos-payload-cache"), cacheManager.getCache("petasos-payload-reference-cache"));
+    }
+
+    @After
+    public void stopCacheManager() {
+        cacheManager.stop();
+    }
+
+    private static PetasosParcel createParcel(String uowQualifier, Set<String> ingressContent) {
+        UoW uow = new UoW(FUNCTION_FDN, uowQualifier, ingressContent);
+        PetasosParcelRegistration parcelRegistration = new PetasosParcelRegistration(WUP_FDN, uow.getUoWFDN(), FUNCTION_FDN, Instant.ofEpochMilli(1000));
+        parcelRegistration.setContainedUoW(uow.getUoWFDN());
+        PetasosParcel parcel = new PetasosParcel(parcelRegistration);
+        parcel.setUoW(uow);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED);
+        return parcel;
+    }
+
+    private static PetasosParcel createFinishedParcel(String uowQualifier, Set<String> ingressContent, Set<String> egressContent) {
+        PetasosParcel parcel = createParcel(uowQualifier, ingressContent);
+        parcel.getContainedUoW().setUowEgressContent(egressContent);
+        parcel.getContainedUoW().setUowProcessingOutcome(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_SUCCESS);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+        parcel.setTaskProcessorState(new PetasosWUPWatchdogState(WUP_FDN, ComponentStatusEnum.COMPONENT_STATUS_ACTIVE, Instant.ofEpochMilli(2000)));
+        parcel.setPrecursorParcel(new FDN("parcel=0"));
+        parcel.getSuccessorParcelSet().add(new FDN("parcel=2"));
+        parcel.getSuccessorParcelSet().add(new FDN("parcel=3"));
+        return parcel;
+    }
+
+    private static JSONObject writeInline(PetasosParcel parcel) {
+        return new JSONObject(PetasosParcelJSONWriter.get().toJSONString(parcel));
+    }
+
+    private static JSONObject expectedInline(PetasosParcel parcel) {
+        PetasosParcelJSON parcelJSON = new PetasosParcelJSON(parcel);
+        parcelJSON.compressPayloads();
+        return new JSONObject(parcelJSON.toJSONString());
+    }
+
+    private static void assertSameJSON(JSONObject expected, JSONObject actual) {
+        assertTrue("expected " + expected + " but was " + actual, expected.similar(actual));
+    }
+
+    @Test
+    public void inlineContentMatches() {
+        PetasosParcel parcel = createFinishedParcel("1", Collections.singleton("{\"a\":1,\"b\":[true,null,2.5]}"),
+                Collections.singleton("{\"c\":{\"d\":\"e\"}}"));
+        assertSameJSON(expectedInline(parcel), writeInline(parcel));
+    }
+
+    @Test
+    public void escapedStringsMatch() {
+        Set<String> ingressContent = Collections.singleton(new JSONObject().put("text", AWKWARD_STRING).toString());
+        PetasosParcel parcel = createFinishedParcel(AWKWARD_STRING, ingressContent, new HashSet<>());
+        FDN awkwardWUPFDN = new FDN(WUP_FDN);
+        awkwardWUPFDN.appendRDN(new RDN("instance", AWKWARD_STRING));
+        parcel.setTaskProcessorState(new PetasosWUPWatchdogState(awkwardWUPFDN, ComponentStatusEnum.COMPONENT_STATUS_IDLE, Instant.ofEpochMilli(2000)));
+
+        JSONObject written = writeInline(parcel);
+        assertSameJSON(expectedInline(parcel), written);
+        // and the strings read back unchanged
+        assertEquals(parcel.getParcelFDN().getQualifiedFDN(), written.getJSONObject("parcelRegistration").getString("parcelFDN"));
+        assertEquals(awkwardWUPFDN.getQualifiedFDN(), written.getJSONObject("watchdogStatus").getString("wupFDN"));
+        assertEquals(AWKWARD_STRING, written.getJSONObject("uow").getJSONArray("ingressContent").getJSONObject(0).getString("text"));
+    }
+
+    // Instant.MAX is written as 0, and a parcel with no WUP state has no watchdogStatus
+    @Test
+    public void openEndedParcelWithoutWatchdogMatches() {
+        PetasosParcel parcel = createParcel("1", Collections.singleton("{\"a\":1}"));
+        assertEquals(Instant.MAX, parcel.getParcelRegistration().getParcelExpectedCompletionInstant());
+
+        JSONObject written = writeInline(parcel);
+        assertSameJSON(expectedInline(parcel), written);
+        assertEquals(0L, written.getJSONObject("parcelRegistration").getLong("parcelExpectedCompletionInstant"));
+        assertFalse(written.has("watchdogStatus"));
+        assertFalse(written.has("precursorParcelFDN"));
+        assertEquals(Instant.MAX, new PetasosParcelJSON(written.toString()).createParcel().getParcelRegistration().getParcelExpectedCompletionInstant());
+    }
+
+    @Test
+    public void compressedContentMatches() {
+        StringBuilder largeText = new StringBuilder();
+        while (largeText.length() < PetasosPayloadCompression.getCompressionThreshold() * 2) {
+            largeText.append("repeated text with an escaped \\\" quote ");
+        }
+        String largePayload = new JSONObject().put("text", largeText.toString()).toString();
+        PetasosParcel parcel = createFinishedParcel("1", Collections.singleton(largePayload), Collections.singleton("{\"small\":true}"));
+
+        JSONObject written = writeInline(parcel);
+        assertSameJSON(expectedInline(parcel), written);
+        assertTrue(written.getJSONObject("uow").getJSONArray("ingressContent").getString(0).startsWith(PetasosPayloadCompression.COMPRESSED_PREFIX));
+    }
+
+    @Test
+    public void externalisedContentMatches() {
+        PetasosParcel parcel = createFinishedParcel("1", Collections.singleton("{\"a\":1}"), Collections.singleton("{\"b\":2}"));
+
+        Set<String> writtenPayloadRefs = new HashSet<>();
+        JSONObject written = new JSONObject(PetasosParcelJSONWriter.get().toJSONString(parcel, payloadStore, writtenPayloadRefs));
+        PetasosParcelJSON expectedJSON = new PetasosParcelJSON(parcel);
+        expectedJSON.externalisePayloads(payloadStore, new HashSet<>());
+        JSONObject expected = new JSONObject(expectedJSON.toJSONString());
+
+        assertSameJSON(expected, written);
+        assertEquals(expectedJSON.getPayloadRefs(), writtenPayloadRefs);
+        assertEquals("{\"a\":1}", payloadStore.loadPayload(written.getJSONObject("uow").getJSONArray("ingressContentRefs").getString(0)));
+    }
+}
@@ -0,0 +1,197 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.cache.ParcelAffinity;
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+
+/**
+ * Two nodes in the one JVM, clustered over the loopback interface, so there are parcels
+ * this node is the primary owner of and parcels it isn't. The dispatcher is this node's.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class WorkUnitDispatcherTest {
+    private static final FDN FUNCTION_FDN = new FDN("site=site-a.function=transform");
+    private static final FDN WUP_A_FDN = new FDN("site=site-a.pod=pod-0.wup=transform-a");
+    private static final FDN WUP_B_FDN = new FDN("site=site-a.pod=pod-0.wup=transform-b");
+
+    private static DefaultCacheManager[] cacheManagers = new DefaultCacheManager[2];
+    private static Cache<String, String> parcelCache;
+    private static ParcelAffinity parcelAffinity;
+
+    private WorkUnitDispatcher dispatcher;
+    private int nextParcel = 0;
+
+    @BeforeClass
+    public static void startCluster() {
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        System.setProperty("jgroups.bind_addr", "127.0.0.1");
+        for (int node = 0; node < cacheManagers.length; node++) {
+            GlobalConfigurationBuilder global = new GlobalConfigurationBuilder().clusteredDefault();
+            global.transport().clusterName("work-unit-dispatcher-test").nodeName("node-" + node);
+            cacheManagers[node] = new DefaultCacheManager(global.build(), false);
+            cacheManagers[node].defineConfiguration("petasos-parcel-cache", new ConfigurationBuilder().clustering().cacheMode(CacheMode.DIST_SYNC).build());
+            cacheManagers[node].start();
+            cacheManagers[node].getCache("petasos-parcel-cache");
+        }
+        parcelCache = cacheManagers[0].getCache("petasos-parcel-cache");
+        parcelAffinity = new ParcelAffinity(parcelCache);
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        for (int node = cacheManagers.length - 1; node >= 0; node--) {
+            cacheManagers[node].stop();
+        }
+    }
+
+    @Before
+    public void createDispatcher() {
+        parcelCache.clear();
+        dispatcher = new WorkUnitDispatcher(parcelCache);
+        dispatcher.registerWUP(WUP_A_FDN, FUNCTION_FDN);
+        dispatcher.registerWUP(WUP_B_FDN, FUNCTION_FDN);
+    }
+
+    @Test
+    public void localParcelGoesToAnIdleWUP() {
+        makeWUPAActive();
+        String assignedParcel = dispatchLocalParcel();
+        // wup-b is the only idle WUP, and it now has work, so this one waits for any WUP
+        String readyParcel = dispatchLocalParcel();
+        assertEquals(2, dispatcher.getQueuedCount());
+        assertEquals(readyParcel, dispatcher.takeWork(WUP_A_FDN));
+        assertEquals(assignedParcel, dispatcher.takeWork(WUP_B_FDN));
+        assertEquals(0, dispatcher.getQueuedCount());
+    }
+
+    @Test
+    public void busyWUPStealsFromAnIdleOne() {
+        makeWUPAActive();
+        String assignedParcel = dispatchLocalParcel();
+        assertEquals(assignedParcel, dispatcher.takeWork(WUP_A_FDN));
+        assertNull(dispatcher.takeWork(WUP_B_FDN));
+    }
+
+    @Test
+    public void remoteParcelWaitsForTheRemoteDelay() throws InterruptedException {
+        dispatcher.setRemoteDelayMillis(200);
+        String remoteParcel = dispatchRemoteParcel();
+        assertEquals(1, dispatcher.getQueuedCount());
+        assertNull(dispatcher.takeWork(WUP_A_FDN));
+        Thread.sleep(250);
+        assertEquals(remoteParcel, dispatcher.takeWork(WUP_A_FDN));
+        assertEquals(0, dispatcher.getQueuedCount());
+    }
+
+    @Test
+    public void remoteParcelTakenOnItsOwnerIsSkipped() {
+        dispatcher.setRemoteDelayMillis(0);
+        String takenParcel = dispatchRemoteParcel();
+        String waitingParcel = dispatchRemoteParcel();
+        // the owning node's WUP has started on it since
+        parcelCache.put(takenParcel, parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE));
+        assertEquals(waitingParcel, dispatcher.takeWork(WUP_A_FDN));
+        assertNull(dispatcher.takeWork(WUP_A_FDN));
+    }
+
+    @Test
+    public void oldestRemoteParcelIsDroppedOverTheCap() {
+        dispatcher.setRemoteDelayMillis(0);
+        dispatcher.setMaxRemoteParcels(2);
+        dispatchRemoteParcel();
+        String secondParcel = dispatchRemoteParcel();
+        String thirdParcel = dispatchRemoteParcel();
+        assertEquals(2, dispatcher.getQueuedCount());
+        assertEquals(secondParcel, dispatcher.takeWork(WUP_A_FDN));
+        assertEquals(thirdParcel, dispatcher.takeWork(WUP_A_FDN));
+        assertNull(dispatcher.takeWork(WUP_A_FDN));
+    }
+
+    @Test
+    public void onlyRegisteredParcelsOfASupportedFunctionAreQueued() {
+        String activeParcel = nextParcelFDN(true);
+        dispatcher.dispatch(activeParcel, new PetasosParcelJSON(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE)));
+        String otherFunctionParcel = nextParcelFDN(true);
+        JSONObject otherFunctionJSON = new JSONObject(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED));
+        otherFunctionJSON.getJSONObject("parcelRegistration").put("supportingFunctionFDN", "site=site-a.function=validate");
+        dispatcher.dispatch(otherFunctionParcel, new PetasosParcelJSON(otherFunctionJSON.toString()));
+        assertEquals(0, dispatcher.getQueuedCount());
+    }
+
+    // wup-a takes a parcel, so it is active and wup-b is the only idle WUP
+    private void makeWUPAActive() {
+        String firstParcel = dispatchLocalParcel();
+        assertEquals(firstParcel, dispatcher.takeWork(WUP_A_FDN));
+        assertEquals(0, dispatcher.getQueuedCount());
+    }
+
+    private String dispatchLocalParcel() {
+        return dispatchParcel(nextParcelFDN(true));
+    }
+
+    private String dispatchRemoteParcel() {
+        return dispatchParcel(nextParcelFDN(false));
+    }
+
+    private String dispatchParcel(String parcelFDN) {
+        String parcelJSON = parcel(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED);
+        parcelCache.put(parcelFDN, parcelJSON);
+        dispatcher.dispatch(parcelFDN, new PetasosParcelJSON(parcelJSON));
+        return parcelFDN;
+    }
+
+    private String nextParcelFDN(boolean local) {
+        while (true) {
+            String parcelFDN = "site=site-a.uow=dispatch.ParcelQualifier=" + nextParcel++;
+            if (parcelAffinity.isLocalPrimary(parcelFDN) == local) {
+                return parcelFDN;
+            }
+        }
+    }
+
+    private static String parcel(PetasosParcelStatusEnum parcelStatus) {
+        JSONObject parcelJSON = new JSONObject();
+        parcelJSON.put("parcelStatus", parcelStatus.getPetasosParcelStatus());
+        parcelJSON.put("parcelRegistration", new JSONObject().put("supportingFunctionFDN", FUNCTION_FDN.getQualifiedFDN()));
+        return parcelJSON.toString();
+    }
+}
@@ -0,0 +1,140 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelArchiveTest {
+    @Rule
+    public TemporaryFolder archiveFolder = new TemporaryFolder();
+
+    private Path archiveDirectory;
+    private ParcelArchive archive;
+
+    @Before
+    public void openArchive() throws IOException {
+        archiveDirectory = archiveFolder.newFolder("parcel-archive").toPath();
+        archive = new ParcelArchive(archiveDirectory, 4096, 2, ParcelArchive.DEFAULT_ARCHIVE_INTERVAL_MILLIS);
+        archive.open();
+    }
+
+    @After
+    public void closeArchive() {
+        archive.close();
+    }
+
+    @Test
+    public void archivedParcelsAreWrittenOnePerLine() throws IOException {
+        archive.archive("parcel-1", parcel("finalised"));
+        archive.archive("parcel-2", parcel("finalised"));
+        assertEquals(2, archive.getPendingCount());
+        assertEquals(0L, archive.getArchivedCount());
+
+        assertEquals(2, archive.archiveBatch());
+        assertEquals(0, archive.getPendingCount());
+        assertEquals(2L, archive.getArchivedCount());
+        List<String> records = readRecords();
+        assertEquals(2, records.size());
+        JSONObject record = new JSONObject(records.get(0));
+        assertEquals("parcel-1", record.getString("parcelFDN"));
+        assertEquals("finalised", record.getJSONObject("parcel").getString("parcelStatus"));
+        assertTrue(record.getLong("archivedInstant") > 0);
+        assertEquals("parcel-2", new JSONObject(records.get(1)).getString("parcelFDN"));
+    }
+
+    @Test
+    public void batchesAreLimitedInSize() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            archive.archive("parcel-" + i, parcel("finalised"));
+        }
+        assertEquals(2, archive.archiveBatch());
+        assertEquals(3, archive.getPendingCount());
+        assertEquals(2, archive.archiveBatch());
+        assertEquals(1, archive.archiveBatch());
+        assertEquals(0, archive.archiveBatch());
+        assertEquals(5L, archive.getArchivedCount());
+        assertEquals(5, readRecords().size());
+    }
+
+    @Test
+    public void fullArchiveFileIsRolled() throws IOException, InterruptedException {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            padding.append('x');
+        }
+        // archive files are named by the millisecond they were opened in
+        Thread.sleep(2);
+        archive.archive("parcel-1", new JSONObject(parcel("finalised")).put("padding", padding).toString());
+        assertEquals(1, archive.archiveBatch());
+        archive.archive("parcel-2", parcel("finalised"));
+        assertEquals(1, archive.archiveBatch());
+        assertEquals(2, archiveFiles().size());
+        assertEquals(2, readRecords().size());
+    }
+
+    private List<String> readRecords() throws IOException {
+        List<String> records = new ArrayList<>();
+        for (Path archiveFile : archiveFiles()) {
+            for (String line : Files.readAllLines(archiveFile, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    records.add(line);
+                }
+            }
+        }
+        return records;
+    }
+
+    private List<Path> archiveFiles() throws IOException {
+        List<Path> archiveFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(archiveDirectory, "parcel-archive-*.jsonl")) {
+            files.forEach(archiveFiles::add);
+        }
+        Collections.sort(archiveFiles);
+        return archiveFiles;
+    }
+
+    private static String parcel(String parcelStatus) {
+        return new JSONObject().put("parcelStatus", parcelStatus).put("uow", new JSONObject()).toString();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelJournalTest {
+    // payload length + CRC + timestamp + key length + value length
+    private static final int RECORD_OVERHEAD_BYTES = 24;
+
+    @Rule
+    public TemporaryFolder journalFolder = new TemporaryFolder();
+
+    private Path journalDirectory;
+    private ParcelJournal journal;
+
+    @Before
+    public void openJournal() throws IOException {
+        journalDirectory = journalFolder.newFolder("parcel-journal").toPath();
+        journal = new ParcelJournal(journalDirectory, 4096, 4, ParcelJournal.DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS);
+        journal.open();
+    }
+
+    @After
+    public void closeJournal() {
+        journal.close();
+    }
+
+    @Test
+    public void replaysLatestStateAndRemovals() throws IOException {
+        journal.append("parcel-1", "{\"status\":\"registered\"}");
+        journal.append("parcel-2", "{\"status\":\"registered\"}");
+        journal.append("parcel-1", "{\"status\":\"active\"}");
+        journal.appendRemoval("parcel-2");
+        journal.close();
+
+        List<String> replayedKeys = new ArrayList<>();
+        Map<String, String> replayedParcels = replay(replayedKeys);
+        assertEquals(4, replayedKeys.size());
+        assertEquals(1, replayedParcels.size());
+        assertEquals("{\"status\":\"active\"}", replayedParcels.get("parcel-1"));
+        assertFalse(replayedParcels.containsKey("parcel-2"));
+    }
+
+    @Test
+    public void replayStopsAtCRCMismatch() throws IOException {
+        journal.append("parcel-1", "{\"status\":\"registered\"}");
+        journal.append("parcel-2", "{\"status\":\"registered\"}");
+        journal.append("parcel-3", "{\"status\":\"registered\"}");
+        journal.close();
+
+        // flip a byte in the middle of the second record's value
+        int recordBytes = RECORD_OVERHEAD_BYTES + "parcel-1".length() + "{\"status\":\"registered\"}".length();
+        Path segment = onlySegment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer corruptByte = ByteBuffer.allocate(1);
+            long corruptPosition = recordBytes + recordBytes - 5;
+            channel.read(corruptByte, corruptPosition);
+            corruptByte.put(0, (byte) (corruptByte.get(0) ^ 0x5A));
+            corruptByte.rewind();
+            channel.write(corruptByte, corruptPosition);
+        }
+
+        List<String> replayedKeys = new ArrayList<>();
+        replay(replayedKeys);
+        assertEquals(1, replayedKeys.size());
+        assertEquals("parcel-1", replayedKeys.get(0));
+    }
+
+    @Test
+    public void replayIgnoresTruncatedTail() throws IOException {
+        journal.append("parcel-1", "{\"status\":\"registered\"}");
+        journal.append("parcel-2", "{\"status\":\"registered\"}");
+        journal.close();
+
+        // cut the second record off part way through, as a crash mid-write would
+        int recordBytes = RECORD_OVERHEAD_BYTES + "parcel-1".length() + "{\"status\":\"registered\"}".length();
+        try (FileChannel channel = FileChannel.open(onlySegment(), StandardOpenOption.WRITE)) {
+            channel.truncate(recordBytes + recordBytes / 2);
+        }
+
+        List<String> replayedKeys = new ArrayList<>();
+        Map<String, String> replayedParcels = replay(replayedKeys);
+        assertEquals(1, replayedKeys.size());
+        assertEquals("{\"status\":\"registered\"}", replayedParcels.get("parcel-1"));
+    }
+
+    @Test
+    public void compactionKeepsLatestRecordPerParcel() throws IOException {
+        // enough updates to fill several segments
+        for (int update = 0; update < 200; update++) {
+            journal.append("parcel-" + (update % 5), "{\"update\":" + update + "}");
+        }
+        journal.appendRemoval("parcel-4");
+        // start a new segment so everything above is in closed segments
+        journal.close();
+        journal = new ParcelJournal(journalDirectory, 4096, 4, ParcelJournal.DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS);
+        journal.open();
+        Map<String, String> beforeCompaction = replay(new ArrayList<>());
+        assertTrue(listSegments().size() > 3);
+
+        // parcel-0..3 plus the removal of parcel-4
+        assertEquals(5, journal.compact());
+        // the compacted segment and the one being appended to
+        assertEquals(2, listSegments().size());
+        List<String> replayedKeys = new ArrayList<>();
+        Map<String, String> afterCompaction = replay(replayedKeys);
+        assertEquals(beforeCompaction, afterCompaction);
+        assertEquals(5, replayedKeys.size());
+        assertFalse(afterCompaction.containsKey("parcel-4"));
+        assertEquals("{\"update\":198}", afterCompaction.get("parcel-3"));
+
+        // appends carry on into the current segment
+        journal.append("parcel-0", "{\"update\":200}");
+        assertEquals("{\"update\":200}", replay(new ArrayList<>()).get("parcel-0"));
+    }
+
+    @Test
+    public void compactionDropsRemovalsPastTheirRetention() throws IOException, InterruptedException {
+        journal.append("parcel-1", "{\"status\":\"finalised\"}");
+        journal.append("parcel-2", "{\"status\":\"active\"}");
+        journal.appendRemoval("parcel-1");
+        journal.close();
+        journal = new ParcelJournal(journalDirectory, 4096, 4, ParcelJournal.DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS);
+        journal.setTombstoneRetentionMillis(0);
+        journal.open();
+        Thread.sleep(5);
+
+        assertEquals(1, journal.compact());
+        List<String> replayedKeys = new ArrayList<>();
+        Map<String, String> replayedParcels = replay(replayedKeys);
+        assertEquals(1, replayedKeys.size());
+        assertNull(replayedParcels.get("parcel-1"));
+        assertEquals("{\"status\":\"active\"}", replayedParcels.get("parcel-2"));
+    }
+
+    @Test
+    public void compactionWithNothingClosedDoesNothing() throws IOException {
+        journal.append("parcel-1", "{\"status\":\"registered\"}");
+        assertEquals(-1, journal.compact());
+        assertEquals(1, replay(new ArrayList<>()).size());
+    }
+
+    @Test
+    public void holdsParcelsWhoseLatestRecordIsATransition() {
+        journal.append("parcel-1", "{\"status\":\"registered\"}");
+        journal.append("parcel-2", "{\"status\":\"registered\"}");
+        journal.appendRemoval("parcel-2");
+        assertTrue(journal.holdsParcel("parcel-1"));
+        assertFalse(journal.holdsParcel("parcel-2"));
+        assertFalse(journal.holdsParcel("parcel-3"));
+        journal.append("parcel-2", "{\"status\":\"active\"}");
+        assertTrue(journal.holdsParcel("parcel-2"));
+    }
+
+    @Test
+    public void heldParcelsAreRebuiltOnReplay() throws IOException {
+        journal.append("parcel-1", "{\"status\":\"registered\"}");
+        journal.append("parcel-2", "{\"status\":\"registered\"}");
+        journal.appendRemoval("parcel-2");
+        journal.close();
+        journal = new ParcelJournal(journalDirectory, 4096, 4, ParcelJournal.DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS);
+        assertFalse(journal.holdsParcel("parcel-1"));
+        replay(new ArrayList<>());
+        journal.open();
+        assertTrue(journal.holdsParcel("parcel-1"));
+        assertFalse(journal.holdsParcel("parcel-2"));
+
+        // compaction leaves the held parcels as they were
+        assertEquals(2, journal.compact());
+        assertTrue(journal.holdsParcel("parcel-1"));
+        assertFalse(journal.holdsParcel("parcel-2"));
+    }
+
+    private Map<String, String> replay(List<String> replayedKeys) throws IOException {
+        Map<String, String> replayedParcels = new LinkedHashMap<>();
+        journal.replay((parcelKey, parcelJSON) -> {
+            replayedKeys.add(parcelKey);
+            if (parcelJSON == null) {
+                replayedParcels.remove(parcelKey);
+            } else {
+                replayedParcels.put(parcelKey, parcelJSON);
+            }
+        });
+        return replayedParcels;
+    }
+
+    private Path onlySegment() throws IOException {
+        List<Path> segments = listSegments();
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> journalFiles = Files.newDirectoryStream(journalDirectory, "*.seg")) {
+            journalFiles.forEach(segments::add);
+        }
+        return segments;
+    }
+}
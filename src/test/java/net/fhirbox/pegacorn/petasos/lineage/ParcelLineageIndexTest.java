@@ -0,0 +1,172 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.lineage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelLineageIndexTest {
+    private static final String UOW_FDN = "site=site-a.uow=lineage";
+    // A -> B -> C -> D, with B also -> E
+    private static final String PARCEL_A = UOW_FDN + ".ParcelQualifier=A";
+    private static final String PARCEL_B = UOW_FDN + ".ParcelQualifier=B";
+    private static final String PARCEL_C = UOW_FDN + ".ParcelQualifier=C";
+    private static final String PARCEL_D = UOW_FDN + ".ParcelQualifier=D";
+    private static final String PARCEL_E = UOW_FDN + ".ParcelQualifier=E";
+
+    private DefaultCacheManager cacheManager;
+    private ParcelLineageIndex lineageIndex;
+
+    @Before
+    public void startCache() {
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("petasos-parcel-lineage-cache", new ConfigurationBuilder().clustering().cacheMode(CacheMode.LOCAL).build());
+        lineageIndex = new ParcelLineageIndex(cacheManager.getCache("petasos-parcel-lineage-cache"));
+    }
+
+    @After
+    public void stopCache() {
+        cacheManager.stop();
+    }
+
+    @Test
+    public void linksRecordedInOrderAreTraversed() {
+        recordPipeline(Arrays.asList(PARCEL_A, PARCEL_B, PARCEL_C, PARCEL_E, PARCEL_D));
+        assertPipeline();
+    }
+
+    // e.g. a successor's registration arriving from another site before its precursor's
+    @Test
+    public void successorRecordedBeforeItsPrecursorKeepsEveryLink() {
+        recordPipeline(Arrays.asList(PARCEL_D, PARCEL_C, PARCEL_E, PARCEL_B, PARCEL_A));
+        assertPipeline();
+    }
+
+    @Test
+    public void recordingAParcelAgainChangesNothing() {
+        recordPipeline(Arrays.asList(PARCEL_A, PARCEL_B, PARCEL_C, PARCEL_E, PARCEL_D));
+        lineageIndex.recordParcel(PARCEL_C, UOW_FDN, PARCEL_B);
+        lineageIndex.recordParcel(PARCEL_A, UOW_FDN, null);
+        assertPipeline();
+        assertEquals(5, lineageIndex.getLineage(UOW_FDN).getParcels().size());
+    }
+
+    @Test
+    public void unknownParcelsHaveNoLineage() {
+        assertTrue(lineageIndex.getLineage("site=site-a.uow=unknown").isEmpty());
+        assertEquals(Collections.emptyList(), lineageIndex.getUpstreamParcels(PARCEL_A));
+        assertEquals(Collections.emptyList(), lineageIndex.getDownstreamParcels(PARCEL_A));
+    }
+
+    @Test
+    public void concurrentSuccessorsAreAllKept() throws InterruptedException {
+        lineageIndex.recordParcel(PARCEL_A, UOW_FDN, null);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<String> successors = Collections.synchronizedList(new ArrayList<>());
+        for (int threadIndex = 0; threadIndex < 4; threadIndex++) {
+            int firstSuccessor = threadIndex * 25;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                for (int successor = firstSuccessor; successor < firstSuccessor + 25; successor++) {
+                    String successorFDN = UOW_FDN + ".ParcelQualifier=A-" + successor;
+                    lineageIndex.recordParcel(successorFDN, UOW_FDN, PARCEL_A);
+                    successors.add(successorFDN);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(new HashSet<>(successors), new HashSet<>(lineageIndex.getDownstreamParcels(PARCEL_A)));
+        assertEquals(101, lineageIndex.getLineage(UOW_FDN).getParcels().size());
+    }
+
+    private void recordPipeline(List<String> recordingOrder) {
+        for (String parcelFDN : recordingOrder) {
+            lineageIndex.recordParcel(parcelFDN, UOW_FDN, precursorOf(parcelFDN));
+        }
+    }
+
+    private static String precursorOf(String parcelFDN) {
+        switch (parcelFDN.substring(parcelFDN.length() - 1)) {
+            case "B":
+                return PARCEL_A;
+            case "C":
+            case "E":
+                return PARCEL_B;
+            case "D":
+                return PARCEL_C;
+            default:
+                return null;
+        }
+    }
+
+    private void assertPipeline() {
+        assertEquals(Arrays.asList(PARCEL_C, PARCEL_B, PARCEL_A), lineageIndex.getUpstreamParcels(PARCEL_D));
+        assertEquals(Arrays.asList(PARCEL_B, PARCEL_A), lineageIndex.getUpstreamParcels(PARCEL_E));
+        List<String> downstreamOfA = lineageIndex.getDownstreamParcels(PARCEL_A);
+        // nearest first: B, then C and E (either order), then D
+        assertEquals(4, downstreamOfA.size());
+        assertEquals(PARCEL_B, downstreamOfA.get(0));
+        assertEquals(new HashSet<>(Arrays.asList(PARCEL_C, PARCEL_E)), new HashSet<>(downstreamOfA.subList(1, 3)));
+        assertEquals(PARCEL_D, downstreamOfA.get(3));
+        assertEquals(Collections.singletonList(PARCEL_D), lineageIndex.getDownstreamParcels(PARCEL_C));
+        assertEquals(Collections.emptyList(), lineageIndex.getDownstreamParcels(PARCEL_E));
+
+        ParcelLineageIndex.ParcelLineage lineage = lineageIndex.getParcelLineage(PARCEL_E);
+        assertEquals(new HashSet<>(Arrays.asList(PARCEL_A, PARCEL_B, PARCEL_C, PARCEL_D, PARCEL_E)), lineage.getParcels());
+        assertEquals(Collections.singletonList(PARCEL_A), lineage.getOrigins());
+        assertNull(lineage.getPrecursor(PARCEL_A));
+        assertEquals(PARCEL_A, lineage.getPrecursor(PARCEL_B));
+        assertEquals(PARCEL_C, lineage.getPrecursor(PARCEL_D));
+        assertEquals(new HashSet<>(Arrays.asList(PARCEL_C, PARCEL_E)), new HashSet<>(lineage.getSuccessors(PARCEL_B)));
+        assertEquals(lineage.getParcels(), lineageIndex.getLineage(UOW_FDN).getParcels());
+    }
+}
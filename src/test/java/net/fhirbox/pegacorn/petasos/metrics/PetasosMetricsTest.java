@@ -0,0 +1,69 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosMetricsTest {
+
+    @Test
+    public void transitionCountsOnlyGoUp() {
+        PetasosMetrics metrics = new PetasosMetrics();
+        // a parcel registered on another node and started on this one
+        metrics.parcelTransition(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+        metrics.parcelTransition(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+        metrics.parcelTransition(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED);
+        assertEquals(0, metrics.getParcelTransitionCount(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED));
+        assertEquals(1, metrics.getParcelTransitionCount(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE));
+        assertEquals(1, metrics.getParcelTransitionCount(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED));
+        assertEquals(1, metrics.getParcelTransitionCount(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED));
+    }
+
+    @Test
+    public void monitorLagOnlyForParcelsWrittenHere() {
+        PetasosMetrics metrics = new PetasosMetrics();
+        PetasosTimer parcelMonitorLag = metrics.getAgentTimer(PetasosMetrics.PARCEL_MONITOR_LAG);
+        metrics.parcelWriteStarted("parcel=1");
+        metrics.parcelMonitorNotified("parcel=1");
+        assertEquals(1, parcelMonitorLag.getCount());
+
+        // restored from a journal, arrived from another site or registered on another node
+        metrics.parcelMonitorNotified("parcel=2");
+        // the same parcel told about twice
+        metrics.parcelMonitorNotified("parcel=1");
+        assertEquals(1, parcelMonitorLag.getCount());
+
+        metrics.parcelWriteStarted("parcel=3");
+        metrics.parcelWriteAbandoned("parcel=3");
+        metrics.parcelMonitorNotified("parcel=3");
+        assertEquals(1, parcelMonitorLag.getCount());
+    }
+}
@@ -0,0 +1,67 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class RollingLatencyHistogramTest {
+
+    @Test
+    public void completedIntervalIsRead() throws InterruptedException {
+        RollingLatencyHistogram histogram = new RollingLatencyHistogram(3, 100);
+        histogram.record(5);
+        histogram.record(7);
+        assertEquals(0, histogram.getWindowHistogram().getTotalCount());
+        Thread.sleep(150);
+        assertEquals(2, histogram.getWindowHistogram().getTotalCount());
+        assertEquals(7, histogram.getWindowHistogram().getMaxValue());
+    }
+
+    // a quiet spell longer than the window leaves nothing from before it
+    @Test
+    public void quietSpellAgesOutTheWindow() throws InterruptedException {
+        RollingLatencyHistogram histogram = new RollingLatencyHistogram(3, 100);
+        histogram.record(5);
+        Thread.sleep(150);
+        assertEquals(1, histogram.getWindowHistogram().getTotalCount());
+        Thread.sleep(450);
+        assertEquals(0, histogram.getWindowHistogram().getTotalCount());
+    }
+
+    @Test
+    public void recordingAfterQuietSpellStartsFresh() throws InterruptedException {
+        RollingLatencyHistogram histogram = new RollingLatencyHistogram(3, 100);
+        histogram.record(5);
+        Thread.sleep(550);
+        histogram.record(9);
+        Thread.sleep(150);
+        assertEquals(1, histogram.getWindowHistogram().getTotalCount());
+        assertEquals(9, histogram.getWindowHistogram().getMaxValue());
+    }
+}
@@ -0,0 +1,62 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class FDNTest {
+
+    @Test
+    public void qualifiedFDNSplitsOnEachDot() {
+        FDN wupFDN = new FDN("deployment=aether.site=site-a.pod=pegacorn-communicate-0.wup=transform-wup");
+        assertEquals("transform-wup", wupFDN.getRDNValue("wup"));
+        assertEquals("aether.site-a.pegacorn-communicate-0.transform-wup", wupFDN.getUnqualifiedFDN());
+        assertEquals("deployment=aether.site=site-a.pod=pegacorn-communicate-0", wupFDN.getParentFDN().getQualifiedFDN());
+    }
+
+    @Test
+    public void qualifiedFDNRoundTrips() {
+        String qualifiedFDN = "deployment=aether.site=site-a.function=transform.InstanceQualifier=42";
+        assertEquals(qualifiedFDN, new FDN(qualifiedFDN).getQualifiedFDN());
+        assertEquals(qualifiedFDN, new FDN(new FDN(qualifiedFDN)).getQualifiedFDN());
+    }
+
+    @Test
+    public void singleRDN() {
+        FDN nodeFDN = new FDN("node=PetasosNode");
+        assertEquals("node=PetasosNode", nodeFDN.getQualifiedFDN());
+        assertEquals("PetasosNode", nodeFDN.getUnqualifiedFDN());
+    }
+
+    @Test
+    public void emptyOrNullIsEmptyFDN() {
+        assertEquals("", new FDN("").getQualifiedFDN());
+        assertEquals("", new FDN((String) null).getQualifiedFDN());
+    }
+}
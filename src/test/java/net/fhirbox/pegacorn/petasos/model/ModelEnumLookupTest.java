@@ -0,0 +1,66 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * The cached JSON holds each enum's string value, the lookups turn it back into the
+ * enum and still accept the enum name.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ModelEnumLookupTest {
+
+    @Test
+    public void componentStatusFromStateString() {
+        for (ComponentStatusEnum componentStatus : ComponentStatusEnum.values()) {
+            assertEquals(componentStatus, ComponentStatusEnum.fromComponentWatchdogState(componentStatus.getComponentWatchdogState()));
+            assertEquals(componentStatus, ComponentStatusEnum.fromComponentWatchdogState(componentStatus.name()));
+        }
+    }
+
+    @Test
+    public void parcelStatusFromStatusString() {
+        for (PetasosParcelStatusEnum parcelStatus : PetasosParcelStatusEnum.values()) {
+            assertEquals(parcelStatus, PetasosParcelStatusEnum.fromPetasosParcelStatus(parcelStatus.getPetasosParcelStatus()));
+            assertEquals(parcelStatus, PetasosParcelStatusEnum.fromPetasosParcelStatus(parcelStatus.name()));
+        }
+    }
+
+    @Test
+    public void processingOutcomeFromOutcomeString() {
+        for (UoWProcessingOutcomeEnum processingOutcome : UoWProcessingOutcomeEnum.values()) {
+            assertEquals(processingOutcome, UoWProcessingOutcomeEnum.fromUoWProcessingOutcome(processingOutcome.getUoWProcessingOutcome()));
+            assertEquals(processingOutcome, UoWProcessingOutcomeEnum.fromUoWProcessingOutcome(processingOutcome.name()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStatusStillThrows() {
+        PetasosParcelStatusEnum.fromPetasosParcelStatus("pegacorn.petasos.parcel.status.unknown");
+    }
+}
@@ -0,0 +1,88 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class PetasosParcelTest {
+    private static final FDN WUP_FDN = new FDN("deployment=aether.site=site-a.wup=transform-wup");
+    private static final FDN FUNCTION_FDN = new FDN("deployment=aether.site=site-a.function=transform");
+
+    @Test
+    public void uowFromFunctionHasRequiredFunctionAndContent() {
+        UoW uow = new UoW(FUNCTION_FDN, "1", Collections.singleton("{\"a\":1}"));
+        assertEquals(FUNCTION_FDN.getQualifiedFDN(), uow.getRequiredFunctionFDN().getQualifiedFDN());
+        assertEquals(FUNCTION_FDN.getQualifiedFDN() + ".InstanceQualifier=1", uow.getUoWFDN().getQualifiedFDN());
+        assertEquals(1, uow.getUowIngressContent().size());
+        assertTrue(uow.getUowEgressContent().isEmpty());
+    }
+
+    @Test
+    public void uowFromFDNsHasEmptyContent() {
+        UoW uow = new UoW(new FDN(FUNCTION_FDN.getQualifiedFDN() + ".InstanceQualifier=1"), FUNCTION_FDN);
+        assertTrue(uow.getUowIngressContent().isEmpty());
+        assertTrue(uow.getUowEgressContent().isEmpty());
+    }
+
+    @Test
+    public void registrationFromParcelFDNHasEmptyWUPList() {
+        PetasosParcelRegistration parcelRegistration = new PetasosParcelRegistration(new FDN("parcel=1"));
+        assertNotNull(parcelRegistration.getRegisteredWUPList());
+        assertTrue(parcelRegistration.getRegisteredWUPList().isEmpty());
+    }
+
+    @Test
+    public void parcelFromRegistrationHasEmptySuccessors() {
+        PetasosParcel parcel = new PetasosParcel(new PetasosParcelRegistration(new FDN("parcel=1")));
+        assertNotNull(parcel.getSuccessorParcelSet());
+        assertTrue(parcel.getSuccessorParcelSet().isEmpty());
+    }
+
+    @Test
+    public void copyWithoutPrecursorKeepsStatus() {
+        UoW uow = new UoW(FUNCTION_FDN, "1", Collections.singleton("{\"a\":1}"));
+        PetasosParcelRegistration parcelRegistration = new PetasosParcelRegistration(WUP_FDN, uow.getUoWFDN(), FUNCTION_FDN, Instant.now());
+        parcelRegistration.setContainedUoW(uow.getUoWFDN());
+        PetasosParcel parcel = new PetasosParcel(parcelRegistration);
+        parcel.setUoW(uow);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+
+        PetasosParcel parcelCopy = new PetasosParcel(parcel);
+        assertNull(parcelCopy.getPrecursorParcel());
+        assertEquals(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, parcelCopy.getParcelStatus());
+        assertEquals(parcel.getStatusTransitions(), parcelCopy.getStatusTransitions());
+        assertEquals(parcel.getParcelFDN().getQualifiedFDN(), parcelCopy.getParcelFDN().getQualifiedFDN());
+    }
+}
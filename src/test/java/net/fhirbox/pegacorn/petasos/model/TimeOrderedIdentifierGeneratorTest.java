@@ -0,0 +1,153 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class TimeOrderedIdentifierGeneratorTest {
+    private static final int THREADS = 8;
+    private static final int IDENTIFIERS_PER_THREAD = 100000;
+
+    @Test
+    public void identifiersAreUniqueAcrossThreads() throws InterruptedException {
+        TimeOrderedIdentifierGenerator generator = new TimeOrderedIdentifierGenerator(1);
+        Set<String> identifiers = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int threadIndex = 0; threadIndex < THREADS; threadIndex++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                for (int count = 0; count < IDENTIFIERS_PER_THREAD; count++) {
+                    identifiers.add(generator.generateIdentifier());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(THREADS * IDENTIFIERS_PER_THREAD, identifiers.size());
+    }
+
+    // short lived threads (e.g. a cached pool) each start their own run of identifiers
+    @Test
+    public void identifiersAreUniqueAcrossShortLivedThreads() throws InterruptedException {
+        TimeOrderedIdentifierGenerator generator = new TimeOrderedIdentifierGenerator(1);
+        Set<String> identifiers = ConcurrentHashMap.newKeySet();
+        for (int threadIndex = 0; threadIndex < 1000; threadIndex++) {
+            Thread thread = new Thread(() -> {
+                for (int count = 0; count < 10; count++) {
+                    identifiers.add(generator.generateIdentifier());
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        assertEquals(10000, identifiers.size());
+    }
+
+    @Test
+    public void identifiersSortInGenerationOrder() {
+        TimeOrderedIdentifierGenerator generator = new TimeOrderedIdentifierGenerator(7);
+        String previousIdentifier = generator.generateIdentifier();
+        for (int count = 0; count < 100000; count++) {
+            String identifier = generator.generateIdentifier();
+            assertEquals(TimeOrderedIdentifierGenerator.IDENTIFIER_LENGTH, identifier.length());
+            assertTrue(previousIdentifier + " then " + identifier, identifier.compareTo(previousIdentifier) > 0);
+            previousIdentifier = identifier;
+        }
+    }
+
+    @Test
+    public void nodesGenerateDifferentIdentifiers() {
+        String nodeOneIdentifier = new TimeOrderedIdentifierGenerator(1).generateIdentifier();
+        String nodeTwoIdentifier = new TimeOrderedIdentifierGenerator(2).generateIdentifier();
+        assertNotEquals(nodeOneIdentifier.substring(10), nodeTwoIdentifier.substring(10));
+    }
+
+    @Test
+    public void configuredNodeIdIsUsedWhenInRange() {
+        assertEquals(5L, TimeOrderedIdentifierGenerator.getNodeId("5"));
+        assertEquals((1L << 24) - 1, TimeOrderedIdentifierGenerator.getNodeId(" 16777215 "));
+    }
+
+    @Test
+    public void outOfRangeNodeIdIsRefusedNotMasked() {
+        assertRandomNodeId(TimeOrderedIdentifierGenerator.getNodeId("16777216"));
+        assertRandomNodeId(TimeOrderedIdentifierGenerator.getNodeId("16777221"));
+        assertRandomNodeId(TimeOrderedIdentifierGenerator.getNodeId("-1"));
+        assertRandomNodeId(TimeOrderedIdentifierGenerator.getNodeId("node-1"));
+        assertRandomNodeId(TimeOrderedIdentifierGenerator.getNodeId(null));
+    }
+
+    @Test
+    public void randomNodeIdUsesAllItsBits() {
+        long combinedNodeIds = 0;
+        for (int count = 0; count < 64; count++) {
+            combinedNodeIds |= TimeOrderedIdentifierGenerator.getNodeId(null);
+        }
+        assertEquals((1L << 45) - 1, combinedNodeIds);
+    }
+
+    @Test
+    public void wholeNodeIdIsInTheIdentifier() {
+        long nodeId = (1L << 45) - 1;
+        TimeOrderedIdentifierGenerator generator = new TimeOrderedIdentifierGenerator(nodeId);
+        String identifier = generator.generateIdentifier();
+        // characters 10 to 18 are the 45 bit node id
+        assertEquals("ZZZZZZZZZ", identifier.substring(10, 19));
+        assertEquals(nodeId, generator.getNodeId());
+        String otherIdentifier = new TimeOrderedIdentifierGenerator(nodeId ^ (1L << 44)).generateIdentifier();
+        assertNotEquals(identifier.substring(10, 11), otherIdentifier.substring(10, 11));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodeIdWiderThanTheIdentifierIsRefused() {
+        new TimeOrderedIdentifierGenerator(1L << 45);
+    }
+
+    // random ids have the top bit set, so never match a configured one
+    private static void assertRandomNodeId(long nodeId) {
+        assertEquals(1L << 44, nodeId & (-1L << 44));
+    }
+}
@@ -0,0 +1,122 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.fhirbox.pegacorn.petasos.journal.ParcelArchive;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.replication.SiteParcelUpdateWriter;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelExpiryMonitorTest {
+    private static final String PARCEL_FDN = "Site=A.UoW=expiry.Parcel=1";
+    private static final long TOMBSTONE_LIFESPAN_MILLIS = 60000L;
+
+    @Rule
+    public TemporaryFolder archiveFolder = new TemporaryFolder();
+
+    private DefaultCacheManager cacheManager;
+    private Cache<String, String> parcelCache;
+    private Cache<String, String> tombstoneCache;
+    private ParcelArchive archive;
+
+    @Before
+    public void startCaches() throws IOException {
+        cacheManager = new DefaultCacheManager();
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager.defineConfiguration("petasos-parcel-cache", localCache.build());
+        cacheManager.defineConfiguration("petasos-parcel-tombstone-cache", localCache.build());
+        parcelCache = cacheManager.getCache("petasos-parcel-cache");
+        tombstoneCache = cacheManager.getCache("petasos-parcel-tombstone-cache");
+        archive = new ParcelArchive(archiveFolder.newFolder("parcel-archive").toPath());
+        archive.open();
+        parcelCache.addListener(new ParcelExpiryMonitor(archive, tombstoneCache, TOMBSTONE_LIFESPAN_MILLIS));
+    }
+
+    @After
+    public void stopCaches() {
+        archive.close();
+        cacheManager.stop();
+    }
+
+    @Test
+    public void expiredParcelIsArchivedAndLeavesATombstone() throws Exception {
+        parcelCache.put(PARCEL_FDN, finalisedParcel(), 50, TimeUnit.MILLISECONDS);
+        awaitExpiry();
+        assertNotNull(tombstoneCache.get(PARCEL_FDN));
+        assertEquals(1, archive.getPendingCount());
+        assertEquals(1, archive.archiveBatch());
+    }
+
+    @Test
+    public void lateSiteUpdateOfExpiredParcelIsNotWrittenBack() throws Exception {
+        parcelCache.put(PARCEL_FDN, finalisedParcel(), 50, TimeUnit.MILLISECONDS);
+        awaitExpiry();
+        // the other site finalised it later, so its copy still has a while to go
+        SiteParcelUpdateWriter updateWriter = new SiteParcelUpdateWriter(parcelCache, parcelJSON -> 60000L,
+                (previousParcelJSON, parcelJSON) -> {}, tombstoneCache);
+        assertFalse(updateWriter.write(PARCEL_FDN, finalisedParcel()).get(5, TimeUnit.SECONDS));
+        assertNull(parcelCache.get(PARCEL_FDN));
+        assertEquals(1, archive.getPendingCount());
+    }
+
+    // an expired entry is only noticed when it is next read (or the reaper gets to it)
+    private void awaitExpiry() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while ((parcelCache.get(PARCEL_FDN) != null || tombstoneCache.get(PARCEL_FDN) == null || archive.getPendingCount() == 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static String finalisedParcel() {
+        JSONObject parcelJSON = new JSONObject();
+        String finalised = PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED.getPetasosParcelStatus();
+        parcelJSON.put("parcelStatus", finalised);
+        parcelJSON.put("statusTransitions", new JSONObject().put(finalised, System.currentTimeMillis()));
+        parcelJSON.put("uow", new JSONObject());
+        return parcelJSON.toString();
+    }
+}
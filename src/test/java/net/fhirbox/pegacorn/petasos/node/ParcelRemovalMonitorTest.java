@@ -0,0 +1,118 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.fhirbox.pegacorn.petasos.journal.ParcelJournal;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelRemovalMonitorTest {
+    @Rule
+    public TemporaryFolder journalFolder = new TemporaryFolder();
+
+    private DefaultCacheManager cacheManager;
+    private Cache<String, String> parcelCache;
+    private ParcelJournal journal;
+
+    @Before
+    public void startCache() throws IOException {
+        journal = new ParcelJournal(journalFolder.newFolder("parcel-journal").toPath());
+        journal.open();
+        PetasosNode node = new PetasosNode();
+        node.setParcelJournal(journal);
+        cacheManager = new DefaultCacheManager();
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager.defineConfiguration("petasos-parcel-cache", localCache.build());
+        parcelCache = cacheManager.getCache("petasos-parcel-cache");
+        parcelCache.addListener(new ParcelRemovalMonitor(node));
+    }
+
+    @After
+    public void stopCache() {
+        cacheManager.stop();
+        journal.close();
+    }
+
+    @Test
+    public void removalOfAJournalledParcelIsJournalled() throws Exception {
+        journal.append("parcel-1", "{\"status\":\"finished\"}");
+        parcelCache.put("parcel-1", "{\"status\":\"finished\"}");
+        parcelCache.remove("parcel-1");
+        awaitRecords(2);
+        assertFalse(journal.holdsParcel("parcel-1"));
+    }
+
+    @Test
+    public void removalOfAParcelWrittenElsewhereIsNotJournalled() throws Exception {
+        // as another node would have, so only in the cache
+        parcelCache.put("parcel-2", "{\"status\":\"finished\"}");
+        parcelCache.remove("parcel-2");
+        // a removal this node does journal, to know the listener has caught up
+        journal.append("parcel-1", "{\"status\":\"finished\"}");
+        parcelCache.put("parcel-1", "{\"status\":\"finished\"}");
+        parcelCache.remove("parcel-1");
+        List<String> replayedKeys = awaitRecords(2);
+        assertEquals(2, replayedKeys.size());
+        assertFalse(replayedKeys.contains("parcel-2"));
+    }
+
+    // the listener is async, so give it a moment to journal what it is going to
+    private List<String> awaitRecords(int expectedRecords) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        List<String> replayedKeys = replayedKeys();
+        while (replayedKeys.size() < expectedRecords && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            replayedKeys = replayedKeys();
+        }
+        Thread.sleep(50);
+        replayedKeys = replayedKeys();
+        assertEquals(expectedRecords, replayedKeys.size());
+        return replayedKeys;
+    }
+
+    private List<String> replayedKeys() throws IOException {
+        List<String> replayedKeys = new ArrayList<>();
+        journal.replay((parcelKey, parcelJSON) -> replayedKeys.add(parcelKey));
+        return replayedKeys;
+    }
+}
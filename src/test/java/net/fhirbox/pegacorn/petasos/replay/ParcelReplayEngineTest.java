@@ -0,0 +1,183 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.agent.PetasosAgent;
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSON;
+import net.fhirbox.pegacorn.petasos.common.PetasosParcelJSONWriter;
+import net.fhirbox.pegacorn.petasos.metrics.PetasosMetrics;
+import net.fhirbox.pegacorn.petasos.model.ComponentStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.FDN;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcel;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelRegistration;
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+import net.fhirbox.pegacorn.petasos.model.PetasosWUPWatchdogState;
+import net.fhirbox.pegacorn.petasos.model.UoW;
+import net.fhirbox.pegacorn.petasos.model.UoWProcessingOutcomeEnum;
+import net.fhirbox.pegacorn.petasos.node.PetasosNode;
+
+/**
+ * A replay against an agent that sheds the first registrations of each parcel, with
+ * the node's executor down to a single thread.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class ParcelReplayEngineTest {
+    private static final FDN WUP_FDN = new FDN("deployment=aether.site=site-a.wup=transform-wup");
+    private static final FDN FUNCTION_FDN = new FDN("deployment=aether.site=site-a.function=transform");
+    private static final int FAILED_PARCELS = 3;
+    private static final int SHED_REGISTRATIONS = 2;
+
+    private DefaultCacheManager cacheManager;
+    private ExecutorService nodeExecutor;
+    private ParcelReplayEngine replayEngine;
+    private Map<String, AtomicInteger> registrationAttempts = new ConcurrentHashMap<>();
+    private List<String> failedParcelFDNs = new ArrayList<>();
+
+    // turns each UoW away a couple of times, as a loaded agent does, before taking it
+    private class SheddingAgent extends PetasosAgent {
+        @Override
+        public PetasosParcel registerActivity(FDN theWUPFDN, FDN theComponentFunctionFDN, UoW theUoW, FDN precursorParcelFDN) {
+            AtomicInteger attempts = registrationAttempts.computeIfAbsent(theUoW.getUoWFDN().getQualifiedFDN(), uowFDN -> new AtomicInteger());
+            if (attempts.incrementAndGet() <= SHED_REGISTRATIONS) {
+                return null;
+            }
+            return new PetasosParcel(new PetasosParcelRegistration(new FDN(theUoW.getUoWFDN().getQualifiedFDN() + ".replay=1")));
+        }
+    }
+
+    @Before
+    public void startReplayEngine() {
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("petasos-parcel-cache", localCache.build());
+        cacheManager.defineConfiguration("petasos-replay-checkpoint-cache", localCache.build());
+        for (int parcelIndex = 0; parcelIndex < FAILED_PARCELS; parcelIndex++) {
+            PetasosParcel parcel = createFailedParcel(Integer.toString(parcelIndex));
+            failedParcelFDNs.add(parcel.getParcelFDN().getQualifiedFDN());
+            cacheManager.<String, String>getCache("petasos-parcel-cache").put(parcel.getParcelFDN().getQualifiedFDN(),
+                    PetasosParcelJSONWriter.get().toJSONString(parcel));
+        }
+
+        // one thread, so a replay waiting on its batch there would never see it run
+        nodeExecutor = Executors.newSingleThreadExecutor();
+        PetasosNode node = new PetasosNode();
+        node.setBlockingTaskExecutor(nodeExecutor);
+
+        replayEngine = new ParcelReplayEngine();
+        replayEngine.petasosCacheManager = cacheManager;
+        replayEngine.agent = new SheddingAgent();
+        replayEngine.node = node;
+        replayEngine.metrics = new PetasosMetrics();
+        replayEngine.setReplayRate(10000);
+        replayEngine.start();
+    }
+
+    @After
+    public void stopReplayEngine() {
+        replayEngine.stop();
+        nodeExecutor.shutdownNow();
+        cacheManager.stop();
+    }
+
+    private static PetasosParcel createFailedParcel(String uowQualifier) {
+        UoW uow = new UoW(FUNCTION_FDN, uowQualifier, Collections.singleton("{\"a\":1}"));
+        uow.setUowProcessingOutcome(UoWProcessingOutcomeEnum.PEGACORN_UOW_OUTCOME_FAILED);
+        PetasosParcelRegistration parcelRegistration = new PetasosParcelRegistration(WUP_FDN, uow.getUoWFDN(), FUNCTION_FDN, Instant.now().minusSeconds(60));
+        PetasosParcel parcel = new PetasosParcel(parcelRegistration);
+        parcel.setUoW(uow);
+        parcel.setParcelStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+        parcel.setTaskProcessorState(new PetasosWUPWatchdogState(WUP_FDN, ComponentStatusEnum.COMPONENT_STATUS_IDLE, Instant.now()));
+        return parcel;
+    }
+
+    private ParcelReplayCheckpoint awaitReplay(String replayId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        ParcelReplayCheckpoint progress = replayEngine.getReplayProgress(replayId);
+        while (!progress.isComplete() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            progress = replayEngine.getReplayProgress(replayId);
+        }
+        assertTrue("replay did not complete", progress.isComplete());
+        return progress;
+    }
+
+    private PetasosParcelJSON cachedParcel(String parcelFDN) {
+        return new PetasosParcelJSON(cacheManager.<String, String>getCache("petasos-parcel-cache").get(parcelFDN));
+    }
+
+    @Test
+    public void shedRegistrationsAreRetried() throws InterruptedException {
+        String replayId = replayEngine.startReplay(ParcelReplaySelection.failedOrIncomplete(FUNCTION_FDN.getQualifiedFDN(), 0, Long.MAX_VALUE));
+        ParcelReplayCheckpoint progress = awaitReplay(replayId);
+        assertEquals(FAILED_PARCELS, progress.getReplayedCount());
+        assertEquals(0, progress.getFailedCount());
+        assertEquals(FAILED_PARCELS, registrationAttempts.size());
+        registrationAttempts.values().forEach(attempts -> assertEquals(SHED_REGISTRATIONS + 1, attempts.get()));
+    }
+
+    @Test
+    public void resumedReplaySkipsParcelsAlreadyReplayed() throws InterruptedException {
+        // as left by a node stopped part way through the first batch, which had only
+        // registered the first parcel again
+        String replayId = "replay-stopped";
+        ParcelReplayCheckpoint checkpoint = new ParcelReplayCheckpoint(replayId,
+                ParcelReplaySelection.failedOrIncomplete(FUNCTION_FDN.getQualifiedFDN(), 0, Long.MAX_VALUE).closedAt(System.currentTimeMillis()),
+                "deployment=aether.site=site-a.pod=pegacorn-communicate-1.node=PetasosNode");
+        cacheManager.<String, String>getCache("petasos-replay-checkpoint-cache").put(replayId, checkpoint.toJSONString());
+        String replayedParcelFDN = failedParcelFDNs.get(0);
+        PetasosParcelJSON replayedParcel = cachedParcel(replayedParcelFDN);
+        replayedParcel.setReplayedAs(replayId, replayedParcelFDN + ".replay=1");
+        cacheManager.<String, String>getCache("petasos-parcel-cache").put(replayedParcelFDN, replayedParcel.toJSONString());
+
+        assertTrue(replayEngine.resumeReplay(replayId));
+        ParcelReplayCheckpoint progress = awaitReplay(replayId);
+        assertEquals(FAILED_PARCELS, progress.getReplayedCount());
+        assertEquals(FAILED_PARCELS - 1, registrationAttempts.size());
+        // and the ones registered now are marked in turn
+        failedParcelFDNs.forEach(parcelFDN -> assertNotNull(cachedParcel(parcelFDN).getReplayedAs(replayId)));
+    }
+}
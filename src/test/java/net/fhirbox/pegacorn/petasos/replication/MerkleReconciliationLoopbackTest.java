@@ -0,0 +1,139 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reconciliation between two sites over loopback, each site's "cache" being a map
+ * kept in step with its Merkle tree.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class MerkleReconciliationLoopbackTest {
+    private static final String CACHE_NAME = "petasos-parcel-cache";
+
+    private ReconciledSite siteA;
+    private ReconciledSite siteB;
+    // threads the reconcilers read their caches on
+    private Set<String> lookupThreads = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void startSites() throws IOException, InterruptedException {
+        siteA = new ReconciledSite("a");
+        siteB = new ReconciledSite("b");
+        siteA.transport.addSite("127.0.0.1:" + siteB.transport.getListenPort());
+    }
+
+    @After
+    public void stopSites() {
+        siteA.stop();
+        siteB.stop();
+    }
+
+    @Test
+    public void entriesOnlyHeldAtOneSiteAreCopiedAcross() throws InterruptedException {
+        for (int parcel = 0; parcel < 50; parcel++) {
+            siteA.put("parcel-" + parcel, "{\"parcel\":" + parcel + "}");
+        }
+        siteB.put("parcel-b", "{\"parcel\":\"b\"}");
+        siteA.transport.reconcileWithSites();
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while ((siteB.entries.size() < 51 || siteA.entries.size() < 51) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(51, siteB.entries.size());
+        assertEquals(51, siteA.entries.size());
+        assertEquals(siteA.tree.getRootHash(), siteB.tree.getRootHash());
+
+        assertFalse(lookupThreads.isEmpty());
+        lookupThreads.forEach(threadName -> assertTrue(threadName, threadName.startsWith("reconciler-")));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private class ReconciledSite implements SiteReplicationListener {
+        private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();
+        private final ParcelMerkleTree tree = new ParcelMerkleTree(CACHE_NAME);
+        private final SiteReplicationTransport transport;
+        private final ExecutorService reconciliationExecutor;
+
+        ReconciledSite(String siteName) throws IOException, InterruptedException {
+            AtomicInteger threadCount = new AtomicInteger();
+            reconciliationExecutor = Executors.newFixedThreadPool(2, runnable -> new Thread(runnable, "reconciler-" + siteName + "-" + threadCount.incrementAndGet()));
+            MerkleReconciler reconciler = new MerkleReconciler();
+            reconciler.addCache(tree, key -> {
+                lookupThreads.add(Thread.currentThread().getName());
+                return entries.get(key);
+            }, value -> 1L, SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL);
+            transport = new SiteReplicationTransport(freePort(), this);
+            transport.setBatchWindowMillis(5);
+            transport.setReconciler(reconciler);
+            transport.setReconciliationExecutor(reconciliationExecutor);
+            transport.start();
+        }
+
+        void put(String key, String value) {
+            entries.put(key, value);
+            tree.update(key, value);
+        }
+
+        void stop() {
+            transport.stop();
+            reconciliationExecutor.shutdownNow();
+        }
+
+        @Override
+        public void onParcelUpdate(String parcelQualifiedFDN, String parcelJSON) {
+            put(parcelQualifiedFDN, parcelJSON);
+        }
+
+        @Override
+        public void onCIStatusUpdate(String wupQualifiedFDN, String watchdogStateJSON) {
+        }
+
+        @Override
+        public void onPayloadUpdate(String payloadRef, String payload) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteCircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        SiteCircuitBreaker circuitBreaker = new SiteCircuitBreaker("site-b:12500", 3, 60000L);
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.isOpen());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void halfOpenAdmitsASingleProbe() throws InterruptedException {
+        SiteCircuitBreaker circuitBreaker = openCircuit(20L);
+        Thread.sleep(30);
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+        circuitBreaker.recordSuccess();
+        assertTrue(circuitBreaker.allowRequest());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeReopens() throws InterruptedException {
+        SiteCircuitBreaker circuitBreaker = openCircuit(20L);
+        Thread.sleep(30);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.isOpen());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void lostProbeIsReplaced() throws InterruptedException {
+        SiteCircuitBreaker circuitBreaker = openCircuit(20L);
+        Thread.sleep(30);
+        assertTrue(circuitBreaker.allowRequest());
+        // the probe never reports back
+        Thread.sleep(30);
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void siteCopiesShareEncodingButNotOutcome() {
+        SiteReplicationUpdate update = new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL, "parcel-1", "{\"status\":\"active\"}");
+        SiteReplicationUpdate siteCopy = new SiteReplicationUpdate(update);
+        assertSame(update.getValueBytes(), siteCopy.getValueBytes());
+        assertNotSame(update.getSendOutcome(), siteCopy.getSendOutcome());
+        siteCopy.incrementSendAttempts();
+        assertEquals(0, update.getSendAttempts());
+        assertArrayEquals(update.getValueBytes(), siteCopy.getValueBytes());
+    }
+
+    private static SiteCircuitBreaker openCircuit(long openDurationMillis) {
+        SiteCircuitBreaker circuitBreaker = new SiteCircuitBreaker("site-b:12500", 1, openDurationMillis);
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.isOpen());
+        return circuitBreaker;
+    }
+}
@@ -0,0 +1,123 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+
+/**
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteParcelUpdateWriterTest {
+    private static final String PARCEL_FDN = "Site=A.UoW=writer.Parcel=1";
+
+    private DefaultCacheManager cacheManager;
+    private Cache<String, String> parcelCache;
+    private Cache<String, String> tombstoneCache;
+    // what the lifespan function gives every update
+    private volatile long remainingLifespanMillis;
+    private SiteParcelUpdateWriter updateWriter;
+
+    @Before
+    public void startCaches() {
+        cacheManager = new DefaultCacheManager();
+        ConfigurationBuilder localCache = new ConfigurationBuilder();
+        localCache.clustering().cacheMode(CacheMode.LOCAL);
+        cacheManager.defineConfiguration("petasos-parcel-cache", localCache.build());
+        cacheManager.defineConfiguration("petasos-parcel-tombstone-cache", localCache.build());
+        parcelCache = cacheManager.getCache("petasos-parcel-cache");
+        tombstoneCache = cacheManager.getCache("petasos-parcel-tombstone-cache");
+        updateWriter = new SiteParcelUpdateWriter(parcelCache, parcelJSON -> remainingLifespanMillis,
+                (previousParcelJSON, parcelJSON) -> {}, tombstoneCache);
+    }
+
+    @After
+    public void stopCaches() {
+        cacheManager.stop();
+    }
+
+    @Test
+    public void finalisedUpdateGetsWhatIsLeftOfItsLifespan() throws Exception {
+        remainingLifespanMillis = 60000L;
+        assertTrue(write(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED, 3000L)));
+        assertEquals(60000L, parcelCache.getAdvancedCache().getCacheEntry(PARCEL_FDN).getLifespan());
+    }
+
+    @Test
+    public void expiredFinalisedUpdateIsDropped() throws Exception {
+        remainingLifespanMillis = 0L;
+        assertFalse(write(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED, 3000L)));
+        assertNull(parcelCache.get(PARCEL_FDN));
+    }
+
+    @Test
+    public void updateOfAParcelThatExpiredHereIsDropped() throws Exception {
+        tombstoneCache.put(PARCEL_FDN, Long.toString(System.currentTimeMillis()));
+        remainingLifespanMillis = 60000L;
+        assertFalse(write(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED, 3000L)));
+        assertNull(parcelCache.get(PARCEL_FDN));
+    }
+
+    @Test
+    public void finalisingAParcelStillHeldLeavesItTimeToExpireHere() throws Exception {
+        parcelCache.put(PARCEL_FDN, parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, 2000L));
+        remainingLifespanMillis = 0L;
+        assertTrue(write(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED, 3000L)));
+        assertEquals(SiteParcelUpdateWriter.MIN_LIFESPAN_MILLIS, parcelCache.getAdvancedCache().getCacheEntry(PARCEL_FDN).getLifespan());
+    }
+
+    @Test
+    public void unfinalisedUpdateIsWrittenWithoutLifespan() throws Exception {
+        remainingLifespanMillis = -1L;
+        assertTrue(write(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, 2000L)));
+        assertEquals(-1L, parcelCache.getAdvancedCache().getCacheEntry(PARCEL_FDN).getLifespan());
+    }
+
+    private boolean write(String parcelJSON) throws Exception {
+        return updateWriter.write(PARCEL_FDN, parcelJSON).get(5, TimeUnit.SECONDS);
+    }
+
+    private static String parcel(PetasosParcelStatusEnum parcelStatus, long transitionInstant) {
+        JSONObject parcelJSON = new JSONObject();
+        parcelJSON.put("parcelStatus", parcelStatus.getPetasosParcelStatus());
+        parcelJSON.put("statusTransitions", new JSONObject().put(parcelStatus.getPetasosParcelStatus(), transitionInstant));
+        parcelJSON.put("watchdogStatus", new JSONObject().put("lastStatusUpdate", transitionInstant));
+        return parcelJSON.toString();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 ACT Health (Mark A. Hunter).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.fhirbox.pegacorn.petasos.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.fhirbox.pegacorn.petasos.model.PetasosParcelStatusEnum;
+
+/**
+ * Two sites in the one JVM, talking over the loopback interface. The receiving site
+ * writes parcel updates through the SiteParcelUpdateWriter as PetasosNode does.
+ *
+ * @author ACT Health (Mark A. Hunter)
+ */
+public class SiteReplicationLoopbackTest {
+    private static final String PARCEL_FDN = "Site=A.UoW=loopback.Parcel=1";
+
+    private DefaultCacheManager receivingCacheManager;
+    private Cache<String, String> receivingParcelCache;
+    private SiteReplicationTransport sendingSite;
+    private SiteReplicationTransport receivingSite;
+    private SiteReplicationClient receivingSiteClient;
+
+    @Before
+    public void startSites() throws IOException, InterruptedException {
+        receivingCacheManager = new DefaultCacheManager();
+        receivingCacheManager.defineConfiguration("petasos-parcel-cache", new ConfigurationBuilder().build());
+        receivingParcelCache = receivingCacheManager.getCache("petasos-parcel-cache");
+        SiteParcelUpdateWriter updateWriter = new SiteParcelUpdateWriter(receivingParcelCache, parcelJSON -> -1, (previousParcelJSON, parcelJSON) -> {});
+
+        receivingSite = new SiteReplicationTransport(freePort(), new ParcelOnlyListener() {
+            @Override
+            public void onParcelUpdate(String parcelQualifiedFDN, String parcelJSON) {
+                updateWriter.write(parcelQualifiedFDN, parcelJSON);
+            }
+        });
+        receivingSite.start();
+        sendingSite = new SiteReplicationTransport(freePort(), new ParcelOnlyListener());
+        sendingSite.setBatchWindowMillis(5);
+        sendingSite.start();
+        receivingSiteClient = sendingSite.addSite("127.0.0.1:" + receivingSite.getListenPort());
+    }
+
+    @After
+    public void stopSites() {
+        sendingSite.stop();
+        receivingSite.stop();
+        receivingCacheManager.stop();
+    }
+
+    @Test
+    public void updatesInOrderAreAllApplied() throws Exception {
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED, 1000L));
+        awaitStatus(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED);
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, 2000L));
+        awaitStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED, 3000L));
+        awaitStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+    }
+
+    @Test
+    public void staleUpdateArrivingLateIsIgnored() throws Exception {
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED, 3000L));
+        awaitStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED);
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, 2000L));
+        awaitQuiet();
+        assertEquals(PetasosParcelStatusEnum.PARCEL_STATUS_FINISHED, cachedStatus());
+    }
+
+    @Test
+    public void finalisedParcelIsNotReopened() throws Exception {
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED, 3000L));
+        awaitStatus(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED);
+        // a later transition instant, e.g. from a site with a clock running ahead
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, 9000L));
+        awaitQuiet();
+        assertEquals(PetasosParcelStatusEnum.PARCEL_STATUS_FINALISED, cachedStatus());
+    }
+
+    @Test
+    public void localTransitionIsNotOverwritten() throws Exception {
+        // this site has moved the parcel on since the other site's update was made
+        receivingParcelCache.put(PARCEL_FDN, parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, 5000L));
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_REGISTERED, 1000L));
+        awaitQuiet();
+        assertEquals(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, cachedStatus());
+    }
+
+    @Test
+    public void sameStatusOrderedByLastStatusUpdate() throws Exception {
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, 2000L, 2500L));
+        awaitStatus(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE);
+        send(parcel(PetasosParcelStatusEnum.PARCEL_STATUS_ACTIVE, 2000L, 2100L));
+        awaitQuiet();
+        assertEquals(2500L, new JSONObject(receivingParcelCache.get(PARCEL_FDN)).getJSONObject("watchdogStatus").getLong("lastStatusUpdate"));
+    }
+
+    @Test
+    public void coalescingKeysSeparateTypeFromKey() {
+        SiteReplicationUpdate parcelUpdate = new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL, PARCEL_FDN, "{}");
+        SiteReplicationUpdate newerParcelUpdate = new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL, PARCEL_FDN, "{\"newer\":true}");
+        SiteReplicationUpdate statusUpdate = new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_CI_STATUS, PARCEL_FDN, "{}");
+        assertEquals(parcelUpdate.getCoalescingKey(), newerParcelUpdate.getCoalescingKey());
+        assertNotEquals(parcelUpdate.getCoalescingKey(), statusUpdate.getCoalescingKey());
+        assertEquals(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL.ordinal() + ":" + PARCEL_FDN, parcelUpdate.getCoalescingKey());
+    }
+
+    private void send(String parcelJSON) throws Exception {
+        SiteReplicationUpdate update = new SiteReplicationUpdate(SiteReplicationUpdateTypeEnum.SITE_UPDATE_PARCEL, PARCEL_FDN, parcelJSON);
+        assertTrue(receivingSiteClient.send(update).get(5, TimeUnit.SECONDS));
+    }
+
+    private void awaitStatus(PetasosParcelStatusEnum expectedStatus) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (expectedStatus != cachedStatus() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expectedStatus, cachedStatus());
+    }
+
+    // time for a sent update to be received and (not) written
+    private void awaitQuiet() throws InterruptedException {
+        Thread.sleep(200);
+    }
+
+    private PetasosParcelStatusEnum cachedStatus() {
+        String parcelJSON = receivingParcelCache.get(PARCEL_FDN);
+        if (parcelJSON == null) {
+            return null;
+        }
+        return PetasosParcelStatusEnum.fromPetasosParcelStatus(new JSONObject(parcelJSON).getString("parcelStatus"));
+    }
+
+    private static String parcel(PetasosParcelStatusEnum parcelStatus, long transitionInstant) {
+        return parcel(parcelStatus, transitionInstant, transitionInstant);
+    }
+
+    private static String parcel(PetasosParcelStatusEnum parcelStatus, long transitionInstant, long lastStatusUpdate) {
+        JSONObject parcelJSON = new JSONObject();
+        parcelJSON.put("parcelStatus", parcelStatus.getPetasosParcelStatus());
+        parcelJSON.put("statusTransitions", new JSONObject().put(parcelStatus.getPetasosParcelStatus(), transitionInstant));
+        parcelJSON.put("watchdogStatus", new JSONObject().put("lastStatusUpdate", lastStatusUpdate));
+        return parcelJSON.toString();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static class ParcelOnlyListener implements SiteReplicationListener {
+        @Override
+        public void onParcelUpdate(String parcelQualifiedFDN, String parcelJSON) {
+        }
+
+        @Override
+        public void onCIStatusUpdate(String wupQualifiedFDN, String watchdogStateJSON) {
+        }
+
+        @Override
+        public void onPayloadUpdate(String payloadRef, String payload) {
+        }
+    }
+}